@@ -1,10 +1,17 @@
 package com.yumi.lsm;
 
+import com.yumi.lsm.compress.CompressionType;
 import com.yumi.lsm.filter.Filter;
-import com.yumi.lsm.filter.LsmBloomFilter;
+import com.yumi.lsm.filter.PrefixExtractor;
+import com.yumi.lsm.filter.BinaryFuseFilter;
+import com.yumi.lsm.filter.BlockedBloomFilter;
 import com.yumi.lsm.memtable.MemTableConstructor;
 import com.yumi.lsm.memtable.SkipListMemTable;
 import com.yumi.lsm.sst.BlockBufferPool;
+import com.yumi.lsm.sst.BlockCache;
+import com.yumi.lsm.sst.ChecksumVerification;
+import com.yumi.lsm.util.LibC;
+import com.yumi.lsm.wal.WalSyncMode;
 
 import java.io.File;
 import java.util.function.Consumer;
@@ -20,15 +27,58 @@ public class Config {
     //sst文件中 一个block的大小
     //默认值32KB
     private int sstDataBlockSize = 32 * 1024;
-    //sst文件中 footer大小 固定为16B
-    private int sstFooterSize = 16;
-    //过滤器
-    private Filter filter = new LsmBloomFilter();
+    //data block 中每隔多少条记录设置一个 restart point
+    private int sstRestartInterval = 16;
+    //每一层 data block 的压缩方式，层数超出时使用最后一个，为 null 时 0 层不压缩，其他层使用 LZ4
+    private CompressionType[] compressionPerLevel;
+    //读取 sst 时什么情况下校验 data block 的 crc
+    private ChecksumVerification checksumVerification = ChecksumVerification.COMPACTION_ONLY;
+    //data block 的过滤器，默认每个 key 10 位的分块 bloom 过滤器
+    private Filter filter = new BlockedBloomFilter();
+    //整个文件的过滤器和前缀过滤器，key 多且常驻内存，默认使用更省空间的 binary fuse 过滤器
+    private Filter fileFilter = new BinaryFuseFilter();
+    //每个 sst 额外构建一个整个文件的过滤器，点查时在查找 index 之前判断
+    private boolean wholeKeyFilter = true;
+    //不为 null 时每个 sst 额外构建一个前缀过滤器，前缀遍历时跳过不包含该前缀的 sst
+    private PrefixExtractor prefixExtractor;
+    //打开时并行加载 sst 的线程数
+    private int sstLoadThreads = 4;
+    //打开时并行回放 wal 的线程数
+    private int walRecoveryThreads = 4;
+    //flush 以后清零复用的 wal 文件数，同时后台提前分配好这么多文件，为 0 时不复用
+    private int walRecycleSegments = 2;
+    //打开时不读取 filter 和 index，第一次访问节点时才读取
+    private boolean lazyLoadFilterAndIndex = true;
+    //filter 和 index 读取以后常驻内存，否则内存紧张时可以被 GC 回收，再次访问时重新读取
+    private boolean pinFilterAndIndex = true;
     //memTable构造器
     private MemTableConstructor memTableConstructor = SkipListMemTable::new;
     //bufferPool
     private BlockBufferPool blockBufferPool;
     private int blockBufferPoolSize = 3000;
+    //解码后的 block 缓存
+    private BlockCache blockCache;
+    //block 缓存容量，单位byte，为0时关闭缓存
+    //默认值8MB
+    private long blockCacheSize = 8 * 1024 * 1024;
+    //层间压缩的线程数
+    private int compactionThreads = 2;
+    //一次压缩最多拆分成多少个 key 区间并行归并，为 1 时不拆分
+    private int maxSubcompactions = 4;
+    //0层文件数达到该值时开始延迟写入
+    private int level0SlowdownWritesTrigger = 20;
+    //0层文件数达到该值时阻塞写入
+    private int level0StopWritesTrigger = 36;
+    //等待 flush 的 mem table 数达到该值时阻塞写入，差一个时开始延迟写入
+    private int maxPendingMemTables = 8;
+    //延迟写入时单次的最长延迟，单位微秒
+    private int maxWriteDelayMicros = 1000;
+    //wal刷盘策略
+    private WalSyncMode walSyncMode = WalSyncMode.SYNC;
+    //INTERVAL 策略下后台刷盘的间隔，单位毫秒
+    private int walSyncIntervalMs = 100;
+    //INTERVAL 策略下 msync 的方式 MS_ASYNC 或 MS_SYNC
+    private int walMsyncFlags = LibC.MS_SYNC;
 
     private Config() {}
 
@@ -40,11 +90,16 @@ public class Config {
         }
         //初始化bufferPool
         config.blockBufferPool = new BlockBufferPool(config);
+        //初始化blockCache
+        config.blockCache = new BlockCache(config.blockCacheSize);
         config.initAndCheck();
         return config;
     }
 
     private void initAndCheck() {
+        if (this.level0StopWritesTrigger <= this.level0SlowdownWritesTrigger) {
+            throw new IllegalStateException("level0StopWritesTrigger 必须大于 level0SlowdownWritesTrigger");
+        }
         File dirFile = new File(this.dir);
         if (!dirFile.exists()) {
             boolean makeDirRes = dirFile.mkdirs();
@@ -92,14 +147,57 @@ public class Config {
         return sstDataBlockSize;
     }
 
-    public int getSstFooterSize() {
-        return sstFooterSize;
+    public int getSstRestartInterval() {
+        return sstRestartInterval;
+    }
+
+    public CompressionType getCompression(int level) {
+        if (null == compressionPerLevel) {
+            return level == 0 ? CompressionType.NONE : CompressionType.LZ4;
+        }
+        return compressionPerLevel[Math.min(level, compressionPerLevel.length - 1)];
+    }
+
+    public ChecksumVerification getChecksumVerification() {
+        return checksumVerification;
     }
 
     public Filter getFilter() {
         return filter;
     }
 
+    public Filter getFileFilter() {
+        return fileFilter;
+    }
+
+    public boolean isWholeKeyFilter() {
+        return wholeKeyFilter;
+    }
+
+    public PrefixExtractor getPrefixExtractor() {
+        return prefixExtractor;
+    }
+
+    public int getSstLoadThreads() {
+        return sstLoadThreads;
+    }
+
+    public int getWalRecoveryThreads() {
+        return walRecoveryThreads;
+    }
+
+    public int getWalRecycleSegments() {
+        return walRecycleSegments;
+    }
+
+    public boolean isLazyLoadFilterAndIndex() {
+        return lazyLoadFilterAndIndex;
+    }
+
+    public boolean isPinFilterAndIndex() {
+        return pinFilterAndIndex;
+    }
+
     public MemTableConstructor getMemTableConstructor() {
         return memTableConstructor;
     }
@@ -112,6 +210,50 @@ public class Config {
         return blockBufferPoolSize;
     }
 
+    public BlockCache getBlockCache() {
+        return blockCache;
+    }
+
+    public long getBlockCacheSize() {
+        return blockCacheSize;
+    }
+
+    public int getCompactionThreads() {
+        return compactionThreads;
+    }
+
+    public int getMaxSubcompactions() {
+        return maxSubcompactions;
+    }
+
+    public int getLevel0SlowdownWritesTrigger() {
+        return level0SlowdownWritesTrigger;
+    }
+
+    public int getLevel0StopWritesTrigger() {
+        return level0StopWritesTrigger;
+    }
+
+    public int getMaxPendingMemTables() {
+        return maxPendingMemTables;
+    }
+
+    public int getMaxWriteDelayMicros() {
+        return maxWriteDelayMicros;
+    }
+
+    public WalSyncMode getWalSyncMode() {
+        return walSyncMode;
+    }
+
+    public int getWalSyncIntervalMs() {
+        return walSyncIntervalMs;
+    }
+
+    public int getWalMsyncFlags() {
+        return walMsyncFlags;
+    }
+
     public void setMaxLevel(int maxLevel) {
         if (maxLevel <= 1) {
             throw new IllegalStateException("非法的maxLevel");
@@ -133,10 +275,77 @@ public class Config {
         this.sstDataBlockSize = sstDataBlockSize;
     }
 
+    public void setSstRestartInterval(int sstRestartInterval) {
+        if (sstRestartInterval <= 0) {
+            throw new IllegalStateException("非法的sstRestartInterval");
+        }
+        this.sstRestartInterval = sstRestartInterval;
+    }
+
     public void setFilter(Filter filter) {
         this.filter = filter;
     }
 
+    public void setFileFilter(Filter fileFilter) {
+        this.fileFilter = fileFilter;
+    }
+
+    public void setWholeKeyFilter(boolean wholeKeyFilter) {
+        this.wholeKeyFilter = wholeKeyFilter;
+    }
+
+    public void setPrefixExtractor(PrefixExtractor prefixExtractor) {
+        this.prefixExtractor = prefixExtractor;
+    }
+
+    public void setChecksumVerification(ChecksumVerification checksumVerification) {
+        if (null == checksumVerification) {
+            throw new IllegalStateException("非法的checksumVerification");
+        }
+        this.checksumVerification = checksumVerification;
+    }
+
+    public void setCompressionPerLevel(CompressionType... compressionPerLevel) {
+        if (null == compressionPerLevel || compressionPerLevel.length == 0) {
+            throw new IllegalStateException("非法的compressionPerLevel");
+        }
+        for (CompressionType type : compressionPerLevel) {
+            if (null == type) {
+                throw new IllegalStateException("非法的compressionPerLevel");
+            }
+        }
+        this.compressionPerLevel = compressionPerLevel.clone();
+    }
+
+    public void setSstLoadThreads(int sstLoadThreads) {
+        if (sstLoadThreads <= 0) {
+            throw new IllegalStateException("非法的sstLoadThreads");
+        }
+        this.sstLoadThreads = sstLoadThreads;
+    }
+
+    public void setWalRecoveryThreads(int walRecoveryThreads) {
+        if (walRecoveryThreads <= 0) {
+            throw new IllegalStateException("非法的walRecoveryThreads");
+        }
+        this.walRecoveryThreads = walRecoveryThreads;
+    }
+
+    public void setWalRecycleSegments(int walRecycleSegments) {
+        if (walRecycleSegments < 0) {
+            throw new IllegalStateException("非法的walRecycleSegments");
+        }
+        this.walRecycleSegments = walRecycleSegments;
+    }
+
+    public void setLazyLoadFilterAndIndex(boolean lazyLoadFilterAndIndex) {
+        this.lazyLoadFilterAndIndex = lazyLoadFilterAndIndex;
+    }
+
+    public void setPinFilterAndIndex(boolean pinFilterAndIndex) {
+        this.pinFilterAndIndex = pinFilterAndIndex;
+    }
+
     public void setMemTableConstructor(MemTableConstructor memTableConstructor) {
         this.memTableConstructor = memTableConstructor;
     }
@@ -152,6 +361,77 @@ public class Config {
         this.blockBufferPoolSize = blockBufferPoolSize;
     }
 
+    public void setBlockCacheSize(long blockCacheSize) {
+        if (blockCacheSize < 0) {
+            throw new IllegalStateException("非法的blockCacheSize");
+        }
+        this.blockCacheSize = blockCacheSize;
+    }
+
+    public void setCompactionThreads(int compactionThreads) {
+        if (compactionThreads <= 0) {
+            throw new IllegalStateException("非法的compactionThreads");
+        }
+        this.compactionThreads = compactionThreads;
+    }
+
+    public void setMaxSubcompactions(int maxSubcompactions) {
+        if (maxSubcompactions <= 0) {
+            throw new IllegalStateException("非法的maxSubcompactions");
+        }
+        this.maxSubcompactions = maxSubcompactions;
+    }
+
+    public void setLevel0SlowdownWritesTrigger(int level0SlowdownWritesTrigger) {
+        if (level0SlowdownWritesTrigger <= 0) {
+            throw new IllegalStateException("非法的level0SlowdownWritesTrigger");
+        }
+        this.level0SlowdownWritesTrigger = level0SlowdownWritesTrigger;
+    }
+
+    public void setLevel0StopWritesTrigger(int level0StopWritesTrigger) {
+        if (level0StopWritesTrigger <= 0) {
+            throw new IllegalStateException("非法的level0StopWritesTrigger");
+        }
+        this.level0StopWritesTrigger = level0StopWritesTrigger;
+    }
+
+    public void setMaxPendingMemTables(int maxPendingMemTables) {
+        //冷表队列的容量为500
+        if (maxPendingMemTables < 2 || maxPendingMemTables > 500) {
+            throw new IllegalStateException("非法的maxPendingMemTables");
+        }
+        this.maxPendingMemTables = maxPendingMemTables;
+    }
+
+    public void setMaxWriteDelayMicros(int maxWriteDelayMicros) {
+        if (maxWriteDelayMicros < 0) {
+            throw new IllegalStateException("非法的maxWriteDelayMicros");
+        }
+        this.maxWriteDelayMicros = maxWriteDelayMicros;
+    }
+
+    public void setWalSyncMode(WalSyncMode walSyncMode) {
+        if (null == walSyncMode) {
+            throw new IllegalStateException("非法的walSyncMode");
+        }
+        this.walSyncMode = walSyncMode;
+    }
+
+    public void setWalSyncIntervalMs(int walSyncIntervalMs) {
+        if (walSyncIntervalMs <= 0) {
+            throw new IllegalStateException("非法的walSyncIntervalMs");
+        }
+        this.walSyncIntervalMs = walSyncIntervalMs;
+    }
+
+    public void setWalMsyncFlags(int walMsyncFlags) {
+        if (walMsyncFlags != LibC.MS_ASYNC && walMsyncFlags != LibC.MS_SYNC) {
+            throw new IllegalStateException("非法的walMsyncFlags");
+        }
+        this.walMsyncFlags = walMsyncFlags;
+    }
+
     @FunctionalInterface
     public interface ConfigOption extends Consumer<Config> {}
 }
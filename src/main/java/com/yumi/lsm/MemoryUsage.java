@@ -0,0 +1,64 @@
+package com.yumi.lsm;
+
+/**
+ * tree 某一时刻的内存占用快照，单位byte。
+ * sst 的 filter 和 index 在堆外，只统计已经加载到内存中的节点
+ */
+public class MemoryUsage {
+    private final long memTableBytes;
+    private final long blockCacheBytes;
+    private final long filterBytes;
+    private final long indexBytes;
+    private final int nodeCnt;
+    private final int loadedNodeCnt;
+
+    MemoryUsage(long memTableBytes, long blockCacheBytes, long filterBytes, long indexBytes,
+                int nodeCnt, int loadedNodeCnt) {
+        this.memTableBytes = memTableBytes;
+        this.blockCacheBytes = blockCacheBytes;
+        this.filterBytes = filterBytes;
+        this.indexBytes = indexBytes;
+        this.nodeCnt = nodeCnt;
+        this.loadedNodeCnt = loadedNodeCnt;
+    }
+
+    //所有 mem table 中数据的大小，包括等待 flush 的
+    public long getMemTableBytes() {
+        return memTableBytes;
+    }
+
+    public long getBlockCacheBytes() {
+        return blockCacheBytes;
+    }
+
+    //堆外的过滤器
+    public long getFilterBytes() {
+        return filterBytes;
+    }
+
+    //堆外的 index
+    public long getIndexBytes() {
+        return indexBytes;
+    }
+
+    public int getNodeCnt() {
+        return nodeCnt;
+    }
+
+    //filter 和 index 在内存中的节点数
+    public int getLoadedNodeCnt() {
+        return loadedNodeCnt;
+    }
+
+    @Override
+    public String toString() {
+        return "MemoryUsage{" +
+                "memTableBytes=" + memTableBytes +
+                ", blockCacheBytes=" + blockCacheBytes +
+                ", filterBytes=" + filterBytes +
+                ", indexBytes=" + indexBytes +
+                ", nodeCnt=" + nodeCnt +
+                ", loadedNodeCnt=" + loadedNodeCnt +
+                '}';
+    }
+}
@@ -0,0 +1,101 @@
+package com.yumi.lsm;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * 分配全局递增的序列号，并记录存活的快照。
+ * 写入并行进行，序列号小的写入不一定先完成，所以可见的序列号是最小的未完成写入的前一个，
+ * 快照在这个序列号上创建，保证快照创建以后看到的数据不会再变化
+ */
+class SequenceManager {
+    //已经分配出去的最大序列号
+    private long lastSeq;
+    //还没写完的 batch 的第一个序列号
+    private final TreeSet<Long> pending = new TreeSet<>();
+    //快照的序列号 -> 引用次数
+    private final TreeMap<Long, Integer> snapshots = new TreeMap<>();
+
+    SequenceManager(long lastSeq) {
+        this.lastSeq = lastSeq;
+    }
+
+    //恢复时推进到已经写入过的最大序列号
+    synchronized void advanceTo(long seq) {
+        this.lastSeq = Math.max(this.lastSeq, seq);
+    }
+
+    //为 cnt 条数据分配连续的序列号，返回第一个，写完以后要调用 finish
+    synchronized long allocate(int cnt) {
+        long first = this.lastSeq + 1;
+        this.lastSeq += cnt;
+        this.pending.add(first);
+        return first;
+    }
+
+    synchronized void finish(long first) {
+        boolean wasFirst = !this.pending.isEmpty() && this.pending.first() == first;
+        this.pending.remove(first);
+        if (wasFirst) {
+            //可见的序列号前进了
+            this.notifyAll();
+        }
+    }
+
+    //等待不超过 seq 的写入都完成，被中断时依然等完，只保留中断标记
+    synchronized void awaitVisible(long seq) {
+        boolean interrupted = false;
+        while (this.visibleSeq() < seq) {
+            try {
+                this.wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    synchronized long lastSeq() {
+        return this.lastSeq;
+    }
+
+    //不超过它的写入都已经完成
+    synchronized long visibleSeq() {
+        return this.pending.isEmpty() ? this.lastSeq : this.pending.first() - 1;
+    }
+
+    synchronized Snapshot newSnapshot() {
+        long seq = this.visibleSeq();
+        this.snapshots.merge(seq, 1, Integer::sum);
+        return new Snapshot(seq);
+    }
+
+    synchronized void release(Snapshot snapshot) {
+        if (snapshot.isReleased()) {
+            return;
+        }
+        snapshot.markReleased();
+        Integer cnt = this.snapshots.get(snapshot.getSeq());
+        if (null == cnt) {
+            return;
+        }
+        if (cnt == 1) {
+            this.snapshots.remove(snapshot.getSeq());
+        } else {
+            this.snapshots.put(snapshot.getSeq(), cnt - 1);
+        }
+    }
+
+    //存活的快照的序列号，升序不重复
+    synchronized long[] snapshotSeqs() {
+        long[] res = new long[this.snapshots.size()];
+        int i = 0;
+        for (Map.Entry<Long, Integer> entry : this.snapshots.entrySet()) {
+            res[i++] = entry.getKey();
+        }
+        return res;
+    }
+}
@@ -0,0 +1,27 @@
+package com.yumi.lsm;
+
+/**
+ * 某一时刻的只读视图，通过 {@link Tree#getSnapshot()} 获取，
+ * 读取时只能看到序列号不超过 seq 的写入。
+ * 存活期间 compaction 会为它保留旧版本，用完必须 {@link Tree#releaseSnapshot(Snapshot)}
+ */
+public final class Snapshot {
+    private final long seq;
+    private volatile boolean released;
+
+    Snapshot(long seq) {
+        this.seq = seq;
+    }
+
+    public long getSeq() {
+        return seq;
+    }
+
+    boolean isReleased() {
+        return released;
+    }
+
+    void markReleased() {
+        this.released = true;
+    }
+}
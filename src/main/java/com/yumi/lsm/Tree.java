@@ -1,35 +1,64 @@
 package com.yumi.lsm;
 
-import com.yumi.lsm.filter.BitsArray;
+import com.yumi.lsm.filter.KeyHash;
+import com.yumi.lsm.filter.PrefixExtractor;
+import com.yumi.lsm.iterator.KvIterator;
+import com.yumi.lsm.iterator.MergingIterator;
 import com.yumi.lsm.memtable.MemTable;
+import com.yumi.lsm.sst.Footer;
 import com.yumi.lsm.sst.Index;
 import com.yumi.lsm.sst.Node;
+import com.yumi.lsm.sst.NodeMeta;
+import com.yumi.lsm.sst.SstFilters;
 import com.yumi.lsm.sst.SstReader;
 import com.yumi.lsm.sst.SstWriter;
 import com.yumi.lsm.util.AllUtils;
 import com.yumi.lsm.util.Kv;
+import com.yumi.lsm.version.FileMeta;
+import com.yumi.lsm.version.Manifest;
+import com.yumi.lsm.version.VersionEdit;
 import com.yumi.lsm.wal.WalReader;
+import com.yumi.lsm.wal.WalSyncMode;
+import com.yumi.lsm.wal.WalSegmentPool;
 import com.yumi.lsm.wal.WalWriter;
+import com.google.common.util.concurrent.Striped;
 import org.jctools.queues.SpscArrayQueue;
 
 import java.io.File;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
-import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
 
 public class Tree {
+    //预分配 wal 文件失败以后的最长退避
+    private static final long MAX_FILL_BACKOFF_MS = 60 * 1000;
+    //flush 线程，mem table 必须按顺序 flush
     private final ExecutorService poolService = Executors.newSingleThreadExecutor();
+    //层间压缩线程池，不同的压缩任务可以并行执行
+    private final ExecutorService compactionPool;
+    //一次压缩拆分出来的子任务，子任务不会再提交任务，不会互相等待
+    private final ExecutorService subcompactionPool;
+    //INTERVAL 刷盘策略下的后台刷盘线程
+    private ScheduledExecutorService walSyncService;
     private Config config;
     private final ReentrantReadWriteLock dataLock = new ReentrantReadWriteLock();
     private int memTableIndex = 0;
@@ -40,9 +69,27 @@ public class Tree {
     private ReentrantReadWriteLock[] levelLocks;
 
     private SpscArrayQueue<MemTableCompactItem> memCompactQueue = new SpscArrayQueue<>(500);
-    private SpscArrayQueue<Integer> levelCompactQueue = new SpscArrayQueue<>(200);
+    //保护下面两个数组，以及选取节点时的标记
+    private final Object compactionLock = new Object();
+    //等待压缩的层
+    private boolean[] levelPending;
+    //正在以该层作为输入进行压缩，同一层同时只有一个压缩任务
+    private boolean[] levelRunning;
     private AtomicBoolean stop = new AtomicBoolean(false);
     private AtomicInteger[] levelToSeq;
+    //写入时按key加锁，保证同一个key的并发写入在wal和mem table中的顺序一致
+    private final Striped<Lock> keyLocks = Striped.lock(256);
+    //0层文件或者冷表过多时对写入限流
+    private final WriteController writeController;
+    //记录节点的增删，打开时据此还原 nodes
+    private Manifest manifest;
+    //预分配和回收 wal 文件
+    private final WalSegmentPool walSegmentPool;
+    //预分配失败以后的退避，只在后台线程中使用
+    private long fillBackoffMs;
+    private long nextFillTime;
+    //分配序列号，记录存活的快照，打开时推进到 manifest 和 wal 中最大的序列号
+    private final SequenceManager sequences = new SequenceManager(0);
 
     public Tree(Config config) {
         this.config = config;
@@ -58,12 +105,22 @@ public class Tree {
         for (int i = 0; i < levelLocks.length; i++) {
             levelLocks[i] = new ReentrantReadWriteLock();
         }
+        this.levelPending = new boolean[config.getMaxLevel()];
+        this.levelRunning = new boolean[config.getMaxLevel()];
+        this.compactionPool = Executors.newFixedThreadPool(config.getCompactionThreads());
+        this.subcompactionPool = Executors.newFixedThreadPool(config.getMaxSubcompactions());
+        this.writeController = new WriteController(config);
+        this.walSegmentPool = new WalSegmentPool(walFilePath(""), config.getWalFileSize(), config.getWalRecycleSegments());
         //加载文件
         // TODO: by yumi -> 加载过程中是否要考虑文件损坏问题，如何解决
         constructTree(); //加载sst文件
         constructMemTable(); //恢复mem table
-        // TODO: by yumi -> 当前只有一个线程用来压缩数据，是否考虑每层一个线程?
         poolService.submit(this::doBackendTask);
+        if (config.getWalSyncMode() == WalSyncMode.INTERVAL) {
+            this.walSyncService = Executors.newSingleThreadScheduledExecutor();
+            this.walSyncService.scheduleWithFixedDelay(this::intervalSyncWal,
+                    config.getWalSyncIntervalMs(), config.getWalSyncIntervalMs(), TimeUnit.MILLISECONDS);
+        }
         Runtime.getRuntime().addShutdownHook(new Thread(this::close));
     }
 
@@ -82,40 +139,70 @@ public class Tree {
 
     private void restoreMemTable(File[] wals) {
         Arrays.sort(wals, (f1, f2) -> walFileToMemTableIndex(f1.getName()) - walFileToMemTableIndex(f2.getName()));
+        //各个 wal 相互独立，并行回放到各自的 mem table 中
+        List<MemTable> memTables = this.replayWals(wals);
         for (int i = 0; i < wals.length; i++) {
-            File wal = wals[i];
-            String name = wal.getName();
-            String file = config.getDir() + File.separator + "walfile" + File.separator + name;
-            WalReader walReader = new WalReader(file);
-            try {
-                MemTable memTable = config.getMemTableConstructor().create();
-                walReader.restoreMemTable(memTable);
-                if (i == wals.length - 1) {
-                    //i是最后一个，尝试作为活跃的mem table
-                    this.memTableIndex = walFileToMemTableIndex(name);
-                    try {
-                        WalWriter walWriter = new WalWriter(file, config.getWalFileSize());
-                        this.memTable = memTable;
-                        this.walWriter = walWriter;
-                    } catch (IllegalStateException e) {
-                        addToReadonlyAndFireCompact(file, memTable);
-                        this.memTableIndex++;
-                        this.newMemTable(config.getWalFileSize());
-                    }
-                } else {
+            String name = wals[i].getName();
+            String file = walFilePath(name);
+            MemTable memTable = memTables.get(i);
+            if (i == wals.length - 1) {
+                //i是最后一个，尝试作为活跃的mem table
+                this.memTableIndex = walFileToMemTableIndex(name);
+                try {
+                    WalWriter walWriter = new WalWriter(file, config.getWalFileSize());
+                    this.memTable = memTable;
+                    this.walWriter = walWriter;
+                } catch (IllegalStateException e) {
                     addToReadonlyAndFireCompact(file, memTable);
+                    this.memTableIndex++;
+                    this.newMemTable(config.getWalFileSize());
                 }
-            } catch (Exception e) {
-                throw new RuntimeException(e);
-            } finally {
-                walReader.close();
+            } else {
+                //按 wal 的顺序加入冷表列表，越靠后越新
+                addToReadonlyAndFireCompact(file, memTable);
+            }
+        }
+    }
+
+    private List<MemTable> replayWals(File[] wals) {
+        ExecutorService replayPool = Executors.newFixedThreadPool(Math.min(this.config.getWalRecoveryThreads(), wals.length));
+        List<Future<MemTable>> futures = new ArrayList<>(wals.length);
+        try {
+            for (File wal : wals) {
+                futures.add(replayPool.submit(() -> {
+                    WalReader walReader = new WalReader(walFilePath(wal.getName()));
+                    try {
+                        MemTable memTable = config.getMemTableConstructor().create();
+                        this.sequences.advanceTo(walReader.restoreMemTable(memTable));
+                        return memTable;
+                    } finally {
+                        walReader.close();
+                    }
+                }));
+            }
+            List<MemTable> memTables = new ArrayList<>(wals.length);
+            for (Future<MemTable> future : futures) {
+                memTables.add(future.get());
             }
+            return memTables;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("回放 wal 被中断", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("回放 wal 失败", e.getCause());
+        } finally {
+            replayPool.shutdownNow();
         }
     }
 
+    private String walFilePath(String name) {
+        return config.getDir() + File.separator + "walfile" + File.separator + name;
+    }
+
     private void addToReadonlyAndFireCompact(String file, MemTable memTable) {
         MemTableCompactItem memTableCompactItem = new MemTableCompactItem(file, memTable);
         this.readOnlyMemTableList.add(memTableCompactItem);
+        this.writeController.setPendingMemTables(this.readOnlyMemTableList.size());
         while (true) {
             boolean offer = this.memCompactQueue.offer(memTableCompactItem);
             if (offer) {
@@ -130,22 +217,134 @@ public class Tree {
     }
 
     private void constructTree() {
-        File[] sstFiles = getSortedSstFiles();
-        for (File sstFile : sstFiles) {
-            loadNode(sstFile);
+        List<Callable<Node>> loaders = new ArrayList<>();
+        boolean hasManifest = Manifest.exists(this.config);
+        if (hasManifest) {
+            VersionEdit replayed = Manifest.replay(this.config);
+            this.sequences.advanceTo(replayed.getLastSeq());
+            List<FileMeta> live = replayed.getAdded();
+            Set<String> liveFiles = new HashSet<>();
+            for (FileMeta meta : live) {
+                liveFiles.add(meta.fileName());
+            }
+            //manifest 中没有的文件，是崩溃时没有完成的输出，或者已经被压缩掉还没来得及删除的输入
+            for (File sstFile : getSortedSstFiles()) {
+                if (!liveFiles.contains(sstFile.getName())) {
+                    sstFile.delete();
+                }
+            }
+            for (FileMeta meta : live) {
+                loaders.add(() -> loadNode(meta));
+            }
+        } else {
+            //没有 manifest 的老数据，扫描目录加载
+            for (File sstFile : getSortedSstFiles()) {
+                loaders.add(() -> loadNode(sstFile));
+            }
+        }
+        //并行打开文件，按 level、seq 的顺序插入
+        for (Node node : this.loadNodes(loaders)) {
+            int[] levelSeq = getLevelSeqFromSstFile(node.getFile());
+            this.levelToSeq[levelSeq[0]].set(levelSeq[1]);
+            this.insertNodeLocked(levelSeq[0], node);
+            if (!hasManifest) {
+                //manifest 中才记录了最大的序列号，没有时从各个文件的 footer 中取
+                this.sequences.advanceTo(this.maxSeq(node));
+            }
+        }
+        List<FileMeta> metas = new ArrayList<>();
+        for (int level = 0; level < this.nodes.size(); level++) {
+            for (Node node : this.nodes.get(level)) {
+                metas.add(this.fileMeta(level, node));
+            }
+        }
+        this.manifest = Manifest.create(this.config, metas, this.sequences.lastSeq());
+    }
+
+    private long maxSeq(Node node) {
+        long max = node.maxSeq();
+        if (max != Footer.UNKNOWN_SEQ) {
+            return max;
+        }
+        //footer 中没有记录最大序列号的老文件，只能遍历
+        max = 0;
+        try (KvIterator iterator = node.compactionIterator()) {
+            for (iterator.seekToFirst(); iterator.valid(); iterator.next()) {
+                max = Math.max(max, iterator.seq());
+            }
+        }
+        return max;
+    }
+
+    private List<Node> loadNodes(List<Callable<Node>> loaders) {
+        List<Node> loaded = new ArrayList<>(loaders.size());
+        if (loaders.isEmpty()) {
+            return loaded;
+        }
+        ExecutorService loadPool = Executors.newFixedThreadPool(Math.min(this.config.getSstLoadThreads(), loaders.size()));
+        Exception failure = null;
+        try {
+            for (Future<Node> future : loadPool.invokeAll(loaders)) {
+                try {
+                    loaded.add(future.get());
+                } catch (ExecutionException e) {
+                    if (null == failure) {
+                        failure = e;
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failure = e;
+        } finally {
+            loadPool.shutdownNow();
+        }
+        if (null != failure) {
+            for (Node node : loaded) {
+                node.close();
+            }
+            throw new IllegalStateException("加载 sst 失败", failure);
         }
+        return loaded;
     }
 
-    private void loadNode(File sstFile) {
+    private Node loadNode(File sstFile) {
         String file = sstFile.getName();
         SstReader sstReader = new SstReader(file, config);
-        Map<Integer, BitsArray> filterMap = sstReader.readFilter();
-        Index[] indices = sstReader.readIndex();
-        int size = sstReader.size();
-        int[] levelSeqFromSSTFile = getLevelSeqFromSstFile(file);
-        int level = levelSeqFromSSTFile[0];
-        int seq = levelSeqFromSSTFile[1];
-        this.insertNodeWithReader(level, seq, size, filterMap, indices, sstReader);
+        try {
+            SstFilters filters = sstReader.readFilter();
+            Index[] indices = sstReader.readIndex();
+            if (indices.length == 0) {
+                throw new IllegalStateException("sst 文件中没有数据 " + file);
+            }
+            //没有 manifest 时 startKey 只能从第一个 block 中读取
+            byte[] startKey = sstReader.readFirstKey(indices[0].getBlockOffset(), indices[0].getBlockSize());
+            return new Node(config, file, sstReader, sstReader.size(), startKey, filters, indices);
+        } catch (RuntimeException e) {
+            sstReader.close();
+            throw e;
+        }
+    }
+
+    //key 范围和大小直接使用 manifest 中的记录，不读取文件内容
+    private Node loadNode(FileMeta meta) {
+        String file = meta.fileName();
+        SstReader sstReader = new SstReader(file, config);
+        Node node = new Node(config, file, sstReader, meta.getSize(), meta.getStartKey(), meta.getEndKey());
+        if (!this.config.isLazyLoadFilterAndIndex()) {
+            try {
+                node.loadMeta();
+            } catch (RuntimeException e) {
+                node.close();
+                throw e;
+            }
+        }
+        return node;
+    }
+
+    private FileMeta fileMeta(int level, Node node) {
+        int seq = getLevelSeqFromSstFile(node.getFile())[1];
+        return new FileMeta(level, seq, node.size(), node.start(), node.end());
     }
 
     private File[] getSortedSstFiles() {
@@ -175,47 +374,171 @@ public class Tree {
         return new int[] {Integer.valueOf(split[0]), Integer.valueOf(split[1])};
     }
 
+    //删除，写入墓碑，墓碑在 compaction 到最底层时才被清理
     public void remove(byte[] key) {
-        // TODO: by yumi -> 实现删除功能
+        WriteBatch batch = new WriteBatch();
+        batch.delete(key);
+        write(batch);
     }
 
 
     public void put(byte[] key, byte[] value) {
-        ReentrantReadWriteLock.WriteLock lock = dataLock.writeLock();
-        lock.lock();;
+        WriteBatch batch = new WriteBatch();
+        batch.put(key, value);
+        write(batch);
+    }
+
+    /**
+     * 并发写入：写请求之间只共享 dataLock 的读锁，各自通过CAS在wal中预留空间并行写入，
+     * 刷盘时组提交（一次刷盘带上所有已经写完的数据），再并行写入 mem table，
+     * 只有 mem table 切换时才需要 dataLock 的写锁。请求返回时其数据一定已经落盘（SYNC策略下）。
+     * 每个batch在wal中是一条记录，batch 中的每条数据依次分配一个全局递增的序列号，和数据一起写入 wal 和 mem table。
+     * 读取只看可见的序列号，batch 写完之前它的序列号都不可见，所以整个 batch 同时可见；
+     * 返回前等待序列号更小的写入都完成，返回以后的读取一定能看到这次写入
+     */
+    public void write(WriteBatch batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        //flush 或者压缩跟不上时在这里延迟或者阻塞，此时没有持有任何锁
+        this.writeController.maybeStall();
+        //同一个key的写入串行，保证wal中的顺序和 mem table 中的顺序一致
+        long lastSeq;
+        List<Lock> keyLocks = lockKeys(batch);
         try {
-            //1.写入wal file
-            boolean notFull = this.walWriter.write(key, value);
-            // --写满了要重建
-            if (!notFull) {
-                refreshMemTable();
-                notFull = this.walWriter.write(key, value);
-                assert notFull;
-            }
-            //2.写入mem table中
-            this.memTable.put(key, value);
+            while (true) {
+                WalWriter curWalWriter;
+                ReentrantReadWriteLock.ReadLock lock = this.dataLock.readLock();
+                lock.lock();
+                //在读锁内分配并结束，切换 mem table 时没有未完成的序列号，冷表中的序列号都已经可见
+                long seq = this.sequences.allocate(batch.size());
+                try {
+                    curWalWriter = this.walWriter;
+                    //1.写入wal file
+                    int end = curWalWriter.append(batch, seq);
+                    if (end != WalWriter.FULL) {
+                        syncWalIfNeeded(curWalWriter, end);
+                        //2.写入mem table中
+                        applyToMemTable(batch, seq);
+                        lastSeq = seq + batch.size() - 1;
+                        break;
+                    }
+                } finally {
+                    //写满时这次分配的序列号作废，重试时重新分配
+                    this.sequences.finish(seq);
+                    lock.unlock();
+                }
+                // --写满了要重建
+                refreshMemTable(curWalWriter);
+            }
+        } catch (RuntimeException e) {
+            throw e;
         } catch (Exception e) {
             throw new RuntimeException(e);
+        } finally {
+            for (int i = keyLocks.size() - 1; i >= 0; i--) {
+                keyLocks.get(i).unlock();
+            }
+        }
+        this.sequences.awaitVisible(lastSeq);
+    }
+
+    private List<Lock> lockKeys(WriteBatch batch) {
+        List<ByteBuffer> keys = new ArrayList<>(batch.size());
+        for (Kv kv : batch.entries()) {
+            keys.add(ByteBuffer.wrap(kv.getKey()));
+        }
+        //bulkGet 返回的锁是有序的，按顺序加锁不会死锁
+        List<Lock> locks = new ArrayList<>();
+        Lock prev = null;
+        for (Lock lock : this.keyLocks.bulkGet(keys)) {
+            if (lock != prev) {
+                lock.lock();
+                locks.add(lock);
+                prev = lock;
+            }
+        }
+        return locks;
+    }
+
+    private void syncWalIfNeeded(WalWriter curWalWriter, int end) {
+        if (this.config.getWalSyncMode() == WalSyncMode.SYNC) {
+            curWalWriter.sync(end);
+        }
+    }
+
+    /**
+     * 主动把当前wal刷盘，返回后之前所有已经返回的写入都已经落盘，
+     * 在 INTERVAL 和 NONE 策略下可以用来设置持久化的检查点
+     */
+    public void syncWal() {
+        ReentrantReadWriteLock.ReadLock lock = this.dataLock.readLock();
+        lock.lock();
+        try {
+            this.walWriter.sync();
         } finally {
             lock.unlock();
         }
     }
 
-    private void refreshMemTable() {
-        //热表转冷表
-        MemTableCompactItem oldItem = new MemTableCompactItem(this.walFile(), this.memTable);
-        //放到冷表队列中
-        readOnlyMemTableList.add(oldItem);
-        this.walWriter.close();
-        while (true) {
-            boolean offer = this.memCompactQueue.offer(oldItem);
-            if (offer) {
-                break;
+    private void intervalSyncWal() {
+        ReentrantReadWriteLock.ReadLock lock = this.dataLock.readLock();
+        lock.lock();
+        try {
+            //持有读锁，保证刷盘过程中wal不会被切换关闭
+            this.walWriter.msync(this.config.getWalMsyncFlags());
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //不加锁，batch 写完之前它的序列号不可见，读请求看不到写了一半的 batch
+    private void applyToMemTable(WriteBatch batch, long seq) {
+        List<Kv> entries = batch.entries();
+        for (int i = 0; i < entries.size(); i++) {
+            applyToMemTable(entries.get(i), seq + i);
+        }
+    }
+
+    private void applyToMemTable(Kv kv, long seq) {
+        if (kv.isTombstone()) {
+            this.memTable.delete(kv.getKey(), seq);
+        } else {
+            this.memTable.put(kv.getKey(), seq, kv.getValue());
+        }
+    }
+
+    private void refreshMemTable(WalWriter fullWalWriter) {
+        ReentrantReadWriteLock.WriteLock lock = this.dataLock.writeLock();
+        lock.lock();
+        try {
+            if (this.walWriter != fullWalWriter) {
+                //其他线程已经切换过了
+                return;
             }
-            Thread.yield();
+            //此时没有正在进行的写入，写入结束标记
+            this.walWriter.finish();
+            //热表转冷表
+            MemTableCompactItem oldItem = new MemTableCompactItem(this.walFile(), this.memTable);
+            //放到冷表队列中
+            readOnlyMemTableList.add(oldItem);
+            this.writeController.setPendingMemTables(this.readOnlyMemTableList.size());
+            this.walWriter.close();
+            //写入限流保证冷表数量远小于队列容量，这里基本不会自旋
+            while (true) {
+                boolean offer = this.memCompactQueue.offer(oldItem);
+                if (offer) {
+                    break;
+                }
+                Thread.yield();
+            }
+            this.memTableIndex++;
+            this.newMemTable(this.config.getWalFileSize());
+        } finally {
+            lock.unlock();
         }
-        this.memTableIndex++;
-        this.newMemTable(this.config.getWalFileSize());
     }
 
     private void doBackendTask() {
@@ -231,21 +554,9 @@ public class Tree {
                         break;
                     }
                 }
-                int lastLevel = -1;
-                for (int i = 0; i < 30; i++) {
-                    Integer level = this.levelCompactQueue.poll();
-                    if (null != level) {
-                        if (lastLevel == level) {
-                            continue;
-                        }
-                        lastLevel = level;
-                        this.compactLevel(level);
-                        processCnt++;
-                    } else {
-                        break;
-                    }
-                }
                 if (processCnt == 0) {
+                    //空闲时补齐预分配的 wal 文件
+                    this.fillWalSegmentPool();
                     TimeUnit.MILLISECONDS.sleep(500);
                 }
             } catch (Exception e) {
@@ -254,96 +565,327 @@ public class Tree {
         }
     }
 
-    private void compactLevel(int level) {
-        List<Node> pickedNodes = pickCompactNodes(level);
-        if (pickedNodes.isEmpty()) {
+    //预分配失败（比如磁盘满了）时指数退避，不每轮都重试，flush 照常进行
+    private void fillWalSegmentPool() {
+        long now = System.currentTimeMillis();
+        if (now < this.nextFillTime) {
             return;
         }
-        int seq = levelToSeq[level + 1].get() + 1;
-        SstWriter sstWriter = new SstWriter(sstFile(level + 1, seq), config);
-        int sstLimit = config.getLevelSstSize(level + 1);
+        if (this.walSegmentPool.fill()) {
+            this.fillBackoffMs = 0;
+        } else {
+            this.fillBackoffMs = this.fillBackoffMs == 0 ? 1000 : Math.min(this.fillBackoffMs * 2, MAX_FILL_BACKOFF_MS);
+            this.nextFillTime = now + this.fillBackoffMs;
+        }
+    }
+
+    /**
+     * 调度层间压缩：同一层同时只有一个任务，不同层的任务在线程池中并行执行，
+     * 任务之间通过节点上的标记互斥，选中的节点被其他任务占用时放弃本次压缩，等其他任务结束后重试
+     */
+    private void scheduleCompaction(int level) {
+        synchronized (this.compactionLock) {
+            this.levelPending[level] = true;
+            this.dispatchCompactions();
+        }
+    }
+
+    //需要持有 compactionLock
+    private void dispatchCompactions() {
+        if (this.stop.get()) {
+            return;
+        }
+        for (int level = 0; level < this.levelPending.length; level++) {
+            if (!this.levelPending[level] || this.levelRunning[level]) {
+                continue;
+            }
+            this.levelPending[level] = false;
+            this.levelRunning[level] = true;
+            final int compactLevel = level;
+            try {
+                this.compactionPool.submit(() -> this.runCompaction(compactLevel));
+            } catch (RejectedExecutionException e) {
+                //正在关闭
+                this.levelRunning[level] = false;
+            }
+        }
+    }
+
+    private boolean anyLevelRunning() {
+        for (boolean running : this.levelRunning) {
+            if (running) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void runCompaction(int level) {
+        boolean conflict = false;
         try {
-            //文件会很大~不能把pickedNodes全部读取进来，要以block为单位进行归并排序
-            int pickedSize = pickedNodes.size();
-            PriorityQueue<Kv> pq = new PriorityQueue<>((kv1, kv2) -> AllUtils.compare(kv1.getKey(), kv2.getKey()));
-
-            Index[][] pickedIndex = new Index[pickedSize][];
-            Map<Kv, Integer> nextCurMap = new HashMap<>();
-            Map<Kv, Integer> indexCurMap = new HashMap<>();
-            for (int i = 0; i < pickedSize; i++) {
-                pickedIndex[i] = pickedNodes.get(i).indices();
-                if (pickedIndex[i].length > 0) {
-                    int prevBlockOffset = pickedIndex[i][0].getBlockOffset();
-                    int prevBlockSize = pickedIndex[i][0].getBlockSize();
-                    Kv[] range = pickedNodes.get(i).getRange(prevBlockOffset, prevBlockSize);
-                    for (int k = 0; k < range.length; k++) {
-                        pq.add(range[k]);
-                        if (k == range.length - 1) {
-                            nextCurMap.put(range[k], 1);
-                            indexCurMap.put(range[k], i);
-                        }
+            conflict = !this.compactLevel(level);
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            synchronized (this.compactionLock) {
+                this.levelRunning[level] = false;
+                if (conflict) {
+                    //和其他任务选中的节点冲突，等其他任务结束时重新调度
+                    this.levelPending[level] = true;
+                    if (!this.anyLevelRunning()) {
+                        //冲突的任务已经结束了，直接重新调度
+                        this.dispatchCompactions();
                     }
+                } else {
+                    this.dispatchCompactions();
                 }
             }
-            while (!pq.isEmpty()) {
-                // 倘若新生成的 level + 1 层 sst 文件大小已经超限
-                if (sstWriter.size() > sstLimit) {
-                    SstWriter.FinishRes finish = sstWriter.finish();
-                    sstWriter.close();
-                    this.insertNode(level + 1, seq, finish.getSize(), finish.getBlockToFilter(), finish.getIndices());
-                    // 构造一个新的 level + 1 层 sstWriter
-                    seq = this.levelToSeq[level + 1].get() + 1;
-                    sstWriter = new SstWriter(this.sstFile(level + 1, seq), this.config);
+        }
+    }
+
+    /**
+     * @return 选中的节点被其他压缩任务占用时返回false
+     */
+    private boolean compactLevel(int level) {
+        Optional<List<Node>> pickedOpt = pickCompactNodes(level);
+        if (!pickedOpt.isPresent()) {
+            return false;
+        }
+        List<Node> pickedNodes = pickedOpt.get();
+        if (pickedNodes.isEmpty()) {
+            return true;
+        }
+        List<Future<List<Node>>> futures = new ArrayList<>();
+        //新生成的节点，最后和移除老节点一起原子地替换
+        List<Node> outputs = new ArrayList<>();
+        Exception failure = null;
+        //节点已经打上了标记，之后的任何失败都要走下面的清理，否则这一层再也不会被压缩
+        try {
+            //之后创建的快照能看到输入中所有的数据，不需要为它们保留旧版本
+            long[] snapshots = this.sequences.snapshotSeqs();
+            //按 key 区间拆分成多个子任务，第一个在当前线程执行，其余的交给子压缩线程池
+            List<byte[]> bounds = this.subcompactionBounds(level, pickedNodes);
+            for (int i = 1; i <= bounds.size(); i++) {
+                byte[] lower = bounds.get(i - 1);
+                byte[] upper = i < bounds.size() ? bounds.get(i) : null;
+                futures.add(this.subcompactionPool.submit(() -> this.compactRange(level, pickedNodes, lower, upper, snapshots)));
+            }
+            outputs.addAll(this.compactRange(level, pickedNodes, null, bounds.isEmpty() ? null : bounds.get(0),
+                    snapshots));
+        } catch (Exception e) {
+            failure = e;
+        }
+        //即使有子任务失败，也要等所有子任务结束，才能清理它们生成的文件
+        for (Future<List<Node>> future : futures) {
+            try {
+                outputs.addAll(future.get());
+            } catch (Exception e) {
+                if (null == failure) {
+                    failure = e;
                 }
-                while (!pq.isEmpty()) {
-                    Kv kv = pq.poll();
-                    if (nextCurMap.containsKey(kv)) {
-                        Integer indexCur = indexCurMap.remove(kv);
-                        Integer nextCur = nextCurMap.remove(kv);
-                        if (null == nextCur || null == indexCur) {
-                            throw new IllegalStateException("bug");
-                        }
-                        Index[] curIndexArr = pickedIndex[indexCur];
-                        Node curNode = pickedNodes.get(indexCur);
-                        if (nextCur < curIndexArr.length) {
-                            Index curIndex = curIndexArr[nextCur];
-                            Kv[] range = curNode.getRange(curIndex.getBlockOffset(), curIndex.getBlockSize());
-                            for (int k = 0; k < range.length; k++) {
-                                pq.add(range[k]);
-                                if (k == range.length - 1) {
-                                    nextCurMap.put(range[k], nextCur + 1);
-                                    indexCurMap.put(range[k], indexCur);
-                                }
-                            }
-                        }
+            }
+        }
+        if (null == failure) {
+            //manifest 中的一条记录同时包含输入的删除和输出的新增，崩溃时整体生效或者整体不生效
+            try {
+                this.manifest.append(this.compactionEdit(level, pickedNodes, outputs));
+            } catch (Exception e) {
+                failure = e;
+            }
+        }
+        if (null != failure) {
+            synchronized (this.compactionLock) {
+                for (Node pickedNode : pickedNodes) {
+                    pickedNode.clearCompacting();
+                }
+            }
+            for (Node output : outputs) {
+                output.destroy();
+            }
+            throw new RuntimeException(failure);
+        }
+        installNodes(level, pickedNodes, outputs);
+        tryCompactSst(level + 1);
+        return true;
+    }
+
+    private VersionEdit compactionEdit(int level, List<Node> pickedNodes, List<Node> outputs) {
+        VersionEdit edit = new VersionEdit();
+        for (Node pickedNode : pickedNodes) {
+            int[] levelSeq = getLevelSeqFromSstFile(pickedNode.getFile());
+            edit.deleteFile(levelSeq[0], levelSeq[1]);
+        }
+        for (Node output : outputs) {
+            edit.addFile(this.fileMeta(level + 1, output));
+        }
+        return edit;
+    }
+
+    /**
+     * 用输入节点的 index key 把压缩任务切分成互不重叠的 key 区间，index key 基本均匀地分布在数据中，
+     * 每个区间的数据量接近；数据量不足以写满多个 sst 文件时不拆分
+     * @return 区间的分界点，第 i 个区间为 (bounds[i-1], bounds[i]]，两端的区间不设边界
+     */
+    private List<byte[]> subcompactionBounds(int level, List<Node> pickedNodes) {
+        long totalSize = 0;
+        List<byte[]> indexKeys = new ArrayList<>();
+        for (Node node : pickedNodes) {
+            totalSize += node.size();
+            indexKeys.addAll(node.indexKeys());
+        }
+        int sstLimit = this.config.getLevelSstSize(level + 1);
+        long shards = Math.min(this.config.getMaxSubcompactions(), (totalSize + sstLimit - 1) / sstLimit);
+        if (shards <= 1 || indexKeys.size() < shards) {
+            return Collections.emptyList();
+        }
+        indexKeys.sort(AllUtils::compare);
+        List<byte[]> bounds = new ArrayList<>();
+        for (int i = 1; i < shards; i++) {
+            byte[] bound = indexKeys.get((int) (i * indexKeys.size() / shards));
+            if (bounds.isEmpty() || AllUtils.compare(bounds.get(bounds.size() - 1), bound) < 0) {
+                bounds.add(bound);
+            }
+        }
+        return bounds;
+    }
+
+    /**
+     * 归并 pickedNodes 中 key 在 (lower, upper] 内的数据，写入 level + 1 层的新文件，
+     * 只保留存活的快照和最新的读取能看到的版本
+     * lower、upper 为 null 时表示不限制
+     * @param snapshots 存活的快照的序列号，升序
+     */
+    private List<Node> compactRange(int level, List<Node> pickedNodes, byte[] lower, byte[] upper,
+                                    long[] snapshots) throws Exception {
+        int seq = this.levelToSeq[level + 1].incrementAndGet();
+        SstWriter sstWriter = new SstWriter(sstFile(level + 1, seq), config, config.getCompression(level + 1));
+        int sstLimit = config.getLevelSstSize(level + 1);
+        List<Node> outputs = new ArrayList<>();
+        try {
+            //文件会很大~不能把pickedNodes全部读取进来，按 block 流式归并
+            try (MergingIterator merged = new MergingIterator(this.compactionIterators(pickedNodes))) {
+                if (null == lower) {
+                    merged.seekToFirst();
+                } else {
+                    merged.seek(lower);
+                    //lower 的所有版本属于上一个区间
+                    while (merged.valid() && AllUtils.compare(merged.key(), lower) == 0) {
+                        merged.next();
                     }
-                    if (pq.isEmpty() || AllUtils.compare(pq.peek().getKey(), kv.getKey()) != 0) {
-                        sstWriter.append(kv.getKey(), kv.getValue());
+                }
+                byte[] prevKey = null;
+                int prevStripe = -1;
+                for (; merged.valid(); merged.next()) {
+                    byte[] key = merged.key();
+                    if (null != upper && AllUtils.compare(key, upper) > 0) {
                         break;
                     }
+                    boolean sameKey = null != prevKey && AllUtils.compare(prevKey, key) == 0;
+                    int stripe = snapshotStripe(snapshots, merged.seq());
+                    boolean shadowed = sameKey && stripe == prevStripe;
+                    prevKey = key;
+                    prevStripe = stripe;
+                    byte[] value = merged.value();
+                    if (shadowed) {
+                        continue;
+                    }
+                    //所有快照都能看到这个墓碑，更深的层中也没有这个 key 的旧数据，墓碑已经没有用了，直接丢弃
+                    if (Kv.isTombstone(value) && stripe == 0 && this.isBottommost(level + 1, key)) {
+                        continue;
+                    }
+                    // 倘若新生成的 level + 1 层 sst 文件大小已经超限，同一个 key 的版本不拆到两个文件中
+                    if (!sameKey && sstWriter.size() > sstLimit) {
+                        SstWriter.FinishRes finish = sstWriter.finish();
+                        sstWriter.close();
+                        outputs.add(this.newNode(level + 1, seq, finish));
+                        // 构造一个新的 level + 1 层 sstWriter
+                        seq = this.levelToSeq[level + 1].incrementAndGet();
+                        sstWriter = new SstWriter(this.sstFile(level + 1, seq), this.config, this.config.getCompression(level + 1));
+                    }
+                    sstWriter.append(key, merged.seq(), value);
                 }
             }
             SstWriter.FinishRes finish = sstWriter.finish();
-            this.insertNode(level + 1, seq, finish.getSize(), finish.getBlockToFilter(), finish.getIndices());
+            if (finish.getIndices().length > 0) {
+                outputs.add(this.newNode(level + 1, seq, finish));
+            } else {
+                //区间内没有数据或者全部是被丢弃的墓碑，不生成空文件
+                sstWriter.close();
+                new File(this.config.getDir() + File.separator + this.sstFile(level + 1, seq)).delete();
+            }
         } catch (Exception e) {
-            throw new RuntimeException(e);
+            for (Node output : outputs) {
+                output.destroy();
+            }
+            throw e;
         } finally {
             sstWriter.close();
         }
-        removeNodes(level, pickedNodes);
-        tryCompactSst(level + 1);
+        return outputs;
+    }
+
+    /**
+     * 序列号落在哪个快照区间：第一个序列号不小于 seq 的快照的下标，都小于 seq 时为 snapshots.length。
+     * 同一个 key 在同一个区间内的多个版本，任何快照和最新的读取都只能看到最新的那个
+     */
+    private static int snapshotStripe(long[] snapshots, long seq) {
+        int i = Arrays.binarySearch(snapshots, seq);
+        return i >= 0 ? i : -i - 1;
+    }
+
+    //pickedNodes 中越靠后的节点越新，归并迭代器需要从新到旧的顺序
+    private List<KvIterator> compactionIterators(List<Node> pickedNodes) {
+        List<KvIterator> iterators = new ArrayList<>(pickedNodes.size());
+        try {
+            for (int i = pickedNodes.size() - 1; i >= 0; i--) {
+                iterators.add(pickedNodes.get(i).compactionIterator());
+            }
+        } catch (RuntimeException e) {
+            for (KvIterator iterator : iterators) {
+                iterator.close();
+            }
+            throw e;
+        }
+        return iterators;
     }
 
-    private void removeNodes(int level, List<Node> pickedNodes) {
-        // 从 lsm tree 的 nodes 中移除老节点
-        for (int i = level + 1; i >= level; i--) {
-            ReentrantReadWriteLock.WriteLock writeLock = this.levelLocks[i].writeLock();
-            writeLock.lock();
+    //level 以下的层中是否都没有包含 key 的节点
+    private boolean isBottommost(int level, byte[] key) {
+        for (int i = level + 1; i < this.nodes.size(); i++) {
+            ReentrantReadWriteLock.ReadLock levelLock = this.levelLocks[i].readLock();
+            levelLock.lock();
             try {
-                this.nodes.get(i).removeAll(pickedNodes);
+                if (this.levelBinarySearch(i, key, 0, this.nodes.get(i).size() - 1).isPresent()) {
+                    return false;
+                }
             } finally {
-                writeLock.unlock();
+                levelLock.unlock();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 同时持有两层的写锁，移除老节点并插入新节点，读请求不会看到两层中数据重复或者缺失的中间状态，
+     * level+1 层也始终保持有序不重叠
+     */
+    private void installNodes(int level, List<Node> pickedNodes, List<Node> outputs) {
+        ReentrantReadWriteLock.WriteLock levelLock = this.levelLocks[level].writeLock();
+        ReentrantReadWriteLock.WriteLock nextLevelLock = this.levelLocks[level + 1].writeLock();
+        levelLock.lock();
+        nextLevelLock.lock();
+        try {
+            this.nodes.get(level).removeAll(pickedNodes);
+            this.nodes.get(level + 1).removeAll(pickedNodes);
+            for (Node output : outputs) {
+                this.addNode(level + 1, output);
             }
+            if (level == 0) {
+                this.writeController.setLevel0Files(this.nodes.get(0).size());
+            }
+        } finally {
+            nextLevelLock.unlock();
+            levelLock.unlock();
         }
         // 销毁老节点，包括关闭 sst reader，并且删除节点对应 sst 磁盘文件
         for (Node pickedNode : pickedNodes) {
@@ -352,78 +894,128 @@ public class Tree {
     }
 
 
-    private List<Node> pickCompactNodes(int level) {
-        List<Node> levelNodes = nodes.get(level);
-        if (levelNodes.isEmpty()) {
-            return Collections.emptyList();
-        }
-        byte[] startKey, endKey;
-        if (level == 0) {
-            //全部合并
-            startKey= levelNodes.get(0).start();
-            endKey = levelNodes.get(0).end();
-            for (int i = 1; i < levelNodes.size(); i++) {
-                Node curNode = levelNodes.get(i);
-                if (AllUtils.compare(curNode.start(), startKey) < 0) {
-                    startKey = curNode.start();
-                }
-                if (AllUtils.compare(curNode.end(), endKey) > 0) {
-                    endKey = curNode.end();
+    /**
+     * 选取要压缩的节点并打上标记，0层和1层可能同时被 flush 修改，需要在读锁中选取
+     * @return 有节点被其他压缩任务占用时返回empty
+     */
+    private Optional<List<Node>> pickCompactNodes(int level) {
+        ReentrantReadWriteLock.ReadLock levelLock = this.levelLocks[level].readLock();
+        ReentrantReadWriteLock.ReadLock nextLevelLock = this.levelLocks[level + 1].readLock();
+        levelLock.lock();
+        nextLevelLock.lock();
+        try {
+            List<Node> levelNodes = nodes.get(level);
+            if (levelNodes.isEmpty()) {
+                return Optional.of(Collections.emptyList());
+            }
+            byte[] startKey, endKey;
+            if (level == 0) {
+                //全部合并
+                startKey= levelNodes.get(0).start();
+                endKey = levelNodes.get(0).end();
+                for (int i = 1; i < levelNodes.size(); i++) {
+                    Node curNode = levelNodes.get(i);
+                    if (AllUtils.compare(curNode.start(), startKey) < 0) {
+                        startKey = curNode.start();
+                    }
+                    if (AllUtils.compare(curNode.end(), endKey) > 0) {
+                        endKey = curNode.end();
+                    }
                 }
+            } else {
+                //高层有序，层数越多合并的文件越少
+                startKey = levelNodes.get(0).start();
+                int end = levelNodes.size() / (level + 1);
+                endKey = levelNodes.get(end).end();
             }
-        } else {
-            //高层有序，层数越多合并的文件越少
-            startKey = levelNodes.get(0).start();
-            int end = levelNodes.size() / (level + 1);
-            endKey = levelNodes.get(end).end();
-        }
 
-        List<Node> pickedNodes = new ArrayList<>();
-        for (int i = level + 1; i >= level; i--) {
-            for (Node node : this.nodes.get(i)) {
-                if (AllUtils.compare(endKey, node.start()) < 0 || AllUtils.compare(startKey, node.end()) > 0) {
-                    continue;
+            List<Node> pickedNodes = new ArrayList<>();
+            for (int i = level + 1; i >= level; i--) {
+                for (Node node : this.nodes.get(i)) {
+                    if (AllUtils.compare(endKey, node.start()) < 0 || AllUtils.compare(startKey, node.end()) > 0) {
+                        continue;
+                    }
+                    // 所有范围有重叠的节点都追加到 list
+                    pickedNodes.add(node);
+                }
+            }
+            synchronized (this.compactionLock) {
+                for (Node node : pickedNodes) {
+                    if (node.isCompacting()) {
+                        return Optional.empty();
+                    }
+                }
+                for (Node node : pickedNodes) {
+                    node.markCompacting();
                 }
-                // 所有范围有重叠的节点都追加到 list
-                pickedNodes.add(node);
             }
+            return Optional.of(pickedNodes);
+        } finally {
+            nextLevelLock.unlock();
+            levelLock.unlock();
         }
-        return pickedNodes;
     }
 
     private void compactMemTable(MemTableCompactItem item) {
         flushMemTable(item.memTable);
+        List<String> flushedWals = new ArrayList<>();
         ReentrantReadWriteLock.WriteLock writeLock = this.dataLock.writeLock();
         writeLock.lock();
         try {
             List<MemTableCompactItem> rms = this.readOnlyMemTableList;
             int rmsSize = rms.size();
             for (int i = 0; i < rmsSize; i++) {
+                flushedWals.add(rms.get(i).getWalFile());
                 if (rms.get(i).getMemTable() != item.getMemTable()) {
-                    new File(rms.get(i).getWalFile()).delete();
                     continue;
                 }
                 this.readOnlyMemTableList = new ArrayList<>(rms.subList(i + 1, rmsSize));
-                new File(rms.get(i).getWalFile()).delete();
                 break;
             }
+            this.writeController.setPendingMemTables(this.readOnlyMemTableList.size());
         } catch (Exception e) {
             throw new RuntimeException(e);
         } finally {
             writeLock.unlock();
         }
+        //已经从冷表列表中移除，读请求不会再访问到，可以释放
+        item.getMemTable().close();
+        //清零 wal 比较慢，放在锁外面
+        for (String wal : flushedWals) {
+            this.walSegmentPool.recycle(wal);
+        }
     }
 
     private void flushMemTable(MemTable memTable) {
+        //空的冷表（比如 wal 损坏没有恢复出数据）不生成 sst，由调用方直接移除并回收 wal
+        if (memTable.entriesCnt() == 0) {
+            return;
+        }
         int seq = levelToSeq[0].get() + 1;
-        SstWriter sstWriter = new SstWriter(sstFile(0, seq), config);
+        SstWriter sstWriter = new SstWriter(sstFile(0, seq), config, config.getCompression(0));
+        //冷表不再有写入，之后创建的快照能看到其中所有的数据
+        long[] snapshots = this.sequences.snapshotSeqs();
+        long maxSeq = 0;
         try {
-            for (Kv kv : memTable.all()) {
-                sstWriter.append(kv.getKey(), kv.getValue());
+            try (KvIterator iterator = memTable.iterator()) {
+                byte[] prevKey = null;
+                int prevStripe = -1;
+                for (iterator.seekToFirst(); iterator.valid(); iterator.next()) {
+                    byte[] key = iterator.key();
+                    int stripe = snapshotStripe(snapshots, iterator.seq());
+                    boolean shadowed = null != prevKey && AllUtils.compare(prevKey, key) == 0 && stripe == prevStripe;
+                    prevKey = key;
+                    prevStripe = stripe;
+                    maxSeq = Math.max(maxSeq, iterator.seq());
+                    //墓碑要留到 compaction 时判断
+                    if (!shadowed) {
+                        sstWriter.append(key, iterator.seq(), iterator.value());
+                    }
+                }
             }
             SstWriter.FinishRes finish = sstWriter.finish();
             //插入内存表示node
-            insertNode(0, seq, finish.getSize(), finish.getBlockToFilter(), finish.getIndices());
+            insertNode(0, seq, finish, maxSeq);
             //尝试发起下一层的压缩
             tryCompactSst(0);
         } catch (Exception e) {
@@ -439,50 +1031,56 @@ public class Tree {
             return;
         }
         int size = 0;
-        for (Node node : this.nodes.get(level)) {
-            size += node.size();
+        int fileCnt;
+        ReentrantReadWriteLock.ReadLock levelLock = this.levelLocks[level].readLock();
+        levelLock.lock();
+        try {
+            fileCnt = this.nodes.get(level).size();
+            for (Node node : this.nodes.get(level)) {
+                size += node.size();
+            }
+        } finally {
+            levelLock.unlock();
         }
-        if (size <= this.config.getLevelSstSize(level + 1)) {
+        //0层文件数到了限流的阈值也要压缩，否则写入可能一直被阻塞
+        boolean level0Stall = level == 0 && fileCnt >= this.config.getLevel0SlowdownWritesTrigger();
+        if (size <= this.config.getLevelSstSize(level + 1) && !level0Stall) {
             return;
         }
-        boolean offer = this.levelCompactQueue.offer(level);
-        if (!offer) {
-            System.out.println("压缩文件正忙");
+        this.scheduleCompaction(level);
+    }
+
+    //先写 manifest 再对读请求可见，lastSeq 是文件中最大的序列号
+    private void insertNode(int level, int seq, SstWriter.FinishRes finish, long lastSeq) {
+        Node newNode = this.newNode(level, seq, finish);
+        try {
+            this.manifest.append(new VersionEdit().addFile(this.fileMeta(level, newNode)).setLastSeq(lastSeq));
+        } catch (RuntimeException e) {
+            newNode.destroy();
+            throw e;
         }
+        this.levelToSeq[level].set(seq);
+        this.insertNodeLocked(level, newNode);
     }
 
-    private void insertNode(int level, int seq, int size, Map<Integer, BitsArray> blockToFilter, Index[] indices) {
+    //seq 由调用方预先分配
+    private Node newNode(int level, int seq, SstWriter.FinishRes finish) {
         String file = sstFile(level, seq);
         SstReader sstReader = new SstReader(file, config);
-        this.insertNodeWithReader(level, seq, size, blockToFilter, indices, sstReader);
+        try {
+            return new Node(config, file, sstReader, finish.getSize(), finish.getFirstKey(), finish.getFilters(),
+                    finish.getIndices());
+        } catch (RuntimeException e) {
+            sstReader.close();
+            throw e;
+        }
     }
 
-    private void insertNodeWithReader(int level, int seq, int size, Map<Integer, BitsArray> blockToFilter, Index[] indices, SstReader sstReader) {
-        String file = sstFile(level, seq);
-        this.levelToSeq[level].set(seq);
-        Node newNode = new Node(config, file, sstReader, size, blockToFilter, indices);
+    private void insertNodeLocked(int level, Node newNode) {
         ReentrantReadWriteLock.WriteLock writeLock = this.levelLocks[level].writeLock();
         writeLock.lock();
         try {
-            if (level == 0) {
-                this.nodes.get(level).add(newNode);
-            } else {
-                List<Node> levelNodes = nodes.get(level);
-                if (levelNodes.isEmpty()) {
-                    levelNodes.add(newNode);
-                } else {
-                    int i = 0;
-                    for (; i < levelNodes.size(); i++) {
-                        if (AllUtils.compare(newNode.end(), levelNodes.get(i).start()) < 0) {
-                            levelNodes.add(i, newNode);
-                            break;
-                        }
-                    }
-                    if (i == levelNodes.size()) {
-                        levelNodes.add(newNode);
-                    }
-                }
-            }
+            this.addNode(level, newNode);
         } catch (Exception e) {
             throw new RuntimeException(e);
         } finally {
@@ -491,36 +1089,82 @@ public class Tree {
 
     }
 
+    //需要持有 level 的写锁
+    private void addNode(int level, Node newNode) {
+        if (level == 0) {
+            this.nodes.get(level).add(newNode);
+            this.writeController.setLevel0Files(this.nodes.get(level).size());
+        } else {
+            List<Node> levelNodes = nodes.get(level);
+            if (levelNodes.isEmpty()) {
+                levelNodes.add(newNode);
+            } else {
+                int i = 0;
+                for (; i < levelNodes.size(); i++) {
+                    if (AllUtils.compare(newNode.end(), levelNodes.get(i).start()) < 0) {
+                        levelNodes.add(i, newNode);
+                        break;
+                    }
+                }
+                if (i == levelNodes.size()) {
+                    levelNodes.add(newNode);
+                }
+            }
+        }
+    }
+
     private String sstFile(int level, int seq) {
         return level + "_" + seq + ".sst";
     }
 
     private void newMemTable(int size) {
-        this.walWriter = new WalWriter(walFile(), size);
+        String walFile = walFile();
+        if (!new File(walFile).exists()) {
+            this.walSegmentPool.acquire(walFile);
+        }
+        this.walWriter = new WalWriter(walFile, size);
         this.memTable = this.config.getMemTableConstructor().create();
     }
 
     private String walFile() {
-        return config.getDir() + File.separator + "walfile" + File.separator + this.memTableIndex + ".wal";
+        return walFilePath(this.memTableIndex + ".wal");
     }
 
 
+    //读取当前可见的数据，读取期间固定住序列号，flush 和 compaction 不会丢掉它能看到的版本
     public byte[] get(byte[] key) {
+        Snapshot pinned = this.sequences.newSnapshot();
+        try {
+            return this.get(key, pinned.getSeq());
+        } finally {
+            this.sequences.release(pinned);
+        }
+    }
+
+    /**
+     * 读取快照创建时 key 的值
+     */
+    public byte[] get(byte[] key, Snapshot snapshot) {
+        return this.get(key, this.snapshotSeq(snapshot));
+    }
+
+    //序列号不超过 seq 的最新版本
+    private byte[] get(byte[] key, long seq) {
         ReentrantReadWriteLock.ReadLock lock = this.dataLock.readLock();
         lock.lock();
         try {
             //mem table找
-            Optional<byte[]> valOpt = this.memTable.get(key);
+            Optional<byte[]> valOpt = this.memTable.get(key, seq);
             if (valOpt.isPresent()) {
-                return valOpt.get();
+                return liveValue(valOpt.get());
             }
             //从新到旧冷表找
             int oldLen = this.readOnlyMemTableList.size();
             for (int i = oldLen - 1; i >= 0; i--) {
                 MemTableCompactItem memTableCompactItem = this.readOnlyMemTableList.get(i);
-                Optional<byte[]> oldOpt = memTableCompactItem.getMemTable().get(key);
+                Optional<byte[]> oldOpt = memTableCompactItem.getMemTable().get(key, seq);
                 if (oldOpt.isPresent()) {
-                    return oldOpt.get();
+                    return liveValue(oldOpt.get());
                 }
             }
         } catch (Exception e) {
@@ -528,6 +1172,8 @@ public class Tree {
         } finally {
             lock.unlock();
         }
+        //哈希只计算一次，所有 sst 的过滤器共用
+        long keyHash = KeyHash.hash64(key);
         //从新到旧0层的sst文件找
         ReentrantReadWriteLock.ReadLock level0Lock = this.levelLocks[0].readLock();
         level0Lock.lock();
@@ -536,9 +1182,9 @@ public class Tree {
             int level0Len = level0Nodes.size();
             for (int i = level0Len - 1; i >= 0; i--) {
                 Node node = level0Nodes.get(i);
-                Optional<byte[]> level0Opt = node.get(key);
+                Optional<byte[]> level0Opt = node.get(key, keyHash, seq);
                 if (level0Opt.isPresent()) {
-                    return level0Opt.get();
+                    return liveValue(level0Opt.get());
                 }
             }
         } catch (Exception e) {
@@ -556,9 +1202,9 @@ public class Tree {
                     continue;
                 }
                 Node node = nodeOpt.get();
-                Optional<byte[]> valOpt = node.get(key);
+                Optional<byte[]> valOpt = node.get(key, keyHash, seq);
                 if (valOpt.isPresent()) {
-                    return valOpt.get();
+                    return liveValue(valOpt.get());
                 }
             } catch (Exception e) {
                 throw new RuntimeException(e);
@@ -569,6 +1215,232 @@ public class Tree {
         return null;
     }
 
+    /**
+     * 创建快照，通过它读取时看不到之后的写入，存活期间 compaction 会保留它能看到的旧版本，
+     * 用完必须 {@link #releaseSnapshot(Snapshot)}
+     */
+    public Snapshot getSnapshot() {
+        return this.sequences.newSnapshot();
+    }
+
+    //重复释放没有影响
+    public void releaseSnapshot(Snapshot snapshot) {
+        this.sequences.release(snapshot);
+    }
+
+    private long snapshotSeq(Snapshot snapshot) {
+        if (snapshot.isReleased()) {
+            throw new IllegalStateException("快照已经释放");
+        }
+        return snapshot.getSeq();
+    }
+
+    //写入限流的状态和统计
+    public WriteController getWriteController() {
+        return writeController;
+    }
+
+    //当前的内存占用
+    public MemoryUsage memoryUsage() {
+        long memTableBytes = 0;
+        ReentrantReadWriteLock.ReadLock lock = this.dataLock.readLock();
+        lock.lock();
+        try {
+            memTableBytes += this.memTable.size();
+            for (MemTableCompactItem item : this.readOnlyMemTableList) {
+                memTableBytes += item.getMemTable().size();
+            }
+        } finally {
+            lock.unlock();
+        }
+        long filterBytes = 0;
+        long indexBytes = 0;
+        int nodeCnt = 0;
+        int loadedNodeCnt = 0;
+        for (int level = 0; level < this.nodes.size(); level++) {
+            ReentrantReadWriteLock.ReadLock levelLock = this.levelLocks[level].readLock();
+            levelLock.lock();
+            try {
+                for (Node node : this.nodes.get(level)) {
+                    nodeCnt++;
+                    NodeMeta meta = node.loadedMeta();
+                    if (null != meta) {
+                        loadedNodeCnt++;
+                        filterBytes += meta.filterBytes();
+                        indexBytes += meta.indexBytes();
+                    }
+                }
+            } finally {
+                levelLock.unlock();
+            }
+        }
+        return new MemoryUsage(memTableBytes, this.config.getBlockCache().usage(), filterBytes, indexBytes,
+                nodeCnt, loadedNodeCnt);
+    }
+
+    /**
+     * 遍历整个 tree 的迭代器，需要先 seekToFirst 或 seek，使用完必须 close。
+     * 只能看到创建时已经完成的写入
+     */
+    public TreeIterator newIterator() {
+        Snapshot pinned = this.sequences.newSnapshot();
+        return this.newIterator(pinned.getSeq(), pinned);
+    }
+
+    //遍历快照中的数据
+    public TreeIterator newIterator(Snapshot snapshot) {
+        return this.newIterator(this.snapshotSeq(snapshot), null);
+    }
+
+    private TreeIterator newIterator(long readSeq, Snapshot pinned) {
+        return this.newTreeIterator(node -> true, null, readSeq, pinned);
+    }
+
+    /**
+     * 范围遍历 [startKey, endKey)，已经定位到 startKey，使用完必须 close
+     * @param startKey 为null表示从头开始
+     * @param endKey 为null表示遍历到结尾
+     */
+    public TreeIterator scan(byte[] startKey, byte[] endKey) {
+        Snapshot pinned = this.sequences.newSnapshot();
+        return this.scan(startKey, endKey, pinned.getSeq(), pinned);
+    }
+
+    //范围遍历快照中的数据
+    public TreeIterator scan(byte[] startKey, byte[] endKey, Snapshot snapshot) {
+        return this.scan(startKey, endKey, this.snapshotSeq(snapshot), null);
+    }
+
+    private TreeIterator scan(byte[] startKey, byte[] endKey, long readSeq, Snapshot pinned) {
+        TreeIterator iterator = this.newTreeIterator(node -> true, endKey, readSeq, pinned);
+        try {
+            if (null == startKey) {
+                iterator.seekToFirst();
+            } else {
+                iterator.seek(startKey);
+            }
+        } catch (RuntimeException e) {
+            iterator.close();
+            throw e;
+        }
+        return iterator;
+    }
+
+    /**
+     * 遍历以 prefix 开头的 key，已经定位到第一个，使用完必须 close。
+     * 跳过 key 范围不相交的 sst；prefix 正好是 prefixExtractor 提取出的前缀时，
+     * 再用前缀过滤器跳过不包含它的 sst
+     */
+    public TreeIterator scanPrefix(byte[] prefix) {
+        Snapshot pinned = this.sequences.newSnapshot();
+        return this.scanPrefix(prefix, pinned.getSeq(), pinned);
+    }
+
+    //遍历快照中以 prefix 开头的 key
+    public TreeIterator scanPrefix(byte[] prefix, Snapshot snapshot) {
+        return this.scanPrefix(prefix, this.snapshotSeq(snapshot), null);
+    }
+
+    private TreeIterator scanPrefix(byte[] prefix, long readSeq, Snapshot pinned) {
+        byte[] endKey = prefixSuccessor(prefix);
+        PrefixExtractor extractor = this.config.getPrefixExtractor();
+        boolean usePrefixFilter = null != extractor && Arrays.equals(extractor.prefix(prefix), prefix);
+        TreeIterator iterator = this.newTreeIterator(node ->
+                AllUtils.compare(node.end(), prefix) >= 0
+                        && (null == endKey || AllUtils.compare(node.start(), endKey) < 0)
+                        && (!usePrefixFilter || node.mayContainPrefix(prefix)), endKey, readSeq, pinned);
+        try {
+            iterator.seek(prefix);
+        } catch (RuntimeException e) {
+            iterator.close();
+            throw e;
+        }
+        return iterator;
+    }
+
+    /**
+     * readSeq 要在收集迭代器之前确定，不超过它的写入都已经在收集到的数据源中。
+     * 没有指定快照时 pinned 是内部创建的 readSeq 的快照，同样要在收集之前注册，
+     * 否则期间完成的 compaction 可能丢掉 readSeq 能看到的版本；迭代器 close 时释放
+     */
+    private TreeIterator newTreeIterator(Predicate<Node> nodeFilter, byte[] endKey, long readSeq, Snapshot pinned) {
+        List<KvIterator> iterators;
+        try {
+            iterators = this.collectIterators(nodeFilter);
+        } catch (RuntimeException e) {
+            if (null != pinned) {
+                this.sequences.release(pinned);
+            }
+            throw e;
+        }
+        return new TreeIterator(new MergingIterator(iterators), endKey, readSeq,
+                null == pinned ? null : () -> this.sequences.release(pinned));
+    }
+
+    //大于所有以 prefix 开头的 key 的最小 key，prefix 全是 0xFF 时没有上界，返回 null
+    private static byte[] prefixSuccessor(byte[] prefix) {
+        for (int i = prefix.length - 1; i >= 0; i--) {
+            if (prefix[i] != (byte) 0xFF) {
+                byte[] res = Arrays.copyOf(prefix, i + 1);
+                res[i]++;
+                return res;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 按从新到旧的顺序收集所有数据源的迭代器，和 get 的查找顺序一致。
+     * 每一层都在对应的锁内创建迭代器（持有引用），所以之后 mem table 被 flush 释放、
+     * sst 被 compaction 销毁都不会影响遍历。
+     * flush 先插入新节点再移除 mem table，compaction 同时在两层的写锁中替换节点，
+     * 按 mem table、0层、1层...的顺序收集，数据可能重复但不会遗漏，重复的数据在归并时去重
+     */
+    //nodeFilter 返回 false 的 sst 不参与遍历
+    private List<KvIterator> collectIterators(Predicate<Node> nodeFilter) {
+        List<KvIterator> iterators = new ArrayList<>();
+        try {
+            ReentrantReadWriteLock.ReadLock lock = this.dataLock.readLock();
+            lock.lock();
+            try {
+                iterators.add(this.memTable.iterator());
+                for (int i = this.readOnlyMemTableList.size() - 1; i >= 0; i--) {
+                    iterators.add(this.readOnlyMemTableList.get(i).getMemTable().iterator());
+                }
+            } finally {
+                lock.unlock();
+            }
+            for (int level = 0; level < this.nodes.size(); level++) {
+                ReentrantReadWriteLock.ReadLock levelLock = this.levelLocks[level].readLock();
+                levelLock.lock();
+                try {
+                    //同一层中 seq 大的更新，compaction 过程中新旧节点可能短暂重叠
+                    List<Node> levelNodes = new ArrayList<>(this.nodes.get(level));
+                    levelNodes.sort((n1, n2) -> getLevelSeqFromSstFile(n2.getFile())[1]
+                            - getLevelSeqFromSstFile(n1.getFile())[1]);
+                    for (Node node : levelNodes) {
+                        if (nodeFilter.test(node)) {
+                            iterators.add(node.iterator());
+                        }
+                    }
+                } finally {
+                    levelLock.unlock();
+                }
+            }
+        } catch (RuntimeException e) {
+            for (KvIterator iterator : iterators) {
+                iterator.close();
+            }
+            throw e;
+        }
+        return iterators;
+    }
+
+    //墓碑表示数据已删除，直接返回null，不再继续查找更旧的数据
+    private byte[] liveValue(byte[] value) {
+        return Kv.isTombstone(value) ? null : value;
+    }
+
     private Optional<Node> levelBinarySearch(int level, byte[] key, int start, int end) {
         if (end < start) {
             return Optional.empty();
@@ -604,42 +1476,56 @@ public class Tree {
 
     public void close() {
         if (stop.compareAndSet(false, true)) {
-            ExecutorService poolToShutdown = this.poolService;
-            poolToShutdown.shutdown();
-            boolean shutdown = false;
-            for (int i = 0; i < 3; i++) {
-                System.out.println("waiting... " + System.currentTimeMillis());
-                try {
-                    shutdown = poolToShutdown.awaitTermination(30, TimeUnit.SECONDS);
-                    if (shutdown) {
-                        break;
-                    }
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
-            }
-            if (!shutdown) {
-                System.out.println("force shutdown");
-                poolToShutdown.shutdownNow();
-                try {
-                    if (!poolToShutdown.awaitTermination(30, TimeUnit.SECONDS)) {
-                        System.out.printf("%s didn't terminate!%n", poolToShutdown);
-                    }
-                } catch (InterruptedException e) {
-                    throw new RuntimeException(e);
-                }
+            this.writeController.close();
+            if (null != this.walSyncService) {
+                this.walSyncService.shutdownNow();
             }
+            //正常关闭时不论哪种刷盘策略都要保证wal落盘
+            this.syncWal();
+            //先停止 flush，再等待正在进行的压缩任务结束
+            shutdownAndAwait(this.poolService);
+            shutdownAndAwait(this.compactionPool);
+            shutdownAndAwait(this.subcompactionPool);
 
             for (List<Node> nodeArr : nodes) {
                 for (Node node : nodeArr) {
                     node.close();
                 }
             }
+            this.manifest.close();
             config.getBlockBufferPool().destroy(5);
+            config.getBlockCache().clear();
             System.out.println("bye!");
         }
     }
 
+    private void shutdownAndAwait(ExecutorService poolToShutdown) {
+        poolToShutdown.shutdown();
+        boolean shutdown = false;
+        for (int i = 0; i < 3; i++) {
+            System.out.println("waiting... " + System.currentTimeMillis());
+            try {
+                shutdown = poolToShutdown.awaitTermination(30, TimeUnit.SECONDS);
+                if (shutdown) {
+                    break;
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+        if (!shutdown) {
+            System.out.println("force shutdown");
+            poolToShutdown.shutdownNow();
+            try {
+                if (!poolToShutdown.awaitTermination(30, TimeUnit.SECONDS)) {
+                    System.out.printf("%s didn't terminate!%n", poolToShutdown);
+                }
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
     public static class MemTableCompactItem {
         private final String walFile;
         private final MemTable memTable;
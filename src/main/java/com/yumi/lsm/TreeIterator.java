@@ -0,0 +1,97 @@
+package com.yumi.lsm;
+
+import com.yumi.lsm.iterator.KvIterator;
+import com.yumi.lsm.util.AllUtils;
+import com.yumi.lsm.util.Kv;
+
+/**
+ * 对外的范围迭代器，每个 key 只返回序列号不超过 readSeq 的最新版本，跳过已删除的数据，
+ * 到达 endKey（不包含）以后结束。
+ * 创建时持有了所有 mem table 和 sst 的引用，期间的 flush 和 compaction 不影响遍历，
+ * 使用完必须 close 释放引用。没有指定快照时内部持有 readSeq 的快照，close 时释放
+ */
+public class TreeIterator implements KvIterator {
+    private final KvIterator merged;
+    //为null表示没有上界
+    private final byte[] endKey;
+    private final long readSeq;
+    //close 时释放内部持有的快照，为 null 表示没有
+    private final Runnable releaseSeq;
+
+    TreeIterator(KvIterator merged, byte[] endKey, long readSeq, Runnable releaseSeq) {
+        this.merged = merged;
+        this.endKey = endKey;
+        this.readSeq = readSeq;
+        this.releaseSeq = releaseSeq;
+    }
+
+    @Override
+    public boolean valid() {
+        return this.merged.valid()
+                && (null == this.endKey || AllUtils.compare(this.merged.key(), this.endKey) < 0);
+    }
+
+    @Override
+    public void seekToFirst() {
+        this.merged.seekToFirst();
+        this.findVisible();
+    }
+
+    @Override
+    public void seek(byte[] key) {
+        this.merged.seek(key);
+        this.findVisible();
+    }
+
+    @Override
+    public void next() {
+        this.skipVersions(this.merged.key());
+        this.findVisible();
+    }
+
+    @Override
+    public byte[] key() {
+        return this.merged.key();
+    }
+
+    @Override
+    public byte[] value() {
+        return this.merged.value();
+    }
+
+    @Override
+    public long seq() {
+        return this.merged.seq();
+    }
+
+    @Override
+    public void close() {
+        try {
+            this.merged.close();
+        } finally {
+            if (null != this.releaseSeq) {
+                this.releaseSeq.run();
+            }
+        }
+    }
+
+    //停在第一个可见而且不是墓碑的版本上
+    private void findVisible() {
+        while (this.valid()) {
+            if (this.merged.seq() > this.readSeq) {
+                this.merged.next();
+            } else if (Kv.isTombstone(this.merged.value())) {
+                this.skipVersions(this.merged.key());
+            } else {
+                return;
+            }
+        }
+    }
+
+    //跳过 key 剩下的所有版本
+    private void skipVersions(byte[] key) {
+        do {
+            this.merged.next();
+        } while (this.merged.valid() && AllUtils.compare(this.merged.key(), key) == 0);
+    }
+}
@@ -0,0 +1,54 @@
+package com.yumi.lsm;
+
+import com.yumi.lsm.util.Kv;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 批量写入，整个batch在wal中是一条记录，写入 mem table 时原子可见，
+ * 恢复时要么全部生效要么全部不生效
+ */
+public class WriteBatch {
+    private final List<Kv> entries = new ArrayList<>();
+    //key 和 value 的总字节数
+    private int bytes;
+
+    public void put(byte[] key, byte[] value) {
+        if (null == key || null == value) {
+            throw new IllegalArgumentException("key 和 value 不能为空");
+        }
+        this.entries.add(new Kv(key, value));
+        this.bytes += key.length + value.length;
+    }
+
+    public void delete(byte[] key) {
+        if (null == key) {
+            throw new IllegalArgumentException("key 不能为空");
+        }
+        this.entries.add(new Kv(key, Kv.TOMBSTONE));
+        this.bytes += key.length;
+    }
+
+    public List<Kv> entries() {
+        return Collections.unmodifiableList(this.entries);
+    }
+
+    public int size() {
+        return this.entries.size();
+    }
+
+    public boolean isEmpty() {
+        return this.entries.isEmpty();
+    }
+
+    public int bytes() {
+        return this.bytes;
+    }
+
+    public void clear() {
+        this.entries.clear();
+        this.bytes = 0;
+    }
+}
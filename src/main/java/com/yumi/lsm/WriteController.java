@@ -0,0 +1,139 @@
+package com.yumi.lsm;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 写入限流：根据0层文件数和等待 flush 的 mem table 数决定写入是否需要延迟或者阻塞，
+ * 让突发写入时 flush 和压缩能够追上来，避免0层无限增长拖慢读取。
+ * 延迟随着离上限的距离逐步增加，到达上限以后阻塞，由 flush 和压缩完成时更新状态唤醒
+ */
+public class WriteController {
+    //阻塞时的最长等待时间，避免错过唤醒
+    private static final long STOP_WAIT_MS = 100;
+
+    private final int level0SlowdownTrigger;
+    private final int level0StopTrigger;
+    private final int maxPendingMemTables;
+    private final long maxDelayNanos;
+
+    private final Object stallLock = new Object();
+    private volatile int level0Files;
+    private volatile int pendingMemTables;
+    private volatile WriteStallState state = WriteStallState.NORMAL;
+    private volatile boolean closed;
+
+    private final LongAdder delayedWriteCount = new LongAdder();
+    private final LongAdder stoppedWriteCount = new LongAdder();
+    private final LongAdder stallNanos = new LongAdder();
+
+    public WriteController(Config config) {
+        this.level0SlowdownTrigger = config.getLevel0SlowdownWritesTrigger();
+        this.level0StopTrigger = config.getLevel0StopWritesTrigger();
+        this.maxPendingMemTables = config.getMaxPendingMemTables();
+        this.maxDelayNanos = config.getMaxWriteDelayMicros() * 1000L;
+    }
+
+    public void setLevel0Files(int level0Files) {
+        this.level0Files = level0Files;
+        this.refreshState();
+    }
+
+    public void setPendingMemTables(int pendingMemTables) {
+        this.pendingMemTables = pendingMemTables;
+        this.refreshState();
+    }
+
+    //写入前调用，按当前状态延迟或者阻塞，不能在持有 dataLock 的时候调用
+    public void maybeStall() {
+        if (this.state == WriteStallState.NORMAL || this.closed) {
+            return;
+        }
+        long start = System.nanoTime();
+        if (this.state == WriteStallState.STOPPED) {
+            this.stoppedWriteCount.increment();
+            synchronized (this.stallLock) {
+                while (this.state == WriteStallState.STOPPED && !this.closed) {
+                    try {
+                        this.stallLock.wait(STOP_WAIT_MS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IllegalStateException("写入限流等待时被中断");
+                    }
+                }
+            }
+        }
+        if (this.state == WriteStallState.DELAYED && !this.closed) {
+            this.delayedWriteCount.increment();
+            LockSupport.parkNanos(this.delayNanos());
+        }
+        this.stallNanos.add(System.nanoTime() - start);
+    }
+
+    //关闭时唤醒所有阻塞的写入
+    public void close() {
+        synchronized (this.stallLock) {
+            this.closed = true;
+            this.stallLock.notifyAll();
+        }
+    }
+
+    public WriteStallState getState() {
+        return state;
+    }
+
+    public int getLevel0Files() {
+        return level0Files;
+    }
+
+    public int getPendingMemTables() {
+        return pendingMemTables;
+    }
+
+    //被延迟过的写入次数
+    public long delayedWriteCount() {
+        return delayedWriteCount.sum();
+    }
+
+    //被阻塞过的写入次数
+    public long stoppedWriteCount() {
+        return stoppedWriteCount.sum();
+    }
+
+    //写入因为限流累计等待的时间，单位纳秒
+    public long stallNanos() {
+        return stallNanos.sum();
+    }
+
+    private void refreshState() {
+        synchronized (this.stallLock) {
+            int level0 = this.level0Files;
+            int pending = this.pendingMemTables;
+            WriteStallState newState;
+            if (level0 >= this.level0StopTrigger || pending >= this.maxPendingMemTables) {
+                newState = WriteStallState.STOPPED;
+            } else if (level0 >= this.level0SlowdownTrigger || pending >= this.maxPendingMemTables - 1) {
+                newState = WriteStallState.DELAYED;
+            } else {
+                newState = WriteStallState.NORMAL;
+            }
+            this.state = newState;
+            if (newState != WriteStallState.STOPPED) {
+                this.stallLock.notifyAll();
+            }
+        }
+    }
+
+    //离上限越近延迟越长，到达上限前一步时为 maxDelay
+    private long delayNanos() {
+        double ratio = 0;
+        int level0 = this.level0Files;
+        if (level0 >= this.level0SlowdownTrigger) {
+            ratio = (double) (level0 - this.level0SlowdownTrigger + 1) / (this.level0StopTrigger - this.level0SlowdownTrigger);
+        }
+        if (this.pendingMemTables >= this.maxPendingMemTables - 1) {
+            ratio = 1;
+        }
+        return (long) (this.maxDelayNanos * Math.min(1, ratio));
+    }
+}
@@ -0,0 +1,13 @@
+package com.yumi.lsm;
+
+/**
+ * 写入限流的状态
+ */
+public enum WriteStallState {
+    //正常写入
+    NORMAL,
+    //0层文件或者等待 flush 的 mem table 偏多，每次写入前延迟一段时间
+    DELAYED,
+    //超过上限，写入阻塞直到 flush 和压缩追上来
+    STOPPED
+}
@@ -0,0 +1,39 @@
+package com.yumi.lsm.compress;
+
+/**
+ * data block 的压缩方式，tag 写在每个 block 的结尾，读取时据此选择解压算法，
+ * 同一个文件中的 block 可以使用不同的压缩方式
+ */
+public enum CompressionType {
+    //不压缩，读取时直接使用映射
+    NONE((byte) 0, null),
+    //压缩率高，解压慢，适合数据量最大、访问最少的底层
+    DEFLATE((byte) 1, new DeflateCompressor()),
+    //压缩率一般，压缩和解压都很快
+    LZ4((byte) 2, new Lz4Compressor());
+
+    private final byte tag;
+    private final Compressor compressor;
+
+    CompressionType(byte tag, Compressor compressor) {
+        this.tag = tag;
+        this.compressor = compressor;
+    }
+
+    public byte tag() {
+        return tag;
+    }
+
+    public Compressor compressor() {
+        return compressor;
+    }
+
+    public static CompressionType of(byte tag) {
+        for (CompressionType type : values()) {
+            if (type.tag == tag) {
+                return type;
+            }
+        }
+        throw new IllegalStateException("未知的压缩方式 " + tag);
+    }
+}
@@ -0,0 +1,25 @@
+package com.yumi.lsm.compress;
+
+import java.nio.ByteBuffer;
+
+/**
+ * data block 的压缩算法，实现必须是线程安全的
+ */
+public interface Compressor {
+
+    /**
+     * @param src 原始内容
+     * @param len 原始内容的长度
+     * @param dst 输出
+     * @return 压缩后的长度，dst 放不下时返回 -1
+     */
+    int compress(byte[] src, int len, byte[] dst);
+
+    /**
+     * 解压到 dst 中，返回时 dst 的 position 为 0，limit 为 rawSize
+     * @param src 压缩后的内容，不修改它的状态
+     * @param dst 容量不小于 rawSize
+     * @param rawSize 原始内容的长度
+     */
+    void decompress(ByteBuffer src, ByteBuffer dst, int rawSize);
+}
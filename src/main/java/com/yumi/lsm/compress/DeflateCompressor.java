@@ -0,0 +1,77 @@
+package com.yumi.lsm.compress;
+
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 使用 jdk 自带的 Deflater，Deflater 和 Inflater 持有 native 资源，每个线程复用一个
+ */
+public class DeflateCompressor implements Compressor {
+    private static final ThreadLocal<Deflater> DEFLATER = ThreadLocal.withInitial(Deflater::new);
+    private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(Inflater::new);
+
+    @Override
+    public int compress(byte[] src, int len, byte[] dst) {
+        Deflater deflater = DEFLATER.get();
+        deflater.reset();
+        deflater.setInput(src, 0, len);
+        deflater.finish();
+        int n = 0;
+        while (!deflater.finished()) {
+            if (n == dst.length) {
+                return -1;
+            }
+            n += deflater.deflate(dst, n, dst.length - n);
+        }
+        return n;
+    }
+
+    @Override
+    public void decompress(ByteBuffer src, ByteBuffer dst, int rawSize) {
+        byte[] in;
+        int inOffset;
+        if (src.hasArray()) {
+            in = src.array();
+            inOffset = src.arrayOffset() + src.position();
+        } else {
+            in = new byte[src.remaining()];
+            src.duplicate().get(in);
+            inOffset = 0;
+        }
+        byte[] out;
+        int outOffset;
+        if (dst.hasArray()) {
+            out = dst.array();
+            outOffset = dst.arrayOffset();
+        } else {
+            out = new byte[rawSize];
+            outOffset = 0;
+        }
+        Inflater inflater = INFLATER.get();
+        inflater.reset();
+        inflater.setInput(in, inOffset, src.remaining());
+        int n = 0;
+        try {
+            while (n < rawSize) {
+                int inflated = inflater.inflate(out, outOffset + n, rawSize - n);
+                if (inflated == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                n += inflated;
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("block 解压失败", e);
+        }
+        if (n != rawSize) {
+            throw new IllegalStateException("block 解压失败，长度不一致 " + n + " " + rawSize);
+        }
+        dst.clear();
+        if (!dst.hasArray()) {
+            dst.put(out, 0, rawSize);
+        }
+        dst.position(0);
+        dst.limit(rawSize);
+    }
+}
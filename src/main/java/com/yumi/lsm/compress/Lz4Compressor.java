@@ -0,0 +1,159 @@
+package com.yumi.lsm.compress;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 纯 java 实现的 LZ4 block 格式，不依赖 native 库。
+ * 每个 sequence: token literalLen扩展 literals offset(2字节小端) matchLen扩展，
+ * token 的高 4 位是 literal 长度，低 4 位是 match 长度减 4，等于 15 时后面跟着若干个扩展字节。
+ * 最后一个 sequence 只有 literals
+ */
+public class Lz4Compressor implements Compressor {
+    private static final int MIN_MATCH = 4;
+    private static final int HASH_LOG = 12;
+    private static final int MAX_OFFSET = 65535;
+    //结尾的 5 个字节必须是 literal，最后一个 match 至少在结尾的 12 个字节之前开始
+    private static final int LAST_LITERALS = 5;
+    private static final int MF_LIMIT = 12;
+    //连续找不到 match 时加大步长，不可压缩的数据很快就能扫完
+    private static final int SKIP_TRIGGER = 6;
+    private static final int RUN_MASK = 15;
+
+    @Override
+    public int compress(byte[] src, int len, byte[] dst) {
+        //存放的是位置加一，0 表示没有
+        int[] table = new int[1 << HASH_LOG];
+        int anchor = 0;
+        int sp = 0;
+        int dp = 0;
+        int limit = len - MF_LIMIT;
+        while (sp < limit) {
+            int sequence = readInt(src, sp);
+            int h = hash(sequence);
+            int ref = table[h] - 1;
+            table[h] = sp + 1;
+            if (ref < 0 || sp - ref > MAX_OFFSET || readInt(src, ref) != sequence) {
+                sp += 1 + ((sp - anchor) >>> SKIP_TRIGGER);
+                continue;
+            }
+            //向前扩展
+            while (sp > anchor && ref > 0 && src[sp - 1] == src[ref - 1]) {
+                sp--;
+                ref--;
+            }
+            int matchLen = MIN_MATCH;
+            int maxMatch = len - LAST_LITERALS - sp;
+            while (matchLen < maxMatch && src[ref + matchLen] == src[sp + matchLen]) {
+                matchLen++;
+            }
+            dp = writeSequence(src, anchor, sp - anchor, sp - ref, matchLen, dst, dp);
+            if (dp < 0) {
+                return -1;
+            }
+            sp += matchLen;
+            anchor = sp;
+        }
+        return writeSequence(src, anchor, len - anchor, 0, 0, dst, dp);
+    }
+
+    @Override
+    public void decompress(ByteBuffer src, ByteBuffer dst, int rawSize) {
+        int sp = src.position();
+        int srcEnd = src.limit();
+        int dp = 0;
+        //dst 可能被复用过，limit 还是上一次的长度
+        dst.clear();
+        try {
+            while (sp < srcEnd) {
+                int token = src.get(sp++) & 0xFF;
+                int literalLen = token >>> 4;
+                if (literalLen == RUN_MASK) {
+                    int b;
+                    do {
+                        b = src.get(sp++) & 0xFF;
+                        literalLen += b;
+                    } while (b == 255);
+                }
+                if (dp + literalLen > rawSize) {
+                    throw new IllegalStateException("block 解压失败，长度超出 " + rawSize);
+                }
+                for (int i = 0; i < literalLen; i++) {
+                    dst.put(dp++, src.get(sp++));
+                }
+                if (sp >= srcEnd) {
+                    break;
+                }
+                int offset = (src.get(sp) & 0xFF) | ((src.get(sp + 1) & 0xFF) << 8);
+                sp += 2;
+                int matchLen = token & RUN_MASK;
+                if (matchLen == RUN_MASK) {
+                    int b;
+                    do {
+                        b = src.get(sp++) & 0xFF;
+                        matchLen += b;
+                    } while (b == 255);
+                }
+                matchLen += MIN_MATCH;
+                if (offset == 0 || offset > dp || dp + matchLen > rawSize) {
+                    throw new IllegalStateException("block 解压失败，非法的 match");
+                }
+                //match 可能和输出重叠，只能逐个字节拷贝
+                int ref = dp - offset;
+                for (int i = 0; i < matchLen; i++) {
+                    dst.put(dp++, dst.get(ref++));
+                }
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new IllegalStateException("block 解压失败", e);
+        }
+        if (dp != rawSize) {
+            throw new IllegalStateException("block 解压失败，长度不一致 " + dp + " " + rawSize);
+        }
+        dst.position(0);
+        dst.limit(rawSize);
+    }
+
+    //matchLen 为 0 表示最后一个只有 literals 的 sequence
+    private static int writeSequence(byte[] src, int literalStart, int literalLen, int offset, int matchLen,
+                                     byte[] dst, int dp) {
+        int needed = 1 + literalLen / 255 + 1 + literalLen + (matchLen == 0 ? 0 : 2 + matchLen / 255 + 1);
+        if (dp + needed > dst.length) {
+            return -1;
+        }
+        int tokenPos = dp++;
+        int token = Math.min(literalLen, RUN_MASK) << 4;
+        if (literalLen >= RUN_MASK) {
+            dp = writeLength(literalLen - RUN_MASK, dst, dp);
+        }
+        System.arraycopy(src, literalStart, dst, dp, literalLen);
+        dp += literalLen;
+        if (matchLen > 0) {
+            dst[dp++] = (byte) offset;
+            dst[dp++] = (byte) (offset >>> 8);
+            int len = matchLen - MIN_MATCH;
+            token |= Math.min(len, RUN_MASK);
+            if (len >= RUN_MASK) {
+                dp = writeLength(len - RUN_MASK, dst, dp);
+            }
+        }
+        dst[tokenPos] = (byte) token;
+        return dp;
+    }
+
+    private static int writeLength(int len, byte[] dst, int dp) {
+        while (len >= 255) {
+            dst[dp++] = (byte) 255;
+            len -= 255;
+        }
+        dst[dp++] = (byte) len;
+        return dp;
+    }
+
+    private static int readInt(byte[] src, int i) {
+        return (src[i] & 0xFF) | ((src[i + 1] & 0xFF) << 8) | ((src[i + 2] & 0xFF) << 16) | ((src[i + 3] & 0xFF) << 24);
+    }
+
+    private static int hash(int sequence) {
+        return (sequence * -1640531535) >>> (32 - HASH_LOG);
+    }
+}
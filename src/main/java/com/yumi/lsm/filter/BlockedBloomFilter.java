@@ -0,0 +1,114 @@
+package com.yumi.lsm.filter;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * 按缓存行分块的 bloom 过滤器。
+ * 位数组是 long[]，每 8 个 long（64 字节，一个缓存行）为一块，一个 key 的 k 个位都落在同一块里，
+ * 一次判断最多访问一个缓存行。块由哈希的高 32 位选择，块内的位置由低 32 位反复乘一个奇数常量得到，
+ * 哈希由调用方计算一次后传入，判断时不分配对象。
+ * 构建时按实际的 key 数量决定块数。
+ * 序列化格式: tag(1) k(1) numBlocks(4) words(numBlocks * 64)
+ */
+public class BlockedBloomFilter implements Filter {
+    public static final byte TAG = 1;
+    private static final int BLOCK_BITS = 512;
+    private static final int WORDS_PER_BLOCK_SHIFT = 3;
+    private static final int HEADER_SIZE = 6;
+
+    private final int bitsPerKey;
+    private final int numProbes;
+    //已经添加的 key 的哈希，构建时才知道需要多少块
+    private long[] hashes = new long[64];
+    private int keyCnt;
+
+    public BlockedBloomFilter() {
+        this(10);
+    }
+
+    public BlockedBloomFilter(int bitsPerKey) {
+        if (bitsPerKey < 1 || bitsPerKey > 64) {
+            throw new IllegalStateException("非法的bitsPerKey");
+        }
+        this.bitsPerKey = bitsPerKey;
+        //k = ln2 * bitsPerKey
+        this.numProbes = Math.max(1, Math.min(30, (int) Math.round(bitsPerKey * 0.69)));
+    }
+
+    @Override
+    public void add(byte[] key) {
+        if (this.keyCnt == this.hashes.length) {
+            this.hashes = Arrays.copyOf(this.hashes, this.hashes.length << 1);
+        }
+        this.hashes[this.keyCnt++] = KeyHash.hash64(key);
+    }
+
+    @Override
+    public FilterReader build() {
+        long bits = (long) this.keyCnt * this.bitsPerKey;
+        int numBlocks = (int) Math.max(1, (bits + BLOCK_BITS - 1) / BLOCK_BITS);
+        long[] words = new long[numBlocks << WORDS_PER_BLOCK_SHIFT];
+        for (int i = 0; i < this.keyCnt; i++) {
+            long hash = this.hashes[i];
+            int base = blockIndex(hash, numBlocks) << WORDS_PER_BLOCK_SHIFT;
+            int h = (int) hash;
+            for (int j = 0; j < this.numProbes; j++) {
+                //高 9 位是块内的位置
+                int bit = h >>> 23;
+                words[base + (bit >>> 6)] |= 1L << bit;
+                h *= 0x9e3779b9;
+            }
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + words.length * 8);
+        buffer.put(TAG);
+        buffer.put((byte) this.numProbes);
+        buffer.putInt(numBlocks);
+        buffer.asLongBuffer().put(words);
+        return FilterReader.decode(buffer.array());
+    }
+
+    @Override
+    public void reset() {
+        this.keyCnt = 0;
+    }
+
+    @Override
+    public int keyLen() {
+        return this.keyCnt;
+    }
+
+    @Override
+    public Filter newInstance() {
+        return new BlockedBloomFilter(this.bitsPerKey);
+    }
+
+    static void check(ByteBuffer buffer, int offset, int length) {
+        int numProbes = length < HEADER_SIZE ? 0 : buffer.get(offset + 1);
+        int numBlocks = length < HEADER_SIZE ? 0 : buffer.getInt(offset + 2);
+        if (numProbes < 1 || numBlocks < 1 || length != HEADER_SIZE + (long) numBlocks * BLOCK_BITS / 8) {
+            throw new IllegalStateException("非法的 blocked bloom filter");
+        }
+    }
+
+    static boolean mayContain(ByteBuffer buffer, int offset, long keyHash) {
+        int numProbes = buffer.get(offset + 1);
+        int numBlocks = buffer.getInt(offset + 2);
+        //块的起始字节
+        int base = offset + HEADER_SIZE + (blockIndex(keyHash, numBlocks) << (WORDS_PER_BLOCK_SHIFT + 3));
+        int h = (int) keyHash;
+        for (int i = 0; i < numProbes; i++) {
+            int bit = h >>> 23;
+            if ((buffer.getLong(base + ((bit >>> 6) << 3)) & (1L << bit)) == 0) {
+                return false;
+            }
+            h *= 0x9e3779b9;
+        }
+        return true;
+    }
+
+    //fastrange，用乘法代替取模
+    private static int blockIndex(long hash, int numBlocks) {
+        return (int) (((hash >>> 32) * numBlocks) >>> 32);
+    }
+}
@@ -0,0 +1,63 @@
+package com.yumi.lsm.filter;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 构建完成的只读过滤器，{@link Filter#build()} 的结果，也是从 sst 中读出来的结果。
+ * 序列化格式的第一个字节是类型，读取时据此选择解码方式，不同类型的 sst 可以共存。
+ * 判断直接在序列化的数据上进行，数据可以放在堆外，不需要解码成对象
+ */
+public interface FilterReader {
+    /**
+     * @param keyHash {@link KeyHash#hash64(byte[])} 的结果，不需要的实现可以忽略
+     * @return false 时 key 一定不存在
+     */
+    boolean mayContain(byte[] key, long keyHash);
+
+    //序列化，第一个字节是类型
+    byte[] encode();
+
+    static FilterReader decode(byte[] bytes) {
+        if (null == bytes) {
+            throw new IllegalStateException("filter 数据为空");
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        check(buffer, 0, bytes.length);
+        return new SerializedFilterReader(bytes, buffer);
+    }
+
+    //检查 buffer 中 [offset, offset + length) 是不是合法的过滤器
+    static void check(ByteBuffer buffer, int offset, int length) {
+        if (length <= 0) {
+            throw new IllegalStateException("filter 数据为空");
+        }
+        byte tag = buffer.get(offset);
+        switch (tag) {
+            case LsmBloomFilter.TAG:
+                LsmBloomFilter.check(buffer, offset, length);
+                return;
+            case BlockedBloomFilter.TAG:
+                BlockedBloomFilter.check(buffer, offset, length);
+                return;
+            case BinaryFuseFilter.TAG:
+                BinaryFuseFilter.check(buffer, offset, length);
+                return;
+            default:
+                throw new IllegalStateException("未知的 filter 类型 " + tag);
+        }
+    }
+
+    //在 buffer 中 [offset, offset + length) 这个已经检查过的过滤器上判断
+    static boolean mayContain(ByteBuffer buffer, int offset, int length, byte[] key, long keyHash) {
+        switch (buffer.get(offset)) {
+            case BlockedBloomFilter.TAG:
+                return BlockedBloomFilter.mayContain(buffer, offset, keyHash);
+            case BinaryFuseFilter.TAG:
+                return BinaryFuseFilter.mayContain(buffer, offset, keyHash);
+            case LsmBloomFilter.TAG:
+                return LsmBloomFilter.mayContain(buffer, offset, key);
+            default:
+                throw new IllegalStateException("未知的 filter 类型 " + buffer.get(offset));
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package com.yumi.lsm.filter;
+
+/**
+ * key 的 64 位哈希（MurmurHash64A），不分配对象。
+ * 一次点查只计算一次，所有 sst 的过滤器共用
+ */
+public final class KeyHash {
+    private static final long M = 0xc6a4a7935bd1e995L;
+    private static final int R = 47;
+    private static final long SEED = 0x79756d69L;
+
+    private KeyHash() {
+    }
+
+    public static long hash64(byte[] key) {
+        int len = key.length;
+        long h = SEED ^ (len * M);
+        int end = len & ~7;
+        for (int i = 0; i < end; i += 8) {
+            long k = (key[i] & 0xFFL) | (key[i + 1] & 0xFFL) << 8 | (key[i + 2] & 0xFFL) << 16
+                    | (key[i + 3] & 0xFFL) << 24 | (key[i + 4] & 0xFFL) << 32 | (key[i + 5] & 0xFFL) << 40
+                    | (key[i + 6] & 0xFFL) << 48 | (key[i + 7] & 0xFFL) << 56;
+            k *= M;
+            k ^= k >>> R;
+            k *= M;
+            h ^= k;
+            h *= M;
+        }
+        int tail = len - end;
+        if (tail > 0) {
+            for (int i = tail - 1; i >= 0; i--) {
+                h ^= (key[end + i] & 0xFFL) << (i * 8);
+            }
+            h *= M;
+        }
+        h ^= h >>> R;
+        h *= M;
+        h ^= h >>> R;
+        return h;
+    }
+}
@@ -2,7 +2,12 @@ package com.yumi.lsm.filter;
 
 import com.yumi.lsm.filter.bloom.BloomFilter;
 
+import java.nio.ByteBuffer;
+
 public class LsmBloomFilter implements Filter{
+    public static final byte TAG = 0;
+    private static final BloomFilter READER_FILTER = BloomFilter.createByFn(20, 400);
+
     private final BloomFilter bloomFilter = BloomFilter.createByFn(20, 400);
     private BitsArray bitsArray = BitsArray.create(bloomFilter.getM());
 
@@ -14,16 +19,29 @@ public class LsmBloomFilter implements Filter{
         this.bloomFilter.hashTo(this.bloomFilter.calcBitPositions(key), this.bitsArray);
     }
 
-    @Override
+    //把缓存的BitArray导出
     public BitsArray hash() {
         return this.bitsArray.clone();
     }
 
-    @Override
+    //判断给定的key是否存在于给定的BitsArray
     public boolean exist(byte[] key, BitsArray bitsArray) {
         return this.bloomFilter.isHit(this.bloomFilter.calcBitPositions(key), bitsArray);
     }
 
+    @Override
+    public FilterReader build() {
+        return fromBits(this.bitsArray.bytes());
+    }
+
+    //由位数组构造，最早的 sst 中存放的就是没有类型的位数组
+    public static FilterReader fromBits(byte[] bits) {
+        byte[] res = new byte[bits.length + 1];
+        res[0] = TAG;
+        System.arraycopy(bits, 0, res, 1, bits.length);
+        return FilterReader.decode(res);
+    }
+
     @Override
     public void reset() {
         this.bitsArray = BitsArray.create(this.bloomFilter.getM());
@@ -34,4 +52,26 @@ public class LsmBloomFilter implements Filter{
     public int keyLen() {
         return this.keyCnt;
     }
+
+    @Override
+    public Filter newInstance() {
+        return new LsmBloomFilter();
+    }
+
+    static void check(ByteBuffer buffer, int offset, int length) {
+        if (length != READER_FILTER.getM() / Byte.SIZE + 1) {
+            throw new IllegalStateException("非法的 bloom filter");
+        }
+    }
+
+    //直接在序列化的位数组上判断，不复制；位置要重新计算 murmur3，不使用 keyHash
+    static boolean mayContain(ByteBuffer buffer, int offset, byte[] key) {
+        for (int bitPos : READER_FILTER.calcBitPositions(key)) {
+            //和 BitsArray#getBit 的位顺序一致
+            if ((buffer.get(offset + 1 + bitPos / Byte.SIZE) & (1 << bitPos % Byte.SIZE)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
 }
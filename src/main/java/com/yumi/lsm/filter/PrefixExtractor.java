@@ -0,0 +1,32 @@
+package com.yumi.lsm.filter;
+
+import java.util.Arrays;
+
+/**
+ * 从 key 中提取前缀，用来构建 sst 的前缀过滤器。
+ * name 会和过滤器一起写入 sst，配置改变以后旧文件的前缀过滤器不再使用
+ */
+public interface PrefixExtractor {
+    //不在前缀的定义域中时返回 null
+    byte[] prefix(byte[] key);
+
+    String name();
+
+    //取前 len 个字节，更短的 key 没有前缀
+    static PrefixExtractor fixed(int len) {
+        if (len <= 0) {
+            throw new IllegalStateException("非法的前缀长度");
+        }
+        return new PrefixExtractor() {
+            @Override
+            public byte[] prefix(byte[] key) {
+                return key.length < len ? null : Arrays.copyOf(key, len);
+            }
+
+            @Override
+            public String name() {
+                return "fixed:" + len;
+            }
+        };
+    }
+}
@@ -0,0 +1,24 @@
+package com.yumi.lsm.filter;
+
+import java.nio.ByteBuffer;
+
+//堆上的序列化数据
+final class SerializedFilterReader implements FilterReader {
+    private final byte[] bytes;
+    private final ByteBuffer buffer;
+
+    SerializedFilterReader(byte[] bytes, ByteBuffer buffer) {
+        this.bytes = bytes;
+        this.buffer = buffer;
+    }
+
+    @Override
+    public boolean mayContain(byte[] key, long keyHash) {
+        return FilterReader.mayContain(this.buffer, 0, this.bytes.length, key, keyHash);
+    }
+
+    @Override
+    public byte[] encode() {
+        return this.bytes;
+    }
+}
@@ -0,0 +1,29 @@
+package com.yumi.lsm.iterator;
+
+/**
+ * 按 key 升序遍历的迭代器，新建以后要先 seekToFirst 或 seek 才能使用。
+ * 同一个 key 可能有多个版本，按序列号从大到小排列，seek 定位到 key 最新的版本。
+ * value 可能是 {@link com.yumi.lsm.util.Kv#TOMBSTONE}，由上层决定如何处理
+ */
+public interface KvIterator extends AutoCloseable {
+    boolean valid();
+
+    void seekToFirst();
+
+    //定位到第一个大于等于 key 的位置
+    void seek(byte[] key);
+
+    void next();
+
+    byte[] key();
+
+    byte[] value();
+
+    //当前版本的序列号
+    long seq();
+
+    //释放持有的 mem table 或 sst 引用
+    @Override
+    default void close() {
+    }
+}
@@ -0,0 +1,64 @@
+package com.yumi.lsm.iterator;
+
+import com.yumi.lsm.util.AllUtils;
+import com.yumi.lsm.util.Kv;
+
+import java.util.List;
+
+/**
+ * 基于有序列表的迭代器，列表按 key 升序、序列号降序排列
+ */
+public class ListKvIterator implements KvIterator {
+    private final List<Kv> kvs;
+    private int cur;
+
+    public ListKvIterator(List<Kv> kvs) {
+        this.kvs = kvs;
+        this.cur = kvs.size();
+    }
+
+    @Override
+    public boolean valid() {
+        return this.cur < this.kvs.size();
+    }
+
+    @Override
+    public void seekToFirst() {
+        this.cur = 0;
+    }
+
+    @Override
+    public void seek(byte[] key) {
+        int l = 0;
+        int h = this.kvs.size();
+        while (l < h) {
+            int mid = (l + h) >>> 1;
+            if (AllUtils.compare(this.kvs.get(mid).getKey(), key) < 0) {
+                l = mid + 1;
+            } else {
+                h = mid;
+            }
+        }
+        this.cur = l;
+    }
+
+    @Override
+    public void next() {
+        this.cur++;
+    }
+
+    @Override
+    public byte[] key() {
+        return this.kvs.get(this.cur).getKey();
+    }
+
+    @Override
+    public byte[] value() {
+        return this.kvs.get(this.cur).getValue();
+    }
+
+    @Override
+    public long seq() {
+        return this.kvs.get(this.cur).getSeq();
+    }
+}
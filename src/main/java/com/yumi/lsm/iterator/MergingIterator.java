@@ -0,0 +1,139 @@
+package com.yumi.lsm.iterator;
+
+import com.yumi.lsm.util.AllUtils;
+
+import java.util.List;
+
+/**
+ * 多路归并迭代器，children 按从新到旧的顺序传入，按 key 升序、序列号降序输出每个版本（包括墓碑），
+ * key 和序列号都相同时只输出最新的 child 中的那一条。
+ * 堆中放的是 child 的下标，而不是记录本身，每前进一步只调整堆顶，不产生额外的对象
+ */
+public class MergingIterator implements KvIterator {
+    private final KvIterator[] children;
+    //每个 child 当前的 key，避免比较时重复拷贝
+    private final byte[][] keys;
+    private final long[] seqs;
+    //最小堆，key 和序列号都相同时下标小的（更新的）在前
+    private final int[] heap;
+    private int heapSize;
+
+    public MergingIterator(List<KvIterator> children) {
+        this.children = children.toArray(new KvIterator[0]);
+        this.keys = new byte[this.children.length][];
+        this.seqs = new long[this.children.length];
+        this.heap = new int[this.children.length];
+    }
+
+    @Override
+    public boolean valid() {
+        return this.heapSize > 0;
+    }
+
+    @Override
+    public void seekToFirst() {
+        this.heapSize = 0;
+        for (int i = 0; i < this.children.length; i++) {
+            this.children[i].seekToFirst();
+            this.addToHeap(i);
+        }
+    }
+
+    @Override
+    public void seek(byte[] key) {
+        this.heapSize = 0;
+        for (int i = 0; i < this.children.length; i++) {
+            this.children[i].seek(key);
+            this.addToHeap(i);
+        }
+    }
+
+    @Override
+    public void next() {
+        byte[] cur = this.key();
+        long curSeq = this.seq();
+        //所有停在当前版本上的 child 一起前进，重复的版本被丢弃
+        while (this.heapSize > 0 && AllUtils.compare(this.keys[this.heap[0]], this.seqs[this.heap[0]],
+                cur, curSeq) == 0) {
+            int i = this.heap[0];
+            this.children[i].next();
+            if (this.children[i].valid()) {
+                //还在堆中，直接调整堆顶
+                this.keys[i] = this.children[i].key();
+                this.seqs[i] = this.children[i].seq();
+                this.siftDown(0);
+            } else {
+                this.keys[i] = null;
+                this.heap[0] = this.heap[--this.heapSize];
+                if (this.heapSize > 0) {
+                    this.siftDown(0);
+                }
+            }
+        }
+    }
+
+    @Override
+    public byte[] key() {
+        return this.keys[this.heap[0]];
+    }
+
+    @Override
+    public byte[] value() {
+        return this.children[this.heap[0]].value();
+    }
+
+    @Override
+    public long seq() {
+        return this.seqs[this.heap[0]];
+    }
+
+    @Override
+    public void close() {
+        for (KvIterator child : this.children) {
+            child.close();
+        }
+    }
+
+    private void addToHeap(int i) {
+        if (!this.children[i].valid()) {
+            this.keys[i] = null;
+            return;
+        }
+        this.keys[i] = this.children[i].key();
+        this.seqs[i] = this.children[i].seq();
+        int pos = this.heapSize++;
+        //上浮
+        while (pos > 0) {
+            int parent = (pos - 1) >>> 1;
+            if (this.less(this.heap[parent], i)) {
+                break;
+            }
+            this.heap[pos] = this.heap[parent];
+            pos = parent;
+        }
+        this.heap[pos] = i;
+    }
+
+    private void siftDown(int pos) {
+        int child = this.heap[pos];
+        int half = this.heapSize >>> 1;
+        while (pos < half) {
+            int smaller = 2 * pos + 1;
+            int right = smaller + 1;
+            if (right < this.heapSize && this.less(this.heap[right], this.heap[smaller])) {
+                smaller = right;
+            }
+            if (this.less(child, this.heap[smaller])) {
+                break;
+            }
+            this.heap[pos] = this.heap[smaller];
+            pos = smaller;
+        }
+        this.heap[pos] = child;
+    }
+
+    private boolean less(int i1, int i2) {
+        int cmp = AllUtils.compare(this.keys[i1], this.seqs[i1], this.keys[i2], this.seqs[i2]);
+        return cmp != 0 ? cmp < 0 : i1 < i2;
+    }
+}
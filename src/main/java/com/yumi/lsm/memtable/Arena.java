@@ -0,0 +1,111 @@
+package com.yumi.lsm.memtable;
+
+import com.yumi.lsm.util.BufferCleanUtil;
+import sun.nio.ch.DirectBuffer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 堆外内存分配器，按 chunk 向系统申请 direct buffer，chunk 内部通过 CAS 顺序分配，
+ * 分配出去的内存不单独回收，release 时整体释放所有 chunk
+ */
+public class Arena {
+    //分配的地址按8字节对齐，保证 long 的原子读写和 CAS
+    private static final int ALIGN = 8;
+
+    private final int chunkSize;
+    private final List<ByteBuffer> chunks = new ArrayList<>();
+    private volatile Chunk current;
+    //已经分配出去的字节数，包括对齐浪费的部分
+    private final AtomicInteger allocated = new AtomicInteger(0);
+    private volatile boolean released;
+
+    public Arena(int chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("非法的chunkSize");
+        }
+        this.chunkSize = chunkSize;
+        this.current = newChunk(chunkSize);
+    }
+
+    /**
+     * @param size 需要的字节数
+     * @return 分配到的堆外内存地址
+     */
+    public long allocate(int size) {
+        int alignedSize = (size + ALIGN - 1) & ~(ALIGN - 1);
+        if (alignedSize > this.chunkSize / 4) {
+            //大块内存单独申请一个chunk，避免浪费当前chunk剩余的空间
+            synchronized (this) {
+                Chunk chunk = newChunk(alignedSize);
+                chunk.offset.set(alignedSize);
+                this.allocated.addAndGet(alignedSize);
+                return chunk.address;
+            }
+        }
+        while (true) {
+            Chunk chunk = this.current;
+            int offset = chunk.offset.getAndAdd(alignedSize);
+            if (offset + alignedSize <= chunk.capacity) {
+                this.allocated.addAndGet(alignedSize);
+                return chunk.address + offset;
+            }
+            synchronized (this) {
+                if (this.current == chunk) {
+                    this.current = newChunk(this.chunkSize);
+                }
+            }
+        }
+    }
+
+    private synchronized Chunk newChunk(int capacity) {
+        if (this.released) {
+            throw new IllegalStateException("arena 已释放");
+        }
+        ByteBuffer buffer = ByteBuffer.allocateDirect(capacity);
+        this.chunks.add(buffer);
+        return new Chunk(((DirectBuffer) buffer).address(), capacity);
+    }
+
+    //已经分配出去的字节数
+    public int allocated() {
+        return this.allocated.get();
+    }
+
+    //向系统申请的字节数
+    public synchronized long reserved() {
+        long reserved = 0;
+        for (ByteBuffer chunk : this.chunks) {
+            reserved += chunk.capacity();
+        }
+        return reserved;
+    }
+
+    /**
+     * 释放所有chunk，之后不能再访问分配出去的任何地址
+     */
+    public synchronized void release() {
+        if (this.released) {
+            return;
+        }
+        this.released = true;
+        for (ByteBuffer chunk : this.chunks) {
+            BufferCleanUtil.clean(chunk);
+        }
+        this.chunks.clear();
+    }
+
+    private static class Chunk {
+        private final long address;
+        private final int capacity;
+        private final AtomicInteger offset = new AtomicInteger(0);
+
+        private Chunk(long address, int capacity) {
+            this.address = address;
+            this.capacity = capacity;
+        }
+    }
+}
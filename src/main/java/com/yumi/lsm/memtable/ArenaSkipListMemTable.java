@@ -0,0 +1,327 @@
+package com.yumi.lsm.memtable;
+
+import com.yumi.lsm.iterator.KvIterator;
+import com.yumi.lsm.util.Kv;
+import com.yumi.lsm.util.UnsafeUtil;
+import sun.misc.Unsafe;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 节点、key、value 全部放在 {@link Arena} 堆外内存中的无锁跳表，
+ * 不会产生大量的小对象，flush 以后 close 只需要释放几个 chunk。
+ *
+ * 节点布局 -> valueAddress(8) seq(8) keyLen(4) height(4) next(8 * height) key(keyLen)
+ * value布局 -> valueLen(4, 墓碑为-1) value(valueLen)
+ *
+ * 节点按 key 升序、序列号降序排列，同一个 key 的每个版本是一个节点。
+ * 插入时先写好新节点的内容，再通过 CAS 修改前驱的 next 发布，读取 next 使用 volatile 语义，
+ * 所以读线程看到节点时一定能看到完整的内容。key 和序列号都相同时分配新的 value 再 CAS 替换 valueAddress
+ *
+ * 迭代器直接读取 arena，会持有引用，close 以后等所有迭代器关闭才真正释放内存
+ */
+public class ArenaSkipListMemTable implements MemTable {
+    private static final Unsafe UNSAFE = UnsafeUtil.UNSAFE;
+    private static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+    private static final int MAX_HEIGHT = 12;
+
+    private static final int VALUE_ADDRESS_OFFSET = 0;
+    private static final int SEQ_OFFSET = 8;
+    private static final int KEY_LEN_OFFSET = 16;
+    private static final int HEIGHT_OFFSET = 20;
+    private static final int NEXT_OFFSET = 24;
+    private static final int TOMBSTONE_LEN = -1;
+
+    private final Arena arena;
+    private final long head;
+    private final AtomicInteger entriesCnt = new AtomicInteger(0);
+    //初始的 1 由 close 释放
+    private final AtomicInteger refCnt = new AtomicInteger(1);
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+
+    public ArenaSkipListMemTable() {
+        this(DEFAULT_CHUNK_SIZE);
+    }
+
+    public ArenaSkipListMemTable(int chunkSize) {
+        this.arena = new Arena(chunkSize);
+        this.head = newNode(new byte[0], 0, MAX_HEIGHT, 0L);
+    }
+
+    @Override
+    public void put(byte[] key, long seq, byte[] value) {
+        long valueAddress = newValue(value);
+        long[] preds = new long[MAX_HEIGHT];
+        long[] succs = new long[MAX_HEIGHT];
+        long node = 0L;
+        int height = 0;
+        while (true) {
+            if (findSplice(key, seq, preds, succs)) {
+                //这个版本已经存在，替换value
+                casValue(succs[0], valueAddress);
+                return;
+            }
+            if (node == 0L) {
+                height = randomHeight();
+                node = newNode(key, seq, height, valueAddress);
+            }
+            setNextPlain(node, 0, succs[0]);
+            if (casNext(preds[0], 0, succs[0], node)) {
+                break;
+            }
+            //第0层被并发修改，重新查找
+        }
+        this.entriesCnt.incrementAndGet();
+        //逐层链接更高的层
+        for (int level = 1; level < height; level++) {
+            while (true) {
+                setNextPlain(node, level, succs[level]);
+                if (casNext(preds[level], level, succs[level], node)) {
+                    break;
+                }
+                findSplice(key, seq, preds, succs);
+            }
+        }
+    }
+
+    @Override
+    public Optional<byte[]> get(byte[] key, long seq) {
+        //第一个序列号不超过 seq 的版本
+        long node = findGreaterOrEqual(key, seq);
+        if (node == 0L || compareUserKey(node, key) != 0) {
+            return Optional.empty();
+        }
+        return Optional.of(readValue(node));
+    }
+
+    //包括节点、key、value 以及被覆盖的旧 value 在内实际占用的堆外内存
+    @Override
+    public int size() {
+        return this.arena.allocated();
+    }
+
+    @Override
+    public int entriesCnt() {
+        return this.entriesCnt.get();
+    }
+
+    @Override
+    public List<Kv> all() {
+        List<Kv> res = new ArrayList<>(this.entriesCnt.get());
+        long node = getNext(this.head, 0);
+        while (node != 0L) {
+            res.add(new Kv(readKey(node), readSeq(node), readValue(node)));
+            node = getNext(node, 0);
+        }
+        return res;
+    }
+
+    @Override
+    public KvIterator iterator() {
+        while (true) {
+            int cnt = this.refCnt.get();
+            if (cnt <= 0) {
+                throw new IllegalStateException("mem table 已关闭");
+            }
+            if (this.refCnt.compareAndSet(cnt, cnt + 1)) {
+                return new ArenaIterator();
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        if (this.closed.compareAndSet(false, true)) {
+            this.release();
+        }
+    }
+
+    private void release() {
+        if (this.refCnt.decrementAndGet() == 0) {
+            this.arena.release();
+        }
+    }
+
+    //第一个大于等于 (key, seq) 的节点，没有返回0
+    private long findGreaterOrEqual(byte[] key, long seq) {
+        long x = this.head;
+        long next = 0L;
+        for (int level = MAX_HEIGHT - 1; level >= 0; level--) {
+            next = getNext(x, level);
+            while (next != 0L && compareKey(next, key, seq) < 0) {
+                x = next;
+                next = getNext(x, level);
+            }
+        }
+        return next;
+    }
+
+    /**
+     * 查找每一层中 (key, seq) 的前驱和后继
+     * @return 是否找到相同的版本，找到时 succs[0] 就是该节点
+     */
+    private boolean findSplice(byte[] key, long seq, long[] preds, long[] succs) {
+        long x = this.head;
+        for (int level = MAX_HEIGHT - 1; level >= 0; level--) {
+            long next = getNext(x, level);
+            while (next != 0L && compareKey(next, key, seq) < 0) {
+                x = next;
+                next = getNext(x, level);
+            }
+            preds[level] = x;
+            succs[level] = next;
+        }
+        return succs[0] != 0L && compareKey(succs[0], key, seq) == 0;
+    }
+
+    private long newNode(byte[] key, long seq, int height, long valueAddress) {
+        long node = this.arena.allocate(NEXT_OFFSET + 8 * height + key.length);
+        UNSAFE.putLong(node + VALUE_ADDRESS_OFFSET, valueAddress);
+        UNSAFE.putLong(node + SEQ_OFFSET, seq);
+        UNSAFE.putInt(node + KEY_LEN_OFFSET, key.length);
+        UNSAFE.putInt(node + HEIGHT_OFFSET, height);
+        for (int level = 0; level < height; level++) {
+            UNSAFE.putLong(node + NEXT_OFFSET + 8L * level, 0L);
+        }
+        UnsafeUtil.copyToAddress(key, keyAddress(node, height));
+        return node;
+    }
+
+    private long newValue(byte[] value) {
+        long address = this.arena.allocate(4 + value.length);
+        if (Kv.isTombstone(value)) {
+            UNSAFE.putInt(address, TOMBSTONE_LEN);
+        } else {
+            UNSAFE.putInt(address, value.length);
+            UnsafeUtil.copyToAddress(value, address + 4);
+        }
+        return address;
+    }
+
+    private void casValue(long node, long valueAddress) {
+        while (true) {
+            long old = UNSAFE.getLongVolatile(null, node + VALUE_ADDRESS_OFFSET);
+            if (UNSAFE.compareAndSwapLong(null, node + VALUE_ADDRESS_OFFSET, old, valueAddress)) {
+                return;
+            }
+        }
+    }
+
+    private byte[] readValue(long node) {
+        long address = UNSAFE.getLongVolatile(null, node + VALUE_ADDRESS_OFFSET);
+        int valueLen = UNSAFE.getInt(address);
+        if (valueLen == TOMBSTONE_LEN) {
+            return Kv.TOMBSTONE;
+        }
+        return UnsafeUtil.copyFromAddress(address + 4, valueLen);
+    }
+
+    private byte[] readKey(long node) {
+        int keyLen = UNSAFE.getInt(node + KEY_LEN_OFFSET);
+        return UnsafeUtil.copyFromAddress(keyAddress(node, UNSAFE.getInt(node + HEIGHT_OFFSET)), keyLen);
+    }
+
+    private long readSeq(long node) {
+        return UNSAFE.getLong(node + SEQ_OFFSET);
+    }
+
+    private long keyAddress(long node, int height) {
+        return node + NEXT_OFFSET + 8L * height;
+    }
+
+    //key 相同时序列号大的在前
+    private int compareKey(long node, byte[] key, long seq) {
+        int cmp = compareUserKey(node, key);
+        return cmp != 0 ? cmp : Long.compare(seq, readSeq(node));
+    }
+
+    //与 AllUtils.compare 的顺序保持一致：按有符号字节比较，前缀相同时短的在前
+    private int compareUserKey(long node, byte[] key) {
+        int nodeKeyLen = UNSAFE.getInt(node + KEY_LEN_OFFSET);
+        long keyAddress = keyAddress(node, UNSAFE.getInt(node + HEIGHT_OFFSET));
+        int min = Math.min(nodeKeyLen, key.length);
+        for (int i = 0; i < min; i++) {
+            byte b = UNSAFE.getByte(keyAddress + i);
+            if (b != key[i]) {
+                return Byte.compare(b, key[i]);
+            }
+        }
+        return nodeKeyLen - key.length;
+    }
+
+    private long getNext(long node, int level) {
+        return UNSAFE.getLongVolatile(null, node + NEXT_OFFSET + 8L * level);
+    }
+
+    private void setNextPlain(long node, int level, long next) {
+        UNSAFE.putLong(node + NEXT_OFFSET + 8L * level, next);
+    }
+
+    private boolean casNext(long node, int level, long expect, long update) {
+        return UNSAFE.compareAndSwapLong(null, node + NEXT_OFFSET + 8L * level, expect, update);
+    }
+
+    private int randomHeight() {
+        int height = 1;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        //每一层有 1/4 的概率继续升高
+        while (height < MAX_HEIGHT && random.nextInt(4) == 0) {
+            height++;
+        }
+        return height;
+    }
+
+    private class ArenaIterator implements KvIterator {
+        private long node;
+        private boolean closed;
+
+        @Override
+        public boolean valid() {
+            return this.node != 0L;
+        }
+
+        @Override
+        public void seekToFirst() {
+            this.node = getNext(head, 0);
+        }
+
+        @Override
+        public void seek(byte[] key) {
+            this.node = findGreaterOrEqual(key, Kv.MAX_SEQ);
+        }
+
+        @Override
+        public void next() {
+            this.node = getNext(this.node, 0);
+        }
+
+        @Override
+        public byte[] key() {
+            return readKey(this.node);
+        }
+
+        @Override
+        public byte[] value() {
+            return readValue(this.node);
+        }
+
+        @Override
+        public long seq() {
+            return readSeq(this.node);
+        }
+
+        @Override
+        public void close() {
+            if (!this.closed) {
+                this.closed = true;
+                this.node = 0L;
+                release();
+            }
+        }
+    }
+}
@@ -1,16 +1,45 @@
 package com.yumi.lsm.memtable;
 
+import com.yumi.lsm.iterator.KvIterator;
+import com.yumi.lsm.iterator.ListKvIterator;
 import com.yumi.lsm.util.Kv;
 
 import java.util.List;
 import java.util.Optional;
 
+/**
+ * 每条数据是 key 的一个版本，按 key 升序、序列号降序排列，
+ * 序列号不同的写入都会保留，key 和序列号都相同时覆盖
+ */
 public interface MemTable {
-    void put(byte[] key, byte[] value);
-    Optional<byte[]> get(byte[] key);
+    //不关心版本时序列号记为 0，相同的 key 直接覆盖
+    default void put(byte[] key, byte[] value) {
+        put(key, 0, value);
+    }
+    void put(byte[] key, long seq, byte[] value);
+    //删除，写入墓碑，get 时返回 Kv.TOMBSTONE
+    default void delete(byte[] key) {
+        delete(key, 0);
+    }
+    default void delete(byte[] key, long seq) {
+        put(key, seq, Kv.TOMBSTONE);
+    }
+    //最新的版本
+    default Optional<byte[]> get(byte[] key) {
+        return get(key, Kv.MAX_SEQ);
+    }
+    //序列号不超过 seq 的最新版本
+    Optional<byte[]> get(byte[] key, long seq);
     //table 中所有数据的大小 单位是byte
     int size();
-    //key-value 数量
+    //key-value 数量，同一个 key 的每个版本都算一条
     int entriesCnt();
     List<Kv> all();
+    //有序迭代器，使用完要 close，墓碑原样返回
+    default KvIterator iterator() {
+        return new ListKvIterator(all());
+    }
+    //释放资源，flush 完成并且不会再被读取以后调用
+    default void close() {
+    }
 }
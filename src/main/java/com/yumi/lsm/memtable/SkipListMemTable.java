@@ -1,9 +1,12 @@
 package com.yumi.lsm.memtable;
 
+import com.yumi.lsm.iterator.KvIterator;
 import com.yumi.lsm.util.AllUtils;
 import com.yumi.lsm.util.Kv;
 
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -14,22 +17,27 @@ import java.util.stream.Collectors;
  * 获取到的size可能是真正的size，但最终会一致
  */
 public class SkipListMemTable implements MemTable{
-    private ConcurrentSkipListMap<byte[], byte[]> map = new ConcurrentSkipListMap<>(
-            (b1, b2) -> AllUtils.compare(b1,b2)
+    private ConcurrentSkipListMap<VersionedKey, byte[]> map = new ConcurrentSkipListMap<>(
+            (k1, k2) -> AllUtils.compare(k1.key, k1.seq, k2.key, k2.seq)
     );
     private AtomicInteger bytes = new AtomicInteger(0);
 
     @Override
-    public void put(byte[] key, byte[] value) {
-        byte[] old = this.map.put(key, value);
+    public void put(byte[] key, long seq, byte[] value) {
+        byte[] old = this.map.put(new VersionedKey(key, seq), value);
         int oldSize = null == old ? 0 : old.length;
         int keySize = null == old ? key.length : 0;
         this.bytes.addAndGet(keySize + value.length - oldSize);
     }
 
     @Override
-    public Optional<byte[]> get(byte[] key) {
-        return Optional.ofNullable(this.map.get(key));
+    public Optional<byte[]> get(byte[] key, long seq) {
+        //第一个序列号不超过 seq 的版本
+        Map.Entry<VersionedKey, byte[]> entry = this.map.ceilingEntry(new VersionedKey(key, seq));
+        if (null == entry || AllUtils.compare(entry.getKey().key, key) != 0) {
+            return Optional.empty();
+        }
+        return Optional.of(entry.getValue());
     }
 
     @Override
@@ -46,7 +54,65 @@ public class SkipListMemTable implements MemTable{
     public List<Kv> all() {
         return map.entrySet()
                 .stream()
-                .map((entry) -> new Kv(entry.getKey(), entry.getValue()))
+                .map((entry) -> new Kv(entry.getKey().key, entry.getKey().seq, entry.getValue()))
                 .collect(Collectors.toList());
     }
+
+    @Override
+    public KvIterator iterator() {
+        return new SkipListIterator();
+    }
+
+    private static final class VersionedKey {
+        private final byte[] key;
+        private final long seq;
+
+        VersionedKey(byte[] key, long seq) {
+            this.key = key;
+            this.seq = seq;
+        }
+    }
+
+    //弱一致的迭代器，能看到迭代过程中部分并发写入的数据
+    private class SkipListIterator implements KvIterator {
+        private Iterator<Map.Entry<VersionedKey, byte[]>> it;
+        private Map.Entry<VersionedKey, byte[]> cur;
+
+        @Override
+        public boolean valid() {
+            return null != this.cur;
+        }
+
+        @Override
+        public void seekToFirst() {
+            this.it = map.entrySet().iterator();
+            this.next();
+        }
+
+        @Override
+        public void seek(byte[] key) {
+            this.it = map.tailMap(new VersionedKey(key, Kv.MAX_SEQ), true).entrySet().iterator();
+            this.next();
+        }
+
+        @Override
+        public void next() {
+            this.cur = this.it.hasNext() ? this.it.next() : null;
+        }
+
+        @Override
+        public byte[] key() {
+            return this.cur.getKey().key;
+        }
+
+        @Override
+        public byte[] value() {
+            return this.cur.getValue();
+        }
+
+        @Override
+        public long seq() {
+            return this.cur.getKey().seq;
+        }
+    }
 }
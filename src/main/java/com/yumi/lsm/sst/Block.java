@@ -1,7 +1,10 @@
 package com.yumi.lsm.sst;
 
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 import com.yumi.lsm.Config;
 import com.yumi.lsm.util.AllUtils;
+import com.yumi.lsm.util.Kv;
 
 import java.io.IOException;
 import java.nio.Buffer;
@@ -11,12 +14,18 @@ import java.util.ArrayList;
 import java.util.List;
 
 public abstract class Block {
+    //删除记录的 valueLen
+    public static final int TOMBSTONE_VALUE_LEN = -1;
 
     //buffer 列表，写入的时候只写最后一个buffer，最后一个buffer写满以后，插入一个
     private List<ByteBuffer> record;
     //第一个key前的key为空
     private byte[] preKey = new byte[0];
     private int entriesCnt;
+    //restart point 的偏移，restart point 上的 key 不做前缀压缩
+    private List<Integer> restarts = new ArrayList<>();
+    //restart 数组已经写入，checksum 和 flushTo 都会触发，只能写一次
+    private boolean restartsFinished;
     private final Config config;
 
     public Block(Config config) {
@@ -28,15 +37,27 @@ public abstract class Block {
 
     // 返回值表示是否写入成功
     public boolean append(byte[] key, byte[] value) {
+        return this.append(key, 0, value);
+    }
+
+    //只有 data block 的记录带有序列号，其他 block 忽略 seq
+    public boolean append(byte[] key, long seq, byte[] value) {
         ByteBuffer buffer = this.record.get(this.record.size() - 1);
         int remainingBytes = buffer.limit() - buffer.position();
-        int sharedKeyPrefixLen = AllUtils.sharedPrefixLen(key, this.preKey);
+        int restartInterval = restartInterval();
+        boolean isRestart = restartInterval > 0 && this.entriesCnt % restartInterval == 0;
+        int sharedKeyPrefixLen = isRestart ? 0 : AllUtils.sharedPrefixLen(key, this.preKey);
 
         int willWriteBytes = 4 //sharedKeyPrefixLen
                 + 4 //selfKeySuffixLen
                 + 4 //valueLen
+                + (this.hasSeq() ? 8 : 0) //seq
                 + key.length - sharedKeyPrefixLen //keySuffix
                 + value.length; //value
+        if (restartInterval > 0) {
+            //给结尾的 restart 数组留出空间
+            willWriteBytes += restartTrailerSize(this.restarts.size() + (isRestart ? 1 : 0));
+        }
         if (willWriteBytes > remainingBytes) {
             if (isFixedSize()) {
                 //不能扩容，返回false
@@ -47,10 +68,17 @@ public abstract class Block {
             }
         }
 
+        if (isRestart) {
+            this.restarts.add(this.size());
+        }
         //写入长度
         buffer.putInt(sharedKeyPrefixLen);
         buffer.putInt(key.length - sharedKeyPrefixLen);
-        buffer.putInt(value.length);
+        //墓碑的value长度记为-1
+        buffer.putInt(Kv.isTombstone(value) ? TOMBSTONE_VALUE_LEN : value.length);
+        if (this.hasSeq()) {
+            buffer.putLong(seq);
+        }
         //写入内容
         buffer.put(key, sharedKeyPrefixLen, key.length - sharedKeyPrefixLen);
         buffer.put(value);
@@ -62,12 +90,53 @@ public abstract class Block {
 
     protected abstract boolean isFixedSize();
 
+    //记录的 valueLen 后面是否跟着 8 字节的序列号
+    protected boolean hasSeq() {
+        return false;
+    }
+
+    //每隔多少条记录设置一个 restart point，0 表示不设置
+    protected int restartInterval() {
+        return 0;
+    }
+
+    public static int restartTrailerSize(int restartCnt) {
+        return 4 * restartCnt //restart 偏移
+                + 4; //restart 个数
+    }
+
+    //写入 restart 数组: offset... count
+    protected void finishRestarts() {
+        if (restartInterval() <= 0 || this.entriesCnt == 0 || this.restartsFinished) {
+            return;
+        }
+        this.restartsFinished = true;
+        ByteBuffer buffer = this.record.get(this.record.size() - 1);
+        for (Integer restart : this.restarts) {
+            buffer.putInt(restart);
+        }
+        buffer.putInt(this.restarts.size());
+    }
+
     public int size() {
         return this.record.stream()
                 .mapToInt(Buffer::position).sum();
     }
 
+    //已经写入内容的 crc32c，需要在 flushTo 之前调用
+    public int checksum() {
+        this.finishRestarts();
+        Hasher hasher = Hashing.crc32c().newHasher();
+        for (ByteBuffer byteBuffer : this.record) {
+            ByteBuffer written = byteBuffer.duplicate();
+            written.flip();
+            hasher.putBytes(written);
+        }
+        return hasher.hash().asInt();
+    }
+
     public int flushTo(FileChannel fileChannel) {
+        this.finishRestarts();
         int size = this.size();
         try {
             for (ByteBuffer byteBuffer : this.record) {
@@ -86,6 +155,8 @@ public abstract class Block {
 
     public void clear() {
         this.entriesCnt = 0;
+        this.restarts.clear();
+        this.restartsFinished = false;
         this.record.clear();
         this.preKey = new byte[0];
         this.record.add(this.config.getBlockBufferPool().borrowBuffer(blockSize()));
@@ -8,9 +8,11 @@ import com.yumi.lsm.util.LibC;
 import sun.nio.ch.DirectBuffer;
 
 import java.nio.ByteBuffer;
+import java.util.Collections;
 import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Set;
 import java.util.concurrent.ConcurrentLinkedDeque;
-import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -24,7 +26,8 @@ public class BlockBufferPool {
     //每个buffer的大小
     private final int bufferSize;
     private final Deque<ByteBuffer> availableBuffers;
-    private final ConcurrentSkipListSet<ByteBuffer> borrowed;
+    //ByteBuffer 的 equals 和 compareTo 比较的是内容，借出以后内容会变，只能按引用记录
+    private final Set<ByteBuffer> borrowed;
     private final ReentrantReadWriteLock borrowLock;
     private volatile boolean active = true;
 
@@ -32,7 +35,7 @@ public class BlockBufferPool {
         this.poolSize = config.getBlockBufferPoolSize();
         this.bufferSize = config.getSstDataBlockSize();
         this.availableBuffers = new ConcurrentLinkedDeque<>();
-        this.borrowed = new ConcurrentSkipListSet<>();
+        this.borrowed = Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<>()));
         this.borrowLock = new ReentrantReadWriteLock();
     }
 
@@ -0,0 +1,258 @@
+package com.yumi.lsm.sst;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * data block 内容的缓存，key 为 (sst reader id, block offset)
+ * 缓存的是 block 的原始内容，查找时通过 restart point 直接在上面进行
+ * 淘汰策略为分段 LRU：新块先进入试用段，再次命中才晋升到保护段，
+ * 一次性的扫描只会冲刷试用段，不会把热块挤出去
+ */
+public class BlockCache {
+    //分片数，降低锁竞争
+    private static final int SHARD_CNT = 16;
+    //每个缓存项额外的估算开销
+    private static final int ENTRY_OVERHEAD = 64;
+
+    private final long capacity;
+    private final Shard[] shards;
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+    private final LongAdder evictCount = new LongAdder();
+
+    /**
+     * @param capacity 缓存容量，单位 byte，为 0 时不缓存
+     */
+    public BlockCache(long capacity) {
+        this.capacity = capacity;
+        this.shards = new Shard[SHARD_CNT];
+        long shardCapacity = capacity / SHARD_CNT;
+        for (int i = 0; i < SHARD_CNT; i++) {
+            this.shards[i] = new Shard(shardCapacity);
+        }
+    }
+
+    public ByteBuffer get(long readerId, int blockOffset) {
+        if (capacity <= 0) {
+            return null;
+        }
+        BlockKey key = new BlockKey(readerId, blockOffset);
+        ByteBuffer block = shard(key).get(key);
+        if (null == block) {
+            missCount.increment();
+        } else {
+            hitCount.increment();
+        }
+        return block;
+    }
+
+    //只查找，不计入命中统计，也不会晋升到保护段，给扫描使用
+    public ByteBuffer peek(long readerId, int blockOffset) {
+        if (capacity <= 0) {
+            return null;
+        }
+        BlockKey key = new BlockKey(readerId, blockOffset);
+        return shard(key).peek(key);
+    }
+
+    public void put(long readerId, int blockOffset, ByteBuffer block) {
+        if (capacity <= 0) {
+            return;
+        }
+        BlockKey key = new BlockKey(readerId, blockOffset);
+        shard(key).put(key, block, charge(block));
+    }
+
+    public void remove(long readerId, int blockOffset) {
+        if (capacity <= 0) {
+            return;
+        }
+        BlockKey key = new BlockKey(readerId, blockOffset);
+        shard(key).remove(key);
+    }
+
+    public void clear() {
+        for (Shard shard : shards) {
+            shard.clear();
+        }
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+    //当前占用，单位 byte
+    public long usage() {
+        long usage = 0;
+        for (Shard shard : shards) {
+            usage += shard.usage();
+        }
+        return usage;
+    }
+
+    public long hitCount() {
+        return hitCount.sum();
+    }
+
+    public long missCount() {
+        return missCount.sum();
+    }
+
+    public long evictCount() {
+        return evictCount.sum();
+    }
+
+    private Shard shard(BlockKey key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return shards[h & (SHARD_CNT - 1)];
+    }
+
+    private static int charge(ByteBuffer block) {
+        return block.capacity() + ENTRY_OVERHEAD;
+    }
+
+    private final class Shard {
+        private final long capacity;
+        //保护段占 80%
+        private final long protectedCapacity;
+        //按访问顺序排列，头部最久未访问
+        private final LinkedHashMap<BlockKey, Entry> probation = new LinkedHashMap<>(16, 0.75f, true);
+        private final LinkedHashMap<BlockKey, Entry> protect = new LinkedHashMap<>(16, 0.75f, true);
+        private long probationUsage;
+        private long protectUsage;
+
+        Shard(long capacity) {
+            this.capacity = capacity;
+            this.protectedCapacity = capacity * 4 / 5;
+        }
+
+        synchronized ByteBuffer get(BlockKey key) {
+            Entry entry = protect.get(key);
+            if (null != entry) {
+                return entry.block;
+            }
+            entry = probation.remove(key);
+            if (null == entry) {
+                return null;
+            }
+            //再次命中，晋升到保护段
+            probationUsage -= entry.charge;
+            protect.put(key, entry);
+            protectUsage += entry.charge;
+            //保护段超出以后，最久未访问的降级回试用段
+            Iterator<Map.Entry<BlockKey, Entry>> it = protect.entrySet().iterator();
+            while (protectUsage > protectedCapacity && it.hasNext()) {
+                Map.Entry<BlockKey, Entry> eldest = it.next();
+                it.remove();
+                protectUsage -= eldest.getValue().charge;
+                probation.put(eldest.getKey(), eldest.getValue());
+                probationUsage += eldest.getValue().charge;
+            }
+            evict();
+            return entry.block;
+        }
+
+        synchronized ByteBuffer peek(BlockKey key) {
+            Entry entry = protect.get(key);
+            if (null == entry) {
+                entry = probation.get(key);
+            }
+            return null == entry ? null : entry.block;
+        }
+
+        synchronized void put(BlockKey key, ByteBuffer block, int charge) {
+            if (charge > capacity) {
+                //太大了，不缓存
+                return;
+            }
+            removeEntry(key);
+            probation.put(key, new Entry(block, charge));
+            probationUsage += charge;
+            evict();
+        }
+
+        synchronized void remove(BlockKey key) {
+            removeEntry(key);
+        }
+
+        synchronized void clear() {
+            probation.clear();
+            protect.clear();
+            probationUsage = 0;
+            protectUsage = 0;
+        }
+
+        synchronized long usage() {
+            return probationUsage + protectUsage;
+        }
+
+        private void removeEntry(BlockKey key) {
+            Entry old = probation.remove(key);
+            if (null != old) {
+                probationUsage -= old.charge;
+            }
+            old = protect.remove(key);
+            if (null != old) {
+                protectUsage -= old.charge;
+            }
+        }
+
+        //先淘汰试用段，试用段空了才淘汰保护段
+        private void evict() {
+            Iterator<Map.Entry<BlockKey, Entry>> it = probation.entrySet().iterator();
+            while (probationUsage + protectUsage > capacity && it.hasNext()) {
+                probationUsage -= it.next().getValue().charge;
+                it.remove();
+                evictCount.increment();
+            }
+            it = protect.entrySet().iterator();
+            while (protectUsage > capacity && it.hasNext()) {
+                protectUsage -= it.next().getValue().charge;
+                it.remove();
+                evictCount.increment();
+            }
+        }
+    }
+
+    private static final class Entry {
+        private final ByteBuffer block;
+        private final int charge;
+
+        Entry(ByteBuffer block, int charge) {
+            this.block = block;
+            this.charge = charge;
+        }
+    }
+
+    private static final class BlockKey {
+        private final long readerId;
+        private final int blockOffset;
+
+        BlockKey(long readerId, int blockOffset) {
+            this.readerId = readerId;
+            this.blockOffset = blockOffset;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof BlockKey)) {
+                return false;
+            }
+            BlockKey other = (BlockKey) o;
+            return readerId == other.readerId && blockOffset == other.blockOffset;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * Long.hashCode(readerId) + blockOffset;
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package com.yumi.lsm.sst;
+
+/**
+ * 读取 data block 时什么情况下校验 crc32c，footer、filter 和 index 只在加载时读一次，除了 NEVER 都会校验
+ */
+public enum ChecksumVerification {
+    //所有读取都校验，包括点查和扫描，已经在 block cache 中的 block 不再重复校验
+    ALWAYS,
+    //只在压缩时校验，损坏的数据不会被写进新文件，点查和扫描不付出校验的开销
+    COMPACTION_ONLY,
+    //从不校验
+    NEVER
+}
@@ -1,17 +1,100 @@
 package com.yumi.lsm.sst;
 
+import com.google.common.hash.Hashing;
 import com.yumi.lsm.Config;
+import com.yumi.lsm.compress.CompressionType;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 public class DataBlock extends Block{
+    //每个 data block 结尾的 trailer: rawSize(4) compressionType(1) crc32c(4)
+    //crc 覆盖存放的内容（压缩过的是压缩以后的）和 trailer 的前 5 个字节
+    public static final int TRAILER_SIZE = 9;
+    //每条记录的头部: sharedKeyLen(4) suffixKeyLen(4) valueLen(4) seq(8)
+    public static final int RECORD_HEADER_SIZE = 20;
+
+    //压缩用的临时空间，第一次压缩时分配
+    private byte[] raw;
+    private byte[] compressed;
+    private final ByteBuffer trailerBuffer = ByteBuffer.allocate(TRAILER_SIZE);
+
     public DataBlock(Config config) {
         super(config);
     }
 
+    /**
+     * 按指定的方式压缩以后写入，压缩后没有明显变小的 block 按原样存放
+     * @return 写入的字节数，包括 trailer
+     */
+    public int flushTo(FileChannel fileChannel, CompressionType compressionType) {
+        this.finishRestarts();
+        ByteBuffer buffer = this.getRecord().get(0);
+        int rawSize = buffer.position();
+        buffer.flip();
+        try {
+            CompressionType type = CompressionType.NONE;
+            ByteBuffer payload = buffer;
+            if (compressionType != CompressionType.NONE) {
+                int compressedSize = this.compress(buffer, rawSize, compressionType);
+                //至少省下 1/8 才值得读取时解压
+                if (compressedSize >= 0 && compressedSize <= rawSize - (rawSize >>> 3)) {
+                    type = compressionType;
+                    payload = ByteBuffer.wrap(this.compressed, 0, compressedSize);
+                }
+            }
+            int size = payload.remaining();
+            ByteBuffer trailer = this.trailerBuffer;
+            trailer.clear();
+            trailer.putInt(rawSize);
+            trailer.put(type.tag());
+            trailer.flip();
+            int crc = Hashing.crc32c().newHasher()
+                    .putBytes(payload.duplicate())
+                    .putBytes(trailer.duplicate())
+                    .hash().asInt();
+            trailer.limit(TRAILER_SIZE);
+            trailer.putInt(5, crc);
+            while (payload.hasRemaining()) {
+                fileChannel.write(payload);
+            }
+            while (trailer.hasRemaining()) {
+                fileChannel.write(trailer);
+            }
+            return size + TRAILER_SIZE;
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        } finally {
+            this.getConfig().getBlockBufferPool().returnBuffer(buffer);
+            this.clear();
+        }
+    }
+
+    private int compress(ByteBuffer buffer, int rawSize, CompressionType compressionType) {
+        if (null == this.raw || this.raw.length < rawSize) {
+            this.raw = new byte[Math.max(rawSize, blockSize())];
+            this.compressed = new byte[this.raw.length];
+        }
+        buffer.duplicate().get(this.raw, 0, rawSize);
+        return compressionType.compressor().compress(this.raw, rawSize, this.compressed);
+    }
+
     @Override
     protected boolean isFixedSize() {
         return true;
     }
 
+    @Override
+    protected boolean hasSeq() {
+        return true;
+    }
+
+    @Override
+    protected int restartInterval() {
+        return getConfig().getSstRestartInterval();
+    }
+
     @Override
     protected int blockSize() {
         return getConfig().getSstDataBlockSize();
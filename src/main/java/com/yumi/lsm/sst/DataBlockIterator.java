@@ -0,0 +1,167 @@
+package com.yumi.lsm.sst;
+
+import com.yumi.lsm.util.Kv;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * 直接在 data block 的 buffer 上遍历和查找，不解码整个 block
+ * block 格式: record... restartOffset... restartCnt，同一个 key 的多个版本按序列号从大到小相邻存放
+ * 只用绝对位置读取，不修改 buffer 的状态，多个迭代器可以共享同一个 buffer
+ */
+public class DataBlockIterator {
+    private final ByteBuffer block;
+    //restart 数组的起始位置，也是记录区的结尾
+    private final int restartsOffset;
+    private final int restartCnt;
+    //版本 0、1 的记录没有序列号，序列号都记为 0
+    private final boolean hasSeq;
+    private final int recordHeaderSize;
+    //版本 0 的 block 没有 restart 数组，整个 block 看作只有一个从 0 开始的 restart point
+    private final boolean hasRestarts;
+
+    //当前记录的位置和下一条记录的位置
+    private int current;
+    private int next;
+    //当前 key，根据前缀压缩不断复用
+    private byte[] keyBuf = new byte[64];
+    private int keyLen;
+    private int valueOffset;
+    private int valueLen;
+    private long seq;
+
+    public DataBlockIterator(ByteBuffer block) {
+        this(block, Footer.VERSION);
+    }
+
+    /**
+     * @param version block 所在 sst 的版本，见 {@link Footer}
+     */
+    public DataBlockIterator(ByteBuffer block, int version) {
+        this.block = block;
+        this.hasSeq = Footer.hasSeq(version);
+        this.recordHeaderSize = this.hasSeq ? DataBlock.RECORD_HEADER_SIZE : DataBlock.RECORD_HEADER_SIZE - 8;
+        this.hasRestarts = Footer.hasBlockTrailer(version);
+        int limit = block.limit();
+        if (this.hasRestarts) {
+            this.restartCnt = block.getInt(limit - 4);
+            this.restartsOffset = limit - Block.restartTrailerSize(this.restartCnt);
+        } else {
+            this.restartCnt = limit > 0 ? 1 : 0;
+            this.restartsOffset = limit;
+        }
+        this.current = this.restartsOffset;
+        this.next = this.restartsOffset;
+    }
+
+    public boolean valid() {
+        return this.current < this.restartsOffset;
+    }
+
+    public void seekToFirst() {
+        this.seekToRestart(0);
+        this.next();
+    }
+
+    //定位到第一个大于等于 target 的记录，也就是 target 最新的版本
+    public void seek(byte[] target) {
+        //找到最后一个 key 小于 target 的 restart point
+        int l = 0;
+        int h = this.restartCnt - 1;
+        while (l < h) {
+            int mid = (l + h + 1) >>> 1;
+            if (this.compareRestartKey(mid, target) < 0) {
+                l = mid;
+            } else {
+                h = mid - 1;
+            }
+        }
+        this.seekToRestart(l);
+        //在两个 restart point 之间线性查找
+        this.next();
+        while (this.valid() && this.compareKey(target) < 0) {
+            this.next();
+        }
+    }
+
+    public void next() {
+        this.current = this.next;
+        if (!this.valid()) {
+            return;
+        }
+        int pos = this.current;
+        int sharedLen = this.block.getInt(pos);
+        int suffixLen = this.block.getInt(pos + 4);
+        this.valueLen = this.block.getInt(pos + 8);
+        this.seq = this.hasSeq ? this.block.getLong(pos + 12) : 0;
+        pos += this.recordHeaderSize;
+        this.keyLen = sharedLen + suffixLen;
+        if (this.keyLen > this.keyBuf.length) {
+            this.keyBuf = Arrays.copyOf(this.keyBuf, Math.max(this.keyLen, this.keyBuf.length * 2));
+        }
+        for (int i = 0; i < suffixLen; i++) {
+            this.keyBuf[sharedLen + i] = this.block.get(pos + i);
+        }
+        this.valueOffset = pos + suffixLen;
+        this.next = this.valueOffset + (this.valueLen == Block.TOMBSTONE_VALUE_LEN ? 0 : this.valueLen);
+    }
+
+    //当前 key 与 target 比较，不产生拷贝，顺序和 AllUtils.compare 一致
+    public int compareKey(byte[] target) {
+        int min = Math.min(this.keyLen, target.length);
+        for (int i = 0; i < min; i++) {
+            if (this.keyBuf[i] != target[i]) {
+                return Byte.compare(this.keyBuf[i], target[i]);
+            }
+        }
+        return this.keyLen - target.length;
+    }
+
+    public byte[] key() {
+        return Arrays.copyOf(this.keyBuf, this.keyLen);
+    }
+
+    public long seq() {
+        return this.seq;
+    }
+
+    public byte[] value() {
+        if (this.valueLen == Block.TOMBSTONE_VALUE_LEN) {
+            return Kv.TOMBSTONE;
+        }
+        byte[] value = new byte[this.valueLen];
+        for (int i = 0; i < this.valueLen; i++) {
+            value[i] = this.block.get(this.valueOffset + i);
+        }
+        return value;
+    }
+
+    private void seekToRestart(int restartIndex) {
+        this.keyLen = 0;
+        this.next = this.restartCnt == 0 ? this.restartsOffset : this.restartOffset(restartIndex);
+        this.current = this.next;
+    }
+
+    private int restartOffset(int restartIndex) {
+        if (!this.hasRestarts) {
+            return 0;
+        }
+        return this.block.getInt(this.restartsOffset + 4 * restartIndex);
+    }
+
+    //restart point 上的 key 是完整的，直接在 buffer 上比较
+    private int compareRestartKey(int restartIndex, byte[] target) {
+        int pos = this.restartOffset(restartIndex);
+        int len = this.block.getInt(pos + 4);
+        pos += this.recordHeaderSize;
+        int min = Math.min(len, target.length);
+        for (int i = 0; i < min; i++) {
+            byte b = this.block.get(pos + i);
+            if (b != target[i]) {
+                return Byte.compare(b, target[i]);
+            }
+        }
+        return len - target.length;
+    }
+}
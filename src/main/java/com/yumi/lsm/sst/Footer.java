@@ -0,0 +1,186 @@
+package com.yumi.lsm.sst;
+
+import com.google.common.hash.Hashing;
+
+import java.nio.ByteBuffer;
+
+/**
+ * sst 文件结尾的 footer，固定 48 字节:
+ * filterOffset filterSize indexOffset indexSize filterCrc indexCrc maxSeq(8) version footerCrc magic(8)
+ * magic 和 version 放在最后，以后格式变化时先读它们再决定怎么解析前面的内容。
+ * 版本 0: 最早的格式，没有 magic，footer 只有 16 字节 filterOffset filterSize indexOffset indexSize，
+ * data block 只有记录，没有 restart 数组和 trailer，filter 和 index 没有 crc，block 过滤器是裸的 bloom 位数组；
+ * 版本 1: data block 的记录没有序列号，读取时都记为 0，footer 是 40 字节，没有 maxSeq；
+ * 版本 2: data block 的每条记录带有序列号，footer 和版本 1 一样；
+ * 版本 3: footer 中记录文件中最大的序列号，没有 manifest 时打开不需要遍历数据
+ */
+public class Footer {
+    public static final int SIZE = 48;
+    //版本 1、2 的 footer 大小
+    public static final int SIZE_V1 = 40;
+    //版本 0 的 footer 大小
+    public static final int LEGACY_SIZE = 16;
+    //"yumi-lsm"
+    public static final long MAGIC = 0x79756d692d6c736dL;
+    public static final int VERSION = 3;
+    //还能读取的最老版本
+    public static final int MIN_VERSION = 0;
+    //各个版本中 version、footerCrc 相对于 footer 结尾的位置都一样，footerCrc 覆盖它之前的内容
+    private static final int VERSION_FROM_END = 16;
+    private static final int CRC_FROM_END = 12;
+    //maxSeq 没有记录
+    public static final long UNKNOWN_SEQ = -1;
+
+    private final int filterOffset;
+    private final int filterSize;
+    private final int indexOffset;
+    private final int indexSize;
+    private final int filterCrc;
+    private final int indexCrc;
+    private final long maxSeq;
+    private final int version;
+
+    /**
+     * @param maxSeq 文件中最大的序列号
+     */
+    public Footer(int filterOffset, int filterSize, int indexOffset, int indexSize, int filterCrc, int indexCrc,
+                  long maxSeq) {
+        this(filterOffset, filterSize, indexOffset, indexSize, filterCrc, indexCrc, maxSeq, VERSION);
+    }
+
+    private Footer(int filterOffset, int filterSize, int indexOffset, int indexSize, int filterCrc, int indexCrc,
+                   long maxSeq, int version) {
+        this.filterOffset = filterOffset;
+        this.filterSize = filterSize;
+        this.indexOffset = indexOffset;
+        this.indexSize = indexSize;
+        this.filterCrc = filterCrc;
+        this.indexCrc = indexCrc;
+        this.maxSeq = maxSeq;
+        this.version = version;
+    }
+
+    public void encodeTo(ByteBuffer buffer) {
+        int start = buffer.position();
+        buffer.putInt(this.filterOffset);
+        buffer.putInt(this.filterSize);
+        buffer.putInt(this.indexOffset);
+        buffer.putInt(this.indexSize);
+        buffer.putInt(this.filterCrc);
+        buffer.putInt(this.indexCrc);
+        buffer.putLong(this.maxSeq);
+        buffer.putInt(this.version);
+        buffer.putInt(crc(buffer, start, SIZE));
+        buffer.putLong(MAGIC);
+    }
+
+    /**
+     * @param buffer 文件结尾的 min(SIZE, fileLength) 个字节，读取 [position, limit)
+     * @param fileLength 文件大小，没有 magic 时用来判断是不是版本 0 的文件
+     * @param file 出错时提示用
+     * @param verify 是否校验 footerCrc
+     */
+    public static Footer decode(ByteBuffer buffer, long fileLength, String file, boolean verify) {
+        int end = buffer.limit();
+        if (buffer.remaining() < SIZE_V1 || buffer.getLong(end - 8) != MAGIC) {
+            return decodeLegacy(buffer, fileLength, file);
+        }
+        int version = buffer.getInt(end - VERSION_FROM_END);
+        //有 magic 的从版本 1 开始
+        if (version <= MIN_VERSION || version > VERSION) {
+            throw new IllegalStateException("不支持的 sst 版本 " + version + " " + file);
+        }
+        int size = version >= 3 ? SIZE : SIZE_V1;
+        int start = end - size;
+        if (start < buffer.position()) {
+            throw new IllegalStateException("不是 sst 文件 " + file);
+        }
+        if (verify && buffer.getInt(end - CRC_FROM_END) != crc(buffer, start, size)) {
+            throw new IllegalStateException("sst footer 校验失败 " + file);
+        }
+        //版本 1 没有序列号，都是 0；版本 2 有序列号但是没有记录最大值
+        long maxSeq = version >= 3 ? buffer.getLong(start + 24) : (hasSeq(version) ? UNKNOWN_SEQ : 0);
+        return new Footer(buffer.getInt(start), buffer.getInt(start + 4), buffer.getInt(start + 8),
+                buffer.getInt(start + 12), buffer.getInt(start + 16), buffer.getInt(start + 20), maxSeq, version);
+    }
+
+    //版本 0 没有 magic，只能检查各部分是否首尾相接地铺满整个文件
+    private static Footer decodeLegacy(ByteBuffer buffer, long fileLength, String file) {
+        int start = buffer.limit() - LEGACY_SIZE;
+        if (start < buffer.position()) {
+            throw new IllegalStateException("不是 sst 文件 " + file);
+        }
+        int filterOffset = buffer.getInt(start);
+        int filterSize = buffer.getInt(start + 4);
+        int indexOffset = buffer.getInt(start + 8);
+        int indexSize = buffer.getInt(start + 12);
+        if (filterOffset < 0 || filterSize < 0 || indexSize < 0 || (long) filterOffset + filterSize != indexOffset
+                || (long) indexOffset + indexSize + LEGACY_SIZE != fileLength) {
+            throw new IllegalStateException("不是 sst 文件 " + file);
+        }
+        return new Footer(filterOffset, filterSize, indexOffset, indexSize, 0, 0, 0, 0);
+    }
+
+    public static int crc32c(ByteBuffer buffer) {
+        return Hashing.crc32c().newHasher().putBytes(buffer.duplicate()).hash().asInt();
+    }
+
+    //footerCrc 覆盖 footer 中它之前的内容
+    private static int crc(ByteBuffer buffer, int start, int size) {
+        ByteBuffer covered = buffer.duplicate();
+        covered.position(start);
+        covered.limit(start + size - CRC_FROM_END);
+        return crc32c(covered);
+    }
+
+    public int getFilterOffset() {
+        return filterOffset;
+    }
+
+    public int getFilterSize() {
+        return filterSize;
+    }
+
+    public int getIndexOffset() {
+        return indexOffset;
+    }
+
+    public int getIndexSize() {
+        return indexSize;
+    }
+
+    public int getFilterCrc() {
+        return filterCrc;
+    }
+
+    public int getIndexCrc() {
+        return indexCrc;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    //文件中最大的序列号，没有记录时为 UNKNOWN_SEQ
+    public long getMaxSeq() {
+        return maxSeq;
+    }
+
+    //footer 占用的字节数
+    public int size() {
+        if (this.version == 0) {
+            return LEGACY_SIZE;
+        }
+        return this.version >= 3 ? SIZE : SIZE_V1;
+    }
+
+    //这个版本的 data block 记录中是否有序列号
+    public static boolean hasSeq(int version) {
+        return version >= 2;
+    }
+
+    //这个版本的 data block 是否有 restart 数组和 trailer，filter 和 index 是否有 crc
+    public static boolean hasBlockTrailer(int version) {
+        return version >= 1;
+    }
+}
@@ -1,13 +1,16 @@
 package com.yumi.lsm.sst;
 
 import com.yumi.lsm.Config;
-import com.yumi.lsm.filter.BitsArray;
-import com.yumi.lsm.util.AllUtils;
+import com.yumi.lsm.filter.KeyHash;
+import com.yumi.lsm.filter.PrefixExtractor;
+import com.yumi.lsm.iterator.KvIterator;
 import com.yumi.lsm.util.Kv;
 
 import java.io.File;
-import java.util.Arrays;
-import java.util.Map;
+import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
 
 public class Node {
@@ -15,76 +18,143 @@ public class Node {
     private String file;
     //大小，单位byte
     private int size;
-    private Map<Integer, BitsArray> blockToFilter;
-    private Index[] indices;
     private byte[] startKey;
     private byte[] endKey;
+    //常驻内存时使用强引用，否则使用软引用，内存紧张时可以被回收，下次访问时重新读取
+    private final boolean pinned;
+    private volatile NodeMeta pinnedMeta;
+    private volatile SoftReference<NodeMeta> softMeta;
 
     private SstReader sstReader;
+    //是否被压缩任务选中，由 Tree 的 compactionLock 保护
+    private boolean compacting;
 
-    public Node(Config config, String file, SstReader sstReader, int size,
-                Map<Integer, BitsArray> blockToFilter, Index[] indices) {
+    /**
+     * filter 和 index 已经在内存中，比如刚写完的文件
+     * @param startKey 第一个 key，由调用方提供，不读取 data block
+     */
+    public Node(Config config, String file, SstReader sstReader, int size, byte[] startKey,
+                SstFilters filters, Index[] indices) {
+        this(config, file, sstReader, size, startKey, lastKey(file, indices));
+        this.setMeta(NodeMeta.create(filters, indices));
+    }
+
+    //key 范围已知（manifest 中有记录），filter 和 index 在第一次访问时才读取
+    public Node(Config config, String file, SstReader sstReader, int size, byte[] startKey, byte[] endKey) {
         this.config = config;
         this.file = file;
         this.sstReader = sstReader;
-        this.blockToFilter = blockToFilter;
-        this.indices = indices;
         this.size = size;
+        this.startKey = startKey;
+        this.endKey = endKey;
+        this.pinned = config.isPinFilterAndIndex();
+    }
 
-        this.startKey = this.sstReader.readData(indices[0].getBlockOffset(), indices()[0].getBlockSize())[0]
-                .getKey();
-        this.endKey = this.indices[this.indices.length - 1].getLastKey();
+    private static byte[] lastKey(String file, Index[] indices) {
+        if (indices.length == 0) {
+            throw new IllegalStateException("sst 文件中没有数据 " + file);
+        }
+        return indices[indices.length - 1].getLastKey();
     }
 
+    public Optional<byte[]> get(byte[] key) {
+        return this.get(key, KeyHash.hash64(key));
+    }
 
+    /**
+     * @param keyHash {@link KeyHash#hash64(byte[])} 的结果，一次点查在所有 sst 之间共用
+     */
+    public Optional<byte[]> get(byte[] key, long keyHash) {
+        return this.get(key, keyHash, Kv.MAX_SEQ);
+    }
 
-    public Optional<byte[]> get(byte[] key) {
-        Optional<Index> indexOptional = binarySearchIndex(key, 0, this.indices.length - 1);
-        if (!indexOptional.isPresent()) {
-            return Optional.empty();
+    /**
+     * 序列号不超过 seq 的最新版本
+     */
+    public Optional<byte[]> get(byte[] key, long keyHash, long seq) {
+        //持有 reader 的引用，期间堆外的 filter 和 index 不会被释放
+        if (!this.sstReader.retain()) {
+            throw new IllegalStateException("sst 已关闭 " + this.file);
         }
-        Index index = indexOptional.get();
-        BitsArray bitsArray = this.blockToFilter.get(index.getBlockOffset());
-        assert bitsArray != null;
-        if (!this.config.getFilter().exist(key, bitsArray)) {
+        try {
+            NodeMeta meta = this.meta();
+            //整个文件的过滤器不需要先查找 index
+            if (!meta.mayContain(key, keyHash, this.config.getPrefixExtractor())) {
+                return Optional.empty();
+            }
+            //同一个 key 的多个版本可能跨越 block，block 的 lastKey 就是这个 key 时接着查下一个
+            for (int i = meta.search(key); i < meta.blockCount() && meta.blockMayContain(i, key, keyHash); i++) {
+                Optional<byte[]> value = this.searchBlock(meta, i, key, seq);
+                if (value.isPresent() || meta.compareLastKey(i, key) != 0) {
+                    return value;
+                }
+            }
             return Optional.empty();
+        } finally {
+            this.sstReader.release();
         }
-        Kv[] kvs = this.sstReader.readData(index.getBlockOffset(), index.getBlockSize());
-        return binarySearchKv(kvs, 0, kvs.length - 1, key);
     }
 
-    private Optional<byte[]> binarySearchKv(Kv[] kvs, int l, int h, byte[] targetKey) {
-        if (l > h) {
-            return Optional.empty();
+    private Optional<byte[]> searchBlock(NodeMeta meta, int i, byte[] key, long seq) {
+        int blockOffset = meta.blockOffset(i);
+        //点查走 block cache，compaction 的顺序读不经过缓存
+        BlockCache blockCache = this.config.getBlockCache();
+        if (blockCache.getCapacity() <= 0) {
+            //没有缓存，直接在映射上查找
+            return this.sstReader.searchData(blockOffset, meta.blockSize(i), key, seq);
         }
-        int mid = l + ((h - l) >> 1);
-        byte[] midKey = kvs[mid].getKey();
-        if (AllUtils.compare(midKey, targetKey) == 0) {
-            return Optional.of(kvs[mid].getValue());
-        } else if (AllUtils.compare(midKey, targetKey) < 0) {
-            return binarySearchKv(kvs, mid + 1, h, targetKey);
-        } else {
-            return binarySearchKv(kvs, l, mid -1 , targetKey);
+        ByteBuffer block = blockCache.get(this.sstReader.getId(), blockOffset);
+        if (null == block) {
+            block = this.sstReader.copyData(blockOffset, meta.blockSize(i));
+            blockCache.put(this.sstReader.getId(), blockOffset, block);
         }
+        return SstReader.searchBlock(block, key, seq, this.sstReader.version());
     }
 
-    private Optional<Index> binarySearchIndex(byte[] key, int l, int h) {
-        if (l == h) {
-            if (AllUtils.compare(indices[l].getLastKey(), key) >= 0) {
-                return Optional.of(indices[l]);
-            }
-            return Optional.empty();
+    /**
+     * 文件中是否可能有以 prefix 开头的 key，没有可用的前缀过滤器时返回 true
+     * @param prefix 当前 prefixExtractor 提取出的前缀
+     */
+    public boolean mayContainPrefix(byte[] prefix) {
+        PrefixExtractor extractor = this.config.getPrefixExtractor();
+        if (null == extractor) {
+            return true;
         }
-
-        int mid = l + ((h - l) >> 2);
-        if (AllUtils.compare(indices[mid].getLastKey(), key) < 0) {
-            return binarySearchIndex(key, mid + 1, h);
-        } else {
-            return binarySearchIndex(key, l, mid);
+        if (!this.sstReader.retain()) {
+            throw new IllegalStateException("sst 已关闭 " + this.file);
+        }
+        try {
+            return this.meta().mayContainPrefix(prefix, extractor);
+        } finally {
+            this.sstReader.release();
         }
     }
 
 
+    //有序迭代器，持有 sst reader 的引用，节点被销毁以后依然可以读完
+    public KvIterator iterator() {
+        return this.iterator(this.config.getChecksumVerification() == ChecksumVerification.ALWAYS);
+    }
+
+    //压缩使用的迭代器，除了 NEVER 都校验，损坏的数据不会被写进新文件
+    public KvIterator compactionIterator() {
+        return this.iterator(this.config.getChecksumVerification() != ChecksumVerification.NEVER);
+    }
+
+    private KvIterator iterator(boolean verifyChecksums) {
+        if (!this.sstReader.retain()) {
+            throw new IllegalStateException("sst 已关闭 " + this.file);
+        }
+        NodeMeta meta;
+        try {
+            meta = this.meta();
+        } catch (RuntimeException e) {
+            this.sstReader.release();
+            throw e;
+        }
+        return new NodeIterator(this.config, this.sstReader, meta, verifyChecksums);
+    }
+
     public Kv[] getRange(int offset, int size) {
         return this.sstReader.readData(offset, size);
     }
@@ -93,6 +163,27 @@ public class Node {
         return size;
     }
 
+    //文件中最大的序列号，见 {@link SstReader#maxSeq()}
+    public long maxSeq() {
+        return this.sstReader.maxSeq();
+    }
+
+    public String getFile() {
+        return file;
+    }
+
+    public boolean isCompacting() {
+        return compacting;
+    }
+
+    public void markCompacting() {
+        this.compacting = true;
+    }
+
+    public void clearCompacting() {
+        this.compacting = false;
+    }
+
     public byte[] start() {
         return startKey;
     }
@@ -101,13 +192,56 @@ public class Node {
         return endKey;
     }
 
-    public Index[] indices() {
-        return indices;
+    //所有 block 的 lastKey，复制到堆上
+    public List<byte[]> indexKeys() {
+        if (!this.sstReader.retain()) {
+            throw new IllegalStateException("sst 已关闭 " + this.file);
+        }
+        try {
+            NodeMeta meta = this.meta();
+            List<byte[]> keys = new ArrayList<>(meta.blockCount());
+            for (int i = 0; i < meta.blockCount(); i++) {
+                keys.add(meta.lastKey(i));
+            }
+            return keys;
+        } finally {
+            this.sstReader.release();
+        }
+    }
+
+    //读取 filter 和 index，已经在内存中时什么都不做
+    public void loadMeta() {
+        this.meta();
+    }
+
+    //filter 和 index 是否在内存中
+    public boolean isMetaLoaded() {
+        return null != this.loadedMeta();
+    }
+
+    //在内存中的 filter 和 index，没有时返回 null，用来统计内存占用
+    public NodeMeta loadedMeta() {
+        NodeMeta meta = this.pinnedMeta;
+        if (null != meta) {
+            return meta;
+        }
+        SoftReference<NodeMeta> ref = this.softMeta;
+        return null == ref ? null : ref.get();
     }
 
     //销毁，要删除对应的文件
     public void destroy() {
+        //没有加载过 index 的节点不会有缓存的 block，被回收的只能等缓存自己淘汰
+        //先记下 block 的位置，close 以后堆外的 index 可能已经释放
+        NodeMeta meta = this.loadedMeta();
+        int[] blockOffsets = new int[null == meta ? 0 : meta.blockCount()];
+        for (int i = 0; i < blockOffsets.length; i++) {
+            blockOffsets[i] = meta.blockOffset(i);
+        }
         this.close();
+        for (int blockOffset : blockOffsets) {
+            this.config.getBlockCache().remove(this.sstReader.getId(), blockOffset);
+        }
         new File(this.config.getDir() + File.separator + this.file).delete();
     }
 
@@ -116,5 +250,28 @@ public class Node {
         this.sstReader.close();
     }
 
+    private NodeMeta meta() {
+        NodeMeta meta = this.loadedMeta();
+        if (null != meta) {
+            return meta;
+        }
+        synchronized (this) {
+            meta = this.loadedMeta();
+            if (null == meta) {
+                meta = NodeMeta.create(this.sstReader.readFilter(), this.sstReader.readIndex());
+                this.setMeta(meta);
+            }
+            return meta;
+        }
+    }
 
+    //常驻的交给 reader 释放，软引用的被 GC 回收时堆外内存一起回收
+    private void setMeta(NodeMeta meta) {
+        if (this.pinned) {
+            this.pinnedMeta = meta;
+            this.sstReader.attach(meta);
+        } else {
+            this.softMeta = new SoftReference<>(meta);
+        }
+    }
 }
@@ -0,0 +1,122 @@
+package com.yumi.lsm.sst;
+
+import com.yumi.lsm.Config;
+import com.yumi.lsm.iterator.KvIterator;
+
+import java.nio.ByteBuffer;
+
+/**
+ * sst 文件的迭代器，根据 index 按需打开 block，不会把整个文件读进来。
+ * block cache 中有的直接使用，没有的直接读映射，不填充缓存，避免扫描冲刷热数据
+ */
+public class NodeIterator implements KvIterator {
+    private final Config config;
+    private final SstReader sstReader;
+    private final NodeMeta meta;
+    //从文件读取 block 时是否校验 crc
+    private final boolean verifyChecksums;
+    //当前 block 的下标
+    private int blockIndex;
+    private DataBlockIterator blockIterator;
+    //解压 block 用的 buffer，第一次遇到压缩的 block 时从 buffer pool 借，close 时归还
+    private ByteBuffer decompressBuffer;
+    private boolean closed;
+
+    //调用方已经持有 sstReader 的引用，close 时释放
+    NodeIterator(Config config, SstReader sstReader, NodeMeta meta, boolean verifyChecksums) {
+        this.config = config;
+        this.sstReader = sstReader;
+        this.meta = meta;
+        this.verifyChecksums = verifyChecksums;
+        this.blockIndex = meta.blockCount();
+    }
+
+    @Override
+    public boolean valid() {
+        return null != this.blockIterator && this.blockIterator.valid();
+    }
+
+    @Override
+    public void seekToFirst() {
+        this.openBlock(0);
+        if (null != this.blockIterator) {
+            this.blockIterator.seekToFirst();
+        }
+        this.skipEmptyBlocks();
+    }
+
+    @Override
+    public void seek(byte[] key) {
+        //第一个 lastKey 大于等于 key 的 block
+        this.openBlock(this.meta.search(key));
+        if (null != this.blockIterator) {
+            this.blockIterator.seek(key);
+        }
+        this.skipEmptyBlocks();
+    }
+
+    @Override
+    public void next() {
+        this.blockIterator.next();
+        this.skipEmptyBlocks();
+    }
+
+    @Override
+    public byte[] key() {
+        return this.blockIterator.key();
+    }
+
+    @Override
+    public byte[] value() {
+        return this.blockIterator.value();
+    }
+
+    @Override
+    public long seq() {
+        return this.blockIterator.seq();
+    }
+
+    @Override
+    public void close() {
+        if (!this.closed) {
+            this.closed = true;
+            this.blockIterator = null;
+            if (null != this.decompressBuffer) {
+                this.config.getBlockBufferPool().returnBuffer(this.decompressBuffer);
+                this.decompressBuffer = null;
+            }
+            this.sstReader.release();
+        }
+    }
+
+    //当前 block 读完了，切换到下一个 block
+    private void skipEmptyBlocks() {
+        while (null != this.blockIterator && !this.blockIterator.valid()) {
+            this.openBlock(this.blockIndex + 1);
+            if (null != this.blockIterator) {
+                this.blockIterator.seekToFirst();
+            }
+        }
+    }
+
+    private void openBlock(int index) {
+        if (this.closed) {
+            throw new IllegalStateException("迭代器已关闭");
+        }
+        this.blockIndex = index;
+        if (index >= this.meta.blockCount()) {
+            this.blockIterator = null;
+            return;
+        }
+        int blockOffset = this.meta.blockOffset(index);
+        int blockSize = this.meta.blockSize(index);
+        ByteBuffer block = this.config.getBlockCache().peek(this.sstReader.getId(), blockOffset);
+        if (null == block) {
+            if (null == this.decompressBuffer && this.sstReader.isCompressed(blockOffset, blockSize)) {
+                this.decompressBuffer = this.config.getBlockBufferPool().borrowBuffer(this.config.getSstDataBlockSize());
+            }
+            block = this.sstReader.sliceData(blockOffset, blockSize, this.decompressBuffer, this.verifyChecksums);
+        }
+        this.blockIterator = new DataBlockIterator(block, this.sstReader.version());
+    }
+}
@@ -0,0 +1,195 @@
+package com.yumi.lsm.sst;
+
+import com.yumi.lsm.filter.FilterReader;
+import com.yumi.lsm.filter.KeyHash;
+import com.yumi.lsm.filter.PrefixExtractor;
+import com.yumi.lsm.util.BufferCleanUtil;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 节点的 index 和过滤器，紧凑地放在一块堆外内存中，按 block 下标访问，不为每个 block 创建对象，
+ * 堆上只有这一个对象，数据量增长时堆的占用不变。
+ * 布局: blockCnt 个定长的 entry [blockOffset(4) blockSize(4) keyPos(4) keyLen(4) filterPos(4) filterLen(4)]，
+ * 后面是所有的 lastKey，然后是所有的过滤器（序列化格式，直接在上面判断）。
+ * 内存的释放由 {@link SstReader} 的引用计数保护，访问期间要持有 reader 的引用
+ */
+public final class NodeMeta {
+    private static final int ENTRY_SIZE = 24;
+
+    private final ByteBuffer buffer;
+    private final int blockCnt;
+    //没有时 len 为 0
+    private final int fullFilterPos;
+    private final int fullFilterLen;
+    private final int prefixFilterPos;
+    private final int prefixFilterLen;
+    private final String prefixExtractorName;
+    private final int indexBytes;
+    private final int filterBytes;
+
+    private NodeMeta(ByteBuffer buffer, int blockCnt, int fullFilterPos, int fullFilterLen,
+                     int prefixFilterPos, int prefixFilterLen, String prefixExtractorName,
+                     int indexBytes, int filterBytes) {
+        this.buffer = buffer;
+        this.blockCnt = blockCnt;
+        this.fullFilterPos = fullFilterPos;
+        this.fullFilterLen = fullFilterLen;
+        this.prefixFilterPos = prefixFilterPos;
+        this.prefixFilterLen = prefixFilterLen;
+        this.prefixExtractorName = prefixExtractorName;
+        this.indexBytes = indexBytes;
+        this.filterBytes = filterBytes;
+    }
+
+    /**
+     * 把读出来或者刚写完的 filter 和 index 复制到堆外，之后原来的对象就可以回收了
+     */
+    public static NodeMeta create(SstFilters filters, Index[] indices) {
+        byte[][] blockFilters = new byte[indices.length][];
+        int indexBytes = indices.length * ENTRY_SIZE;
+        int filterBytes = 0;
+        for (int i = 0; i < indices.length; i++) {
+            indexBytes += indices[i].getLastKey().length;
+            FilterReader filter = filters.getBlockFilter(indices[i].getBlockOffset());
+            blockFilters[i] = null == filter ? new byte[0] : filter.encode();
+            filterBytes += blockFilters[i].length;
+        }
+        byte[] full = null == filters.getFullFilter() ? new byte[0] : filters.getFullFilter().encode();
+        byte[] prefix = null == filters.getPrefixFilter() ? new byte[0] : filters.getPrefixFilter().encode();
+        filterBytes += full.length + prefix.length;
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(indexBytes + filterBytes);
+        int keyPos = indices.length * ENTRY_SIZE;
+        int filterPos = indexBytes;
+        for (int i = 0; i < indices.length; i++) {
+            byte[] lastKey = indices[i].getLastKey();
+            buffer.putInt(indices[i].getBlockOffset());
+            buffer.putInt(indices[i].getBlockSize());
+            buffer.putInt(keyPos);
+            buffer.putInt(lastKey.length);
+            buffer.putInt(filterPos);
+            buffer.putInt(blockFilters[i].length);
+            keyPos += lastKey.length;
+            filterPos += blockFilters[i].length;
+        }
+        for (Index index : indices) {
+            buffer.put(index.getLastKey());
+        }
+        for (byte[] blockFilter : blockFilters) {
+            buffer.put(blockFilter);
+        }
+        int fullFilterPos = buffer.position();
+        buffer.put(full);
+        int prefixFilterPos = buffer.position();
+        buffer.put(prefix);
+        return new NodeMeta(buffer, indices.length, fullFilterPos, full.length, prefixFilterPos, prefix.length,
+                filters.getPrefixExtractorName(), indexBytes, filterBytes);
+    }
+
+    public int blockCount() {
+        return this.blockCnt;
+    }
+
+    public int blockOffset(int i) {
+        return this.buffer.getInt(i * ENTRY_SIZE);
+    }
+
+    public int blockSize(int i) {
+        return this.buffer.getInt(i * ENTRY_SIZE + 4);
+    }
+
+    //复制一份 lastKey
+    public byte[] lastKey(int i) {
+        int pos = this.buffer.getInt(i * ENTRY_SIZE + 8);
+        byte[] key = new byte[this.buffer.getInt(i * ENTRY_SIZE + 12)];
+        for (int j = 0; j < key.length; j++) {
+            key[j] = this.buffer.get(pos + j);
+        }
+        return key;
+    }
+
+    //第一个 lastKey 大于等于 key 的 block 下标，都小于 key 时返回 blockCount()
+    public int search(byte[] key) {
+        int l = 0;
+        int h = this.blockCnt;
+        while (l < h) {
+            int mid = (l + h) >>> 1;
+            if (this.compareLastKey(mid, key) < 0) {
+                l = mid + 1;
+            } else {
+                h = mid;
+            }
+        }
+        return l;
+    }
+
+    //和 AllUtils.compare 的规则一致，不复制 key
+    int compareLastKey(int i, byte[] key) {
+        int pos = this.buffer.getInt(i * ENTRY_SIZE + 8);
+        int len = this.buffer.getInt(i * ENTRY_SIZE + 12);
+        int min = Math.min(len, key.length);
+        for (int j = 0; j < min; j++) {
+            byte b = this.buffer.get(pos + j);
+            if (b != key[j]) {
+                return Byte.compare(b, key[j]);
+            }
+        }
+        return len - key.length;
+    }
+
+    //第 i 个 block 的过滤器，没有时认为可能存在
+    public boolean blockMayContain(int i, byte[] key, long keyHash) {
+        int len = this.buffer.getInt(i * ENTRY_SIZE + 20);
+        return len == 0 || FilterReader.mayContain(this.buffer, this.buffer.getInt(i * ENTRY_SIZE + 16), len,
+                key, keyHash);
+    }
+
+    /**
+     * 用整个文件的过滤器判断，没有完整 key 的过滤器时尝试前缀过滤器
+     * @return false 时文件中一定没有这个 key
+     */
+    public boolean mayContain(byte[] key, long keyHash, PrefixExtractor extractor) {
+        if (this.fullFilterLen > 0) {
+            return FilterReader.mayContain(this.buffer, this.fullFilterPos, this.fullFilterLen, key, keyHash);
+        }
+        if (!this.hasPrefixFilter(extractor)) {
+            return true;
+        }
+        byte[] prefix = extractor.prefix(key);
+        return null == prefix || this.prefixMayContain(prefix);
+    }
+
+    /**
+     * @param prefix 由 extractor 提取出的前缀
+     * @return false 时文件中一定没有这个前缀的 key
+     */
+    public boolean mayContainPrefix(byte[] prefix, PrefixExtractor extractor) {
+        return !this.hasPrefixFilter(extractor) || this.prefixMayContain(prefix);
+    }
+
+    private boolean prefixMayContain(byte[] prefix) {
+        return FilterReader.mayContain(this.buffer, this.prefixFilterPos, this.prefixFilterLen,
+                prefix, KeyHash.hash64(prefix));
+    }
+
+    //写入时的前缀规则和当前的不一致时不能使用
+    private boolean hasPrefixFilter(PrefixExtractor extractor) {
+        return this.prefixFilterLen > 0 && null != extractor && extractor.name().equals(this.prefixExtractorName);
+    }
+
+    //index 占用的堆外内存，单位byte
+    public int indexBytes() {
+        return this.indexBytes;
+    }
+
+    //过滤器占用的堆外内存，单位byte
+    public int filterBytes() {
+        return this.filterBytes;
+    }
+
+    //释放堆外内存，之后不能再访问
+    void free() {
+        BufferCleanUtil.clean(this.buffer);
+    }
+}
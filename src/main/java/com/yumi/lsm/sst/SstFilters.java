@@ -0,0 +1,56 @@
+package com.yumi.lsm.sst;
+
+import com.yumi.lsm.filter.FilterReader;
+import com.yumi.lsm.filter.PrefixExtractor;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * 一个 sst 的所有过滤器：每个 data block 一个，另外可选整个文件的完整 key 过滤器和前缀过滤器。
+ * 在 filter block 中 block 过滤器的 key 是 4 字节的 block 偏移，整个文件的过滤器用固定的名字作为 key，
+ * 前缀过滤器的名字后面跟着 {@link PrefixExtractor#name()}。
+ * 这是读取和写入时的中间结果，节点使用的是复制到堆外的 {@link NodeMeta}
+ */
+public class SstFilters {
+    static final byte[] FULL_KEY = "filter.full".getBytes(StandardCharsets.UTF_8);
+    static final String PREFIX_KEY = "filter.prefix:";
+
+    private final Map<Integer, FilterReader> blockFilters;
+    //为 null 表示没有
+    private final FilterReader fullFilter;
+    private final FilterReader prefixFilter;
+    private final String prefixExtractorName;
+
+    public SstFilters(Map<Integer, FilterReader> blockFilters, FilterReader fullFilter,
+                      FilterReader prefixFilter, String prefixExtractorName) {
+        this.blockFilters = blockFilters;
+        this.fullFilter = fullFilter;
+        this.prefixFilter = prefixFilter;
+        this.prefixExtractorName = prefixExtractorName;
+    }
+
+    static byte[] prefixKey(PrefixExtractor extractor) {
+        return (PREFIX_KEY + extractor.name()).getBytes(StandardCharsets.UTF_8);
+    }
+
+    public FilterReader getBlockFilter(int blockOffset) {
+        return this.blockFilters.get(blockOffset);
+    }
+
+    public Map<Integer, FilterReader> getBlockFilters() {
+        return blockFilters;
+    }
+
+    public FilterReader getFullFilter() {
+        return fullFilter;
+    }
+
+    public FilterReader getPrefixFilter() {
+        return prefixFilter;
+    }
+
+    public String getPrefixExtractorName() {
+        return prefixExtractorName;
+    }
+}
@@ -1,122 +1,325 @@
 package com.yumi.lsm.sst;
 
 import com.yumi.lsm.Config;
-import com.yumi.lsm.filter.BitsArray;
+import com.yumi.lsm.compress.CompressionType;
+import com.yumi.lsm.filter.FilterReader;
+import com.yumi.lsm.filter.LsmBloomFilter;
 import com.yumi.lsm.util.BufferCleanUtil;
 import com.yumi.lsm.util.Kv;
 
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
 
 public class SstReader {
+    //reader 的唯一标识，作为 block cache 的 key，文件名会被复用所以不用文件名
+    private static final AtomicLong ID_GENERATOR = new AtomicLong();
+
+    //单个映射段的大小，受限于 MappedByteBuffer 的 2GB 上限
+    private static final int SEGMENT_SIZE = 1 << 30;
+
+    private final long id = ID_GENERATOR.incrementAndGet();
+    private final String file;
     private Config config;
-    private RandomAccessFile src;
-    private FileChannel channel;
+    //sst 文件不可变，打开时整体映射，close 时才解除映射
+    private final MappedByteBuffer[] segments;
+    private final int segmentSize;
+    private final long length;
+    //引用计数，初始的 1 由 close 释放，读请求进行中会持有引用
+    private final AtomicInteger refCnt = new AtomicInteger(1);
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    //常驻的 filter 和 index，最后一个引用释放时和映射一起释放
+    private volatile NodeMeta attachedMeta;
 
     private int filterOffset;
     private int filterSize;
     private int indexOffset;
     private int indexSize;
+    private int filterCrc;
+    private int indexCrc;
+    private int footerSize;
+    private long maxSeq;
+    //footer 中的版本，-1 表示还没有读取 footer
+    private volatile int version = -1;
 
     public SstReader(String file, Config config) {
+        this(file, config, SEGMENT_SIZE);
+    }
+
+    SstReader(String file, Config config, int segmentSize) {
         File jFile = new File(config.getDir() + File.separator + file);
         if (!jFile.exists()) {
             throw new IllegalStateException("文件不存在 " + file);
         }
+        this.file = file;
         this.config = config;
-        try {
-            this.src = new RandomAccessFile(jFile, "r");
-            this.channel = this.src.getChannel();
-        } catch (FileNotFoundException e) {
-            IllegalStateException illegalStateException = new IllegalStateException("文件不存在 " + file);
+        this.segmentSize = segmentSize;
+        //映射完成以后文件句柄就可以关掉了，映射依然有效
+        try (RandomAccessFile src = new RandomAccessFile(jFile, "r");
+             FileChannel channel = src.getChannel()) {
+            this.length = src.length();
+            int segmentCnt = (int) ((this.length + segmentSize - 1) / segmentSize);
+            this.segments = new MappedByteBuffer[segmentCnt];
+            for (int i = 0; i < segmentCnt; i++) {
+                long position = (long) i * segmentSize;
+                this.segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                        Math.min(segmentSize, this.length - position));
+            }
+        } catch (IOException e) {
+            IllegalStateException illegalStateException = new IllegalStateException("打开文件失败 " + file);
             illegalStateException.addSuppressed(e);
             throw illegalStateException;
         }
     }
 
     public void readFooter() {
+        this.acquire();
         try {
-            long length = this.src.length();
-            int bufferSize = this.config.getSstFooterSize();
-            MappedByteBuffer slice = this.channel.map(FileChannel.MapMode.READ_ONLY,
-                    (int) length - bufferSize, bufferSize);
-            this.filterOffset = slice.getInt();
-            this.filterSize = slice.getInt();
-            this.indexOffset = slice.getInt();
-            this.indexSize = slice.getInt();
-            BufferCleanUtil.clean(slice);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+            if (this.length < Footer.LEGACY_SIZE) {
+                throw new IllegalStateException("不是 sst 文件 " + this.file);
+            }
+            //版本 0 的文件可能比新的 footer 还小
+            int tailSize = (int) Math.min(Footer.SIZE, this.length);
+            ByteBuffer slice = this.readBlock(this.length - tailSize, tailSize);
+            Footer footer = Footer.decode(slice, this.length, this.file,
+                    this.config.getChecksumVerification() != ChecksumVerification.NEVER);
+            this.filterOffset = footer.getFilterOffset();
+            this.filterSize = footer.getFilterSize();
+            this.indexOffset = footer.getIndexOffset();
+            this.indexSize = footer.getIndexSize();
+            this.filterCrc = footer.getFilterCrc();
+            this.indexCrc = footer.getIndexCrc();
+            this.footerSize = footer.size();
+            this.maxSeq = footer.getMaxSeq();
+            this.version = footer.getVersion();
+        } finally {
+            this.release();
         }
-
     }
-    public Map<Integer, BitsArray> readFilter() {
-        if (filterOffset == 0 || filterSize == 0) {
+    public SstFilters readFilter() {
+        if (this.version < 0) {
             readFooter();
         }
-        ByteBuffer byteBuffer = this.readBlock(this.filterOffset, this.filterSize);
-        Map<Integer, BitsArray> ans = bufferToFilter(byteBuffer);
-        BufferCleanUtil.clean(byteBuffer);
-        return ans;
+        this.acquire();
+        try {
+            ByteBuffer block = this.readBlock(this.filterOffset, this.filterSize);
+            this.verifyMeta(block, this.filterCrc, "filter");
+            return bufferToFilter(block);
+        } finally {
+            this.release();
+        }
     }
 
     public Index[] readIndex() {
-        if (indexOffset == 0 || indexSize == 0) {
+        if (this.version < 0) {
             readFooter();
         }
-        ByteBuffer byteBuffer = this.readBlock(this.indexOffset, this.indexSize);
-        Index[] indices = bufferToIndex(byteBuffer);
-        BufferCleanUtil.clean(byteBuffer);
-        return indices;
+        this.acquire();
+        try {
+            ByteBuffer block = this.readBlock(this.indexOffset, this.indexSize);
+            this.verifyMeta(block, this.indexCrc, "index");
+            return bufferToIndex(block);
+        } finally {
+            this.release();
+        }
     }
 
     public Kv[] readData() {
-        if (indexOffset == 0 || indexSize == 0 || filterOffset == 0 || filterSize == 0) {
+        if (this.version < 0) {
             readFooter();
         }
-        return readData(0, filterOffset);
+        //每个 block 都有自己的 restart 数组，按 index 逐个解析
+        List<Kv> dataList = new ArrayList<>();
+        for (Index index : this.readIndex()) {
+            Collections.addAll(dataList, this.readData(index.getBlockOffset(), index.getBlockSize()));
+        }
+        return dataList.toArray(new Kv[0]);
     }
 
     public Kv[] readData(int offset, int size) {
-        ByteBuffer byteBuffer = this.readBlock(offset, size);
-        Kv[] ans = readBlockData(byteBuffer);
-        BufferCleanUtil.clean(byteBuffer);
-        return ans;
+        return this.withDataBlock(offset, size, this::readBlockData);
     }
 
     public Kv[] readBlockData(ByteBuffer byteBuffer) {
-        byte[] preKey = new byte[0];
         List<Kv> dataList = new ArrayList<>();
-        while (byteBuffer.hasRemaining()) {
-            Kv kv = this.readRecord(preKey, byteBuffer);
-            dataList.add(kv);
-            preKey = kv.getKey();
+        DataBlockIterator iterator = new DataBlockIterator(byteBuffer, this.version());
+        for (iterator.seekToFirst(); iterator.valid(); iterator.next()) {
+            dataList.add(new Kv(iterator.key(), iterator.seq(), iterator.value()));
         }
         return dataList.toArray(new Kv[0]);
     }
 
+    //block 中的第一个 key，没有数据时返回 null
+    public byte[] readFirstKey(int offset, int size) {
+        int version = this.version();
+        return this.withDataBlock(offset, size, block -> {
+            DataBlockIterator iterator = new DataBlockIterator(block, version);
+            iterator.seekToFirst();
+            return iterator.valid() ? iterator.key() : null;
+        });
+    }
+
+    //直接在映射上查找，只拷贝命中的 value
+    public Optional<byte[]> searchData(int offset, int size, byte[] key) {
+        return this.searchData(offset, size, key, Kv.MAX_SEQ);
+    }
+
+    public Optional<byte[]> searchData(int offset, int size, byte[] key, long seq) {
+        int version = this.version();
+        return this.withDataBlock(offset, size, block -> searchBlock(block, key, seq, version));
+    }
+
+    /**
+     * 没有压缩的 block 返回映射上的零拷贝切片，调用方必须通过 retain 持有引用，release 以后不能再使用；
+     * 压缩过的解压到 dst 中，dst 为 null 或者放不下时解压到堆上
+     * @param verify 是否校验 crc，由调用方根据用途决定
+     */
+    public ByteBuffer sliceData(int offset, int size, ByteBuffer dst, boolean verify) {
+        return this.decodeData(offset, size, dst, verify);
+    }
+
+    public boolean isCompressed(int offset, int size) {
+        this.acquire();
+        try {
+            return this.compressionType(offset, size) != CompressionType.NONE;
+        } finally {
+            this.release();
+        }
+    }
+
+    //把 block 的内容拷贝（解压）到堆上，用于放入 block cache
+    public ByteBuffer copyData(int offset, int size) {
+        this.acquire();
+        try {
+            boolean verify = this.verifyOnRead();
+            if (this.compressionType(offset, size) != CompressionType.NONE) {
+                return this.decodeData(offset, size, null, verify);
+            }
+            ByteBuffer block = this.decodeData(offset, size, null, verify);
+            ByteBuffer copied = ByteBuffer.allocate(block.remaining());
+            copied.put(block);
+            copied.flip();
+            return copied;
+        } finally {
+            this.release();
+        }
+    }
+
+    public static Optional<byte[]> searchBlock(ByteBuffer block, byte[] key) {
+        return searchBlock(block, key, Kv.MAX_SEQ);
+    }
+
+    /**
+     * 查找 key 序列号不超过 seq 的最新版本
+     * @return block 中没有时返回 empty，key 的更旧的版本可能在下一个 block 中
+     */
+    public static Optional<byte[]> searchBlock(ByteBuffer block, byte[] key, long seq) {
+        return searchBlock(block, key, seq, Footer.VERSION);
+    }
+
+    /**
+     * @param version block 所在 sst 的版本，见 {@link #version()}
+     */
+    public static Optional<byte[]> searchBlock(ByteBuffer block, byte[] key, long seq, int version) {
+        DataBlockIterator iterator = new DataBlockIterator(block, version);
+        for (iterator.seek(key); iterator.valid() && iterator.compareKey(key) == 0; iterator.next()) {
+            if (iterator.seq() <= seq) {
+                return Optional.of(iterator.value());
+            }
+        }
+        return Optional.empty();
+    }
+
+    //footer 中的版本，决定 block 的解析方式，见 {@link Footer}
+    public int version() {
+        if (this.version < 0) {
+            this.readFooter();
+        }
+        return this.version;
+    }
+
+    //文件中最大的序列号，老版本的文件没有记录时返回 Footer.UNKNOWN_SEQ
+    public long maxSeq() {
+        if (this.version < 0) {
+            this.readFooter();
+        }
+        return this.maxSeq;
+    }
+
     public int size() {
-        if (this.indexOffset == 0) {
+        if (this.version < 0) {
             this.readFooter();
         }
-        return this.indexOffset + this.indexSize + config.getSstFooterSize();
+        return this.indexOffset + this.indexSize + this.footerSize;
+    }
+
+    /**
+     * 持有引用，成功以后映射在 release 之前不会被解除
+     * @return 已经关闭返回false
+     */
+    public boolean retain() {
+        while (true) {
+            int cnt = this.refCnt.get();
+            if (cnt <= 0) {
+                return false;
+            }
+            if (this.refCnt.compareAndSet(cnt, cnt + 1)) {
+                return true;
+            }
+        }
+    }
+
+    public void release() {
+        if (this.refCnt.decrementAndGet() == 0) {
+            //最后一个引用释放，解除映射
+            for (MappedByteBuffer segment : this.segments) {
+                BufferCleanUtil.clean(segment);
+            }
+            NodeMeta meta = this.attachedMeta;
+            if (null != meta) {
+                this.attachedMeta = null;
+                meta.free();
+            }
+        }
+    }
+
+    /**
+     * 把节点常驻的 filter 和 index 交给 reader 管理，和映射一起释放；
+     * 没有交给 reader 的由 GC 回收
+     */
+    void attach(NodeMeta meta) {
+        this.attachedMeta = meta;
+        //已经释放了，交给 GC
+        if (this.refCnt.get() <= 0) {
+            this.attachedMeta = null;
+        }
     }
 
+    //关闭以后，等进行中的读请求结束才真正解除映射
     public void close() {
-        try {
-            this.channel.close();
-            this.src.close();
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+        if (this.closed.compareAndSet(false, true)) {
+            this.release();
+        }
+    }
+
+    private void acquire() {
+        if (!this.retain()) {
+            throw new IllegalStateException("sst 已关闭");
         }
     }
 
@@ -139,16 +342,33 @@ public class SstReader {
     }
 
 
-    private Map<Integer, BitsArray> bufferToFilter(ByteBuffer byteBuffer) {
-        Map<Integer, BitsArray> bufferToFilter = new HashMap<>();
+    private SstFilters bufferToFilter(ByteBuffer byteBuffer) {
+        Map<Integer, FilterReader> blockFilters = new HashMap<>();
+        FilterReader fullFilter = null;
+        FilterReader prefixFilter = null;
+        String prefixExtractorName = null;
         byte[] preKey = new byte[0];
         while (byteBuffer.hasRemaining()) {
             Kv kv = this.readRecord(preKey, byteBuffer);
-            int offset = ByteBuffer.wrap(kv.getKey()).getInt();
-            bufferToFilter.put(offset, BitsArray.create(kv.getValue()));
-            preKey = kv.getKey();
+            byte[] key = kv.getKey();
+            if (key.length == 4) {
+                //版本 0 的 block 过滤器只有 bloom 的位数组，没有类型
+                FilterReader filter = Footer.hasBlockTrailer(this.version) ? FilterReader.decode(kv.getValue())
+                        : LsmBloomFilter.fromBits(kv.getValue());
+                blockFilters.put(ByteBuffer.wrap(key).getInt(), filter);
+            } else if (Arrays.equals(key, SstFilters.FULL_KEY)) {
+                fullFilter = FilterReader.decode(kv.getValue());
+            } else {
+                String name = new String(key, StandardCharsets.UTF_8);
+                if (!name.startsWith(SstFilters.PREFIX_KEY)) {
+                    throw new IllegalStateException("未知的 filter " + name + " " + this.file);
+                }
+                prefixFilter = FilterReader.decode(kv.getValue());
+                prefixExtractorName = name.substring(SstFilters.PREFIX_KEY.length());
+            }
+            preKey = key;
         }
-        return bufferToFilter;
+        return new SstFilters(blockFilters, fullFilter, prefixFilter, prefixExtractorName);
     }
 
     private Kv readRecord(byte[] preKey, ByteBuffer byteBuffer) {
@@ -159,8 +379,11 @@ public class SstReader {
         byte[] suffixKey = new byte[suffixKeyLen];
         byteBuffer.get(suffixKey);
 
-        byte[] value = new byte[valueLen];
-        byteBuffer.get(value);
+        byte[] value = Kv.TOMBSTONE;
+        if (valueLen != Block.TOMBSTONE_VALUE_LEN) {
+            value = new byte[valueLen];
+            byteBuffer.get(value);
+        }
 
         byte[] key = new byte[sharedKeyLen + suffixKeyLen];
         System.arraycopy(preKey, 0, key, 0, sharedKeyLen);
@@ -169,12 +392,111 @@ public class SstReader {
     }
 
 
-    private ByteBuffer readBlock(int offset, int size) {
+    //在 block 的内容上执行 fn，压缩过的解压到从 buffer pool 借来的 buffer 中，结束后归还
+    private <T> T withDataBlock(int offset, int size, Function<ByteBuffer, T> fn) {
+        this.acquire();
+        ByteBuffer pooled = null;
         try {
-            return this.channel.map(FileChannel.MapMode.READ_ONLY, offset, size);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+            if (this.compressionType(offset, size) != CompressionType.NONE) {
+                pooled = this.config.getBlockBufferPool().borrowBuffer(this.rawSize(offset, size));
+            }
+            return fn.apply(this.decodeData(offset, size, pooled, this.verifyOnRead()));
+        } finally {
+            if (null != pooled) {
+                this.config.getBlockBufferPool().returnBuffer(pooled);
+            }
+            this.release();
+        }
+    }
+
+    //去掉 trailer 以后的 block 内容，没有压缩的直接返回映射上的切片
+    private ByteBuffer decodeData(int offset, int size, ByteBuffer dst, boolean verify) {
+        if (!Footer.hasBlockTrailer(this.version())) {
+            //版本 0 的 block 只有记录，没有压缩也没有 crc
+            return this.readBlock(offset, size);
+        }
+        if (verify) {
+            this.verifyData(offset, size);
         }
+        CompressionType type = this.compressionType(offset, size);
+        ByteBuffer payload = this.readBlock(offset, size - DataBlock.TRAILER_SIZE);
+        if (type == CompressionType.NONE) {
+            return payload;
+        }
+        int rawSize = this.rawSize(offset, size);
+        if (null == dst || dst.capacity() < rawSize) {
+            dst = ByteBuffer.allocate(rawSize);
+        }
+        type.compressor().decompress(payload, dst, rawSize);
+        return dst;
+    }
+
+    private CompressionType compressionType(int offset, int size) {
+        if (!Footer.hasBlockTrailer(this.version())) {
+            return CompressionType.NONE;
+        }
+        return CompressionType.of(this.readBlock(offset + size - DataBlock.TRAILER_SIZE + 4, 1).get(0));
+    }
+
+    private int rawSize(int offset, int size) {
+        return this.readBlock(offset + size - DataBlock.TRAILER_SIZE, 4).getInt(0);
+    }
+
+    //点查和 readData 是否校验，扫描和压缩由迭代器自己决定
+    private boolean verifyOnRead() {
+        return this.config.getChecksumVerification() == ChecksumVerification.ALWAYS;
+    }
+
+    private void verifyData(int offset, int size) {
+        if (size < DataBlock.TRAILER_SIZE) {
+            throw new IllegalStateException("sst block 长度非法 " + this.file + " offset " + offset);
+        }
+        ByteBuffer covered = this.readBlock(offset, size - 4);
+        int expected = this.readBlock(offset + size - 4, 4).getInt(0);
+        if (Footer.crc32c(covered) != expected) {
+            throw new IllegalStateException("sst block 校验失败 " + this.file + " offset " + offset);
+        }
+    }
+
+    //filter 和 index 只在加载时读取一次，除了 NEVER 都校验
+    private void verifyMeta(ByteBuffer block, int expected, String name) {
+        //版本 0 没有 crc
+        if (this.config.getChecksumVerification() == ChecksumVerification.NEVER
+                || !Footer.hasBlockTrailer(this.version)) {
+            return;
+        }
+        if (Footer.crc32c(block) != expected) {
+            throw new IllegalStateException("sst " + name + " 校验失败 " + this.file);
+        }
+    }
+
+    //返回映射上的零拷贝切片，只能在持有引用期间使用
+    private ByteBuffer readBlock(long offset, int size) {
+        int segmentIndex = (int) (offset / this.segmentSize);
+        int segmentOffset = (int) (offset % this.segmentSize);
+        ByteBuffer segment = this.segments[segmentIndex].duplicate();
+        if (segmentOffset + size <= segment.capacity()) {
+            segment.position(segmentOffset);
+            segment.limit(segmentOffset + size);
+            return segment.slice();
+        }
+        //跨越了两个映射段，拷贝出来
+        ByteBuffer copied = ByteBuffer.allocate(size);
+        long position = offset;
+        while (copied.hasRemaining()) {
+            ByteBuffer cur = this.segments[(int) (position / this.segmentSize)].duplicate();
+            cur.position((int) (position % this.segmentSize));
+            int len = Math.min(cur.remaining(), copied.remaining());
+            cur.limit(cur.position() + len);
+            copied.put(cur);
+            position += len;
+        }
+        copied.flip();
+        return copied;
+    }
+
+    public long getId() {
+        return id;
     }
 
     public int getFilterOffset() {
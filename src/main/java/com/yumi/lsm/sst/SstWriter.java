@@ -1,8 +1,10 @@
 package com.yumi.lsm.sst;
 
 import com.yumi.lsm.Config;
-import com.yumi.lsm.filter.BitsArray;
+import com.yumi.lsm.compress.CompressionType;
 import com.yumi.lsm.filter.Filter;
+import com.yumi.lsm.filter.FilterReader;
+import com.yumi.lsm.filter.PrefixExtractor;
 import com.yumi.lsm.util.AllUtils;
 
 import java.io.File;
@@ -11,6 +13,7 @@ import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -21,14 +24,28 @@ public class SstWriter {
     private final RandomAccessFile file;
     private final FileChannel channel;
 
-    private Block dataBlock;
+    private DataBlock dataBlock;
+    //data block 的压缩方式
+    private final CompressionType compressionType;
     private Block filterBlock;
+    //当前 block 的过滤器，writer 独占
+    private final Filter filter;
+    //整个文件的过滤器，为 null 表示不构建
+    private final Filter fullFilter;
+    private final Filter prefixFilter;
+    private final PrefixExtractor prefixExtractor;
+    //key 有序，相同的前缀是连续的，只添加一次
+    private byte[] prePrefix;
     private Block indexBlock;
 
-    private Map<Integer, BitsArray> blockToFilter;
+    private Map<Integer, FilterReader> blockToFilter;
     private List<Index> indexArr;
 
     private byte[] preKey;
+    //第一个 key，作为节点的 startKey，没有数据时为 null
+    private byte[] firstKey;
+    //最大的序列号，记录在 footer 中
+    private long maxSeq;
     private int preBlockOffset;
     private int preBlockSize;
 
@@ -39,9 +56,14 @@ public class SstWriter {
     ByteBuffer footerBuffer;
 
     public SstWriter(String file, Config config) {
+        this(file, config, CompressionType.NONE);
+    }
+
+    public SstWriter(String file, Config config, CompressionType compressionType) {
         //所有的sst文件放在指定目录下
         File dest = new File(config.getDir() + File.separator + file);
         this.config = config;
+        this.compressionType = compressionType;
         try {
             RandomAccessFile randomAccessFile = new RandomAccessFile(dest, "rw");
             this.file = randomAccessFile;
@@ -52,6 +74,10 @@ public class SstWriter {
         //用来进行数据写入，大小固定，会在写入过程中循环使用
         this.dataBlock = new DataBlock(config);
         this.filterBlock  = new ExtendableBlock(config, 4 * 1024);
+        this.filter = config.getFilter().newInstance();
+        this.fullFilter = config.isWholeKeyFilter() ? config.getFileFilter().newInstance() : null;
+        this.prefixExtractor = config.getPrefixExtractor();
+        this.prefixFilter = null == this.prefixExtractor ? null : config.getFileFilter().newInstance();
         this.indexBlock = new ExtendableBlock(config, 4 * 1024);
 
         this.blockToFilter = new HashMap<>();
@@ -64,12 +90,19 @@ public class SstWriter {
         //buffers
         this.filterKeyBuffer = ByteBuffer.allocateDirect(4);
         this.indexValueBuffer = ByteBuffer.allocateDirect(8);
-        this.footerBuffer = ByteBuffer.allocateDirect(config.getSstFooterSize());
+        this.footerBuffer = ByteBuffer.allocateDirect(Footer.SIZE);
     }
 
 
     public void append(byte[] key, byte[] value) throws IOException {
-        boolean res = this.dataBlock.append(key, value);
+        this.append(key, 0, value);
+    }
+
+    /**
+     * 按 key 升序追加，同一个 key 的多个版本按序列号从大到小追加
+     */
+    public void append(byte[] key, long seq, byte[] value) throws IOException {
+        boolean res = this.dataBlock.append(key, seq, value);
         if (!res) {
             //把block数据刷到channel中
             boolean hasData = this.refreshBlock();
@@ -78,12 +111,26 @@ public class SstWriter {
                 this.insertIndex(key);
             }
 
-            res = this.dataBlock.append(key, value);
+            res = this.dataBlock.append(key, seq, value);
             if (!res) {
                 throw new RuntimeException("bug");
             }
         }
-        this.config.getFilter().add(key);
+        this.filter.add(key);
+        if (null != this.fullFilter) {
+            this.fullFilter.add(key);
+        }
+        if (null != this.prefixFilter) {
+            byte[] prefix = this.prefixExtractor.prefix(key);
+            if (null != prefix && !Arrays.equals(prefix, this.prePrefix)) {
+                this.prefixFilter.add(prefix);
+                this.prePrefix = prefix;
+            }
+        }
+        if (null == this.firstKey) {
+            this.firstKey = key;
+        }
+        this.maxSeq = Math.max(this.maxSeq, seq);
         this.preKey = key;
     }
 
@@ -109,6 +156,19 @@ public class SstWriter {
         if (hasData) {
             this.insertIndex(this.preKey);
         }
+        //整个文件的过滤器放在所有 block 过滤器的后面
+        FilterReader full = null;
+        if (null != this.fullFilter) {
+            full = this.fullFilter.build();
+            this.filterBlock.append(SstFilters.FULL_KEY, full.encode());
+        }
+        FilterReader prefix = null;
+        if (null != this.prefixFilter) {
+            prefix = this.prefixFilter.build();
+            this.filterBlock.append(SstFilters.prefixKey(this.prefixExtractor), prefix.encode());
+        }
+        SstFilters filters = new SstFilters(this.blockToFilter, full, prefix,
+                null == prefix ? null : this.prefixExtractor.name());
 
         //记录footer信息
         ByteBuffer byteBuffer = this.footerBuffer;
@@ -117,18 +177,17 @@ public class SstWriter {
         FileChannel fileChannel = this.channel;
 
         try {
-            int dataPosition = (int) fileChannel.position();
             //数据的结尾，是filter的开始
-            byteBuffer.putInt(dataPosition);
+            int dataPosition = (int) fileChannel.position();
+            int filterCrc = this.filterBlock.checksum();
             this.filterBlock.flushTo(fileChannel);
+            //filter的结尾，是index的开始
             int filterPosition = (int) fileChannel.position();
-            //filter占用的字节数
-            byteBuffer.putInt(filterPosition - dataPosition);
+            int indexCrc = this.indexBlock.checksum();
             this.indexBlock.flushTo(fileChannel);
             int indexPosition = (int) fileChannel.position();
-            //filter的结尾，是index的开始
-            byteBuffer.putInt(filterPosition);
-            byteBuffer.putInt(indexPosition - filterPosition);
+            new Footer(dataPosition, filterPosition - dataPosition,
+                    filterPosition, indexPosition - filterPosition, filterCrc, indexCrc, this.maxSeq).encodeTo(byteBuffer);
             byteBuffer.flip();
 
             channel.write(byteBuffer);
@@ -137,8 +196,8 @@ public class SstWriter {
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
-        return new FinishRes((int)fileChannel.position(), this.blockToFilter,
-                this.indexArr.toArray(new Index[0]));
+        return new FinishRes((int)fileChannel.position(), filters,
+                this.indexArr.toArray(new Index[0]), this.firstKey);
     }
 
 
@@ -163,15 +222,15 @@ public class SstWriter {
     }
 
     private boolean refreshBlock() throws IOException {
-        Filter filter = this.config.getFilter();
+        Filter filter = this.filter;
         if (filter.keyLen() == 0) {
             return false;
         }
         this.preBlockOffset = (int) this.channel.position();
-        this.preBlockSize = this.dataBlock.flushTo(this.channel);
+        this.preBlockSize = this.dataBlock.flushTo(this.channel, this.compressionType);
 
-        BitsArray bitsArray = filter.hash();
-        this.blockToFilter.put(this.preBlockOffset, bitsArray);
+        FilterReader blockFilter = filter.build();
+        this.blockToFilter.put(this.preBlockOffset, blockFilter);
 
         ByteBuffer byteBuffer = this.filterKeyBuffer;
         byteBuffer.clear();
@@ -180,7 +239,7 @@ public class SstWriter {
         byte[] filterKeyBytes = new byte[4];
         byteBuffer.get(filterKeyBytes);
 
-        this.filterBlock.append(filterKeyBytes, bitsArray.bytes());
+        this.filterBlock.append(filterKeyBytes, blockFilter.encode());
         filter.reset();
 
         return true;
@@ -188,25 +247,31 @@ public class SstWriter {
 
     public static class FinishRes {
         private int size;
-        Map<Integer, BitsArray> blockToFilter;
+        private SstFilters filters;
         private Index[] indices;
+        private byte[] firstKey;
 
-        public FinishRes(int size, Map<Integer, BitsArray> blockToFilter, Index[] indices) {
+        public FinishRes(int size, SstFilters filters, Index[] indices, byte[] firstKey) {
             this.size = size;
-            this.blockToFilter = blockToFilter;
+            this.filters = filters;
             this.indices = indices;
+            this.firstKey = firstKey;
         }
 
         public int getSize() {
             return size;
         }
 
-        public Map<Integer, BitsArray> getBlockToFilter() {
-            return blockToFilter;
+        public SstFilters getFilters() {
+            return filters;
         }
 
         public Index[] getIndices() {
             return indices;
         }
+
+        public byte[] getFirstKey() {
+            return firstKey;
+        }
     }
 }
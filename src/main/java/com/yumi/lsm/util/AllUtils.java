@@ -17,6 +17,12 @@ public class AllUtils {
         return key1.length - key2.length;
     }
 
+    //key 相同时序列号大的（更新的版本）在前
+    public static int compare(byte[] key1, long seq1, byte[] key2, long seq2) {
+        int cmp = compare(key1, key2);
+        return cmp != 0 ? cmp : Long.compare(seq2, seq1);
+    }
+
     private static int mismatch(byte[] key1, byte[] key2, int min) {
         for (int i = 0; i < min; i++) {
             if (key1[i] != key2[i]) {
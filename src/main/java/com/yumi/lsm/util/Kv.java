@@ -1,11 +1,23 @@
 package com.yumi.lsm.util;
 
 public class Kv {
+    //删除标记（墓碑），通过引用判断，编码时 value 的长度记为 -1
+    public static final byte[] TOMBSTONE = new byte[0];
+    //读取最新版本时使用的序列号，大于所有写入分配到的序列号
+    public static final long MAX_SEQ = Long.MAX_VALUE;
+
     private final byte[] key;
     private final byte[] value;
+    //写入时分配的序列号，同一个 key 序列号大的版本更新
+    private final long seq;
 
     public Kv(byte[] key, byte[] value) {
+        this(key, 0, value);
+    }
+
+    public Kv(byte[] key, long seq, byte[] value) {
         this.key = key;
+        this.seq = seq;
         this.value = value;
     }
 
@@ -16,4 +28,16 @@ public class Kv {
     public byte[] getValue() {
         return value;
     }
+
+    public long getSeq() {
+        return seq;
+    }
+
+    public boolean isTombstone() {
+        return isTombstone(this.value);
+    }
+
+    public static boolean isTombstone(byte[] value) {
+        return value == TOMBSTONE;
+    }
 }
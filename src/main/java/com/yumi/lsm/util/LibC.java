@@ -34,4 +34,7 @@ public interface LibC extends Library {
     int mlockall(int flags);
 
     int msync(Pointer p, NativeLong length, int flags);
+
+    //成功返回 0，失败直接返回错误码，不设置 errno
+    int posix_fallocate(int fd, long offset, long len);
 }
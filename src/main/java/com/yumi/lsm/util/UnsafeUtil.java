@@ -0,0 +1,38 @@
+package com.yumi.lsm.util;
+
+import sun.misc.Unsafe;
+
+import java.lang.reflect.Field;
+
+/**
+ * 直接读写堆外内存
+ */
+public class UnsafeUtil {
+    public static final Unsafe UNSAFE;
+    public static final long BYTE_ARRAY_OFFSET;
+
+    static {
+        try {
+            Field field = Unsafe.class.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            UNSAFE = (Unsafe) field.get(null);
+            BYTE_ARRAY_OFFSET = UNSAFE.arrayBaseOffset(byte[].class);
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private UnsafeUtil() {}
+
+    //把 src 拷贝到 address 开始的堆外内存
+    public static void copyToAddress(byte[] src, long address) {
+        UNSAFE.copyMemory(src, BYTE_ARRAY_OFFSET, null, address, src.length);
+    }
+
+    //从 address 开始的堆外内存拷贝 len 个字节
+    public static byte[] copyFromAddress(long address, int len) {
+        byte[] dest = new byte[len];
+        UNSAFE.copyMemory(null, address, dest, BYTE_ARRAY_OFFSET, len);
+        return dest;
+    }
+}
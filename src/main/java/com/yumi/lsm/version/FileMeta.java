@@ -0,0 +1,45 @@
+package com.yumi.lsm.version;
+
+/**
+ * manifest 中记录的 sst 文件元信息，打开时不需要读取文件内容就能还原节点的位置和范围
+ */
+public class FileMeta {
+    private final int level;
+    private final int seq;
+    //大小，单位byte
+    private final int size;
+    private final byte[] startKey;
+    private final byte[] endKey;
+
+    public FileMeta(int level, int seq, int size, byte[] startKey, byte[] endKey) {
+        this.level = level;
+        this.seq = seq;
+        this.size = size;
+        this.startKey = startKey;
+        this.endKey = endKey;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    public int getSeq() {
+        return seq;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public byte[] getStartKey() {
+        return startKey;
+    }
+
+    public byte[] getEndKey() {
+        return endKey;
+    }
+
+    public String fileName() {
+        return level + "_" + seq + ".sst";
+    }
+}
@@ -0,0 +1,159 @@
+package com.yumi.lsm.version;
+
+import com.google.common.hash.Hashing;
+import com.yumi.lsm.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 记录节点增删的日志，每次 flush 和压缩在修改内存中的节点之前先追加一条 {@link VersionEdit} 并刷盘，
+ * 打开时回放得到存活的文件，不用扫描目录和读取 sst 内容；没有被记录的文件是崩溃时未完成的输出，直接删除。
+ * 记录格式: len crc32c payload，写了一半的记录在回放时被忽略
+ */
+public class Manifest {
+    public static final String FILE_NAME = "MANIFEST";
+    private static final String TMP_FILE_NAME = "MANIFEST.tmp";
+    private static final int RECORD_HEADER_BYTES = 8;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    //写入失败以后不能再追加，否则后面的记录在回放时会被丢弃
+    private boolean broken;
+
+    private Manifest(File manifestFile) throws IOException {
+        this.file = new RandomAccessFile(manifestFile, "rw");
+        this.channel = this.file.getChannel();
+        this.channel.position(this.channel.size());
+    }
+
+    public static boolean exists(Config config) {
+        return new File(config.getDir() + File.separator + FILE_NAME).exists();
+    }
+
+    /**
+     * 回放 manifest
+     * @return 合并以后的结果，存活的文件按 level、seq 排序放在 added 中，lastSeq 是所有记录中最大的
+     */
+    public static VersionEdit replay(Config config) {
+        File manifestFile = new File(config.getDir() + File.separator + FILE_NAME);
+        Map<String, FileMeta> live = new LinkedHashMap<>();
+        long lastSeq = 0;
+        ByteBuffer buffer;
+        try {
+            buffer = ByteBuffer.wrap(Files.readAllBytes(manifestFile.toPath()));
+        } catch (IOException e) {
+            throw new IllegalStateException("读取 manifest 失败", e);
+        }
+        while (buffer.remaining() >= RECORD_HEADER_BYTES) {
+            int len = buffer.getInt();
+            int crc = buffer.getInt();
+            if (len < 0 || len > buffer.remaining()) {
+                //写了一半
+                break;
+            }
+            byte[] payload = new byte[len];
+            buffer.get(payload);
+            if (crc(payload) != crc) {
+                break;
+            }
+            VersionEdit edit = VersionEdit.decode(ByteBuffer.wrap(payload));
+            for (FileMeta meta : edit.getDeleted()) {
+                live.remove(meta.fileName());
+            }
+            for (FileMeta meta : edit.getAdded()) {
+                live.put(meta.fileName(), meta);
+            }
+            lastSeq = Math.max(lastSeq, edit.getLastSeq());
+        }
+        List<FileMeta> res = new ArrayList<>(live.values());
+        res.sort((m1, m2) -> m1.getLevel() != m2.getLevel()
+                ? m1.getLevel() - m2.getLevel() : m1.getSeq() - m2.getSeq());
+        VersionEdit merged = new VersionEdit().setLastSeq(lastSeq);
+        res.forEach(merged::addFile);
+        return merged;
+    }
+
+    /**
+     * 用当前存活的文件写一个新的 manifest 替换掉旧的，回放过的历史记录不再保留
+     */
+    public static Manifest create(Config config, Collection<FileMeta> live, long lastSeq) {
+        File tmpFile = new File(config.getDir() + File.separator + TMP_FILE_NAME);
+        File manifestFile = new File(config.getDir() + File.separator + FILE_NAME);
+        try {
+            VersionEdit snapshot = new VersionEdit().setLastSeq(lastSeq);
+            live.forEach(snapshot::addFile);
+            try (RandomAccessFile tmp = new RandomAccessFile(tmpFile, "rw");
+                 FileChannel tmpChannel = tmp.getChannel()) {
+                tmpChannel.truncate(0);
+                tmpChannel.write(record(snapshot));
+                tmpChannel.force(true);
+            }
+            //rename 是原子的，崩溃时要么是旧的 manifest 要么是新的
+            Files.move(tmpFile.toPath(), manifestFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return new Manifest(manifestFile);
+        } catch (IOException e) {
+            throw new IllegalStateException("创建 manifest 失败", e);
+        }
+    }
+
+    //返回时记录已经落盘
+    public synchronized void append(VersionEdit edit) {
+        if (this.broken) {
+            throw new IllegalStateException("manifest 写入失败过，不能继续写入");
+        }
+        long position = 0;
+        try {
+            position = this.channel.position();
+            ByteBuffer record = record(edit);
+            while (record.hasRemaining()) {
+                this.channel.write(record);
+            }
+            this.channel.force(false);
+        } catch (IOException e) {
+            //截掉写了一半的记录，截不掉就不能再写了
+            try {
+                this.channel.truncate(position);
+                this.channel.position(position);
+            } catch (IOException truncateException) {
+                this.broken = true;
+                e.addSuppressed(truncateException);
+            }
+            throw new IllegalStateException("写入 manifest 失败", e);
+        }
+    }
+
+    public synchronized void close() {
+        try {
+            this.channel.close();
+            this.file.close();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static ByteBuffer record(VersionEdit edit) {
+        byte[] payload = edit.encode();
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER_BYTES + payload.length);
+        buffer.putInt(payload.length);
+        buffer.putInt(crc(payload));
+        buffer.put(payload);
+        buffer.flip();
+        return buffer;
+    }
+
+    private static int crc(byte[] payload) {
+        return Hashing.crc32c().hashBytes(payload).asInt();
+    }
+}
@@ -0,0 +1,95 @@
+package com.yumi.lsm.version;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 一次 flush 或者压缩对节点的修改，作为 manifest 中的一条记录整体生效
+ * 格式: deletedCnt (level seq)... addedCnt (level seq size startKeyLen startKey endKeyLen endKey)... [lastSeq]
+ * lastSeq 是写入的数据中最大的序列号，没有设置时不写
+ */
+public class VersionEdit {
+    private final List<FileMeta> added = new ArrayList<>();
+    //只需要 level 和 seq
+    private final List<FileMeta> deleted = new ArrayList<>();
+    //小于 0 表示没有设置
+    private long lastSeq = -1;
+
+    public VersionEdit addFile(FileMeta meta) {
+        this.added.add(meta);
+        return this;
+    }
+
+    public VersionEdit deleteFile(int level, int seq) {
+        this.deleted.add(new FileMeta(level, seq, 0, null, null));
+        return this;
+    }
+
+    public List<FileMeta> getAdded() {
+        return added;
+    }
+
+    public List<FileMeta> getDeleted() {
+        return deleted;
+    }
+
+    public VersionEdit setLastSeq(long lastSeq) {
+        this.lastSeq = lastSeq;
+        return this;
+    }
+
+    public long getLastSeq() {
+        return lastSeq;
+    }
+
+    public byte[] encode() {
+        int size = 8 + this.deleted.size() * 8 + (this.lastSeq >= 0 ? 8 : 0);
+        for (FileMeta meta : this.added) {
+            size += 20 + meta.getStartKey().length + meta.getEndKey().length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putInt(this.deleted.size());
+        for (FileMeta meta : this.deleted) {
+            buffer.putInt(meta.getLevel());
+            buffer.putInt(meta.getSeq());
+        }
+        buffer.putInt(this.added.size());
+        for (FileMeta meta : this.added) {
+            buffer.putInt(meta.getLevel());
+            buffer.putInt(meta.getSeq());
+            buffer.putInt(meta.getSize());
+            buffer.putInt(meta.getStartKey().length);
+            buffer.put(meta.getStartKey());
+            buffer.putInt(meta.getEndKey().length);
+            buffer.put(meta.getEndKey());
+        }
+        if (this.lastSeq >= 0) {
+            buffer.putLong(this.lastSeq);
+        }
+        return buffer.array();
+    }
+
+    public static VersionEdit decode(ByteBuffer buffer) {
+        VersionEdit edit = new VersionEdit();
+        int deletedCnt = buffer.getInt();
+        for (int i = 0; i < deletedCnt; i++) {
+            edit.deleteFile(buffer.getInt(), buffer.getInt());
+        }
+        int addedCnt = buffer.getInt();
+        for (int i = 0; i < addedCnt; i++) {
+            int level = buffer.getInt();
+            int seq = buffer.getInt();
+            int size = buffer.getInt();
+            byte[] startKey = new byte[buffer.getInt()];
+            buffer.get(startKey);
+            byte[] endKey = new byte[buffer.getInt()];
+            buffer.get(endKey);
+            edit.addFile(new FileMeta(level, seq, size, startKey, endKey));
+        }
+        if (buffer.remaining() >= 8) {
+            edit.setLastSeq(buffer.getLong());
+        }
+        return edit;
+    }
+}
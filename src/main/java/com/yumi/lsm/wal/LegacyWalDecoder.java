@@ -0,0 +1,121 @@
+package com.yumi.lsm.wal;
+
+import com.yumi.lsm.util.Kv;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.yumi.lsm.wal.WalConstants.END_MARK;
+import static com.yumi.lsm.wal.WalReader.END_OF_WAL;
+import static com.yumi.lsm.wal.WalReader.NO_MORE_RECORD;
+
+/**
+ * 回放没有头部的老版本 wal，数据没有序列号，都记为 0。老文件有两种格式:
+ * 带校验的 -> bodyLen crc count 之后是 count 条 keyLen valLen key value，crc 是 count 和 body 的 crc32c；
+ * 更早的 -> 单条 keyLen valLen key value，或者 BATCH_MARK count bodyLen 之后是 count 条数据。
+ * 带校验的格式第一条记录能通过校验时按它解码，否则按更早的格式解码
+ */
+final class LegacyWalDecoder {
+    private static final int CHECKSUMMED_HEADER_BYTES = 12;
+    private static final int BATCH_MARK = -10980099;
+    private static final int BATCH_HEADER_BYTES = 12;
+
+    private LegacyWalDecoder() {
+    }
+
+    static List<Kv> readAll(ByteBuffer view) {
+        boolean checksummed = readChecksummed(view, 0, null) > 0;
+        List<Kv> res = new ArrayList<>();
+        int position = 0;
+        while (position < view.limit()) {
+            int recordBytes = checksummed ? readChecksummed(view, position, res) : readUnchecked(view, position, res);
+            if (recordBytes == END_OF_WAL || recordBytes == NO_MORE_RECORD) {
+                break;
+            }
+            position += recordBytes;
+        }
+        return res;
+    }
+
+    private static int readChecksummed(ByteBuffer view, int position, List<Kv> out) {
+        int limit = view.limit();
+        if (position + 4 > limit) {
+            return NO_MORE_RECORD;
+        }
+        int bodyLen = view.getInt(position);
+        if (bodyLen == END_MARK) {
+            return END_OF_WAL;
+        }
+        int bodyStart = position + CHECKSUMMED_HEADER_BYTES;
+        if (bodyLen <= 0 || bodyStart > limit || bodyLen > limit - bodyStart) {
+            return NO_MORE_RECORD;
+        }
+        int bodyEnd = bodyStart + bodyLen;
+        if (view.getInt(position + 4) != WalReader.checksum(view, position + 8, bodyEnd)) {
+            return NO_MORE_RECORD;
+        }
+        int count = view.getInt(position + 8);
+        if (count <= 0 || count > bodyLen / 8) {
+            return NO_MORE_RECORD;
+        }
+        return readEntries(view, bodyStart, bodyEnd, count, true, out) ? CHECKSUMMED_HEADER_BYTES + bodyLen : NO_MORE_RECORD;
+    }
+
+    private static int readUnchecked(ByteBuffer view, int position, List<Kv> out) {
+        int limit = view.limit();
+        if (position + 4 > limit) {
+            return NO_MORE_RECORD;
+        }
+        int keyLenOrMark = view.getInt(position);
+        if (keyLenOrMark == END_MARK) {
+            return END_OF_WAL;
+        }
+        if (keyLenOrMark != BATCH_MARK) {
+            return readUncheckedEntry(view, position, limit, out);
+        }
+        if (position + BATCH_HEADER_BYTES > limit) {
+            return NO_MORE_RECORD;
+        }
+        int count = view.getInt(position + 4);
+        int bodyLen = view.getInt(position + 8);
+        int bodyStart = position + BATCH_HEADER_BYTES;
+        if (count <= 0 || bodyLen <= 0 || bodyLen > limit - bodyStart) {
+            return NO_MORE_RECORD;
+        }
+        return readEntries(view, bodyStart, bodyStart + bodyLen, count, false, out) ? BATCH_HEADER_BYTES + bodyLen : NO_MORE_RECORD;
+    }
+
+    //[start, end) 正好是 count 条完整的数据时才读取，batch 不完整时整体丢弃
+    private static boolean readEntries(ByteBuffer view, int start, int end, int count, boolean checksummed,
+                                       List<Kv> out) {
+        List<Kv> record = null == out ? null : new ArrayList<>(count);
+        int cur = start;
+        for (int i = 0; i < count; i++) {
+            int entryBytes = checksummed ? WalReader.readEntry(view, cur, end, 0, record)
+                    : readUncheckedEntry(view, cur, end, record);
+            if (entryBytes == NO_MORE_RECORD) {
+                return false;
+            }
+            cur += entryBytes;
+        }
+        if (cur != end) {
+            return false;
+        }
+        if (null != out) {
+            out.addAll(record);
+        }
+        return true;
+    }
+
+    //没有校验时靠全 0 判断没有写入过的位置
+    private static int readUncheckedEntry(ByteBuffer view, int position, int limit, List<Kv> out) {
+        if (position + 8 > limit) {
+            return NO_MORE_RECORD;
+        }
+        if (view.getInt(position) == 0 && view.getInt(position + 4) == 0) {
+            return NO_MORE_RECORD;
+        }
+        return WalReader.readEntry(view, position, limit, 0, out);
+    }
+}
@@ -1,6 +1,20 @@
 package com.yumi.lsm.wal;
 
 public interface WalConstants {
+    /**
+     * 每个 wal 文件开头的头部 -> magic version，创建和回收文件时写入。
+     * 没有头部的是老版本写下的文件，按老格式回放，不能继续写入；版本不认识时拒绝打开
+     */
+    int SEGMENT_HEADER_BYTES = 8;
+    int WAL_MAGIC = 0x59554D57;
+    int WAL_VERSION = 1;
     int END_MARK_BYTES = 4;
     int END_MARK = -10980098;
+    /**
+     * 每次写入（单条或者batch）是一条记录 -> bodyLen crc count seq 之后是 count 条 keyLen valLen key value
+     * seq 是第一条数据的序列号，后面的依次加一。crc 是 count、seq 和 body 的 crc32c，bodyLen 不包含头部
+     */
+    int RECORD_HEADER_BYTES = 20;
+    //删除记录的 valLen
+    int TOMBSTONE_LEN = -1;
 }
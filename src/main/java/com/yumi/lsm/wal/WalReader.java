@@ -1,5 +1,6 @@
 package com.yumi.lsm.wal;
 
+import com.google.common.hash.Hashing;
 import com.yumi.lsm.memtable.MemTable;
 import com.yumi.lsm.util.BufferCleanUtil;
 import com.yumi.lsm.util.Kv;
@@ -14,13 +15,20 @@ import java.util.ArrayList;
 import java.util.List;
 
 import static com.yumi.lsm.wal.WalConstants.END_MARK;
+import static com.yumi.lsm.wal.WalConstants.RECORD_HEADER_BYTES;
+import static com.yumi.lsm.wal.WalConstants.SEGMENT_HEADER_BYTES;
+import static com.yumi.lsm.wal.WalConstants.TOMBSTONE_LEN;
+import static com.yumi.lsm.wal.WalConstants.WAL_MAGIC;
+import static com.yumi.lsm.wal.WalConstants.WAL_VERSION;
 
 public class WalReader {
 
+    private final String file;
     private final RandomAccessFile src;
     private final MappedByteBuffer reader;
 
     public WalReader(String file) {
+        this.file = file;
         File srcFile = new File(file);
         if (!srcFile.exists()) {
             throw new IllegalStateException("文件不存在: " + file);
@@ -33,36 +41,143 @@ public class WalReader {
         }
     }
 
-    public void restoreMemTable(MemTable memTable) {
+    //readRecord 的返回值：遇到 END_MARK
+    static final int END_OF_WAL = -1;
+    //readRecord 的返回值：后面没有数据，或者是写了一半的记录
+    static final int NO_MORE_RECORD = 0;
+
+    /**
+     * 按记录中的序列号回放到 mem table
+     * @return 回放的数据中最大的序列号，没有数据时返回 0
+     */
+    public long restoreMemTable(MemTable memTable) {
         ByteBuffer view = this.reader.slice();
         view.position(0);
         view.limit(view.capacity());
-        List<Kv> kvs = readAll(view);
+        //没有头部的老文件，用老格式解码，序列号都记为 0
+        List<Kv> kvs = hasSegmentHeader(view, this.file) ? readAll(view) : LegacyWalDecoder.readAll(view);
+        long lastSeq = 0;
         for (Kv kv : kvs) {
-            memTable.put(kv.getKey(), kv.getValue());
+            if (kv.isTombstone()) {
+                memTable.delete(kv.getKey(), kv.getSeq());
+            } else {
+                memTable.put(kv.getKey(), kv.getSeq(), kv.getValue());
+            }
+            lastSeq = Math.max(lastSeq, kv.getSeq());
         }
+        return lastSeq;
+    }
+
+    /**
+     * @return 文件开头是否有头部
+     * @throws IllegalStateException 头部的版本不认识，按任何格式回放都可能丢数据
+     */
+    static boolean hasSegmentHeader(ByteBuffer view, String file) {
+        if (view.limit() < SEGMENT_HEADER_BYTES || view.getInt(0) != WAL_MAGIC) {
+            return false;
+        }
+        int version = view.getInt(4);
+        if (version != WAL_VERSION) {
+            throw new IllegalStateException("不支持的 wal 版本 " + version + " " + file);
+        }
+        return true;
     }
 
     private List<Kv> readAll(ByteBuffer view) {
         List<Kv> res = new ArrayList<>();
-        while (view.hasRemaining()) {
-            int keyLenOrMark = view.getInt();
-            if (keyLenOrMark == END_MARK) {
-                break;
-            }
-            int valLen = view.getInt();
-            if (keyLenOrMark == 0 && valLen == 0) {
+        int position = SEGMENT_HEADER_BYTES;
+        while (position < view.limit()) {
+            int recordBytes = readRecord(view, position, res);
+            if (recordBytes == END_OF_WAL || recordBytes == NO_MORE_RECORD) {
                 break;
             }
-            byte[] key = new byte[keyLenOrMark];
-            byte[] val = new byte[valLen];
-            view.get(key);
-            view.get(val);
-            res.add(new Kv(key, val));
+            position += recordBytes;
         }
         return res;
     }
 
+    /**
+     * 读取 position 处的一条记录，只有完整并且校验通过的记录才会被读取，
+     * 长度越界、校验失败、没有写入过的位置都视为没有更多记录，不会按照损坏的长度分配内存
+     * @param out 读取到的kv追加到这里，为 null 时只校验并计算记录的长度
+     * @return 记录占用的字节数，或者 END_OF_WAL、NO_MORE_RECORD
+     */
+    static int readRecord(ByteBuffer view, int position, List<Kv> out) {
+        int limit = view.limit();
+        if (position + 4 > limit) {
+            return NO_MORE_RECORD;
+        }
+        int bodyLen = view.getInt(position);
+        if (bodyLen == END_MARK) {
+            return END_OF_WAL;
+        }
+        int bodyStart = position + RECORD_HEADER_BYTES;
+        if (bodyLen <= 0 || bodyStart > limit || bodyLen > limit - bodyStart) {
+            return NO_MORE_RECORD;
+        }
+        int crc = view.getInt(position + 4);
+        int bodyEnd = bodyStart + bodyLen;
+        if (crc != checksum(view, position + 8, bodyEnd)) {
+            return NO_MORE_RECORD;
+        }
+        int count = view.getInt(position + 8);
+        //每条数据至少 8 字节
+        if (count <= 0 || count > bodyLen / 8) {
+            return NO_MORE_RECORD;
+        }
+        long seq = view.getLong(position + 12);
+        List<Kv> record = null == out ? null : new ArrayList<>(count);
+        int cur = bodyStart;
+        for (int i = 0; i < count; i++) {
+            int entryBytes = readEntry(view, cur, bodyEnd, seq + i, record);
+            if (entryBytes == NO_MORE_RECORD) {
+                return NO_MORE_RECORD;
+            }
+            cur += entryBytes;
+        }
+        if (cur != bodyEnd) {
+            return NO_MORE_RECORD;
+        }
+        if (null != out) {
+            out.addAll(record);
+        }
+        return RECORD_HEADER_BYTES + bodyLen;
+    }
+
+    //[start, end) 的 crc32c，不修改 view 的状态
+    static int checksum(ByteBuffer view, int start, int end) {
+        ByteBuffer dup = view.duplicate();
+        dup.limit(end);
+        dup.position(start);
+        return Hashing.crc32c().newHasher().putBytes(dup).hash().asInt();
+    }
+
+    //keyLen valLen key value，老格式中的数据也是这样编码的
+    static int readEntry(ByteBuffer view, int position, int limit, long seq, List<Kv> out) {
+        if (position + 8 > limit) {
+            return NO_MORE_RECORD;
+        }
+        int keyLen = view.getInt(position);
+        int valLen = view.getInt(position + 4);
+        int valBytes = valLen == TOMBSTONE_LEN ? 0 : valLen;
+        if (keyLen < 0 || valBytes < 0 || keyLen > limit - position - 8 || valBytes > limit - position - 8 - keyLen) {
+            return NO_MORE_RECORD;
+        }
+        if (null != out) {
+            ByteBuffer dup = view.duplicate();
+            dup.position(position + 8);
+            byte[] key = new byte[keyLen];
+            dup.get(key);
+            byte[] val = Kv.TOMBSTONE;
+            if (valLen != TOMBSTONE_LEN) {
+                val = new byte[valLen];
+                dup.get(val);
+            }
+            out.add(new Kv(key, seq, val));
+        }
+        return 8 + keyLen + valBytes;
+    }
+
     public void close() {
         BufferCleanUtil.clean(this.reader);
         try {
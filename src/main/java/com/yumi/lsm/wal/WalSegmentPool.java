@@ -0,0 +1,170 @@
+package com.yumi.lsm.wal;
+
+import com.sun.jna.NativeLong;
+import com.sun.jna.Platform;
+import com.sun.jna.Pointer;
+import com.yumi.lsm.util.BufferCleanUtil;
+import com.yumi.lsm.util.LibC;
+import sun.nio.ch.DirectBuffer;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 预先分配好的 wal 文件池。
+ * 新文件在后台分配磁盘空间并逐页清零，切换 mem table 时直接改名使用，写入时不再产生缺页和块分配；
+ * flush 完成的 wal 清零以后放回池中复用。池中的文件只有头部，恢复时没有任何记录，从头开始写入，
+ * 旧记录不会被回放。
+ * 池中的文件以 .recycle 结尾，处理中的文件以 .tmp 结尾，都不会被当成 wal 回放
+ */
+public class WalSegmentPool {
+    private static final String READY_SUFFIX = ".recycle";
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private final File dir;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final ConcurrentLinkedDeque<File> ready = new ConcurrentLinkedDeque<>();
+    private final AtomicInteger nameSeq = new AtomicInteger(0);
+
+    /**
+     * @param dir wal 文件夹
+     * @param segmentSize 单个 wal 文件大小
+     * @param maxSegments 池中最多保留的文件数，为 0 时不复用
+     */
+    public WalSegmentPool(String dir, int segmentSize, int maxSegments) {
+        this.dir = new File(dir);
+        this.segmentSize = segmentSize;
+        this.maxSegments = maxSegments;
+        File[] files = this.dir.listFiles(f -> f.isFile()
+                && (f.getName().endsWith(READY_SUFFIX) || f.getName().endsWith(TMP_SUFFIX)));
+        if (null == files) {
+            return;
+        }
+        for (File file : files) {
+            //没处理完的、大小不对的和多出来的都删掉
+            if (file.getName().endsWith(READY_SUFFIX) && file.length() == segmentSize
+                    && this.ready.size() < maxSegments) {
+                this.ready.offerLast(file);
+            } else {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * 把池中的一个文件改名为 path
+     * @return 池中没有可用的文件时返回 false，由调用方自己创建
+     */
+    public boolean acquire(String path) {
+        File file = this.ready.pollFirst();
+        if (null == file) {
+            return false;
+        }
+        try {
+            Files.move(file.toPath(), new File(path).toPath(), StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } catch (IOException e) {
+            file.delete();
+            return false;
+        }
+    }
+
+    /**
+     * 回收已经 flush 完成的 wal，池满时直接删除。
+     * 先改名再清零，崩溃时留下的只会是 .tmp 文件，下次打开时删除
+     */
+    public void recycle(String path) {
+        File file = new File(path);
+        if (this.ready.size() >= this.maxSegments || file.length() != this.segmentSize) {
+            file.delete();
+            return;
+        }
+        File tmp = this.newFile(TMP_SUFFIX);
+        try {
+            Files.move(file.toPath(), tmp.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            this.prepare(tmp, false);
+            this.publish(tmp);
+        } catch (Exception e) {
+            file.delete();
+            tmp.delete();
+        }
+    }
+
+    /**
+     * 补齐池中的文件，在后台线程调用。失败（比如磁盘满了）时打印异常，不抛出，
+     * 池中的文件不够时切换 mem table 会直接创建新文件，不影响写入
+     * @return 是否补齐
+     */
+    public boolean fill() {
+        while (this.ready.size() < this.maxSegments) {
+            File tmp = this.newFile(TMP_SUFFIX);
+            try {
+                this.prepare(tmp, true);
+                this.publish(tmp);
+            } catch (Exception e) {
+                tmp.delete();
+                new IllegalStateException("预分配 wal 文件失败", e).printStackTrace();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public int readyCount() {
+        return this.ready.size();
+    }
+
+    private File newFile(String suffix) {
+        return new File(this.dir, "segment_" + System.nanoTime() + "_" + this.nameSeq.incrementAndGet() + suffix);
+    }
+
+    private void publish(File tmp) throws IOException {
+        File target = new File(tmp.getPath().substring(0, tmp.getPath().length() - TMP_SUFFIX.length()) + READY_SUFFIX);
+        Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        this.ready.offerLast(target);
+    }
+
+    //分配空间并清零每一页，清零的同时完成了缺页，再写入头部，落盘以后才能放进池中
+    private void prepare(File file, boolean allocate) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+             FileChannel channel = raf.getChannel()) {
+            if (allocate && !fallocate(raf.getFD(), this.segmentSize)) {
+                raf.setLength(this.segmentSize);
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, this.segmentSize);
+            try {
+                Pointer pointer = new Pointer(((DirectBuffer) buffer).address());
+                LibC.INSTANCE.madvise(pointer, new NativeLong(this.segmentSize), LibC.MADV_WILLNEED);
+                LibC.INSTANCE.memset(pointer, 0, this.segmentSize);
+                WalWriter.writeSegmentHeader(buffer);
+                buffer.force();
+            } finally {
+                BufferCleanUtil.clean(buffer);
+            }
+        }
+    }
+
+    //只在 linux 上使用 posix_fallocate 分配连续的空间，失败时退回 setLength
+    private static boolean fallocate(FileDescriptor fd, int size) {
+        if (!Platform.isLinux()) {
+            return false;
+        }
+        try {
+            Field field = FileDescriptor.class.getDeclaredField("fd");
+            field.setAccessible(true);
+            return LibC.INSTANCE.posix_fallocate(field.getInt(fd), 0, size) == 0;
+        } catch (ReflectiveOperationException | UnsatisfiedLinkError e) {
+            return false;
+        }
+    }
+}
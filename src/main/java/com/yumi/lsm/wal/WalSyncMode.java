@@ -0,0 +1,13 @@
+package com.yumi.lsm.wal;
+
+/**
+ * wal 的刷盘策略
+ */
+public enum WalSyncMode {
+    //每次写入都刷盘（组提交时一组刷一次），写入返回即已落盘
+    SYNC,
+    //后台线程按固定间隔 msync，宕机时可能丢失最近一个间隔内的数据
+    INTERVAL,
+    //不主动刷盘，交给操作系统回写，只保证进程崩溃不丢数据
+    NONE
+}
@@ -1,6 +1,12 @@
 package com.yumi.lsm.wal;
 
+import com.sun.jna.NativeLong;
+import com.sun.jna.Pointer;
+import com.yumi.lsm.WriteBatch;
 import com.yumi.lsm.util.BufferCleanUtil;
+import com.yumi.lsm.util.Kv;
+import com.yumi.lsm.util.LibC;
+import sun.nio.ch.DirectBuffer;
 
 import java.io.File;
 import java.io.IOException;
@@ -8,71 +14,247 @@ import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.yumi.lsm.wal.WalConstants.END_MARK;
 import static com.yumi.lsm.wal.WalConstants.END_MARK_BYTES;
+import static com.yumi.lsm.wal.WalConstants.RECORD_HEADER_BYTES;
+import static com.yumi.lsm.wal.WalConstants.SEGMENT_HEADER_BYTES;
+import static com.yumi.lsm.wal.WalConstants.TOMBSTONE_LEN;
+import static com.yumi.lsm.wal.WalConstants.WAL_MAGIC;
+import static com.yumi.lsm.wal.WalConstants.WAL_VERSION;
 
 public class WalWriter {
+    //append 的返回值，表示文件已经写满
+    public static final int FULL = -1;
 
     private RandomAccessFile dest;
     private MappedByteBuffer writer;
     private int maxSize;
-    private int curPosition;
+    //已经预留出去的位置，并发写入时通过CAS推进
+    private final AtomicInteger reservedPosition = new AtomicInteger(0);
+    //已经写完的位置，之前的数据都已经完整写入映射内存
+    private volatile int curPosition;
+    //已经刷盘的位置
+    private volatile int syncedPosition;
+    //有写入因为空间不足失败以后，不再接受新的写入
+    private volatile boolean full;
+    //刷盘锁，同一时刻只有一个线程刷盘，其他线程等待后直接复用结果
+    private final Object syncLock = new Object();
 
+    /**
+     * @throws IllegalStateException 文件已经写完，或者是不能继续写入的老格式文件
+     */
     public WalWriter(String file, int maxSize) {
         File destFile = new File(file);
         this.maxSize = maxSize;
-        boolean needRecover= destFile.exists();
         try {
             this.dest = new RandomAccessFile(destFile, "rw");
             this.writer = dest.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, maxSize);
-            if (needRecover) {
-                int curPosition = 0;
-                ByteBuffer view = this.writer.slice();
+            //整个文件都会被顺序写满，提前读入
+            long address = ((DirectBuffer) this.writer).address();
+            LibC.INSTANCE.madvise(new Pointer(address), new NativeLong(maxSize), LibC.MADV_WILLNEED);
+            ByteBuffer view = this.writer.slice();
+            if (view.getInt(0) == 0) {
+                //新文件，或者老版本回收的清零文件，里面没有任何记录
+                writeSegmentHeader(view);
+                this.curPosition = SEGMENT_HEADER_BYTES;
+                this.syncedPosition = SEGMENT_HEADER_BYTES;
+                this.reservedPosition.set(SEGMENT_HEADER_BYTES);
+            } else {
+                if (!WalReader.hasSegmentHeader(view, file)) {
+                    //老格式的记录不能和新格式的混在一起，只回放，数据在 flush 以后随文件回收
+                    throw new IllegalStateException("老格式的 wal 不能继续写入 " + file);
+                }
+                int curPosition = SEGMENT_HEADER_BYTES;
                 while (curPosition < view.limit()) {
-                    int keyLenOrMark = view.getInt(curPosition);
-                    if (keyLenOrMark == END_MARK) {
+                    int recordBytes = WalReader.readRecord(view, curPosition, null);
+                    if (recordBytes == WalReader.END_OF_WAL) {
                         throw new IllegalStateException("file write done");
                     }
-                    int valLen = view.getInt(curPosition + 4);
-                    if (keyLenOrMark == 0 && valLen == 0) {
+                    if (recordBytes == WalReader.NO_MORE_RECORD) {
                         break;
                     }
-                    curPosition = curPosition + 4 + 4 + keyLenOrMark + valLen;
+                    curPosition += recordBytes;
+                }
+                if (curPosition + 4 <= view.limit() && view.getInt(curPosition) != 0) {
+                    //停在了损坏或者写了一半的记录上，清掉后面的内容，避免之后的写入和残留的旧记录拼在一起
+                    for (int i = curPosition; i < view.limit(); i++) {
+                        view.put(i, (byte) 0);
+                    }
                 }
                 this.curPosition = curPosition;
-                this.writer.position(curPosition);
+                this.syncedPosition = curPosition;
+                this.reservedPosition.set(curPosition);
             }
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
+    //在文件开头写入头部，写入位置之前的数据刷盘时一起落盘
+    static void writeSegmentHeader(ByteBuffer buffer) {
+        buffer.putInt(0, WAL_MAGIC);
+        buffer.putInt(4, WAL_VERSION);
+    }
+
     /**
-     *
+     * 单线程使用，写入并立即刷盘
      * @param key 要写入的key
      * @param value 要写入的value
      * @return 是否写入成功 如果文件放不下这返回false
      */
     public boolean write(byte[] key, byte[] value) {
-        int willWriteBytes = 4 //用一个int记录key的长度 4字节
-                + 4 //用一个int记录value的长度 4字节
-                + key.length //存放key内容 所占用的字节数
-                + value.length; //存放value内容 所占用的字节数
-        if (this.curPosition + willWriteBytes + END_MARK_BYTES > this.maxSize) {
-            this.writer.putInt(END_MARK);
+        if (!append(key, value)) {
             return false;
         }
-        writer.putInt(key.length);
-        writer.putInt(value.length);
-        writer.put(key);
-        writer.put(value);
         //每次都刷，不会丢数据，但是性能受影响
-        writer.force();
-        this.curPosition += willWriteBytes;
+        sync();
+        return true;
+    }
+
+    /**
+     * 单线程使用，只写入映射内存，不刷盘，需要配合 {@link #sync()} 使用
+     * @param key 要写入的key
+     * @param value 要写入的value
+     * @return 是否写入成功 如果文件放不下这返回false，并写入结束标记
+     */
+    public boolean append(byte[] key, byte[] value) {
+        WriteBatch batch = new WriteBatch();
+        if (Kv.isTombstone(value)) {
+            batch.delete(key);
+        } else {
+            batch.put(key, value);
+        }
+        if (append(batch) == FULL) {
+            finish();
+            return false;
+        }
         return true;
     }
 
+    //不关心序列号时使用，序列号都记为 0
+    public int append(WriteBatch batch) {
+        return append(batch, 0);
+    }
+
+    /**
+     * 把一个batch作为一条带 crc32c 校验的记录写入映射内存，可以多线程并发调用：
+     * 先通过CAS预留空间，各线程并行拷贝数据，再按照预留的顺序发布，
+     * 保证返回时这条记录之前的数据都已经完整写入。不刷盘，需要配合 {@link #sync(int)} 使用
+     * @param batch 要写入的batch
+     * @param seq batch 中第一条数据的序列号
+     * @return 写入后的结束位置，文件放不下时返回 FULL，之后的写入也都会返回 FULL
+     */
+    public int append(WriteBatch batch, long seq) {
+        int willWriteBytes = recordBytes(batch);
+        //空文件也要放下头部和结束标记，否则会一直返回 FULL
+        if (SEGMENT_HEADER_BYTES + willWriteBytes + END_MARK_BYTES > this.maxSize) {
+            throw new IllegalStateException("单条记录超过了wal文件大小");
+        }
+        int start;
+        while (true) {
+            if (this.full) {
+                return FULL;
+            }
+            start = this.reservedPosition.get();
+            //始终给结束标记留出空间
+            if (start + willWriteBytes + END_MARK_BYTES > this.maxSize) {
+                this.full = true;
+                return FULL;
+            }
+            if (this.reservedPosition.compareAndSet(start, start + willWriteBytes)) {
+                break;
+            }
+        }
+        ByteBuffer view = this.writer.duplicate();
+        view.position(start);
+        List<Kv> entries = batch.entries();
+        view.putInt(willWriteBytes - RECORD_HEADER_BYTES);
+        //crc 最后计算
+        view.putInt(0);
+        view.putInt(entries.size());
+        view.putLong(seq);
+        for (Kv kv : entries) {
+            view.putInt(kv.getKey().length);
+            view.putInt(kv.isTombstone() ? TOMBSTONE_LEN : kv.getValue().length);
+            view.put(kv.getKey());
+            view.put(kv.getValue());
+        }
+        view.putInt(start + 4, WalReader.checksum(view, start + 8, start + willWriteBytes));
+        //等待前面预留的写入者完成，按顺序发布，避免文件中出现空洞
+        int end = start + willWriteBytes;
+        while (this.curPosition != start) {
+            Thread.yield();
+        }
+        this.curPosition = end;
+        return end;
+    }
+
+    private static int recordBytes(WriteBatch batch) {
+        int bytes = (4 //用一个int记录key的长度 4字节
+                + 4) //用一个int记录value的长度 4字节
+                * batch.size()
+                + batch.bytes(); //存放key、value内容 所占用的字节数
+        return RECORD_HEADER_BYTES + bytes;
+    }
+
+    /**
+     * 写入结束标记，调用时不能有正在进行的写入
+     */
+    public void finish() {
+        this.full = true;
+        this.writer.putInt(this.curPosition, END_MARK);
+    }
+
+    /**
+     * 把已经 append 的数据刷到磁盘，没有新数据时不做任何事情
+     */
+    public void sync() {
+        sync(this.curPosition);
+    }
+
+    /**
+     * 组提交：保证 position 之前的数据落盘。同一时刻只有一个线程刷盘，
+     * 一次刷盘会带上所有已经写完的数据，排队的线程拿到锁后发现已经落盘就直接返回
+     * @param position append 返回的结束位置
+     */
+    public void sync(int position) {
+        if (this.syncedPosition >= position) {
+            return;
+        }
+        synchronized (this.syncLock) {
+            if (this.syncedPosition >= position) {
+                return;
+            }
+            int curPosition = this.curPosition;
+            writer.force();
+            this.syncedPosition = curPosition;
+        }
+    }
+
+    /**
+     * 通过 msync 刷盘，供后台定时刷盘使用
+     * @param flags {@link LibC#MS_ASYNC} 只发起回写，{@link LibC#MS_SYNC} 等待回写完成
+     */
+    public void msync(int flags) {
+        synchronized (this.syncLock) {
+            int position = this.curPosition;
+            if (this.syncedPosition >= position) {
+                return;
+            }
+            long address = ((DirectBuffer) this.writer).address();
+            int res = LibC.INSTANCE.msync(new Pointer(address), new NativeLong(position), flags);
+            if (res != 0) {
+                throw new IllegalStateException("msync 失败: " + res);
+            }
+            if ((flags & LibC.MS_SYNC) != 0) {
+                this.syncedPosition = position;
+            }
+        }
+    }
+
     public void close() {
         BufferCleanUtil.clean(this.writer);
         try {
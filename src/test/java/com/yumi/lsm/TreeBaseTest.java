@@ -1,9 +1,31 @@
 package com.yumi.lsm;
 
+import com.yumi.lsm.filter.PrefixExtractor;
+import com.yumi.lsm.memtable.ArenaSkipListMemTable;
+import com.yumi.lsm.sst.SstReader;
+import com.yumi.lsm.sst.SstReaderTest;
+import com.yumi.lsm.util.AllUtils;
+import com.yumi.lsm.util.Kv;
+import com.yumi.lsm.wal.WalConstants;
+import com.yumi.lsm.wal.WalSyncMode;
+import com.yumi.lsm.wal.WalWriter;
+import com.google.common.hash.Hashing;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 
 import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static com.yumi.lsm.TreeTestHelper.cleanFolder;
 
@@ -32,4 +54,858 @@ public class TreeBaseTest {
         }
         tree.close();
     }
+
+    @Test
+    public void testConcurrentPut() throws Exception {
+        String workDir = "/tmp/yumi";
+        File file = new File(workDir);
+        cleanFolder(file);
+        file.delete();
+
+        Tree writeTree = new Tree(Config.newConfig(workDir));
+        int threadCnt = 8;
+        int perThread = 3000;
+        Thread[] threads = new Thread[threadCnt];
+        for (int t = 0; t < threadCnt; t++) {
+            int base = t * perThread;
+            threads[t] = new Thread(() -> {
+                for (int i = base; i < base + perThread; i++) {
+                    writeTree.put(("yumi" + i).getBytes(), ("value" + i).getBytes());
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (int i = 0; i < threadCnt * perThread; i++) {
+            Assertions.assertEquals("value" + i, new String(writeTree.get(("yumi" + i).getBytes())));
+        }
+        writeTree.close();
+
+        Tree tree = new Tree(Config.newConfig(workDir));
+        for (int i = 0; i < threadCnt * perThread; i++) {
+            Assertions.assertEquals("value" + i, new String(tree.get(("yumi" + i).getBytes())));
+        }
+        tree.close();
+    }
+
+    @Test
+    public void testWalSyncModes() {
+        String workDir = "/tmp/yumi";
+        for (WalSyncMode mode : WalSyncMode.values()) {
+            File file = new File(workDir);
+            cleanFolder(file);
+            file.delete();
+
+            Tree writeTree = new Tree(Config.newConfig(workDir, c -> {
+                c.setWalSyncMode(mode);
+                c.setWalSyncIntervalMs(10);
+            }));
+            for (int i = 0; i < 100; i++) {
+                writeTree.put(("yumi" + i).getBytes(), mode.name().getBytes());
+            }
+            writeTree.syncWal();
+            writeTree.close();
+
+            Tree tree = new Tree(Config.newConfig(workDir));
+            for (int i = 0; i < 100; i++) {
+                Assertions.assertEquals(mode.name(), new String(tree.get(("yumi" + i).getBytes())));
+            }
+            tree.close();
+        }
+    }
+
+    @Test
+    public void testWriteBatch() {
+        String workDir = "/tmp/yumi";
+        File file = new File(workDir);
+        cleanFolder(file);
+        file.delete();
+
+        Tree writeTree = new Tree(Config.newConfig(workDir));
+        for (int i = 0; i < 100; i++) {
+            writeTree.put(("yumi" + i).getBytes(), "old".getBytes());
+        }
+        WriteBatch batch = new WriteBatch();
+        for (int i = 0; i < 50; i++) {
+            batch.put(("yumi" + i).getBytes(), "new".getBytes());
+        }
+        for (int i = 50; i < 100; i++) {
+            batch.delete(("yumi" + i).getBytes());
+        }
+        writeTree.write(batch);
+        for (int i = 0; i < 50; i++) {
+            Assertions.assertEquals("new", new String(writeTree.get(("yumi" + i).getBytes())));
+        }
+        for (int i = 50; i < 100; i++) {
+            Assertions.assertNull(writeTree.get(("yumi" + i).getBytes()));
+        }
+        writeTree.close();
+
+        Tree tree = new Tree(Config.newConfig(workDir));
+        for (int i = 0; i < 50; i++) {
+            Assertions.assertEquals("new", new String(tree.get(("yumi" + i).getBytes())));
+        }
+        for (int i = 50; i < 100; i++) {
+            Assertions.assertNull(tree.get(("yumi" + i).getBytes()));
+        }
+        tree.close();
+    }
+
+    @Test
+    public void testConcurrentBatchVisibility() throws Exception {
+        String workDir = "/tmp/yumi";
+        File file = new File(workDir);
+        cleanFolder(file);
+        file.delete();
+
+        Tree tree = new Tree(Config.newConfig(workDir));
+        byte[] first = "batch-a".getBytes();
+        byte[] second = "batch-b".getBytes();
+        AtomicBoolean done = new AtomicBoolean(false);
+        AtomicReference<String> error = new AtomicReference<>();
+        //同时有单条写入，batch 的序列号和其他写入交错完成
+        Thread single = new Thread(() -> {
+            for (int i = 0; !done.get(); i++) {
+                tree.put(key(i % 1000), "single".getBytes());
+            }
+        });
+        Thread reader = new Thread(() -> {
+            while (!done.get()) {
+                try (TreeIterator iterator = tree.scan(first, "batch-c".getBytes())) {
+                    byte[] a = null;
+                    byte[] b = null;
+                    for (; iterator.valid(); iterator.next()) {
+                        if (Arrays.equals(first, iterator.key())) {
+                            a = iterator.value();
+                        } else {
+                            b = iterator.value();
+                        }
+                    }
+                    //一个 batch 中的数据要么都可见，要么都不可见
+                    if (!Arrays.equals(a, b)) {
+                        error.compareAndSet(null, "读到了不完整的 batch");
+                    }
+                }
+            }
+        });
+        single.start();
+        reader.start();
+        for (int round = 0; round < 20000; round++) {
+            WriteBatch batch = new WriteBatch();
+            batch.put(first, ("v" + round).getBytes());
+            batch.put(second, ("v" + round).getBytes());
+            tree.write(batch);
+            //写入返回以后一定能读到
+            Assertions.assertEquals("v" + round, new String(tree.get(second)));
+        }
+        done.set(true);
+        single.join();
+        reader.join();
+        Assertions.assertNull(error.get());
+        tree.close();
+    }
+
+    @Test
+    public void testArenaMemTable() {
+        String workDir = "/tmp/yumi";
+        File file = new File(workDir);
+        cleanFolder(file);
+        file.delete();
+
+        Tree writeTree = new Tree(Config.newConfig(workDir, c -> c.setMemTableConstructor(ArenaSkipListMemTable::new)));
+        //写满多个wal，触发 mem table 的切换和 flush
+        for (int i = 0; i < 30000; i++) {
+            writeTree.put(("yumi" + i).getBytes(), ("value" + i + "-0123456789012345678901234567890123456789").getBytes());
+        }
+        for (int i = 0; i < 30000; i++) {
+            Assertions.assertEquals("value" + i + "-0123456789012345678901234567890123456789",
+                    new String(writeTree.get(("yumi" + i).getBytes())));
+        }
+        writeTree.close();
+    }
+
+    @Test
+    public void testScan() throws Exception {
+        String workDir = "/tmp/yumi";
+        File file = new File(workDir);
+        cleanFolder(file);
+        file.delete();
+
+        Tree writeTree = new Tree(Config.newConfig(workDir, c -> c.setSstSize(64 * 1024)));
+        //数据分布在 mem table 和多层 sst 中，并且有覆盖写和删除
+        int cnt = 20000;
+        for (int round = 0; round < 2; round++) {
+            for (int i = 0; i < cnt; i++) {
+                writeTree.put(key(i), ("value" + i + "-" + round).getBytes());
+            }
+        }
+        WriteBatch deletes = new WriteBatch();
+        for (int i = 0; i < cnt; i += 3) {
+            deletes.delete(key(i));
+            if (deletes.size() == 100) {
+                writeTree.write(deletes);
+                deletes.clear();
+            }
+        }
+        writeTree.write(deletes);
+
+        //遍历过程中的并发写入不影响遍历
+        Thread writer = new Thread(() -> {
+            for (int i = 0; i < cnt; i++) {
+                writeTree.put(("zz" + i).getBytes(), new byte[100]);
+            }
+        });
+        try (TreeIterator iterator = writeTree.newIterator()) {
+            writer.start();
+            iterator.seekToFirst();
+            int expected = 1;
+            while (iterator.valid() && AllUtils.compare(iterator.key(), "zz".getBytes()) < 0) {
+                Assertions.assertArrayEquals(key(expected), iterator.key());
+                Assertions.assertEquals("value" + expected + "-1", new String(iterator.value()));
+                expected += expected % 3 == 2 ? 2 : 1;
+                iterator.next();
+            }
+            Assertions.assertEquals(cnt + (cnt % 3 == 0 ? 1 : 0), expected);
+        }
+        writer.join();
+
+        //范围遍历 [100, 200)
+        try (TreeIterator iterator = writeTree.scan(key(100), key(200))) {
+            int n = 0;
+            for (; iterator.valid(); iterator.next()) {
+                n++;
+            }
+            Assertions.assertEquals(67, n);
+        }
+        writeTree.close();
+    }
+
+    @Test
+    public void testScanPrefix() {
+        String workDir = "/tmp/yumi";
+        File file = new File(workDir);
+        cleanFolder(file);
+        file.delete();
+
+        Config config = Config.newConfig(workDir, c -> {
+            c.setSstSize(16 * 1024);
+            c.setPrefixExtractor(PrefixExtractor.fixed(5));
+        });
+        Tree tree = new Tree(config);
+        //user0 ~ user9 各 500 个 key，分布在多个 sst 中
+        for (int i = 0; i < 5000; i++) {
+            tree.put(String.format("user%d_%04d", i % 10, i / 10).getBytes(), ("value" + i).getBytes());
+        }
+        tree.close();
+
+        tree = new Tree(config);
+        try (TreeIterator iterator = tree.scanPrefix("user3".getBytes())) {
+            int n = 0;
+            for (; iterator.valid(); iterator.next()) {
+                Assertions.assertArrayEquals(String.format("user3_%04d", n).getBytes(), iterator.key());
+                n++;
+            }
+            Assertions.assertEquals(500, n);
+        }
+        //不是提取出的前缀时不使用前缀过滤器，结果一样
+        try (TreeIterator iterator = tree.scanPrefix("user3_01".getBytes())) {
+            int n = 0;
+            for (; iterator.valid(); iterator.next()) {
+                n++;
+            }
+            Assertions.assertEquals(100, n);
+        }
+        try (TreeIterator iterator = tree.scanPrefix("nobody".getBytes())) {
+            Assertions.assertFalse(iterator.valid());
+        }
+        tree.close();
+    }
+
+    @Test
+    public void testRemove() throws Exception {
+        String workDir = "/tmp/yumi";
+        File file = new File(workDir);
+        cleanFolder(file);
+        file.delete();
+
+        //只有0层和1层，1层是最底层
+        Config.ConfigOption option = c -> {
+            c.setMaxLevel(2);
+            c.setSstSize(16 * 1024);
+        };
+        Tree writeTree = new Tree(Config.newConfig(workDir, option));
+        int cnt = 3000;
+        for (int i = 0; i < cnt; i++) {
+            writeTree.put(key(i), ("value" + i).getBytes());
+        }
+        for (int i = 0; i < cnt; i += 2) {
+            writeTree.remove(key(i));
+        }
+        for (int i = 0; i < cnt; i++) {
+            byte[] value = writeTree.get(key(i));
+            if (i % 2 == 0) {
+                Assertions.assertNull(value);
+            } else {
+                Assertions.assertEquals("value" + i, new String(value));
+            }
+        }
+        //写入更多数据，触发 flush 和 compaction
+        for (int i = 0; i < 20000; i++) {
+            writeTree.put(("zz" + i).getBytes(), new byte[64]);
+        }
+        File[] level1Files = new File[0];
+        for (int i = 0; i < 100 && level1Files.length == 0; i++) {
+            TimeUnit.MILLISECONDS.sleep(100);
+            level1Files = file.listFiles(f -> f.getName().startsWith("1_"));
+        }
+        Assertions.assertTrue(level1Files.length > 0);
+        writeTree.close();
+
+        //最底层中不会有墓碑
+        Config config = Config.newConfig(workDir, option);
+        for (File level1File : file.listFiles(f -> f.getName().startsWith("1_"))) {
+            SstReader sstReader = new SstReader(level1File.getName(), config);
+            for (Kv kv : sstReader.readData()) {
+                Assertions.assertFalse(kv.isTombstone());
+            }
+            sstReader.close();
+        }
+        Tree tree = new Tree(config);
+        for (int i = 0; i < cnt; i++) {
+            byte[] value = tree.get(key(i));
+            if (i % 2 == 0) {
+                Assertions.assertNull(value);
+            } else {
+                Assertions.assertEquals("value" + i, new String(value));
+            }
+        }
+        tree.close();
+    }
+
+    @Test
+    public void testParallelCompaction() throws Exception {
+        String workDir = "/tmp/yumi";
+        File file = new File(workDir);
+        cleanFolder(file);
+        file.delete();
+
+        Config.ConfigOption option = c -> {
+            c.setSstSize(16 * 1024);
+            c.setCompactionThreads(4);
+        };
+        Tree writeTree = new Tree(Config.newConfig(workDir, option));
+        int threadCnt = 4;
+        int perThread = 10000;
+        Thread[] threads = new Thread[threadCnt];
+        for (int t = 0; t < threadCnt; t++) {
+            int base = t * perThread;
+            threads[t] = new Thread(() -> {
+                for (int i = base; i < base + perThread; i++) {
+                    writeTree.put(key(i), ("value" + i).getBytes());
+                    //边写边读，压缩过程中已经写入的数据一直可见
+                    if (i % 7 == 0) {
+                        Assertions.assertEquals("value" + (i - 7 < base ? i : i - 7),
+                                new String(writeTree.get(key(i - 7 < base ? i : i - 7))));
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (int i = 0; i < threadCnt * perThread; i++) {
+            Assertions.assertEquals("value" + i, new String(writeTree.get(key(i))));
+        }
+        writeTree.close();
+
+        Tree tree = new Tree(Config.newConfig(workDir, option));
+        for (int i = 0; i < threadCnt * perThread; i++) {
+            Assertions.assertEquals("value" + i, new String(tree.get(key(i))));
+        }
+        tree.close();
+    }
+
+    @Test
+    public void testSubcompaction() throws Exception {
+        String workDir = "/tmp/yumi";
+        File file = new File(workDir);
+        cleanFolder(file);
+        file.delete();
+
+        Config.ConfigOption option = c -> {
+            c.setSstSize(16 * 1024);
+            c.setMaxSubcompactions(4);
+        };
+        Tree writeTree = new Tree(Config.newConfig(workDir, option));
+        //乱序写入，每次压缩都覆盖很大的 key 范围，会被拆分成多个区间
+        int cnt = 20000;
+        List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < cnt; i++) {
+            order.add(i);
+        }
+        Random random = new Random(42);
+        for (int round = 0; round < 2; round++) {
+            Collections.shuffle(order, random);
+            for (int i : order) {
+                writeTree.put(key(i), ("value" + i + "-" + round).getBytes());
+            }
+        }
+        for (int i = 0; i < cnt; i += 5) {
+            writeTree.remove(key(i));
+        }
+        writeTree.close();
+
+        //1层及以下每层的文件之间不能有重叠
+        Config checkConfig = Config.newConfig(workDir, option);
+        Map<String, List<byte[][]>> levelRanges = new HashMap<>();
+        for (File sstFile : file.listFiles(f -> f.getName().endsWith(".sst") && !f.getName().startsWith("0_"))) {
+            SstReader sstReader = new SstReader(sstFile.getName(), checkConfig);
+            Kv[] kvs = sstReader.readData();
+            sstReader.close();
+            Assertions.assertTrue(kvs.length > 0);
+            levelRanges.computeIfAbsent(sstFile.getName().split("_")[0], l -> new ArrayList<>())
+                    .add(new byte[][]{kvs[0].getKey(), kvs[kvs.length - 1].getKey()});
+        }
+        Assertions.assertFalse(levelRanges.isEmpty());
+        for (List<byte[][]> ranges : levelRanges.values()) {
+            ranges.sort((r1, r2) -> AllUtils.compare(r1[0], r2[0]));
+            for (int i = 1; i < ranges.size(); i++) {
+                Assertions.assertTrue(AllUtils.compare(ranges.get(i - 1)[1], ranges.get(i)[0]) < 0);
+            }
+        }
+        checkConfig.getBlockBufferPool().destroy(5);
+
+        Tree tree = new Tree(Config.newConfig(workDir, option));
+        for (int i = 0; i < cnt; i++) {
+            byte[] value = tree.get(key(i));
+            if (i % 5 == 0) {
+                Assertions.assertNull(value);
+            } else {
+                Assertions.assertEquals("value" + i + "-1", new String(value));
+            }
+        }
+        int scanned = 0;
+        try (TreeIterator iterator = tree.newIterator()) {
+            iterator.seekToFirst();
+            byte[] prev = null;
+            for (; iterator.valid(); iterator.next()) {
+                if (null != prev) {
+                    Assertions.assertTrue(AllUtils.compare(prev, iterator.key()) < 0);
+                }
+                prev = iterator.key();
+                scanned++;
+            }
+        }
+        Assertions.assertEquals(cnt - cnt / 5, scanned);
+        tree.close();
+    }
+
+    @Test
+    public void testWriteStall() throws Exception {
+        String workDir = "/tmp/yumi";
+        File file = new File(workDir);
+        cleanFolder(file);
+        file.delete();
+
+        Config.ConfigOption option = c -> {
+            c.setSstSize(16 * 1024);
+            c.setLevel0SlowdownWritesTrigger(2);
+            c.setLevel0StopWritesTrigger(4);
+            c.setMaxPendingMemTables(2);
+            c.setMaxWriteDelayMicros(50);
+        };
+        Tree writeTree = new Tree(Config.newConfig(workDir, option));
+        WriteController controller = writeTree.getWriteController();
+        int cnt = 20000;
+        for (int i = 0; i < cnt; i++) {
+            writeTree.put(key(i), ("value" + i).getBytes());
+            //限流保证 0 层文件和冷表不会无限增长，阻塞期间已有的冷表还会继续 flush 到 0 层
+            Assertions.assertTrue(controller.getLevel0Files() <= 4 + 2);
+            Assertions.assertTrue(controller.getPendingMemTables() <= 2);
+        }
+        Assertions.assertTrue(controller.delayedWriteCount() + controller.stoppedWriteCount() > 0);
+        for (int i = 0; i < cnt; i++) {
+            Assertions.assertEquals("value" + i, new String(writeTree.get(key(i))));
+        }
+        writeTree.close();
+    }
+
+    @Test
+    public void testSnapshot() throws Exception {
+        String workDir = "/tmp/yumi";
+        File file = new File(workDir);
+        cleanFolder(file);
+        file.delete();
+
+        Config.ConfigOption option = c -> {
+            c.setMaxLevel(2);
+            c.setSstSize(16 * 1024);
+        };
+        Tree writeTree = new Tree(Config.newConfig(workDir, option));
+        int cnt = 100;
+        for (int i = 0; i < cnt; i++) {
+            writeTree.put(key(i), ("v1-" + i).getBytes());
+        }
+        Snapshot snapshot = writeTree.getSnapshot();
+        for (int i = 0; i < cnt; i++) {
+            writeTree.put(key(i), ("v2-" + i).getBytes());
+        }
+        for (int i = 0; i < cnt; i += 2) {
+            writeTree.remove(key(i));
+        }
+        //快照看不到之后的覆盖和删除
+        for (int i = 0; i < cnt; i++) {
+            Assertions.assertEquals("v1-" + i, new String(writeTree.get(key(i), snapshot)));
+            Assertions.assertEquals(i % 2 == 0 ? null : "v2-" + i,
+                    null == writeTree.get(key(i)) ? null : new String(writeTree.get(key(i))));
+        }
+        //flush 和 compaction 以后，快照能看到的版本依然保留
+        for (int i = 0; i < 20000; i++) {
+            writeTree.put(("zz" + i).getBytes(), new byte[64]);
+        }
+        File[] level1Files = new File[0];
+        for (int i = 0; i < 100 && level1Files.length == 0; i++) {
+            TimeUnit.MILLISECONDS.sleep(100);
+            level1Files = file.listFiles(f -> f.getName().startsWith("1_"));
+        }
+        Assertions.assertTrue(level1Files.length > 0);
+        try (TreeIterator iterator = writeTree.scan(null, "zz".getBytes(), snapshot)) {
+            for (int i = 0; i < cnt; i++) {
+                Assertions.assertTrue(iterator.valid());
+                Assertions.assertArrayEquals(key(i), iterator.key());
+                Assertions.assertEquals("v1-" + i, new String(iterator.value()));
+                Assertions.assertTrue(iterator.seq() <= snapshot.getSeq());
+                iterator.next();
+            }
+            Assertions.assertFalse(iterator.valid());
+        }
+        try (TreeIterator iterator = writeTree.scan(null, "zz".getBytes())) {
+            for (int i = 1; i < cnt; i += 2) {
+                Assertions.assertArrayEquals(key(i), iterator.key());
+                Assertions.assertEquals("v2-" + i, new String(iterator.value()));
+                iterator.next();
+            }
+            Assertions.assertFalse(iterator.valid());
+        }
+        writeTree.releaseSnapshot(snapshot);
+        Assertions.assertThrowsExactly(IllegalStateException.class, () -> writeTree.get(key(0), snapshot));
+        writeTree.close();
+
+        //重新打开以后序列号继续递增，新的写入覆盖旧的数据
+        Tree tree = new Tree(Config.newConfig(workDir, option));
+        Snapshot reopened = tree.getSnapshot();
+        Assertions.assertTrue(reopened.getSeq() > snapshot.getSeq());
+        tree.put(key(1), "v3".getBytes());
+        Assertions.assertEquals("v3", new String(tree.get(key(1))));
+        Assertions.assertEquals("v2-1", new String(tree.get(key(1), reopened)));
+        tree.releaseSnapshot(reopened);
+        tree.close();
+    }
+
+    @Test
+    public void testScanDuringCompaction() throws Exception {
+        String workDir = "/tmp/yumi";
+        File file = new File(workDir);
+        cleanFolder(file);
+        file.delete();
+
+        Config.ConfigOption option = c -> {
+            c.setMaxLevel(2);
+            c.setSstSize(16 * 1024);
+        };
+        Tree tree = new Tree(Config.newConfig(workDir, option));
+        int cnt = 100;
+        for (int i = 0; i < cnt; i++) {
+            tree.put(key(i), ("r0-" + i).getBytes());
+        }
+        //不断覆盖同一批 key，同时写入大量数据触发 flush 和 compaction
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        Thread writer = new Thread(() -> {
+            try {
+                for (int round = 1; round <= 20; round++) {
+                    for (int i = 0; i < cnt; i++) {
+                        tree.put(key(i), ("r" + round + "-" + i).getBytes());
+                    }
+                    for (int i = 0; i < 1000; i++) {
+                        tree.put(("zz" + round + "-" + i).getBytes(), new byte[64]);
+                    }
+                }
+            } catch (Throwable e) {
+                error.set(e);
+            } finally {
+                done.set(true);
+            }
+        });
+        writer.start();
+        //遍历期间完成的 compaction 不能丢掉遍历需要的版本，每个 key 都要能看到
+        int scans = 0;
+        while (!done.get() || scans == 0) {
+            try (TreeIterator iterator = scans % 2 == 0 ? tree.scan(null, "zz".getBytes()) : tree.scanPrefix("key".getBytes())) {
+                for (int i = 0; i < cnt; i++) {
+                    Assertions.assertTrue(iterator.valid());
+                    Assertions.assertArrayEquals(key(i), iterator.key());
+                    Assertions.assertTrue(new String(iterator.value()).endsWith("-" + i));
+                    iterator.next();
+                    if (i % 10 == 0) {
+                        TimeUnit.MILLISECONDS.sleep(1);
+                    }
+                }
+                Assertions.assertFalse(iterator.valid());
+            }
+            scans++;
+        }
+        writer.join();
+        Assertions.assertNull(error.get());
+        for (int i = 0; i < cnt; i++) {
+            Assertions.assertEquals("r20-" + i, new String(tree.get(key(i))));
+        }
+        tree.close();
+    }
+
+    @Test
+    public void testManifest() throws Exception {
+        String workDir = "/tmp/yumi";
+        File file = new File(workDir);
+        cleanFolder(file);
+        file.delete();
+
+        Config.ConfigOption option = c -> c.setSstSize(16 * 1024);
+        Tree writeTree = new Tree(Config.newConfig(workDir, option));
+        int cnt = 10000;
+        for (int i = 0; i < cnt; i++) {
+            writeTree.put(key(i), ("value" + i).getBytes());
+        }
+        writeTree.close();
+        Assertions.assertTrue(new File(workDir + File.separator + "MANIFEST").exists());
+
+        //模拟崩溃时没有完成的压缩输出，manifest 中没有记录，打开时被删除
+        File orphan = new File(workDir + File.separator + "1_99999.sst");
+        Assertions.assertTrue(orphan.createNewFile());
+        Tree tree = new Tree(Config.newConfig(workDir, option));
+        Assertions.assertFalse(orphan.exists());
+        for (int i = 0; i < cnt; i++) {
+            Assertions.assertEquals("value" + i, new String(tree.get(key(i))));
+        }
+        tree.close();
+
+        //没有 manifest 的老数据扫描目录加载，并生成 manifest
+        Assertions.assertTrue(new File(workDir + File.separator + "MANIFEST").delete());
+        tree = new Tree(Config.newConfig(workDir, option));
+        Assertions.assertTrue(new File(workDir + File.separator + "MANIFEST").exists());
+        //最大的序列号从 footer 中恢复，快照能看到所有已有的数据
+        Snapshot snapshot = tree.getSnapshot();
+        for (int i = 0; i < cnt; i++) {
+            Assertions.assertEquals("value" + i, new String(tree.get(key(i))));
+            Assertions.assertEquals("value" + i, new String(tree.get(key(i), snapshot)));
+        }
+        tree.releaseSnapshot(snapshot);
+        tree.close();
+    }
+
+    @Test
+    public void testReopenLoadOptions() throws Exception {
+        String workDir = "/tmp/yumi";
+        File file = new File(workDir);
+        cleanFolder(file);
+        file.delete();
+
+        Tree writeTree = new Tree(Config.newConfig(workDir, c -> c.setSstSize(16 * 1024)));
+        int cnt = 10000;
+        for (int i = 0; i < cnt; i++) {
+            writeTree.put(key(i), ("value" + i).getBytes());
+        }
+        writeTree.close();
+
+        //并行加载，filter 和 index 分别使用延迟加载、立即加载、不常驻内存
+        Config.ConfigOption[] options = new Config.ConfigOption[]{
+                c -> c.setSstLoadThreads(8),
+                c -> c.setLazyLoadFilterAndIndex(false),
+                c -> {
+                    c.setSstLoadThreads(1);
+                    c.setPinFilterAndIndex(false);
+                }
+        };
+        for (int o = 0; o < options.length; o++) {
+            Tree tree = new Tree(Config.newConfig(workDir, c -> c.setSstSize(16 * 1024), options[o]));
+            for (int i = 0; i < cnt; i++) {
+                Assertions.assertEquals("value" + i, new String(tree.get(key(i))));
+            }
+            //每个 key 都读过一次，常驻内存时所有节点的 filter 和 index 都已经在堆外
+            MemoryUsage usage = tree.memoryUsage();
+            Assertions.assertTrue(usage.getNodeCnt() > 1, usage.toString());
+            Assertions.assertTrue(usage.getBlockCacheBytes() > 0, usage.toString());
+            if (o < 2) {
+                Assertions.assertEquals(usage.getNodeCnt(), usage.getLoadedNodeCnt(), usage.toString());
+                Assertions.assertTrue(usage.getFilterBytes() > 0, usage.toString());
+                Assertions.assertTrue(usage.getIndexBytes() > 0, usage.toString());
+            }
+            try (TreeIterator iterator = tree.scan(key(100), key(200))) {
+                for (int i = 100; i < 200; i++) {
+                    Assertions.assertArrayEquals(key(i), iterator.key());
+                    iterator.next();
+                }
+                Assertions.assertFalse(iterator.valid());
+            }
+            tree.close();
+        }
+    }
+
+    @Test
+    public void testParallelWalRecovery() throws Exception {
+        String workDir = "/tmp/yumi";
+        File file = new File(workDir);
+        cleanFolder(file);
+        file.delete();
+
+        //模拟崩溃时留下的多个 wal，同一个 key 在后面的 wal 中更新
+        Config config = Config.newConfig(workDir, c -> c.setWalRecoveryThreads(3));
+        int walCnt = 6;
+        for (int w = 0; w < walCnt; w++) {
+            WalWriter walWriter = new WalWriter(workDir + File.separator + "walfile" + File.separator + w + ".wal",
+                    config.getWalFileSize());
+            for (int i = 0; i < 1000; i++) {
+                Assertions.assertTrue(walWriter.append(key(i), ("value" + i + "-" + w).getBytes()));
+            }
+            Assertions.assertTrue(walWriter.append(key(10000 + w), ("only" + w).getBytes()));
+            if (w < walCnt - 1) {
+                walWriter.finish();
+            }
+            walWriter.sync();
+            walWriter.close();
+        }
+        config.getBlockBufferPool().destroy(5);
+
+        Tree tree = new Tree(Config.newConfig(workDir, c -> c.setWalRecoveryThreads(3)));
+        for (int i = 0; i < 1000; i++) {
+            Assertions.assertEquals("value" + i + "-" + (walCnt - 1), new String(tree.get(key(i))));
+        }
+        for (int w = 0; w < walCnt; w++) {
+            Assertions.assertEquals("only" + w, new String(tree.get(key(10000 + w))));
+        }
+        //最后一个 wal 继续作为活跃的 mem table 写入
+        tree.put(key(0), "latest".getBytes());
+        Assertions.assertEquals("latest", new String(tree.get(key(0))));
+        tree.close();
+    }
+
+    @Test
+    public void testLegacyWal() throws Exception {
+        String workDir = "/tmp/yumi";
+        File file = new File(workDir);
+        cleanFolder(file);
+        file.delete();
+
+        //老版本留下的 wal：没有头部，记录中没有序列号 -> bodyLen crc count 之后是 keyLen valLen key value
+        Config config = Config.newConfig(workDir);
+        ByteBuffer buffer = ByteBuffer.allocate(config.getWalFileSize());
+        for (int i = 0; i < 100; i++) {
+            byte[] key = key(i);
+            byte[] value = ("old" + i).getBytes();
+            int start = buffer.position();
+            buffer.putInt(8 + key.length + value.length);
+            buffer.putInt(0);
+            buffer.putInt(1);
+            buffer.putInt(key.length).putInt(value.length).put(key).put(value);
+            buffer.putInt(start + 4, Hashing.crc32c().hashBytes(buffer.array(), start + 8, buffer.position() - start - 8).asInt());
+        }
+        Files.write(new File(workDir + File.separator + "walfile" + File.separator + "0.wal").toPath(), buffer.array());
+        config.getBlockBufferPool().destroy(5);
+
+        //老文件只回放，不再写入，新的写入落到新的 wal 中
+        Tree tree = new Tree(Config.newConfig(workDir));
+        for (int i = 0; i < 100; i++) {
+            Assertions.assertEquals("old" + i, new String(tree.get(key(i))));
+        }
+        tree.put(key(0), "new".getBytes());
+        Assertions.assertEquals("new", new String(tree.get(key(0))));
+        tree.close();
+
+        tree = new Tree(Config.newConfig(workDir));
+        Assertions.assertEquals("new", new String(tree.get(key(0))));
+        for (int i = 1; i < 100; i++) {
+            Assertions.assertEquals("old" + i, new String(tree.get(key(i))));
+        }
+        tree.close();
+    }
+
+    @Test
+    public void testLegacySst() throws Exception {
+        String workDir = "/tmp/yumi";
+        File file = new File(workDir);
+        cleanFolder(file);
+        file.delete();
+
+        //老版本留下的数据目录：没有 manifest，sst 是最早的格式
+        Config config = Config.newConfig(workDir);
+        Files.write(new File(workDir + File.separator + "1_1.sst").toPath(), SstReaderTest.version0Sst());
+        config.getBlockBufferPool().destroy(5);
+
+        Tree tree = new Tree(Config.newConfig(workDir));
+        Assertions.assertArrayEquals(new byte[] {1, 2}, tree.get(new byte[] {1, 2}));
+        Assertions.assertArrayEquals(new byte[] {3, 4}, tree.get(new byte[] {3, 4}));
+        Assertions.assertNull(tree.get(new byte[] {2}));
+        tree.put(new byte[] {1}, "new".getBytes());
+        tree.remove(new byte[] {3});
+        int scanned = 0;
+        try (TreeIterator iterator = tree.newIterator()) {
+            for (iterator.seekToFirst(); iterator.valid(); iterator.next()) {
+                scanned++;
+            }
+        }
+        Assertions.assertEquals(3, scanned);
+        tree.close();
+
+        tree = new Tree(Config.newConfig(workDir));
+        Assertions.assertEquals("new", new String(tree.get(new byte[] {1})));
+        Assertions.assertArrayEquals(new byte[] {1, 2}, tree.get(new byte[] {1, 2}));
+        Assertions.assertNull(tree.get(new byte[] {3}));
+        Assertions.assertArrayEquals(new byte[] {3, 4}, tree.get(new byte[] {3, 4}));
+        tree.close();
+    }
+
+    @Test
+    public void testEmptyWal() throws Exception {
+        String workDir = "/tmp/yumi";
+        File file = new File(workDir);
+        cleanFolder(file);
+        file.delete();
+
+        //第一个 wal 的记录损坏，恢复出空的冷表；第二个 wal 正常
+        Config config = Config.newConfig(workDir);
+        String walDir = workDir + File.separator + "walfile" + File.separator;
+        ByteBuffer corrupt = ByteBuffer.allocate(config.getWalFileSize());
+        corrupt.putInt(WalConstants.WAL_MAGIC);
+        corrupt.putInt(WalConstants.WAL_VERSION);
+        corrupt.putInt(100);
+        corrupt.putInt(12345);
+        Files.write(new File(walDir + "0.wal").toPath(), corrupt.array());
+        WalWriter walWriter = new WalWriter(walDir + "1.wal", config.getWalFileSize());
+        Assertions.assertTrue(walWriter.append(key(1), "v1".getBytes()));
+        walWriter.sync();
+        walWriter.close();
+        config.getBlockBufferPool().destroy(5);
+
+        //空的冷表不生成 sst，直接移除并回收 wal，不会一直留在冷表列表中
+        Tree tree = new Tree(Config.newConfig(workDir));
+        File emptyWal = new File(walDir + "0.wal");
+        for (int i = 0; i < 100 && emptyWal.exists(); i++) {
+            TimeUnit.MILLISECONDS.sleep(100);
+        }
+        Assertions.assertFalse(emptyWal.exists());
+        Assertions.assertEquals(0, file.listFiles(f -> f.getName().endsWith(".sst")).length);
+        Assertions.assertEquals("v1", new String(tree.get(key(1))));
+        tree.close();
+
+        tree = new Tree(Config.newConfig(workDir));
+        Assertions.assertEquals("v1", new String(tree.get(key(1))));
+        tree.close();
+    }
+
+    private static byte[] key(int i) {
+        return String.format("key%08d", i).getBytes();
+    }
 }
@@ -0,0 +1,83 @@
+package com.yumi.lsm;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static com.yumi.lsm.TreeTestHelper.cleanFolder;
+
+public class WriteControllerTest {
+
+    private static WriteController newController() {
+        String workDir = "/tmp/yumi";
+        cleanFolder(new File(workDir));
+        Config config = Config.newConfig(workDir, c -> {
+            c.setLevel0SlowdownWritesTrigger(4);
+            c.setLevel0StopWritesTrigger(8);
+            c.setMaxPendingMemTables(3);
+            c.setMaxWriteDelayMicros(100);
+        });
+        config.getBlockBufferPool().destroy(5);
+        return new WriteController(config);
+    }
+
+    @Test
+    public void testState() {
+        WriteController controller = newController();
+        Assertions.assertEquals(WriteStallState.NORMAL, controller.getState());
+        controller.setLevel0Files(4);
+        Assertions.assertEquals(WriteStallState.DELAYED, controller.getState());
+        controller.setLevel0Files(8);
+        Assertions.assertEquals(WriteStallState.STOPPED, controller.getState());
+        controller.setLevel0Files(0);
+        Assertions.assertEquals(WriteStallState.NORMAL, controller.getState());
+        //冷表差一个到上限时延迟，到上限时阻塞
+        controller.setPendingMemTables(2);
+        Assertions.assertEquals(WriteStallState.DELAYED, controller.getState());
+        controller.setPendingMemTables(3);
+        Assertions.assertEquals(WriteStallState.STOPPED, controller.getState());
+        controller.setPendingMemTables(1);
+        Assertions.assertEquals(WriteStallState.NORMAL, controller.getState());
+
+        controller.maybeStall();
+        Assertions.assertEquals(0, controller.delayedWriteCount());
+        controller.setLevel0Files(5);
+        controller.maybeStall();
+        Assertions.assertEquals(1, controller.delayedWriteCount());
+        Assertions.assertTrue(controller.stallNanos() > 0);
+    }
+
+    @Test
+    public void testStopUntilCaughtUp() throws Exception {
+        WriteController controller = newController();
+        controller.setLevel0Files(8);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(1);
+        Thread writer = new Thread(() -> {
+            started.countDown();
+            controller.maybeStall();
+            done.countDown();
+        });
+        writer.start();
+        started.await();
+        Assertions.assertFalse(done.await(300, TimeUnit.MILLISECONDS));
+        //压缩完成，0层文件减少，阻塞的写入被唤醒
+        controller.setLevel0Files(1);
+        Assertions.assertTrue(done.await(1, TimeUnit.SECONDS));
+        Assertions.assertEquals(1, controller.stoppedWriteCount());
+
+        //关闭时也会唤醒
+        controller.setLevel0Files(8);
+        CountDownLatch closed = new CountDownLatch(1);
+        new Thread(() -> {
+            controller.maybeStall();
+            closed.countDown();
+        }).start();
+        Assertions.assertFalse(closed.await(200, TimeUnit.MILLISECONDS));
+        controller.close();
+        Assertions.assertTrue(closed.await(1, TimeUnit.SECONDS));
+    }
+}
@@ -2,10 +2,12 @@ package com.yumi.lsm.benchmark;
 
 import com.yumi.lsm.Config;
 import com.yumi.lsm.Tree;
+import com.yumi.lsm.wal.WalSyncMode;
 import org.openjdk.jmh.annotations.Benchmark;
 import org.openjdk.jmh.annotations.BenchmarkMode;
 import org.openjdk.jmh.annotations.Mode;
 import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
 import org.openjdk.jmh.annotations.Scope;
 import org.openjdk.jmh.annotations.Setup;
 import org.openjdk.jmh.annotations.State;
@@ -28,9 +30,14 @@ public class TreeBenchmark {
     private  Tree tree;
     static final String keyPrefix = "preFix";
 
+    //分别压测不同的wal刷盘策略
+    @Param({"SYNC", "INTERVAL", "NONE"})
+    public String walSyncMode;
+
     @Setup
     public void setup() {
-        tree = new Tree(Config.newConfig("/tmp/yumi"));
+        tree = new Tree(Config.newConfig("/tmp/yumi",
+                c -> c.setWalSyncMode(WalSyncMode.valueOf(walSyncMode))));
     }
 
     @TearDown
@@ -49,6 +56,15 @@ public class TreeBenchmark {
         tree.get(key.getBytes());
     }
 
+    @Benchmark
+    @BenchmarkMode({Mode.Throughput})
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @Threads(8)
+    public void putOnly() {
+        String key = keyPrefix +  ThreadLocalRandom.current().nextInt(10000000);
+        tree.put(key.getBytes(), key.getBytes());
+    }
+
     public static void main(String[] args) throws RunnerException {
         String workDir = "/tmp/yumi";
         File file = new File(workDir);
@@ -0,0 +1,101 @@
+package com.yumi.lsm.compress;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+public class CompressorTest {
+
+    @Test
+    public void testRoundTrip() {
+        Random random = new Random(7);
+        byte[][] inputs = new byte[][] {
+                new byte[0],
+                new byte[] {1, 2, 3},
+                repetitive(32 * 1024),
+                randomBytes(random, 32 * 1024),
+                //前半部分重复，后半部分随机
+                concat(repetitive(16 * 1024), randomBytes(random, 16 * 1024)),
+                //长 run，测试长度扩展字节
+                new byte[20000],
+        };
+        for (CompressionType type : new CompressionType[] {CompressionType.LZ4, CompressionType.DEFLATE}) {
+            for (byte[] input : inputs) {
+                byte[] compressed = new byte[input.length + 1024];
+                int n = type.compressor().compress(input, input.length, compressed);
+                Assertions.assertTrue(n >= 0, type.name());
+                //heap 和 direct 都要能解压
+                //复用过的 dst 的 limit 比这次的短
+                ByteBuffer reused = ByteBuffer.allocate(input.length + 8);
+                reused.limit(1);
+                for (ByteBuffer dst : new ByteBuffer[] {ByteBuffer.allocate(input.length + 8),
+                        ByteBuffer.allocateDirect(input.length + 8), reused}) {
+                    ByteBuffer src = ByteBuffer.allocateDirect(n);
+                    src.put(compressed, 0, n);
+                    src.flip();
+                    type.compressor().decompress(src, dst, input.length);
+                    Assertions.assertEquals(0, dst.position());
+                    Assertions.assertEquals(input.length, dst.limit());
+                    byte[] output = new byte[input.length];
+                    dst.get(output);
+                    Assertions.assertArrayEquals(input, output, type.name());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testCompressRatio() {
+        byte[] input = repetitive(32 * 1024);
+        byte[] compressed = new byte[input.length];
+        Assertions.assertTrue(CompressionType.LZ4.compressor().compress(input, input.length, compressed) < input.length / 4);
+        Assertions.assertTrue(CompressionType.DEFLATE.compressor().compress(input, input.length, compressed) < input.length / 4);
+    }
+
+    @Test
+    public void testDstTooSmall() {
+        byte[] input = randomBytes(new Random(1), 4096);
+        for (CompressionType type : new CompressionType[] {CompressionType.LZ4, CompressionType.DEFLATE}) {
+            Assertions.assertEquals(-1, type.compressor().compress(input, input.length, new byte[input.length / 2]));
+        }
+    }
+
+    @Test
+    public void testCorrupt() {
+        byte[] input = repetitive(4096);
+        byte[] compressed = new byte[input.length];
+        int n = CompressionType.LZ4.compressor().compress(input, input.length, compressed);
+        ByteBuffer src = ByteBuffer.wrap(compressed, 0, n);
+        //原始长度对不上
+        Assertions.assertThrows(IllegalStateException.class,
+                () -> CompressionType.LZ4.compressor().decompress(src, ByteBuffer.allocate(8192), input.length + 1));
+        Assertions.assertThrows(IllegalStateException.class, () -> CompressionType.of((byte) 100));
+    }
+
+    private static byte[] repetitive(int len) {
+        byte[] res = new byte[len];
+        byte[] pattern = "key_000123_value_abcdefgh".getBytes();
+        for (int i = 0; i < len; i++) {
+            res[i] = pattern[i % pattern.length];
+            if (i % 97 == 0) {
+                res[i] = (byte) i;
+            }
+        }
+        return res;
+    }
+
+    private static byte[] randomBytes(Random random, int len) {
+        byte[] res = new byte[len];
+        random.nextBytes(res);
+        return res;
+    }
+
+    private static byte[] concat(byte[] b1, byte[] b2) {
+        byte[] res = new byte[b1.length + b2.length];
+        System.arraycopy(b1, 0, res, 0, b1.length);
+        System.arraycopy(b2, 0, res, b1.length, b2.length);
+        return res;
+    }
+}
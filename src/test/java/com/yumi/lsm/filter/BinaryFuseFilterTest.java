@@ -0,0 +1,94 @@
+package com.yumi.lsm.filter;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class BinaryFuseFilterTest {
+
+    @Test
+    public void testNoFalseNegative() {
+        for (int cnt : new int[] {0, 1, 2, 10, 1000, 100000}) {
+            BinaryFuseFilter filter = new BinaryFuseFilter();
+            for (int i = 0; i < cnt; i++) {
+                filter.add(key(i));
+            }
+            //重复的 key 不影响构建
+            if (cnt > 0) {
+                filter.add(key(0));
+            }
+            FilterReader reader = filter.build();
+            FilterReader decoded = FilterReader.decode(reader.encode());
+            for (int i = 0; i < cnt; i++) {
+                byte[] key = key(i);
+                Assertions.assertTrue(reader.mayContain(key, KeyHash.hash64(key)));
+                Assertions.assertTrue(decoded.mayContain(key, KeyHash.hash64(key)));
+            }
+        }
+    }
+
+    @Test
+    public void testFalsePositiveRate() {
+        int cnt = 100000;
+        BinaryFuseFilter fuse = new BinaryFuseFilter();
+        //误判率相近的 bloom 过滤器
+        BlockedBloomFilter bloom = new BlockedBloomFilter(12);
+        for (int i = 0; i < cnt; i++) {
+            fuse.add(key(i));
+            bloom.add(key(i));
+        }
+        FilterReader fuseReader = fuse.build();
+        FilterReader bloomReader = bloom.build();
+        int fuseHit = 0;
+        int bloomHit = 0;
+        for (int i = cnt; i < cnt * 11; i++) {
+            byte[] key = key(i);
+            long hash = KeyHash.hash64(key);
+            if (fuseReader.mayContain(key, hash)) {
+                fuseHit++;
+            }
+            if (bloomReader.mayContain(key, hash)) {
+                bloomHit++;
+            }
+        }
+        //误判率约 0.39%
+        Assertions.assertTrue(fuseHit < cnt * 10 * 0.006, "fuse hit " + fuseHit);
+        Assertions.assertTrue(fuseHit < bloomHit * 1.5, "fuse hit " + fuseHit + " bloom hit " + bloomHit);
+    }
+
+    @Test
+    public void testSize() {
+        int cnt = 1000000;
+        BinaryFuseFilter fuse = new BinaryFuseFilter();
+        for (int i = 0; i < cnt; i++) {
+            fuse.add(key(i));
+        }
+        int fuseSize = fuse.build().encode().length;
+        //每个 key 约 9 位，误判率相近的 bloom 过滤器要 12 位
+        Assertions.assertTrue(fuseSize * 8.0 / cnt < 9.2, "fuse size " + fuseSize);
+        Assertions.assertTrue(fuseSize < cnt * 12 / 8 * 0.77);
+    }
+
+    @Test
+    public void testSegmentLengthBoundary() {
+        //段长刚从 512 翻倍到 1024 时只有 12 段，这组 key 换 100 个种子都剥离不掉，要加段才能构建
+        BinaryFuseFilter filter = new BinaryFuseFilter();
+        for (int i = 592; i < 592 + 11478; i++) {
+            filter.add(String.format("key%08d", i).getBytes());
+        }
+        FilterReader reader = filter.build();
+        for (int i = 592; i < 592 + 11478; i++) {
+            byte[] key = String.format("key%08d", i).getBytes();
+            Assertions.assertTrue(reader.mayContain(key, KeyHash.hash64(key)));
+        }
+    }
+
+    @Test
+    public void testCorrupt() {
+        Assertions.assertThrows(IllegalStateException.class,
+                () -> FilterReader.decode(new byte[] {BinaryFuseFilter.TAG, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 4, 0, 0, 0, 1, 0}));
+    }
+
+    private static byte[] key(int i) {
+        return ("key_" + i).getBytes();
+    }
+}
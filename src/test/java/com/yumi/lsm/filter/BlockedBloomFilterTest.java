@@ -0,0 +1,70 @@
+package com.yumi.lsm.filter;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class BlockedBloomFilterTest {
+
+    @Test
+    public void testNoFalseNegative() {
+        BlockedBloomFilter filter = new BlockedBloomFilter();
+        for (int i = 0; i < 10000; i++) {
+            filter.add(key(i));
+        }
+        Assertions.assertEquals(10000, filter.keyLen());
+        FilterReader reader = filter.build();
+        //序列化以后结果一致
+        FilterReader decoded = FilterReader.decode(reader.encode());
+        for (int i = 0; i < 10000; i++) {
+            byte[] key = key(i);
+            Assertions.assertTrue(reader.mayContain(key, KeyHash.hash64(key)));
+            Assertions.assertTrue(decoded.mayContain(key, KeyHash.hash64(key)));
+        }
+    }
+
+    @Test
+    public void testFalsePositiveRate() {
+        BlockedBloomFilter filter = new BlockedBloomFilter(10);
+        for (int i = 0; i < 10000; i++) {
+            filter.add(key(i));
+        }
+        FilterReader reader = filter.build();
+        int hit = 0;
+        for (int i = 10000; i < 110000; i++) {
+            byte[] key = key(i);
+            if (reader.mayContain(key, KeyHash.hash64(key))) {
+                hit++;
+            }
+        }
+        //每个 key 10 位，分块以后误判率在 1% 左右
+        Assertions.assertTrue(hit < 2000, "hit " + hit);
+    }
+
+    @Test
+    public void testResetAndEmpty() {
+        BlockedBloomFilter filter = new BlockedBloomFilter();
+        byte[] key = key(1);
+        filter.add(key);
+        filter.reset();
+        Assertions.assertEquals(0, filter.keyLen());
+        FilterReader reader = filter.build();
+        Assertions.assertFalse(reader.mayContain(key, KeyHash.hash64(key)));
+        //最少一块
+        Assertions.assertEquals(6 + 64, reader.encode().length);
+    }
+
+    @Test
+    public void testDecode() {
+        LsmBloomFilter legacy = new LsmBloomFilter();
+        byte[] key = key(7);
+        legacy.add(key);
+        Assertions.assertTrue(FilterReader.decode(legacy.build().encode()).mayContain(key, KeyHash.hash64(key)));
+        Assertions.assertThrows(IllegalStateException.class, () -> FilterReader.decode(new byte[] {100, 1}));
+        Assertions.assertThrows(IllegalStateException.class, () -> FilterReader.decode(new byte[] {BlockedBloomFilter.TAG, 1, 0, 0, 0, 1}));
+        Assertions.assertThrows(IllegalStateException.class, () -> new BlockedBloomFilter(0));
+    }
+
+    private static byte[] key(int i) {
+        return ("key_" + i).getBytes();
+    }
+}
@@ -1,6 +1,7 @@
 package com.yumi.lsm.filter.bloom;
 
 import com.yumi.lsm.filter.BitsArray;
+import com.yumi.lsm.filter.FilterReader;
 import com.yumi.lsm.filter.LsmBloomFilter;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
@@ -42,4 +43,19 @@ public class LsmBloomFilterTest {
         Assertions.assertFalse(newExist);
         Assertions.assertEquals(0, lsmBloomFilter.keyLen());
     }
+
+    @Test
+    public void testBuildMatchesExist() {
+        LsmBloomFilter lsmBloomFilter = new LsmBloomFilter();
+        for (int i = 0; i < 400; i += 2) {
+            lsmBloomFilter.add(new byte[] {(byte) i, (byte) (i >> 8)});
+        }
+        BitsArray hash = lsmBloomFilter.hash();
+        //序列化以后直接在位数组上判断，结果和 exist 完全一致，包括误判
+        FilterReader reader = lsmBloomFilter.build();
+        for (int i = 0; i < 400; i++) {
+            byte[] key = {(byte) i, (byte) (i >> 8)};
+            Assertions.assertEquals(lsmBloomFilter.exist(key, hash), reader.mayContain(key, 0));
+        }
+    }
 }
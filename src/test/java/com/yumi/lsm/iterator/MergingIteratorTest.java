@@ -0,0 +1,100 @@
+package com.yumi.lsm.iterator;
+
+import com.yumi.lsm.util.Kv;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+public class MergingIteratorTest {
+
+    private static KvIterator of(Kv... kvs) {
+        return new ListKvIterator(Arrays.asList(kvs));
+    }
+
+    private static Kv kv(int key, String value) {
+        return new Kv(new byte[]{(byte) key}, null == value ? Kv.TOMBSTONE : value.getBytes());
+    }
+
+    @Test
+    public void testNewestWins() {
+        List<KvIterator> children = new ArrayList<>();
+        //从新到旧
+        children.add(of(kv(2, "new2"), kv(5, null)));
+        children.add(of(kv(1, "old1"), kv(2, "old2"), kv(5, "old5")));
+        children.add(of(kv(2, "older2"), kv(3, "older3")));
+        MergingIterator iterator = new MergingIterator(children);
+
+        iterator.seekToFirst();
+        Assertions.assertEquals("old1", new String(iterator.value()));
+        iterator.next();
+        Assertions.assertEquals("new2", new String(iterator.value()));
+        iterator.next();
+        Assertions.assertEquals("older3", new String(iterator.value()));
+        iterator.next();
+        //墓碑原样返回
+        Assertions.assertArrayEquals(new byte[]{5}, iterator.key());
+        Assertions.assertTrue(Kv.isTombstone(iterator.value()));
+        iterator.next();
+        Assertions.assertFalse(iterator.valid());
+
+        iterator.seek(new byte[]{2});
+        Assertions.assertEquals("new2", new String(iterator.value()));
+        iterator.seek(new byte[]{4});
+        Assertions.assertArrayEquals(new byte[]{5}, iterator.key());
+        iterator.seek(new byte[]{6});
+        Assertions.assertFalse(iterator.valid());
+        iterator.close();
+    }
+
+    @Test
+    public void testManyChildren() {
+        //和按从旧到新依次覆盖的 TreeMap 对比
+        Random random = new Random(7);
+        int childCnt = 37;
+        List<List<Kv>> lists = new ArrayList<>();
+        TreeMap<Integer, String> expected = new TreeMap<>();
+        for (int c = childCnt - 1; c >= 0; c--) {
+            TreeMap<Integer, String> child = new TreeMap<>();
+            for (int k = 0; k < 50; k++) {
+                child.put(random.nextInt(120), "v" + c);
+            }
+            expected.putAll(child);
+            List<Kv> kvs = new ArrayList<>();
+            child.forEach((key, value) -> kvs.add(kv(key, value)));
+            lists.add(0, kvs);
+        }
+        List<KvIterator> children = new ArrayList<>();
+        for (List<Kv> kvs : lists) {
+            children.add(new ListKvIterator(kvs));
+        }
+        MergingIterator iterator = new MergingIterator(children);
+        iterator.seekToFirst();
+        for (Map.Entry<Integer, String> entry : expected.entrySet()) {
+            Assertions.assertTrue(iterator.valid());
+            Assertions.assertArrayEquals(new byte[]{(byte) (int) entry.getKey()}, iterator.key());
+            Assertions.assertEquals(entry.getValue(), new String(iterator.value()));
+            iterator.next();
+        }
+        Assertions.assertFalse(iterator.valid());
+
+        iterator.seek(new byte[]{60});
+        Assertions.assertArrayEquals(new byte[]{(byte) (int) expected.ceilingKey(60)}, iterator.key());
+        iterator.close();
+    }
+
+    @Test
+    public void testEmpty() {
+        List<KvIterator> children = new ArrayList<>();
+        children.add(of());
+        MergingIterator iterator = new MergingIterator(children);
+        iterator.seekToFirst();
+        Assertions.assertFalse(iterator.valid());
+        Assertions.assertFalse(new MergingIterator(new ArrayList<>()).valid());
+    }
+}
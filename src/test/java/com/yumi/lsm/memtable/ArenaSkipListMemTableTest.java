@@ -0,0 +1,138 @@
+package com.yumi.lsm.memtable;
+
+import com.yumi.lsm.iterator.KvIterator;
+import com.yumi.lsm.util.AllUtils;
+import com.yumi.lsm.util.Kv;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Optional;
+
+public class ArenaSkipListMemTableTest {
+
+    @Test
+    public void testAddAndGet() {
+        MemTable memTable = new ArenaSkipListMemTable();
+        memTable.put(new byte[]{1,2,3}, new byte[]{3,2,1});
+        Assertions.assertEquals(1, memTable.entriesCnt());
+        int size = memTable.size();
+        //包括节点的开销
+        Assertions.assertTrue(size > 6);
+
+        memTable.put(new byte[]{1,2,3}, new byte[]{6,6,6,6,6});
+        Assertions.assertEquals(1, memTable.entriesCnt());
+        Assertions.assertTrue(memTable.size() > size);
+        Assertions.assertArrayEquals(new byte[]{6,6,6,6,6}, memTable.get(new byte[]{1,2,3}).get());
+
+        memTable.delete(new byte[]{1,2,3});
+        Optional<byte[]> deleted = memTable.get(new byte[]{1,2,3});
+        Assertions.assertTrue(deleted.isPresent());
+        Assertions.assertTrue(Kv.isTombstone(deleted.get()));
+
+        Assertions.assertFalse(memTable.get(new byte[]{1,2}).isPresent());
+        memTable.close();
+    }
+
+    @Test
+    public void testAllSorted() {
+        MemTable memTable = new ArenaSkipListMemTable(4096);
+        //包含负数字节，顺序要和 AllUtils.compare 一致
+        byte[][] keys = new byte[][] {{3,2,1}, {1,2,3}, {-1}, {1,2}, {0}};
+        for (byte[] key : keys) {
+            memTable.put(key, key);
+        }
+        List<Kv> all = memTable.all();
+        Assertions.assertEquals(keys.length, all.size());
+        for (int i = 1; i < all.size(); i++) {
+            Assertions.assertTrue(AllUtils.compare(all.get(i - 1).getKey(), all.get(i).getKey()) < 0);
+        }
+        memTable.close();
+    }
+
+    @Test
+    public void testConcurrentPut() throws Exception {
+        MemTable memTable = new ArenaSkipListMemTable(64 * 1024);
+        int threadCnt = 8;
+        int perThread = 5000;
+        Thread[] threads = new Thread[threadCnt];
+        for (int t = 0; t < threadCnt; t++) {
+            int base = t * perThread;
+            threads[t] = new Thread(() -> {
+                for (int i = base; i < base + perThread; i++) {
+                    memTable.put(("key" + i).getBytes(), ("value" + i).getBytes());
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assertions.assertEquals(threadCnt * perThread, memTable.entriesCnt());
+        Assertions.assertEquals(threadCnt * perThread, memTable.all().size());
+        for (int i = 0; i < threadCnt * perThread; i++) {
+            Assertions.assertEquals("value" + i, new String(memTable.get(("key" + i).getBytes()).get()));
+        }
+        memTable.close();
+    }
+
+    @Test
+    public void testIterator() {
+        MemTable memTable = new ArenaSkipListMemTable(4096);
+        for (byte i = 5; i >= 1; i--) {
+            memTable.put(new byte[]{i}, new byte[]{i});
+        }
+        memTable.delete(new byte[]{2});
+        KvIterator iterator = memTable.iterator();
+        iterator.seekToFirst();
+        for (byte i = 1; i <= 5; i++) {
+            Assertions.assertTrue(iterator.valid());
+            Assertions.assertArrayEquals(new byte[]{i}, iterator.key());
+            Assertions.assertEquals(i == 2, Kv.isTombstone(iterator.value()));
+            iterator.next();
+        }
+        Assertions.assertFalse(iterator.valid());
+        iterator.seek(new byte[]{3, 0});
+        Assertions.assertArrayEquals(new byte[]{4}, iterator.key());
+        iterator.seek(new byte[]{6});
+        Assertions.assertFalse(iterator.valid());
+        iterator.close();
+        //close 以后迭代器依然可以读完，全部关闭后才释放
+        KvIterator opened = memTable.iterator();
+        memTable.close();
+        opened.seek(new byte[]{3});
+        Assertions.assertArrayEquals(new byte[]{3}, opened.value());
+        opened.close();
+        Assertions.assertThrows(IllegalStateException.class, memTable::iterator);
+    }
+
+    @Test
+    public void testVersions() {
+        MemTable memTable = new ArenaSkipListMemTable(4096);
+        byte[] key = new byte[]{1};
+        memTable.put(key, 3, new byte[]{3});
+        memTable.put(key, 7, new byte[]{7});
+        memTable.delete(key, 9);
+        memTable.put(new byte[]{0}, 5, new byte[]{5});
+        memTable.put(new byte[]{2}, 1, new byte[]{1});
+        //每个版本都保留，读取序列号不超过 seq 的最新版本
+        Assertions.assertEquals(5, memTable.entriesCnt());
+        Assertions.assertTrue(Kv.isTombstone(memTable.get(key).get()));
+        Assertions.assertArrayEquals(new byte[]{7}, memTable.get(key, 8).get());
+        Assertions.assertArrayEquals(new byte[]{3}, memTable.get(key, 6).get());
+        Assertions.assertFalse(memTable.get(key, 2).isPresent());
+        Assertions.assertFalse(memTable.get(new byte[]{2}, 0).isPresent());
+
+        //按 key 升序、序列号降序，seek 定位到 key 的最新版本
+        KvIterator iterator = memTable.iterator();
+        iterator.seek(key);
+        long[] seqs = new long[]{9, 7, 3};
+        for (long seq : seqs) {
+            Assertions.assertArrayEquals(key, iterator.key());
+            Assertions.assertEquals(seq, iterator.seq());
+            iterator.next();
+        }
+        Assertions.assertArrayEquals(new byte[]{2}, iterator.key());
+        iterator.close();
+    }
+}
@@ -1,5 +1,6 @@
 package com.yumi.lsm.memtable;
 
+import com.yumi.lsm.iterator.KvIterator;
 import com.yumi.lsm.util.Kv;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
@@ -67,4 +68,57 @@ public class SkipListMemTableTest {
         Assertions.assertEquals(key2, kv1.getKey());
         Assertions.assertEquals(val2, kv1.getValue());
     }
+
+    @Test
+    public void testIterator() {
+        MemTable memTable = new SkipListMemTable();
+        for (byte i = 5; i >= 1; i--) {
+            memTable.put(new byte[]{i}, new byte[]{i});
+        }
+        memTable.delete(new byte[]{2});
+        KvIterator iterator = memTable.iterator();
+        iterator.seekToFirst();
+        for (byte i = 1; i <= 5; i++) {
+            Assertions.assertTrue(iterator.valid());
+            Assertions.assertArrayEquals(new byte[]{i}, iterator.key());
+            Assertions.assertEquals(i == 2, Kv.isTombstone(iterator.value()));
+            iterator.next();
+        }
+        Assertions.assertFalse(iterator.valid());
+        iterator.seek(new byte[]{3, 0});
+        Assertions.assertArrayEquals(new byte[]{4}, iterator.key());
+        iterator.seek(new byte[]{6});
+        Assertions.assertFalse(iterator.valid());
+        iterator.close();
+    }
+
+    @Test
+    public void testVersions() {
+        MemTable memTable = new SkipListMemTable();
+        byte[] key = new byte[]{1};
+        memTable.put(key, 3, new byte[]{3});
+        memTable.put(key, 7, new byte[]{7});
+        memTable.delete(key, 9);
+        memTable.put(new byte[]{0}, 5, new byte[]{5});
+        memTable.put(new byte[]{2}, 1, new byte[]{1});
+        //每个版本都保留，读取序列号不超过 seq 的最新版本
+        Assertions.assertEquals(5, memTable.entriesCnt());
+        Assertions.assertTrue(Kv.isTombstone(memTable.get(key).get()));
+        Assertions.assertArrayEquals(new byte[]{7}, memTable.get(key, 8).get());
+        Assertions.assertArrayEquals(new byte[]{3}, memTable.get(key, 6).get());
+        Assertions.assertFalse(memTable.get(key, 2).isPresent());
+        Assertions.assertFalse(memTable.get(new byte[]{2}, 0).isPresent());
+
+        //按 key 升序、序列号降序，seek 定位到 key 的最新版本
+        KvIterator iterator = memTable.iterator();
+        iterator.seek(key);
+        long[] seqs = new long[]{9, 7, 3};
+        for (long seq : seqs) {
+            Assertions.assertArrayEquals(key, iterator.key());
+            Assertions.assertEquals(seq, iterator.seq());
+            iterator.next();
+        }
+        Assertions.assertArrayEquals(new byte[]{2}, iterator.key());
+        iterator.close();
+    }
 }
@@ -0,0 +1,63 @@
+package com.yumi.lsm.sst;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+
+public class BlockCacheTest {
+
+    private static ByteBuffer block(int size) {
+        return ByteBuffer.allocate(size);
+    }
+
+    @Test
+    public void testHitAndMiss() {
+        BlockCache blockCache = new BlockCache(1024 * 1024);
+        Assertions.assertNull(blockCache.get(1, 0));
+        ByteBuffer block = block(10);
+        blockCache.put(1, 0, block);
+        Assertions.assertSame(block, blockCache.get(1, 0));
+        //不同的 reader 相同 offset 互不影响
+        Assertions.assertNull(blockCache.get(2, 0));
+        Assertions.assertEquals(1, blockCache.hitCount());
+        Assertions.assertEquals(2, blockCache.missCount());
+
+        blockCache.remove(1, 0);
+        Assertions.assertNull(blockCache.get(1, 0));
+        Assertions.assertEquals(0, blockCache.usage());
+    }
+
+    @Test
+    public void testCapacity() {
+        //每个分片 1KB
+        BlockCache blockCache = new BlockCache(16 * 1024);
+        for (int i = 0; i < 1000; i++) {
+            blockCache.put(1, i, block(100));
+        }
+        Assertions.assertTrue(blockCache.usage() <= 16 * 1024);
+        Assertions.assertTrue(blockCache.evictCount() > 0);
+
+        BlockCache disabled = new BlockCache(0);
+        disabled.put(1, 0, block(10));
+        Assertions.assertNull(disabled.get(1, 0));
+        Assertions.assertEquals(0, disabled.missCount());
+    }
+
+    @Test
+    public void testScanResistant() {
+        BlockCache blockCache = new BlockCache(16 * 1024);
+        //热块访问两次进入保护段
+        for (int i = 0; i < 16; i++) {
+            blockCache.put(1, i, block(100));
+            Assertions.assertNotNull(blockCache.get(1, i));
+        }
+        //一次性的大扫描
+        for (int i = 1000; i < 10000; i++) {
+            blockCache.put(2, i, block(100));
+        }
+        for (int i = 0; i < 16; i++) {
+            Assertions.assertNotNull(blockCache.get(1, i));
+        }
+    }
+}
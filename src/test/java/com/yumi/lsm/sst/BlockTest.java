@@ -23,9 +23,10 @@ public class BlockTest {
         //block size
         // 内容 -> 0 1 1 byte[]{1} byte[]{1}  1 1 2 byte[]{2} byte[]{1,2}
         // 长度 -> 4 4 4 1         1          4 4 4 1         2  = 29
+        // data block 结尾还有 restart 数组 -> 0 1 = 8
         config = Config.newConfig("/tmp", (c) -> {
             c.setBlockBufferPoolSize(4);
-            c.setSstDataBlockSize(29);
+            c.setSstDataBlockSize(37);
         });
     }
 
@@ -37,12 +38,20 @@ public class BlockTest {
 
     @Test
     public void testDataBlockFull() {
-        Block block = new DataBlock(config);
+        //data block 的记录在 valueLen 后面还有 8 字节的 seq
+        // 内容 -> 0 1 1 0(seq) byte[]{1} byte[]{1}  1 1 2 0(seq) byte[]{2} byte[]{1,2}
+        // 长度 -> 4 4 4 8      1         1          4 4 4 8      1         2  = 45
+        Config dataConfig = Config.newConfig("/tmp", (c) -> {
+            c.setBlockBufferPoolSize(4);
+            c.setSstDataBlockSize(53);
+        });
+        Block block = new DataBlock(dataConfig);
         boolean res1 = block.append(key1, val1);
         boolean res2 = block.append(key2, val2);
         Assertions.assertTrue(res1 && res2);
         boolean res3 = block.append(key1, val1);
         Assertions.assertFalse(res3);
+        dataConfig.getBlockBufferPool().destroy(10);
     }
 
     @Test
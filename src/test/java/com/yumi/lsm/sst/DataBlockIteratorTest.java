@@ -0,0 +1,91 @@
+package com.yumi.lsm.sst;
+
+import com.yumi.lsm.Config;
+import com.yumi.lsm.util.AllUtils;
+import com.yumi.lsm.util.Kv;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Optional;
+
+public class DataBlockIteratorTest {
+    static String fileName = "yumi_restart.sst";
+    static Config config;
+    static SstWriter.FinishRes res;
+
+    @BeforeAll
+    public static void init() throws Exception {
+        config = Config.newConfig("/tmp/yumi", c -> {
+            c.setSstDataBlockSize(1024);
+            c.setSstRestartInterval(4);
+        });
+        new File(config.getDir() + File.separator + fileName).deleteOnExit();
+        SstWriter sstWriter = new SstWriter(fileName, config);
+        //偶数 key，奇数用来测试不存在的情况
+        for (int i = 0; i < 200; i += 2) {
+            byte[] value = i % 10 == 0 ? Kv.TOMBSTONE : ("value" + i).getBytes();
+            sstWriter.append(key(i), value);
+        }
+        res = sstWriter.finish();
+        sstWriter.close();
+    }
+
+    private static byte[] key(int i) {
+        return String.format("key%04d", i).getBytes();
+    }
+
+    @Test
+    public void testIterate() {
+        SstReader sstReader = new SstReader(fileName, config);
+        Assertions.assertTrue(res.getIndices().length > 1);
+        int i = 0;
+        for (Index index : res.getIndices()) {
+            DataBlockIterator iterator = new DataBlockIterator(sstReader.copyData(index.getBlockOffset(), index.getBlockSize()));
+            for (iterator.seekToFirst(); iterator.valid(); iterator.next()) {
+                Assertions.assertEquals(0, AllUtils.compare(key(i), iterator.key()));
+                Assertions.assertEquals(i % 10 == 0, Kv.isTombstone(iterator.value()));
+                i += 2;
+            }
+        }
+        Assertions.assertEquals(200, i);
+        sstReader.close();
+    }
+
+    @Test
+    public void testSeek() {
+        SstReader sstReader = new SstReader(fileName, config);
+        Index index = res.getIndices()[0];
+        ByteBuffer block = sstReader.copyData(index.getBlockOffset(), index.getBlockSize());
+        DataBlockIterator iterator = new DataBlockIterator(block);
+        //定位到第一个大于等于的 key
+        iterator.seek(key(7));
+        Assertions.assertTrue(iterator.valid());
+        Assertions.assertEquals(0, iterator.compareKey(key(8)));
+        iterator.seek(new byte[0]);
+        Assertions.assertEquals(0, iterator.compareKey(key(0)));
+        iterator.seek(key(10000));
+        Assertions.assertFalse(iterator.valid());
+
+        for (int i = 0; i < 200; i++) {
+            Index target = res.getIndices()[0];
+            for (Index idx : res.getIndices()) {
+                target = idx;
+                if (AllUtils.compare(idx.getLastKey(), key(i)) >= 0) {
+                    break;
+                }
+            }
+            Optional<byte[]> value = sstReader.searchData(target.getBlockOffset(), target.getBlockSize(), key(i));
+            if (i % 2 == 1) {
+                Assertions.assertFalse(value.isPresent());
+            } else if (i % 10 == 0) {
+                Assertions.assertTrue(Kv.isTombstone(value.get()));
+            } else {
+                Assertions.assertEquals("value" + i, new String(value.get()));
+            }
+        }
+        sstReader.close();
+    }
+}
@@ -1,6 +1,8 @@
 package com.yumi.lsm.sst;
 
 import com.yumi.lsm.Config;
+import com.yumi.lsm.filter.KeyHash;
+import com.yumi.lsm.iterator.KvIterator;
 import com.yumi.lsm.util.AllUtils;
 import com.yumi.lsm.util.Kv;
 import org.junit.jupiter.api.Assertions;
@@ -18,9 +20,13 @@ public class NodeTest {
     @BeforeAll
     public static void init() throws Exception{
         config = Config.newConfig("/tmp/yumi", c -> {
-            c.setSstDataBlockSize(29);
+            c.setSstDataBlockSize(53);
         });
-        SstWriter sstWriter = new SstWriter(fileName, config);
+        res = writeSst(fileName);
+    }
+
+    private static SstWriter.FinishRes writeSst(String file) throws Exception {
+        SstWriter sstWriter = new SstWriter(file, config);
         byte[] key1 = new byte[] {1};
         byte[] value1 = new byte[] {1};
         sstWriter.append(key1, value1);
@@ -33,7 +39,9 @@ public class NodeTest {
         byte[] key4 = new byte[] {3,4};
         byte[] value4 = new byte[] {3,4};
         sstWriter.append(key4,value4);
-        res = sstWriter.finish();
+        SstWriter.FinishRes finishRes = sstWriter.finish();
+        sstWriter.close();
+        return finishRes;
     }
 
 
@@ -41,20 +49,24 @@ public class NodeTest {
     @Test
     public void testGet() {
         SstReader sstReader = new SstReader(fileName, config);
-        Node node = new Node(config, fileName, sstReader, res.getSize(), res.getBlockToFilter(), res.getIndices());
+        Node node = new Node(config, fileName, sstReader, res.getSize(), res.getFirstKey(), res.getFilters(), res.getIndices());
         Optional<byte[]> bytes = node.get(new byte[]{1});
         Assertions.assertTrue(bytes.isPresent());
         Assertions.assertEquals(0, AllUtils.compare(bytes.get(), new byte[]{1}));
         Optional<byte[]> bytes1 = node.get(new byte[]{5});
         Assertions.assertFalse(bytes1.isPresent());
+        //第二次读取同一个 block 命中缓存
+        long hit = config.getBlockCache().hitCount();
+        Assertions.assertTrue(node.get(new byte[]{1}).isPresent());
+        Assertions.assertEquals(hit + 1, config.getBlockCache().hitCount());
         node.close();
     }
 
     @Test
     public void testGetRange() {
         SstReader sstReader = new SstReader(fileName, config);
-        Node node = new Node(config, fileName, sstReader, res.getSize(), res.getBlockToFilter(), res.getIndices());
-        Kv[] kvs = node.getRange(0, 29);
+        Node node = new Node(config, fileName, sstReader, res.getSize(), res.getFirstKey(), res.getFilters(), res.getIndices());
+        Kv[] kvs = node.getRange(0, 62);
         Assertions.assertEquals(2, kvs.length);
         Assertions.assertEquals(0, AllUtils.compare(kvs[0].getKey(), new byte[]{1}));
         Assertions.assertEquals(0, AllUtils.compare(kvs[1].getKey(), new byte[]{1,2}));
@@ -62,10 +74,138 @@ public class NodeTest {
     }
 
 
+    @Test
+    public void testIterator() throws Exception {
+        //单独的文件，不受 testDestroy 执行顺序的影响
+        String iteratorFile = "yumi_iterator.sst";
+        SstWriter.FinishRes iteratorRes = writeSst(iteratorFile);
+        SstReader sstReader = new SstReader(iteratorFile, config);
+        Node node = new Node(config, iteratorFile, sstReader, iteratorRes.getSize(),
+                iteratorRes.getFirstKey(), iteratorRes.getFilters(), iteratorRes.getIndices());
+        KvIterator iterator = node.iterator();
+        //关闭节点以后，迭代器持有引用依然可以读取
+        node.close();
+        iterator.seekToFirst();
+        byte[][] keys = new byte[][]{{1}, {1, 2}, {3}, {3, 4}};
+        for (byte[] key : keys) {
+            Assertions.assertTrue(iterator.valid());
+            Assertions.assertEquals(0, AllUtils.compare(key, iterator.key()));
+            Assertions.assertEquals(0, AllUtils.compare(key, iterator.value()));
+            iterator.next();
+        }
+        Assertions.assertFalse(iterator.valid());
+        //跨 block 定位
+        iterator.seek(new byte[]{2});
+        Assertions.assertEquals(0, AllUtils.compare(new byte[]{3}, iterator.key()));
+        iterator.seek(new byte[]{4});
+        Assertions.assertFalse(iterator.valid());
+        iterator.close();
+        Assertions.assertThrows(IllegalStateException.class, node::iterator);
+        new File(config.getDir() + File.separator + iteratorFile).delete();
+    }
+
+    @Test
+    public void testVersions() throws Exception {
+        String versionFile = "yumi_version.sst";
+        SstWriter sstWriter = new SstWriter(versionFile, config);
+        //同一个 key 的版本按序列号从大到小写入，会跨越多个 block
+        for (int seq = 9; seq > 0; seq -= 2) {
+            sstWriter.append(new byte[]{1}, seq, new byte[]{(byte) seq});
+        }
+        sstWriter.append(new byte[]{2}, 1, new byte[]{1});
+        SstWriter.FinishRes versionRes = sstWriter.finish();
+        sstWriter.close();
+        Assertions.assertTrue(versionRes.getIndices().length > 2);
+        Node node = new Node(config, versionFile, new SstReader(versionFile, config), versionRes.getSize(),
+                versionRes.getFirstKey(), versionRes.getFilters(), versionRes.getIndices());
+        byte[] key = new byte[]{1};
+        Assertions.assertArrayEquals(new byte[]{9}, node.get(key).get());
+        Assertions.assertArrayEquals(new byte[]{7}, node.get(key, KeyHash.hash64(key), 8).get());
+        Assertions.assertArrayEquals(new byte[]{1}, node.get(key, KeyHash.hash64(key), 2).get());
+        Assertions.assertFalse(node.get(key, KeyHash.hash64(key), 0).isPresent());
+        Assertions.assertFalse(node.get(new byte[]{2}, KeyHash.hash64(new byte[]{2}), 0).isPresent());
+
+        KvIterator iterator = node.iterator();
+        iterator.seekToFirst();
+        for (int seq = 9; seq > 0; seq -= 2) {
+            Assertions.assertArrayEquals(key, iterator.key());
+            Assertions.assertEquals(seq, iterator.seq());
+            iterator.next();
+        }
+        Assertions.assertArrayEquals(new byte[]{2}, iterator.key());
+        iterator.close();
+        node.destroy();
+    }
+
+    @Test
+    public void testLazyLoad() throws Exception {
+        String lazyFile = "yumi_lazy.sst";
+        writeSst(lazyFile);
+        SstReader sstReader = new SstReader(lazyFile, config);
+        Node node = new Node(config, lazyFile, sstReader, sstReader.size(), new byte[]{1}, new byte[]{3, 4});
+        //打开时只有 key 范围，不读取 filter 和 index
+        Assertions.assertFalse(node.isMetaLoaded());
+        Assertions.assertArrayEquals(new byte[]{1}, node.start());
+        Assertions.assertArrayEquals(new byte[]{3, 4}, node.end());
+        Optional<byte[]> bytes = node.get(new byte[]{3});
+        Assertions.assertTrue(bytes.isPresent());
+        Assertions.assertArrayEquals(new byte[]{3}, bytes.get());
+        Assertions.assertTrue(node.isMetaLoaded());
+        Assertions.assertEquals(res.getIndices().length, node.indexKeys().size());
+        node.destroy();
+        Assertions.assertFalse(new File(config.getDir() + File.separator + lazyFile).exists());
+    }
+
+    @Test
+    public void testMeta() {
+        Index[] indices = res.getIndices();
+        NodeMeta meta = NodeMeta.create(res.getFilters(), indices);
+        Assertions.assertEquals(indices.length, meta.blockCount());
+        for (int i = 0; i < indices.length; i++) {
+            Assertions.assertEquals(indices[i].getBlockOffset(), meta.blockOffset(i));
+            Assertions.assertEquals(indices[i].getBlockSize(), meta.blockSize(i));
+            Assertions.assertArrayEquals(indices[i].getLastKey(), meta.lastKey(i));
+            //block 中的 key 都在它的过滤器里
+            byte[] lastKey = indices[i].getLastKey();
+            Assertions.assertTrue(meta.blockMayContain(i, lastKey, KeyHash.hash64(lastKey)));
+            Assertions.assertEquals(i, meta.search(lastKey));
+        }
+        Assertions.assertEquals(0, meta.search(new byte[]{0}));
+        Assertions.assertEquals(indices.length, meta.search(new byte[]{5}));
+        Assertions.assertTrue(meta.indexBytes() > 0);
+        Assertions.assertTrue(meta.filterBytes() > 0);
+        meta.free();
+    }
+
+    @Test
+    public void testStartKey() throws Exception {
+        //startKey 由 writer 记录，不需要读取 data block
+        String startFile = "yumi_start.sst";
+        SstWriter.FinishRes startRes = writeSst(startFile);
+        Assertions.assertArrayEquals(new byte[]{1}, startRes.getFirstKey());
+        Node node = new Node(config, startFile, new SstReader(startFile, config), startRes.getSize(),
+                startRes.getFirstKey(), startRes.getFilters(), startRes.getIndices());
+        Assertions.assertArrayEquals(new byte[]{1}, node.start());
+        Assertions.assertArrayEquals(new byte[]{3, 4}, node.end());
+        node.destroy();
+
+        //没有数据的文件不能作为节点
+        String emptyFile = "yumi_empty.sst";
+        SstWriter sstWriter = new SstWriter(emptyFile, config);
+        SstWriter.FinishRes emptyRes = sstWriter.finish();
+        sstWriter.close();
+        Assertions.assertNull(emptyRes.getFirstKey());
+        SstReader emptyReader = new SstReader(emptyFile, config);
+        Assertions.assertThrowsExactly(IllegalStateException.class, () -> new Node(config, emptyFile, emptyReader,
+                emptyRes.getSize(), emptyRes.getFirstKey(), emptyRes.getFilters(), emptyRes.getIndices()));
+        emptyReader.close();
+        new File(config.getDir() + File.separator + emptyFile).delete();
+    }
+
     @Test
     public void testDestroy() {
         SstReader sstReader = new SstReader(fileName, config);
-        Node node = new Node(config, fileName, sstReader, res.getSize(), res.getBlockToFilter(), res.getIndices());
+        Node node = new Node(config, fileName, sstReader, res.getSize(), res.getFirstKey(), res.getFilters(), res.getIndices());
         File beforeDestroy = new File(config.getDir() + File.separator + fileName);
         Assertions.assertTrue(beforeDestroy.exists());
         node.destroy();
@@ -1,8 +1,12 @@
 package com.yumi.lsm.sst;
 
 import com.yumi.lsm.Config;
-import com.yumi.lsm.filter.BitsArray;
-import com.yumi.lsm.filter.bloom.BloomFilter;
+import com.yumi.lsm.compress.CompressionType;
+import com.yumi.lsm.filter.FilterReader;
+import com.yumi.lsm.filter.KeyHash;
+import com.yumi.lsm.filter.LsmBloomFilter;
+import com.yumi.lsm.filter.PrefixExtractor;
+import com.yumi.lsm.iterator.KvIterator;
 import com.yumi.lsm.util.AllUtils;
 import com.yumi.lsm.util.Kv;
 import org.junit.jupiter.api.Assertions;
@@ -10,8 +14,10 @@ import org.junit.jupiter.api.Test;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.util.Map;
+import java.util.Optional;
 
 public class SstReaderTest {
 
@@ -19,22 +25,23 @@ public class SstReaderTest {
     public void testRead() {
         //文件设计
 
-        // --- block 29
-        // 内容 -> 0 1 1 byte[]{1} byte[]{1}  1 1 2 byte[]{2} byte[]{1,2}
-        // 长度 -> 4 4 4 1         1          4 4 4 1         2  = 29
-        // --- block 29
-        // 内容 -> 0 1 1 byte[]{3} byte[]{3}  1 1 2 byte[]{3} byte[]{3,4}
-        // 长度 -> 4 4 4 1         1          4 4 4 1         2  = 29
+        // --- block 62
+        // 内容 -> 0 1 1 0(seq) byte[]{1} byte[]{1}  1 1 2 0(seq) byte[]{2} byte[]{1,2}  0(restart) 1(restartCnt) 53(rawSize) 0(不压缩) crc
+        // 长度 -> 4 4 4 8      1         1          4 4 4 8      1         2            4          4             4           1        4   = 62
+        // --- block 62
+        // 内容 -> 0 1 1 0(seq) byte[]{3} byte[]{3}  1 1 2 0(seq) byte[]{3} byte[]{3,4}  0(restart) 1(restartCnt) 53(rawSize) 0(不压缩) crc
+        // 长度 -> 4 4 4 8      1         1          4 4 4 8      1         2            4          4             4           1        4   = 62
 
-        // --- filter 365
-        // BloomFilter.createByFn(20, 400).getM() == 1344b == 168B
-        // 内容 -> 0 4 168 0 x?(168) 3 1 168 byte[]{29} y?(168)
+        // --- filter 367
+        // BloomFilter.createByFn(20, 400).getM() == 1344b == 168B，前面加 1 字节的类型
+        // 内容 -> 0 4 169 0 0(LsmBloomFilter) x?(168) 3 1 169 byte[]{62} 0(LsmBloomFilter) y?(168)
 
         // --- index 44
-        // 内容 -> 0 2 8 byte[]{1,2} 0 29 0 2 8 byte[]{3,4} 29 29
+        // 内容 -> 0 2 8 byte[]{1,2} 0 62 0 2 8 byte[]{3,4} 62 62
 
-        // --- footer 16
-        // 内容 -> 58 365 423 44
+        // --- footer 40
+        // 内容 -> 124 367 491 44 filterCrc indexCrc 2(version) footerCrc magic(8)
+        // crc 由 fillChecksums 填入
 
         byte[] key1 = new byte[] {1};
         byte[] value1 = new byte[] {1};
@@ -46,55 +53,58 @@ public class SstReaderTest {
         byte[] value4 = new byte[] {3,4};
 
         byte[] expectedBytes = new byte[]
-                /*block*/         {  0, 0, 0, 0, 0, 0, 0, 1, 0, 0, 0, 1, 1, 1, 0, 0, 0, 1, 0, 0, 0, 1, 0, 0, 0, 2, 2, 1, 2,
-                /*block*/            0, 0, 0, 0, 0, 0, 0, 1, 0, 0, 0, 1, 3, 3, 0, 0, 0, 1, 0, 0, 0, 1, 0, 0, 0, 2, 4, 3, 4,
-                /*filter*/           0, 0, 0, 0, 0, 0, 0, 4, 0, 0, 0, -88, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 2, 0, 0, 0, 0, 0, 0, 8, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 64, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 2, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 68, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
-                0, 0, 0, 3, 0, 0, 0, 1, 0, 0, 0, -88, 29, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 2, 0, 0, 0, 0, 0, 0, 0, -128, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 32, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 1, 0, 0, 0, 0, 0, 0, 0, 0, 8, 0, 0, 0, 0, 0, 0, 0, 0, 0, 4, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
-                /*index*/            0, 0, 0, 0, 0, 0, 0, 2, 0, 0, 0, 8, 1, 2, 0, 0, 0, 0, 0, 0, 0, 29,
-                0, 0, 0, 0, 0, 0, 0, 2, 0, 0, 0, 8, 3, 4, 0, 0, 0, 29, 0, 0, 0, 29,
-                /*footer*/           0, 0, 0, 58, 0, 0, 1, 109, 0, 0, 1, -89, 0, 0, 0, 44 };
+                /*block*/         {  0, 0, 0, 0, 0, 0, 0, 1, 0, 0, 0, 1, 0, 0, 0, 0, 0, 0, 0, 0, 1, 1, 0, 0, 0, 1, 0, 0, 0, 1, 0, 0, 0, 2, 0, 0, 0, 0, 0, 0, 0, 0, 2, 1, 2, 0, 0, 0, 0, 0, 0, 0, 1, 0, 0, 0, 53, 0, 0, 0, 0, 0,
+                /*block*/            0, 0, 0, 0, 0, 0, 0, 1, 0, 0, 0, 1, 0, 0, 0, 0, 0, 0, 0, 0, 3, 3, 0, 0, 0, 1, 0, 0, 0, 1, 0, 0, 0, 2, 0, 0, 0, 0, 0, 0, 0, 0, 4, 3, 4, 0, 0, 0, 0, 0, 0, 0, 1, 0, 0, 0, 53, 0, 0, 0, 0, 0,
+                /*filter*/           0, 0, 0, 0, 0, 0, 0, 4, 0, 0, 0, -87, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 2, 0, 0, 0, 0, 0, 0, 8, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 64, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 2, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 68, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
+                0, 0, 0, 3, 0, 0, 0, 1, 0, 0, 0, -87, 62, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 2, 0, 0, 0, 0, 0, 0, 0, -128, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 32, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 1, 0, 0, 0, 0, 0, 0, 0, 0, 8, 0, 0, 0, 0, 0, 0, 0, 0, 0, 4, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
+                /*index*/            0, 0, 0, 0, 0, 0, 0, 2, 0, 0, 0, 8, 1, 2, 0, 0, 0, 0, 0, 0, 0, 62,
+                0, 0, 0, 0, 0, 0, 0, 2, 0, 0, 0, 8, 3, 4, 0, 0, 0, 62, 0, 0, 0, 62,
+                /*footer*/           0, 0, 0, 124, 0, 0, 1, 111, 0, 0, 1, -21, 0, 0, 0, 44,
+                            0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 2, 0, 0, 0, 0, 121, 117, 109, 105, 45, 108, 115, 109 };
         String fileName = "yumi.sst";
         Config config = Config.newConfig("/tmp/yumi", c -> {
-            c.setSstDataBlockSize(29);
+            c.setSstDataBlockSize(53);
+            c.setFilter(new LsmBloomFilter());
         });
 
         File file = new File("/tmp/yumi/" + fileName);
         file.deleteOnExit();
         try {
-            Files.write(file.toPath(), expectedBytes);
+            Files.write(file.toPath(), SstWriterTest.fillChecksums(expectedBytes));
             SstReader sstReader = new SstReader(fileName, config);
             sstReader.readFooter();
             //footer信息和文件大小
-            Assertions.assertEquals(58, sstReader.getFilterOffset());
-            Assertions.assertEquals(365, sstReader.getFilterSize());
-            Assertions.assertEquals(423, sstReader.getIndexOffset());
+            Assertions.assertEquals(124, sstReader.getFilterOffset());
+            Assertions.assertEquals(367, sstReader.getFilterSize());
+            Assertions.assertEquals(491, sstReader.getIndexOffset());
             Assertions.assertEquals(44, sstReader.getIndexSize());
             Assertions.assertEquals(expectedBytes.length, sstReader.size());
+            //版本 2 的 footer 中没有记录最大的序列号
+            Assertions.assertEquals(Footer.UNKNOWN_SEQ, sstReader.maxSeq());
             //filter
-            Map<Integer, BitsArray> blockToFilter = sstReader.readFilter();
-            BloomFilter normalFilter = BloomFilter.createByFn(20, 400);
+            Map<Integer, FilterReader> blockToFilter = sstReader.readFilter().getBlockFilters();
             Assertions.assertEquals(2, blockToFilter.size());
-            BitsArray bitsArray0 = blockToFilter.get(0);
-            Assertions.assertNotNull(bitsArray0);
-            normalFilter.isHit(normalFilter.calcBitPositions(key1), bitsArray0);
-            normalFilter.isHit(normalFilter.calcBitPositions(key2), bitsArray0);
-
-            BitsArray bitsArray1 = blockToFilter.get(29);
-            Assertions.assertNotNull(bitsArray1);
-            normalFilter.isHit(normalFilter.calcBitPositions(key3), bitsArray1);
-            normalFilter.isHit(normalFilter.calcBitPositions(key4), bitsArray1);
+            FilterReader filter0 = blockToFilter.get(0);
+            Assertions.assertNotNull(filter0);
+            Assertions.assertTrue(filter0.mayContain(key1, KeyHash.hash64(key1)));
+            Assertions.assertTrue(filter0.mayContain(key2, KeyHash.hash64(key2)));
+
+            FilterReader filter1 = blockToFilter.get(62);
+            Assertions.assertNotNull(filter1);
+            Assertions.assertTrue(filter1.mayContain(key3, KeyHash.hash64(key3)));
+            Assertions.assertTrue(filter1.mayContain(key4, KeyHash.hash64(key4)));
             //index
             Index[] indices = sstReader.readIndex();
             Assertions.assertEquals(2, indices.length);
             Index index0 = indices[0];
             Assertions.assertEquals(0, AllUtils.compare(key2, index0.getLastKey()));
             Assertions.assertEquals(0, index0.getBlockOffset());
-            Assertions.assertEquals(29, index0.getBlockSize());
+            Assertions.assertEquals(62, index0.getBlockSize());
 
             Index index1 = indices[1];
             Assertions.assertEquals(0, AllUtils.compare(key4, index1.getLastKey()));
-            Assertions.assertEquals(29, index1.getBlockOffset());
-            Assertions.assertEquals(29, index1.getBlockSize());
+            Assertions.assertEquals(62, index1.getBlockOffset());
+            Assertions.assertEquals(62, index1.getBlockSize());
 
             //readData
             Kv[] kvs1 = sstReader.readData();
@@ -104,7 +114,7 @@ public class SstReaderTest {
             Assertions.assertEquals(0, AllUtils.compare(key4, kvs1[3].getValue()));
             Assertions.assertEquals(0, AllUtils.compare(value4, kvs1[3].getValue()));
             //readData(offset, size)
-            Kv[] kvs2 = sstReader.readData(0, 29);
+            Kv[] kvs2 = sstReader.readData(0, 62);
             Assertions.assertEquals(2, kvs2.length);
             Assertions.assertEquals(0, AllUtils.compare(key1, kvs2[0].getKey()));
             Assertions.assertEquals(0, AllUtils.compare(value1, kvs2[0].getValue()));
@@ -117,4 +127,405 @@ public class SstReaderTest {
             throw new RuntimeException(e);
         }
     }
+
+    //最早版本的 SstWriter 写出的文件（data block 大小为 40），之后的版本都要能读取
+    // --- block 29
+    // 内容 -> 0 1 1 byte[]{1} byte[]{1}  1 1 2 byte[]{2} byte[]{1,2}，没有 restart 数组和 trailer
+    // --- block 29
+    // 内容 -> 0 1 1 byte[]{3} byte[]{3}  1 1 2 byte[]{3} byte[]{3,4}
+    // --- filter 365
+    // 内容 -> 0 4 168 0 x?(168) 3 1 168 byte[]{29} y?(168)，value 是没有类型的 bloom 位数组
+    // --- index 44
+    // --- footer 16
+    // 内容 -> 58 365 423 44，没有 crc、version 和 magic
+    public static byte[] version0Sst() {
+        return new byte[]
+                /*block*/         {  0, 0, 0, 0, 0, 0, 0, 1, 0, 0, 0, 1, 1, 1, 0, 0, 0, 1, 0, 0, 0, 1, 0, 0, 0, 2, 2, 1, 2,
+                /*block*/            0, 0, 0, 0, 0, 0, 0, 1, 0, 0, 0, 1, 3, 3, 0, 0, 0, 1, 0, 0, 0, 1, 0, 0, 0, 2, 4, 3, 4,
+                /*filter*/           0, 0, 0, 0, 0, 0, 0, 4, 0, 0, 0, -88, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 2, 0, 0, 0, 0, 0, 0, 8, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 64, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 2, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 68, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
+                                     0, 0, 0, 3, 0, 0, 0, 1, 0, 0, 0, -88, 29, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 2, 0, 0, 0, 0, 0, 0, 0, -128, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 32, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 1, 0, 0, 0, 0, 0, 0, 0, 0, 8, 0, 0, 0, 0, 0, 0, 0, 0, 0, 4, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
+                /*index*/            0, 0, 0, 0, 0, 0, 0, 2, 0, 0, 0, 8, 1, 2, 0, 0, 0, 0, 0, 0, 0, 29,
+                                     0, 0, 0, 0, 0, 0, 0, 2, 0, 0, 0, 8, 3, 4, 0, 0, 0, 29, 0, 0, 0, 29,
+                /*footer*/           0, 0, 0, 58, 0, 0, 1, 109, 0, 0, 1, -89, 0, 0, 0, 44 };
+    }
+
+    @Test
+    public void testReadVersion0() throws IOException {
+        String fileName = "yumi_v0.sst";
+        Config config = Config.newConfig("/tmp/yumi", c -> c.setChecksumVerification(ChecksumVerification.ALWAYS));
+        File file = new File("/tmp/yumi/" + fileName);
+        file.deleteOnExit();
+        byte[] v0Bytes = version0Sst();
+        Files.write(file.toPath(), v0Bytes);
+
+        SstReader sstReader = new SstReader(fileName, config);
+        Assertions.assertEquals(0, sstReader.version());
+        Assertions.assertEquals(v0Bytes.length, sstReader.size());
+        Assertions.assertEquals(0, sstReader.maxSeq());
+        Kv[] kvs = sstReader.readData();
+        Assertions.assertEquals(4, kvs.length);
+        for (Kv kv : kvs) {
+            Assertions.assertEquals(0, kv.getSeq());
+        }
+        Assertions.assertArrayEquals(new byte[] {3, 4}, kvs[3].getKey());
+        Assertions.assertArrayEquals(new byte[] {3, 4}, kvs[3].getValue());
+        Assertions.assertArrayEquals(new byte[] {1, 2}, sstReader.searchData(0, 29, new byte[] {1, 2}).get());
+        Assertions.assertArrayEquals(new byte[] {3}, SstReader.searchBlock(sstReader.copyData(29, 29), new byte[] {3},
+                Kv.MAX_SEQ, sstReader.version()).get());
+        Assertions.assertArrayEquals(new byte[] {3}, sstReader.readFirstKey(29, 29));
+
+        SstFilters filters = sstReader.readFilter();
+        Index[] indices = sstReader.readIndex();
+        Assertions.assertEquals(2, indices.length);
+        Assertions.assertTrue(filters.getBlockFilter(29).mayContain(new byte[] {3, 4}, 0));
+        Node node = new Node(config, fileName, sstReader, sstReader.size(), new byte[] {1}, filters, indices);
+        Assertions.assertArrayEquals(new byte[] {1, 2}, node.get(new byte[] {1, 2}).get());
+        Assertions.assertArrayEquals(new byte[] {3, 4}, node.get(new byte[] {3, 4}, KeyHash.hash64(new byte[] {3, 4}), 0).get());
+        Assertions.assertFalse(node.get(new byte[] {2}).isPresent());
+        KvIterator iterator = node.iterator();
+        int cnt = 0;
+        for (iterator.seek(new byte[] {1, 2}); iterator.valid(); iterator.next()) {
+            Assertions.assertArrayEquals(kvs[cnt + 1].getKey(), iterator.key());
+            Assertions.assertArrayEquals(kvs[cnt + 1].getValue(), iterator.value());
+            cnt++;
+        }
+        iterator.close();
+        Assertions.assertEquals(3, cnt);
+        node.close();
+
+        //没有 magic，各部分也对不上文件大小的不是 sst 文件
+        Files.write(file.toPath(), new byte[] {0, 0, 0, 1, 0, 0, 0, 1, 0, 0, 0, 2, 0, 0, 0, 1, 0, 0, 0, 0});
+        SstReader broken = new SstReader(fileName, config);
+        Assertions.assertThrowsExactly(IllegalStateException.class, broken::readFooter);
+        broken.close();
+    }
+
+    @Test
+    public void testReadVersion1() throws IOException {
+        //版本 1 的文件，data block 的记录没有序列号 -> shared suffix valueLen suffix value，其他部分和版本 2 一样
+        // --- block 46
+        // 内容 -> 0 1 1 byte[]{1} byte[]{1}  1 1 2 byte[]{2} byte[]{1,2}  0(restart) 1(restartCnt) 37(rawSize) 0(不压缩) crc
+        // --- block 46
+        // 内容 -> 0 1 1 byte[]{3} byte[]{3}  1 1 2 byte[]{3} byte[]{3,4}  0(restart) 1(restartCnt) 37(rawSize) 0(不压缩) crc
+        // --- filter 367  --- index 44
+        // --- footer 40
+        // 内容 -> 92 367 459 44 filterCrc indexCrc 1(version) footerCrc magic(8)
+        byte[] v1Bytes = new byte[]
+                /*block*/         {  0, 0, 0, 0, 0, 0, 0, 1, 0, 0, 0, 1, 1, 1, 0, 0, 0, 1, 0, 0, 0, 1, 0, 0, 0, 2, 2, 1, 2, 0, 0, 0, 0, 0, 0, 0, 1, 0, 0, 0, 37, 0, 0, 0, 0, 0,
+                /*block*/            0, 0, 0, 0, 0, 0, 0, 1, 0, 0, 0, 1, 3, 3, 0, 0, 0, 1, 0, 0, 0, 1, 0, 0, 0, 2, 4, 3, 4, 0, 0, 0, 0, 0, 0, 0, 1, 0, 0, 0, 37, 0, 0, 0, 0, 0,
+                /*filter*/           0, 0, 0, 0, 0, 0, 0, 4, 0, 0, 0, -87, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 2, 0, 0, 0, 0, 0, 0, 8, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 64, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 2, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 68, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
+                0, 0, 0, 3, 0, 0, 0, 1, 0, 0, 0, -87, 46, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 2, 0, 0, 0, 0, 0, 0, 0, -128, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 32, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 1, 0, 0, 0, 0, 0, 0, 0, 0, 8, 0, 0, 0, 0, 0, 0, 0, 0, 0, 4, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
+                /*index*/            0, 0, 0, 0, 0, 0, 0, 2, 0, 0, 0, 8, 1, 2, 0, 0, 0, 0, 0, 0, 0, 46,
+                0, 0, 0, 0, 0, 0, 0, 2, 0, 0, 0, 8, 3, 4, 0, 0, 0, 46, 0, 0, 0, 46,
+                /*footer*/           0, 0, 0, 92, 0, 0, 1, 111, 0, 0, 1, -53, 0, 0, 0, 44,
+                            0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 1, 0, 0, 0, 0, 121, 117, 109, 105, 45, 108, 115, 109 };
+        String fileName = "yumi_v1.sst";
+        Config config = Config.newConfig("/tmp/yumi", c -> c.setFilter(new LsmBloomFilter()));
+        File file = new File("/tmp/yumi/" + fileName);
+        file.deleteOnExit();
+        Files.write(file.toPath(), SstWriterTest.fillChecksums(v1Bytes, 46));
+
+        SstReader sstReader = new SstReader(fileName, config);
+        Assertions.assertEquals(1, sstReader.version());
+        Assertions.assertEquals(0, sstReader.maxSeq());
+        //老文件中的数据序列号都是 0
+        Kv[] kvs = sstReader.readData();
+        Assertions.assertEquals(4, kvs.length);
+        for (Kv kv : kvs) {
+            Assertions.assertEquals(0, kv.getSeq());
+        }
+        Assertions.assertArrayEquals(new byte[] {3, 4}, kvs[3].getKey());
+        Assertions.assertArrayEquals(new byte[] {1, 2}, sstReader.searchData(0, 46, new byte[] {1, 2}).get());
+        Assertions.assertArrayEquals(new byte[] {3}, SstReader.searchBlock(sstReader.copyData(46, 46), new byte[] {3},
+                Kv.MAX_SEQ, sstReader.version()).get());
+
+        Node node = new Node(config, fileName, sstReader, v1Bytes.length, new byte[] {1}, new byte[] {3, 4});
+        Assertions.assertArrayEquals(new byte[] {1, 2}, node.get(new byte[] {1, 2}).get());
+        Assertions.assertArrayEquals(new byte[] {3, 4}, node.get(new byte[] {3, 4}, KeyHash.hash64(new byte[] {3, 4}), 0).get());
+        Assertions.assertFalse(node.get(new byte[] {2}).isPresent());
+        KvIterator iterator = node.iterator();
+        int cnt = 0;
+        for (iterator.seekToFirst(); iterator.valid(); iterator.next()) {
+            Assertions.assertEquals(0, iterator.seq());
+            Assertions.assertArrayEquals(kvs[cnt].getKey(), iterator.key());
+            Assertions.assertArrayEquals(kvs[cnt].getValue(), iterator.value());
+            cnt++;
+        }
+        iterator.close();
+        Assertions.assertEquals(4, cnt);
+        node.close();
+
+        //不认识的版本拒绝读取
+        ByteBuffer.wrap(v1Bytes).putInt(v1Bytes.length - 16, Footer.VERSION + 1);
+        Files.write(file.toPath(), SstWriterTest.fillChecksums(v1Bytes, 46));
+        SstReader unknown = new SstReader(fileName, config);
+        Assertions.assertThrowsExactly(IllegalStateException.class, unknown::readFooter);
+        unknown.close();
+    }
+
+    @Test
+    public void testMaxSeq() throws IOException {
+        String fileName = "yumi_seq.sst";
+        Config config = Config.newConfig("/tmp/yumi");
+        File file = new File("/tmp/yumi/" + fileName);
+        file.deleteOnExit();
+        SstWriter sstWriter = new SstWriter(fileName, config);
+        //同一个 key 的版本从新到旧，最大的序列号不一定在最后
+        sstWriter.append(new byte[] {1}, 7, new byte[] {1});
+        sstWriter.append(new byte[] {1}, 3, new byte[] {2});
+        sstWriter.append(new byte[] {2}, 12, new byte[] {3});
+        sstWriter.append(new byte[] {3}, 5, new byte[] {4});
+        sstWriter.finish();
+        sstWriter.close();
+
+        SstReader sstReader = new SstReader(fileName, config);
+        Assertions.assertEquals(Footer.VERSION, sstReader.version());
+        Assertions.assertEquals(12, sstReader.maxSeq());
+        Assertions.assertEquals(file.length(), sstReader.size());
+        Assertions.assertEquals(4, sstReader.readData().length);
+        sstReader.close();
+    }
+
+    @Test
+    public void testSegmentAndRefCnt() throws IOException {
+        String fileName = "yumi_segment.sst";
+        Config config = Config.newConfig("/tmp/yumi", c -> {
+            c.setSstDataBlockSize(53);
+        });
+        File file = new File("/tmp/yumi/" + fileName);
+        file.deleteOnExit();
+        SstWriter sstWriter = new SstWriter(fileName, config);
+        for (byte i = 0; i < 20; i++) {
+            sstWriter.append(new byte[]{i}, new byte[]{i, i});
+        }
+        sstWriter.finish();
+
+        //映射段很小，block 会跨越多个段
+        SstReader segmented = new SstReader(fileName, config, 16);
+        SstReader whole = new SstReader(fileName, config);
+        Assertions.assertEquals(whole.size(), segmented.size());
+        Kv[] expected = whole.readData();
+        Kv[] actual = segmented.readData();
+        Assertions.assertEquals(20, actual.length);
+        for (int i = 0; i < expected.length; i++) {
+            Assertions.assertEquals(0, AllUtils.compare(expected[i].getKey(), actual[i].getKey()));
+            Assertions.assertEquals(0, AllUtils.compare(expected[i].getValue(), actual[i].getValue()));
+        }
+        Assertions.assertEquals(whole.readIndex().length, segmented.readIndex().length);
+        whole.close();
+
+        //有读请求持有引用时，close 不会解除映射
+        Assertions.assertTrue(segmented.retain());
+        segmented.close();
+        Assertions.assertEquals(20, segmented.readData().length);
+        segmented.release();
+        Assertions.assertFalse(segmented.retain());
+        Assertions.assertThrows(IllegalStateException.class, segmented::readData);
+    }
+
+    @Test
+    public void testCompressedBlocks() throws IOException {
+        Config config = Config.newConfig("/tmp/yumi", c -> c.setSstDataBlockSize(4 * 1024));
+        String plainFile = "yumi_plain.sst";
+        new File("/tmp/yumi/" + plainFile).deleteOnExit();
+        int plainSize = writeValues(plainFile, config, CompressionType.NONE).getSize();
+        for (CompressionType type : new CompressionType[] {CompressionType.LZ4, CompressionType.DEFLATE}) {
+            String fileName = "yumi_" + type.name() + ".sst";
+            new File("/tmp/yumi/" + fileName).deleteOnExit();
+            SstWriter.FinishRes res = writeValues(fileName, config, type);
+            Assertions.assertTrue(res.getSize() < plainSize / 2, type.name());
+
+            SstReader sstReader = new SstReader(fileName, config);
+            Kv[] kvs = sstReader.readData();
+            Assertions.assertEquals(1000, kvs.length);
+            for (int i = 0; i < kvs.length; i++) {
+                Assertions.assertArrayEquals(key(i), kvs[i].getKey());
+                Assertions.assertArrayEquals(value(i), kvs[i].getValue());
+            }
+            Index[] indices = sstReader.readIndex();
+            Assertions.assertTrue(sstReader.isCompressed(indices[0].getBlockOffset(), indices[0].getBlockSize()));
+            for (Index index : indices) {
+                Kv last = sstReader.readData(index.getBlockOffset(), index.getBlockSize())[0];
+                Optional<byte[]> value = sstReader.searchData(index.getBlockOffset(), index.getBlockSize(), last.getKey());
+                Assertions.assertArrayEquals(last.getValue(), value.get());
+                ByteBuffer copied = sstReader.copyData(index.getBlockOffset(), index.getBlockSize());
+                Assertions.assertArrayEquals(last.getValue(), SstReader.searchBlock(copied, last.getKey()).get());
+            }
+            //迭代器复用同一个解压 buffer
+            Node node = new Node(config, fileName, sstReader, res.getSize(), res.getFirstKey(), res.getFilters(), res.getIndices());
+            KvIterator iterator = node.iterator();
+            int cnt = 0;
+            for (iterator.seekToFirst(); iterator.valid(); iterator.next()) {
+                Assertions.assertArrayEquals(key(cnt), iterator.key());
+                Assertions.assertArrayEquals(value(cnt), iterator.value());
+                cnt++;
+            }
+            iterator.close();
+            Assertions.assertEquals(1000, cnt);
+            Assertions.assertArrayEquals(value(567), node.get(key(567)).get());
+            node.close();
+        }
+    }
+
+    @Test
+    public void testWholeKeyAndPrefixFilters() throws IOException {
+        String fileName = "yumi_full_filter.sst";
+        File file = new File("/tmp/yumi/" + fileName);
+        file.deleteOnExit();
+        Config config = Config.newConfig("/tmp/yumi", c -> {
+            c.setSstDataBlockSize(1024);
+            c.setPrefixExtractor(PrefixExtractor.fixed(8));
+        });
+        writeValues(fileName, config, CompressionType.NONE);
+        SstReader sstReader = new SstReader(fileName, config);
+        SstFilters filters = sstReader.readFilter();
+        Assertions.assertTrue(filters.getBlockFilters().size() > 1);
+        Assertions.assertNotNull(filters.getFullFilter());
+        Assertions.assertNotNull(filters.getPrefixFilter());
+        Index[] indices = sstReader.readIndex();
+        byte[] startKey = sstReader.readFirstKey(indices[0].getBlockOffset(), indices[0].getBlockSize());
+        Assertions.assertArrayEquals(key(0), startKey);
+        Node node = new Node(config, fileName, sstReader, sstReader.size(), startKey, filters, indices);
+        //不存在的 key 在查找 index 之前就被过滤掉，基本不会读 block
+        long miss = config.getBlockCache().missCount();
+        int found = 0;
+        for (int i = 0; i < 1000; i++) {
+            byte[] absent = (new String(key(i)) + "x").getBytes();
+            if (node.get(absent).isPresent()) {
+                found++;
+            }
+        }
+        Assertions.assertEquals(0, found);
+        Assertions.assertTrue(config.getBlockCache().missCount() - miss < 50);
+        Assertions.assertArrayEquals(value(567), node.get(key(567)).get());
+
+        //前缀 key_0000 ~ key_0009
+        for (int i = 0; i < 10; i++) {
+            Assertions.assertTrue(node.mayContainPrefix(("key_000" + i).getBytes()));
+        }
+        int hit = 0;
+        for (int i = 10; i < 110; i++) {
+            if (node.mayContainPrefix(String.format("key_%04d", i).getBytes())) {
+                hit++;
+            }
+        }
+        Assertions.assertTrue(hit < 10, "hit " + hit);
+        //前缀规则变了以后不再使用旧的前缀过滤器
+        NodeMeta meta = node.loadedMeta();
+        Assertions.assertTrue(meta.mayContainPrefix("key_0100".getBytes(), PrefixExtractor.fixed(7)));
+        Assertions.assertFalse(meta.mayContainPrefix("key_0100".getBytes(), PrefixExtractor.fixed(8)));
+        node.close();
+    }
+
+    private static SstWriter.FinishRes writeValues(String fileName, Config config, CompressionType type) throws IOException {
+        SstWriter sstWriter = new SstWriter(fileName, config, type);
+        for (int i = 0; i < 1000; i++) {
+            sstWriter.append(key(i), value(i));
+        }
+        SstWriter.FinishRes res = sstWriter.finish();
+        sstWriter.close();
+        return res;
+    }
+
+    private static byte[] key(int i) {
+        return String.format("key_%06d", i).getBytes();
+    }
+
+    private static byte[] value(int i) {
+        StringBuilder sb = new StringBuilder();
+        for (int j = 0; j < 10; j++) {
+            sb.append("value_").append(i % 10);
+        }
+        return sb.toString().getBytes();
+    }
+
+    @Test
+    public void testChecksumVerification() throws IOException {
+        String fileName = "yumi_corrupt.sst";
+        File file = new File("/tmp/yumi/" + fileName);
+        file.deleteOnExit();
+        Config writeConfig = Config.newConfig("/tmp/yumi", c -> c.setSstDataBlockSize(1024));
+        SstWriter.FinishRes res = writeValues(fileName, writeConfig, CompressionType.NONE);
+        //改掉中间一个 block 中 value 的一个字节，block 依然可以解析
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        int pos = indexOf(bytes, value(5), res.getIndices()[res.getIndices().length / 2].getBlockOffset());
+        bytes[pos] ^= 1;
+        Files.write(file.toPath(), bytes);
+        Index corrupted = null;
+        for (Index index : res.getIndices()) {
+            if (index.getBlockOffset() <= pos && pos < index.getBlockOffset() + index.getBlockSize()) {
+                corrupted = index;
+            }
+        }
+        Assertions.assertNotNull(corrupted);
+        int offset = corrupted.getBlockOffset();
+        int size = corrupted.getBlockSize();
+
+        Config always = Config.newConfig("/tmp/yumi", c -> c.setChecksumVerification(ChecksumVerification.ALWAYS));
+        SstReader sstReader = new SstReader(fileName, always);
+        Assertions.assertThrows(IllegalStateException.class, () -> sstReader.readData(offset, size));
+        Assertions.assertThrows(IllegalStateException.class, () -> sstReader.copyData(offset, size));
+        Node node = new Node(always, fileName, sstReader, res.getSize(), res.getFirstKey(), res.getFilters(), res.getIndices());
+        Assertions.assertThrows(IllegalStateException.class, () -> drain(node.iterator()));
+        node.close();
+
+        Config compactionOnly = Config.newConfig("/tmp/yumi", c -> c.setChecksumVerification(ChecksumVerification.COMPACTION_ONLY));
+        SstReader compactionReader = new SstReader(fileName, compactionOnly);
+        Assertions.assertEquals(res.getIndices().length, compactionReader.readIndex().length);
+        Assertions.assertTrue(compactionReader.readData(offset, size).length > 0);
+        Node compactionNode = new Node(compactionOnly, fileName, compactionReader, res.getSize(),
+                res.getFirstKey(), res.getFilters(), res.getIndices());
+        Assertions.assertEquals(1000, drain(compactionNode.iterator()));
+        Assertions.assertThrows(IllegalStateException.class, () -> drain(compactionNode.compactionIterator()));
+        compactionNode.close();
+
+        Config never = Config.newConfig("/tmp/yumi", c -> c.setChecksumVerification(ChecksumVerification.NEVER));
+        SstReader neverReader = new SstReader(fileName, never);
+        Node neverNode = new Node(never, fileName, neverReader, res.getSize(), res.getFirstKey(), res.getFilters(), res.getIndices());
+        Assertions.assertEquals(1000, drain(neverNode.compactionIterator()));
+        neverNode.close();
+
+        //index 损坏，除了 NEVER 都在加载时发现
+        bytes[pos] ^= 1;
+        SstReader intact = new SstReader(fileName, compactionOnly);
+        intact.readFooter();
+        bytes[intact.getIndexOffset() + 13] ^= 1;
+        intact.close();
+        Files.write(file.toPath(), bytes);
+        SstReader badIndex = new SstReader(fileName, compactionOnly);
+        Assertions.assertThrows(IllegalStateException.class, badIndex::readIndex);
+        badIndex.close();
+
+        //magic 不对
+        bytes[bytes.length - 1] ^= 1;
+        Files.write(file.toPath(), bytes);
+        SstReader badMagic = new SstReader(fileName, never);
+        Assertions.assertThrows(IllegalStateException.class, badMagic::readFooter);
+        badMagic.close();
+    }
+
+    private static int drain(KvIterator iterator) {
+        int cnt = 0;
+        try {
+            for (iterator.seekToFirst(); iterator.valid(); iterator.next()) {
+                cnt++;
+            }
+        } finally {
+            iterator.close();
+        }
+        return cnt;
+    }
+
+    private static int indexOf(byte[] bytes, byte[] target, int from) {
+        for (int i = from; i + target.length <= bytes.length; i++) {
+            boolean match = true;
+            for (int j = 0; j < target.length && match; j++) {
+                match = bytes[i + j] == target[j];
+            }
+            if (match) {
+                return i;
+            }
+        }
+        return -1;
+    }
 }
@@ -1,14 +1,17 @@
 package com.yumi.lsm.sst;
 
+import com.google.common.hash.Hashing;
 import com.yumi.lsm.Config;
-import com.yumi.lsm.filter.BitsArray;
-import com.yumi.lsm.filter.bloom.BloomFilter;
+import com.yumi.lsm.filter.FilterReader;
+import com.yumi.lsm.filter.KeyHash;
+import com.yumi.lsm.filter.LsmBloomFilter;
 import com.yumi.lsm.util.AllUtils;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.util.Map;
 
@@ -18,7 +21,9 @@ public class SstWriterTest {
     @Test
     public void testWriteSuccess() throws IOException {
         Config config = Config.newConfig("/tmp/yumi", c -> {
-            c.setSstDataBlockSize(29);
+            c.setSstDataBlockSize(53);
+            c.setFilter(new LsmBloomFilter());
+            c.setWholeKeyFilter(false);
         });
         SstWriter sstWriter = new SstWriter("yumi.sst", config);
         byte[] key1 = new byte[] {1};
@@ -40,56 +45,56 @@ public class SstWriterTest {
         Index index0 = indices[0];
         Assertions.assertEquals(0, AllUtils.compare(key2, index0.getLastKey()));
         Assertions.assertEquals(0, index0.getBlockOffset());
-        Assertions.assertEquals(29, index0.getBlockSize());
+        Assertions.assertEquals(62, index0.getBlockSize());
 
         Index index1 = indices[1];
         Assertions.assertEquals(0, AllUtils.compare(key4, index1.getLastKey()));
-        Assertions.assertEquals(29, index1.getBlockOffset());
-        Assertions.assertEquals(29, index1.getBlockSize());
+        Assertions.assertEquals(62, index1.getBlockOffset());
+        Assertions.assertEquals(62, index1.getBlockSize());
 
 
-        BloomFilter normalFilter = BloomFilter.createByFn(20, 400);
-
-        Map<Integer, BitsArray> blockToFilter = res.getBlockToFilter();
+        Map<Integer, FilterReader> blockToFilter = res.getFilters().getBlockFilters();
         Assertions.assertEquals(2, blockToFilter.size());
-        BitsArray bitsArray0 = blockToFilter.get(0);
-        Assertions.assertNotNull(bitsArray0);
-        normalFilter.isHit(normalFilter.calcBitPositions(key1), bitsArray0);
-        normalFilter.isHit(normalFilter.calcBitPositions(key2), bitsArray0);
+        FilterReader filter0 = blockToFilter.get(0);
+        Assertions.assertNotNull(filter0);
+        Assertions.assertTrue(filter0.mayContain(key1, KeyHash.hash64(key1)));
+        Assertions.assertTrue(filter0.mayContain(key2, KeyHash.hash64(key2)));
 
-        BitsArray bitsArray1 = blockToFilter.get(29);
-        Assertions.assertNotNull(bitsArray1);
-        normalFilter.isHit(normalFilter.calcBitPositions(key3), bitsArray1);
-        normalFilter.isHit(normalFilter.calcBitPositions(key4), bitsArray1);
+        FilterReader filter1 = blockToFilter.get(62);
+        Assertions.assertNotNull(filter1);
+        Assertions.assertTrue(filter1.mayContain(key3, KeyHash.hash64(key3)));
+        Assertions.assertTrue(filter1.mayContain(key4, KeyHash.hash64(key4)));
 
 
         //文件设计
 
-        // --- block 29
-        // 内容 -> 0 1 1 byte[]{1} byte[]{1}  1 1 2 byte[]{2} byte[]{1,2}
-        // 长度 -> 4 4 4 1         1          4 4 4 1         2  = 29
-        // --- block 29
-        // 内容 -> 0 1 1 byte[]{3} byte[]{3}  1 1 2 byte[]{3} byte[]{3,4}
-        // 长度 -> 4 4 4 1         1          4 4 4 1         2  = 29
+        // --- block 62
+        // 内容 -> 0 1 1 0(seq) byte[]{1} byte[]{1}  1 1 2 0(seq) byte[]{2} byte[]{1,2}  0(restart) 1(restartCnt) 53(rawSize) 0(不压缩) crc
+        // 长度 -> 4 4 4 8      1         1          4 4 4 8      1         2            4          4             4           1        4   = 62
+        // --- block 62
+        // 内容 -> 0 1 1 0(seq) byte[]{3} byte[]{3}  1 1 2 0(seq) byte[]{3} byte[]{3,4}  0(restart) 1(restartCnt) 53(rawSize) 0(不压缩) crc
+        // 长度 -> 4 4 4 8      1         1          4 4 4 8      1         2            4          4             4           1        4   = 62
 
-        // --- filter 365
-        // BloomFilter.createByFn(20, 400).getM() == 1344b == 168B
-        // 内容 -> 0 4 168 0 x?(168) 3 1 168 byte[]{29} y?(168)
+        // --- filter 367
+        // BloomFilter.createByFn(20, 400).getM() == 1344b == 168B，前面加 1 字节的类型
+        // 内容 -> 0 4 169 0 0(LsmBloomFilter) x?(168) 3 1 169 byte[]{62} 0(LsmBloomFilter) y?(168)
 
         // --- index 44
-        // 内容 -> 0 2 8 byte[]{1,2} 0 29 0 2 8 byte[]{3,4} 29 29
+        // 内容 -> 0 2 8 byte[]{1,2} 0 62 0 2 8 byte[]{3,4} 62 62
 
-        // --- footer 16
-        // 内容 -> 58 365 423 44
+        // --- footer 48
+        // 内容 -> 124 367 491 44 filterCrc indexCrc 0(maxSeq) 3(version) footerCrc magic(8)
+        // crc 由 fillChecksums 填入
 
         byte[] expectedBytes = new byte[]
-       /*block*/         {  0, 0, 0, 0, 0, 0, 0, 1, 0, 0, 0, 1, 1, 1, 0, 0, 0, 1, 0, 0, 0, 1, 0, 0, 0, 2, 2, 1, 2,
-       /*block*/            0, 0, 0, 0, 0, 0, 0, 1, 0, 0, 0, 1, 3, 3, 0, 0, 0, 1, 0, 0, 0, 1, 0, 0, 0, 2, 4, 3, 4,
-       /*filter*/           0, 0, 0, 0, 0, 0, 0, 4, 0, 0, 0, -88, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 2, 0, 0, 0, 0, 0, 0, 8, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 64, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 2, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 68, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
-                            0, 0, 0, 3, 0, 0, 0, 1, 0, 0, 0, -88, 29, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 2, 0, 0, 0, 0, 0, 0, 0, -128, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 32, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 1, 0, 0, 0, 0, 0, 0, 0, 0, 8, 0, 0, 0, 0, 0, 0, 0, 0, 0, 4, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
-       /*index*/            0, 0, 0, 0, 0, 0, 0, 2, 0, 0, 0, 8, 1, 2, 0, 0, 0, 0, 0, 0, 0, 29,
-                            0, 0, 0, 0, 0, 0, 0, 2, 0, 0, 0, 8, 3, 4, 0, 0, 0, 29, 0, 0, 0, 29,
-       /*footer*/           0, 0, 0, 58, 0, 0, 1, 109, 0, 0, 1, -89, 0, 0, 0, 44 };
+       /*block*/         {  0, 0, 0, 0, 0, 0, 0, 1, 0, 0, 0, 1, 0, 0, 0, 0, 0, 0, 0, 0, 1, 1, 0, 0, 0, 1, 0, 0, 0, 1, 0, 0, 0, 2, 0, 0, 0, 0, 0, 0, 0, 0, 2, 1, 2, 0, 0, 0, 0, 0, 0, 0, 1, 0, 0, 0, 53, 0, 0, 0, 0, 0,
+       /*block*/            0, 0, 0, 0, 0, 0, 0, 1, 0, 0, 0, 1, 0, 0, 0, 0, 0, 0, 0, 0, 3, 3, 0, 0, 0, 1, 0, 0, 0, 1, 0, 0, 0, 2, 0, 0, 0, 0, 0, 0, 0, 0, 4, 3, 4, 0, 0, 0, 0, 0, 0, 0, 1, 0, 0, 0, 53, 0, 0, 0, 0, 0,
+       /*filter*/           0, 0, 0, 0, 0, 0, 0, 4, 0, 0, 0, -87, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 2, 0, 0, 0, 0, 0, 0, 8, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 64, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 2, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 68, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
+                            0, 0, 0, 3, 0, 0, 0, 1, 0, 0, 0, -87, 62, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 2, 0, 0, 0, 0, 0, 0, 0, -128, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 32, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 1, 0, 0, 0, 0, 0, 0, 0, 0, 8, 0, 0, 0, 0, 0, 0, 0, 0, 0, 4, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
+       /*index*/            0, 0, 0, 0, 0, 0, 0, 2, 0, 0, 0, 8, 1, 2, 0, 0, 0, 0, 0, 0, 0, 62,
+                            0, 0, 0, 0, 0, 0, 0, 2, 0, 0, 0, 8, 3, 4, 0, 0, 0, 62, 0, 0, 0, 62,
+       /*footer*/           0, 0, 0, 124, 0, 0, 1, 111, 0, 0, 1, -21, 0, 0, 0, 44,
+                            0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 3, 0, 0, 0, 0, 121, 117, 109, 105, 45, 108, 115, 109 };
 
         sstWriter.close();
 
@@ -97,9 +102,33 @@ public class SstWriterTest {
         file.deleteOnExit();
 
         byte[] bytes = Files.readAllBytes(file.toPath());
-        Assertions.assertEquals(0, AllUtils.compare(expectedBytes, bytes));
+        Assertions.assertEquals(0, AllUtils.compare(fillChecksums(expectedBytes), bytes));
 
 
         Assertions.assertEquals(0,  config.getFilter().keyLen());
     }
+
+    //按照上面的文件设计填入各处的 crc32c
+    static byte[] fillChecksums(byte[] bytes) {
+        return fillChecksums(bytes, 62);
+    }
+
+    //两个 data block 的大小都是 blockSize，crc 在 block 的最后 4 个字节；footer 的大小由结尾的版本决定
+    static byte[] fillChecksums(byte[] bytes, int blockSize) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        buffer.putInt(blockSize - 4, crc(bytes, 0, blockSize - 4));
+        buffer.putInt(2 * blockSize - 4, crc(bytes, blockSize, 2 * blockSize - 4));
+        int footerSize = buffer.getInt(bytes.length - 16) >= 3 ? Footer.SIZE : Footer.SIZE_V1;
+        int footer = bytes.length - footerSize;
+        int filterOffset = buffer.getInt(footer);
+        int indexOffset = buffer.getInt(footer + 8);
+        buffer.putInt(footer + 16, crc(bytes, filterOffset, indexOffset));
+        buffer.putInt(footer + 20, crc(bytes, indexOffset, footer));
+        buffer.putInt(bytes.length - 12, crc(bytes, footer, bytes.length - 12));
+        return bytes;
+    }
+
+    private static int crc(byte[] bytes, int start, int end) {
+        return Hashing.crc32c().hashBytes(bytes, start, end - start).asInt();
+    }
 }
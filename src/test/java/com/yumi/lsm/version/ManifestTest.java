@@ -0,0 +1,88 @@
+package com.yumi.lsm.version;
+
+import com.yumi.lsm.Config;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Collections;
+import java.util.List;
+
+import static com.yumi.lsm.TreeTestHelper.cleanFolder;
+
+public class ManifestTest {
+
+    private static FileMeta meta(int level, int seq) {
+        return new FileMeta(level, seq, 100 + seq, ("start" + seq).getBytes(), ("end" + seq).getBytes());
+    }
+
+    private static Config newConfig() {
+        String workDir = "/tmp/yumi";
+        File file = new File(workDir);
+        cleanFolder(file);
+        file.delete();
+        Config config = Config.newConfig(workDir);
+        config.getBlockBufferPool().destroy(5);
+        return config;
+    }
+
+    @Test
+    public void testReplay() {
+        Config config = newConfig();
+        Assertions.assertFalse(Manifest.exists(config));
+        Manifest manifest = Manifest.create(config, Collections.singletonList(meta(1, 1)), 5);
+        manifest.append(new VersionEdit().addFile(meta(0, 1)).addFile(meta(0, 2)).setLastSeq(20));
+        //压缩：0层两个文件和1层的文件合并成1层的两个新文件
+        manifest.append(new VersionEdit()
+                .deleteFile(0, 1).deleteFile(0, 2).deleteFile(1, 1)
+                .addFile(meta(1, 2)).addFile(meta(1, 3)));
+        manifest.append(new VersionEdit().addFile(meta(0, 3)).setLastSeq(30));
+        manifest.close();
+
+        Assertions.assertTrue(Manifest.exists(config));
+        VersionEdit replayed = Manifest.replay(config);
+        Assertions.assertEquals(30, replayed.getLastSeq());
+        List<FileMeta> live = replayed.getAdded();
+        Assertions.assertEquals(3, live.size());
+        Assertions.assertEquals("0_3.sst", live.get(0).fileName());
+        Assertions.assertEquals("1_2.sst", live.get(1).fileName());
+        Assertions.assertEquals("1_3.sst", live.get(2).fileName());
+        Assertions.assertEquals(103, live.get(2).getSize());
+        Assertions.assertArrayEquals("start3".getBytes(), live.get(2).getStartKey());
+        Assertions.assertArrayEquals("end3".getBytes(), live.get(2).getEndKey());
+
+        //重写以后只剩下存活的文件，lastSeq 保留
+        Manifest.create(config, live, replayed.getLastSeq()).close();
+        replayed = Manifest.replay(config);
+        Assertions.assertEquals(3, replayed.getAdded().size());
+        Assertions.assertEquals(30, replayed.getLastSeq());
+    }
+
+    @Test
+    public void testTornTail() throws Exception {
+        Config config = newConfig();
+        Manifest manifest = Manifest.create(config, Collections.emptyList(), 0);
+        manifest.append(new VersionEdit().addFile(meta(0, 1)));
+        manifest.append(new VersionEdit().deleteFile(0, 1).addFile(meta(1, 1)));
+        manifest.close();
+
+        //最后一条记录写了一半，相当于压缩没有完成
+        File manifestFile = new File(config.getDir() + File.separator + Manifest.FILE_NAME);
+        try (RandomAccessFile file = new RandomAccessFile(manifestFile, "rw")) {
+            file.setLength(file.length() - 3);
+        }
+        List<FileMeta> live = Manifest.replay(config).getAdded();
+        Assertions.assertEquals(1, live.size());
+        Assertions.assertEquals("0_1.sst", live.get(0).fileName());
+
+        //校验失败的记录同样被忽略，空快照记录占 24 字节，之后是第一条记录
+        try (RandomAccessFile file = new RandomAccessFile(manifestFile, "rw")) {
+            file.seek(24 + 8 + 6);
+            byte b = file.readByte();
+            file.seek(24 + 8 + 6);
+            file.writeByte(b + 1);
+        }
+        Assertions.assertTrue(Manifest.replay(config).getAdded().isEmpty());
+    }
+}
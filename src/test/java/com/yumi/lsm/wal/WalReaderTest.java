@@ -1,6 +1,8 @@
 package com.yumi.lsm.wal;
 
+import com.yumi.lsm.WriteBatch;
 import com.yumi.lsm.memtable.MemTable;
+import com.yumi.lsm.memtable.SkipListMemTable;
 import com.yumi.lsm.util.Kv;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
@@ -13,6 +15,9 @@ import java.util.List;
 import java.util.Optional;
 
 import static com.yumi.lsm.wal.WalConstants.END_MARK;
+import static com.yumi.lsm.wal.WalConstants.TOMBSTONE_LEN;
+import static com.yumi.lsm.wal.WalConstants.WAL_MAGIC;
+import static com.yumi.lsm.wal.WalConstants.WAL_VERSION;
 
 public class WalReaderTest {
 
@@ -23,11 +28,9 @@ public class WalReaderTest {
         file.deleteOnExit();
         byte[] key = new byte[] {1};
         byte[] val = new byte[] {2};
-        ByteBuffer buffer = ByteBuffer.allocate(16);
-        buffer.putInt(1);
-        buffer.putInt(1);
-        buffer.put(key);
-        buffer.put(val);
+        ByteBuffer buffer = ByteBuffer.allocate(42);
+        WalWriterTest.putHeader(buffer);
+        buffer.put(WalWriterTest.record(key, val));
         buffer.putInt(END_MARK);
         try {
             Files.write(file.toPath(), buffer.array());
@@ -39,12 +42,12 @@ public class WalReaderTest {
         MemTable memTable = new MemTable() {
             private int size;
             @Override
-            public void put(byte[] key, byte[] value) {
+            public void put(byte[] key, long seq, byte[] value) {
                 this.size++;
             }
 
             @Override
-            public Optional<byte[]> get(byte[] key) {
+            public Optional<byte[]> get(byte[] key, long seq) {
                 return Optional.empty();
             }
 
@@ -67,4 +70,182 @@ public class WalReaderTest {
         Assertions.assertEquals(1, memTable.size());
         walReader.close();
     }
+
+    @Test
+    public void testBatchAllOrNothing() {
+        String fileName = "/tmp/test.wal";
+        File file = new File(fileName);
+        file.delete();
+        file.deleteOnExit();
+        WalWriter walWriter = new WalWriter(fileName, 1024);
+        WriteBatch batch = new WriteBatch();
+        batch.put(new byte[] {1}, new byte[] {1});
+        batch.delete(new byte[] {2});
+        Assertions.assertNotEquals(WalWriter.FULL, walWriter.append(batch));
+        walWriter.sync();
+        walWriter.close();
+
+        try {
+            //模拟写了一半的batch：只有头部，内容还没有写完
+            byte[] bytes = Files.readAllBytes(file.toPath());
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            int position = 8 + 20 + 8 + 1 + 1 + 8 + 1;
+            buffer.putInt(position, 18);
+            buffer.putInt(position + 4, 12345);
+            buffer.putInt(position + 8, 2);
+            Files.write(file.toPath(), bytes);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        WalReader walReader = new WalReader(fileName);
+        SkipListMemTable memTable = new SkipListMemTable();
+        walReader.restoreMemTable(memTable);
+        walReader.close();
+        Assertions.assertEquals(2, memTable.entriesCnt());
+        Assertions.assertArrayEquals(new byte[] {1}, memTable.get(new byte[] {1}).get());
+        Assertions.assertTrue(Kv.isTombstone(memTable.get(new byte[] {2}).get()));
+    }
+
+    @Test
+    public void testRestoreSeq() {
+        String fileName = "/tmp/test.wal";
+        File file = new File(fileName);
+        file.delete();
+        file.deleteOnExit();
+        WalWriter walWriter = new WalWriter(fileName, 1024);
+        WriteBatch batch = new WriteBatch();
+        batch.put(new byte[] {1}, new byte[] {1});
+        batch.put(new byte[] {1}, new byte[] {2});
+        Assertions.assertNotEquals(WalWriter.FULL, walWriter.append(batch, 100));
+        walWriter.sync();
+        walWriter.close();
+
+        //batch 中的数据依次使用连续的序列号
+        WalReader walReader = new WalReader(fileName);
+        SkipListMemTable memTable = new SkipListMemTable();
+        Assertions.assertEquals(101, walReader.restoreMemTable(memTable));
+        walReader.close();
+        Assertions.assertEquals(2, memTable.entriesCnt());
+        Assertions.assertArrayEquals(new byte[] {2}, memTable.get(new byte[] {1}).get());
+        Assertions.assertArrayEquals(new byte[] {1}, memTable.get(new byte[] {1}, 100).get());
+        Assertions.assertFalse(memTable.get(new byte[] {1}, 99).isPresent());
+    }
+
+    @Test
+    public void testStopAtCorruptRecord() throws Exception {
+        String fileName = "/tmp/test.wal";
+        File file = new File(fileName);
+        file.delete();
+        file.deleteOnExit();
+        WalWriter walWriter = new WalWriter(fileName, 1024);
+        for (int i = 0; i < 3; i++) {
+            Assertions.assertTrue(walWriter.append(new byte[] {(byte) i}, new byte[] {(byte) i}));
+        }
+        walWriter.sync();
+        walWriter.close();
+
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        //第二条记录的 value 被改坏，校验失败，只恢复第一条
+        bytes[8 + 30 + 29] ^= 1;
+        Files.write(file.toPath(), bytes);
+        WalReader walReader = new WalReader(fileName);
+        SkipListMemTable memTable = new SkipListMemTable();
+        walReader.restoreMemTable(memTable);
+        walReader.close();
+        Assertions.assertEquals(1, memTable.entriesCnt());
+
+        //长度被改成一个很大的值，不会按照它分配内存
+        ByteBuffer.wrap(bytes).putInt(8, Integer.MAX_VALUE - 100);
+        Files.write(file.toPath(), bytes);
+        walReader = new WalReader(fileName);
+        memTable = new SkipListMemTable();
+        walReader.restoreMemTable(memTable);
+        walReader.close();
+        Assertions.assertEquals(0, memTable.entriesCnt());
+
+        //重新打开写入，从第二条损坏的记录处继续写，后面残留的第三条记录被清掉
+        ByteBuffer.wrap(bytes).putInt(8, 10);
+        Files.write(file.toPath(), bytes);
+        walWriter = new WalWriter(fileName, 1024);
+        Assertions.assertTrue(walWriter.append(new byte[] {9}, new byte[] {9}));
+        walWriter.sync();
+        walWriter.close();
+        walReader = new WalReader(fileName);
+        memTable = new SkipListMemTable();
+        walReader.restoreMemTable(memTable);
+        walReader.close();
+        Assertions.assertEquals(2, memTable.entriesCnt());
+        Assertions.assertArrayEquals(new byte[] {0}, memTable.get(new byte[] {0}).get());
+        Assertions.assertArrayEquals(new byte[] {9}, memTable.get(new byte[] {9}).get());
+    }
+
+    @Test
+    public void testRestoreChecksummedLegacyFile() throws Exception {
+        String fileName = "/tmp/test.wal";
+        File file = new File(fileName);
+        file.deleteOnExit();
+        //没有头部和序列号的老格式: bodyLen crc count 之后是 keyLen valLen key value，bodyLen 不包含 count
+        ByteBuffer buffer = ByteBuffer.allocate(128);
+        buffer.putInt(8 + 1 + 1 + 8 + 1);
+        buffer.putInt(0);
+        buffer.putInt(2);
+        buffer.putInt(1).putInt(1).put((byte) 1).put((byte) 1);
+        buffer.putInt(1).putInt(TOMBSTONE_LEN).put((byte) 2);
+        buffer.putInt(4, WalReader.checksum(buffer, 8, buffer.position()));
+        buffer.putInt(END_MARK);
+        Files.write(file.toPath(), buffer.array());
+
+        WalReader walReader = new WalReader(fileName);
+        SkipListMemTable memTable = new SkipListMemTable();
+        Assertions.assertEquals(0, walReader.restoreMemTable(memTable));
+        walReader.close();
+        Assertions.assertEquals(2, memTable.entriesCnt());
+        Assertions.assertArrayEquals(new byte[] {1}, memTable.get(new byte[] {1}, 0).get());
+        Assertions.assertTrue(Kv.isTombstone(memTable.get(new byte[] {2}, 0).get()));
+    }
+
+    @Test
+    public void testRestoreOriginalLegacyFile() throws Exception {
+        String fileName = "/tmp/test.wal";
+        File file = new File(fileName);
+        file.deleteOnExit();
+        //最早的格式: 单条 keyLen valLen key value，batch 是 BATCH_MARK count bodyLen 之后的数据，没有校验
+        ByteBuffer buffer = ByteBuffer.allocate(128);
+        buffer.putInt(1).putInt(2).put((byte) 1).put(new byte[] {1, 1});
+        buffer.putInt(-10980099).putInt(2).putInt(8 + 1 + 1 + 8 + 1);
+        buffer.putInt(1).putInt(1).put((byte) 2).put((byte) 2);
+        buffer.putInt(1).putInt(TOMBSTONE_LEN).put((byte) 3);
+        Files.write(file.toPath(), buffer.array());
+
+        WalReader walReader = new WalReader(fileName);
+        SkipListMemTable memTable = new SkipListMemTable();
+        Assertions.assertEquals(0, walReader.restoreMemTable(memTable));
+        walReader.close();
+        Assertions.assertEquals(3, memTable.entriesCnt());
+        Assertions.assertArrayEquals(new byte[] {1, 1}, memTable.get(new byte[] {1}).get());
+        Assertions.assertArrayEquals(new byte[] {2}, memTable.get(new byte[] {2}).get());
+        Assertions.assertTrue(Kv.isTombstone(memTable.get(new byte[] {3}).get()));
+    }
+
+    @Test
+    public void testUnknownVersion() throws Exception {
+        String fileName = "/tmp/test.wal";
+        File file = new File(fileName);
+        file.deleteOnExit();
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        buffer.putInt(WAL_MAGIC);
+        buffer.putInt(WAL_VERSION + 1);
+        buffer.put(WalWriterTest.record(new byte[] {1}, new byte[] {1}));
+        Files.write(file.toPath(), buffer.array());
+
+        //不认识的版本拒绝回放，不能当成空文件
+        WalReader walReader = new WalReader(fileName);
+        try {
+            Assertions.assertThrowsExactly(IllegalStateException.class,
+                    () -> walReader.restoreMemTable(new SkipListMemTable()));
+        } finally {
+            walReader.close();
+        }
+    }
 }
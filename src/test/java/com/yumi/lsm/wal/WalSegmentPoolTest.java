@@ -0,0 +1,116 @@
+package com.yumi.lsm.wal;
+
+import com.yumi.lsm.WriteBatch;
+import com.yumi.lsm.memtable.MemTable;
+import com.yumi.lsm.memtable.SkipListMemTable;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+
+public class WalSegmentPoolTest {
+    private static final int SEGMENT_SIZE = 64 * 1024;
+
+    @Test
+    public void testFillAndAcquire() throws IOException {
+        File dir = newDir("/tmp/yumi/segment_pool_fill");
+        WalSegmentPool pool = new WalSegmentPool(dir.getPath(), SEGMENT_SIZE, 2);
+        Assertions.assertTrue(pool.fill());
+        Assertions.assertEquals(2, pool.readyCount());
+        String wal = dir.getPath() + File.separator + "1.wal";
+        Assertions.assertTrue(pool.acquire(wal));
+        Assertions.assertEquals(1, pool.readyCount());
+        byte[] content = Files.readAllBytes(new File(wal).toPath());
+        Assertions.assertEquals(SEGMENT_SIZE, content.length);
+        //只有头部，后面全部清零
+        ByteBuffer header = ByteBuffer.wrap(content);
+        Assertions.assertEquals(WalConstants.WAL_MAGIC, header.getInt(0));
+        Assertions.assertEquals(WalConstants.WAL_VERSION, header.getInt(4));
+        for (int i = WalConstants.SEGMENT_HEADER_BYTES; i < content.length; i++) {
+            Assertions.assertEquals(0, content[i]);
+        }
+        //池中的文件不会被当成 wal
+        Assertions.assertEquals(1, dir.listFiles(f -> f.getName().endsWith(".wal")).length);
+        //重新打开时保留池中的文件
+        Assertions.assertEquals(1, new WalSegmentPool(dir.getPath(), SEGMENT_SIZE, 2).readyCount());
+        //大小不一致时丢弃
+        Assertions.assertEquals(0, new WalSegmentPool(dir.getPath(), SEGMENT_SIZE * 2, 2).readyCount());
+    }
+
+    @Test
+    public void testRecycleDoesNotReplayOldRecords() {
+        File dir = newDir("/tmp/yumi/segment_pool_recycle");
+        WalSegmentPool pool = new WalSegmentPool(dir.getPath(), SEGMENT_SIZE, 1);
+        String oldWal = dir.getPath() + File.separator + "1.wal";
+        WalWriter writer = new WalWriter(oldWal, SEGMENT_SIZE);
+        for (int i = 0; i < 100; i++) {
+            WriteBatch batch = new WriteBatch();
+            batch.put(new byte[] {(byte) i}, new byte[] {(byte) i});
+            writer.append(batch);
+        }
+        writer.finish();
+        writer.sync();
+        writer.close();
+
+        pool.recycle(oldWal);
+        Assertions.assertFalse(new File(oldWal).exists());
+        Assertions.assertEquals(1, pool.readyCount());
+
+        String newWal = dir.getPath() + File.separator + "2.wal";
+        Assertions.assertTrue(pool.acquire(newWal));
+        WalReader reader = new WalReader(newWal);
+        MemTable memTable = new SkipListMemTable();
+        reader.restoreMemTable(memTable);
+        reader.close();
+        Assertions.assertEquals(0, memTable.entriesCnt());
+        //复用的文件从头开始写入
+        writer = new WalWriter(newWal, SEGMENT_SIZE);
+        WriteBatch batch = new WriteBatch();
+        batch.put(new byte[] {1}, new byte[] {2});
+        writer.append(batch);
+        writer.sync();
+        writer.close();
+        reader = new WalReader(newWal);
+        memTable = new SkipListMemTable();
+        reader.restoreMemTable(memTable);
+        reader.close();
+        Assertions.assertEquals(1, memTable.entriesCnt());
+        Assertions.assertArrayEquals(new byte[] {2}, memTable.get(new byte[] {1}).get());
+
+        //池满时直接删除
+        pool.fill();
+        String third = dir.getPath() + File.separator + "3.wal";
+        new WalWriter(third, SEGMENT_SIZE).close();
+        pool.recycle(third);
+        Assertions.assertFalse(new File(third).exists());
+        Assertions.assertEquals(1, pool.readyCount());
+    }
+
+    @Test
+    public void testFillFailure() {
+        File dir = newDir("/tmp/yumi/segment_pool_fail");
+        WalSegmentPool pool = new WalSegmentPool(dir.getPath(), SEGMENT_SIZE, 2);
+        //目录没了，预分配失败只返回 false，不抛出
+        dir.delete();
+        Assertions.assertFalse(pool.fill());
+        Assertions.assertEquals(0, pool.readyCount());
+        dir.mkdirs();
+        Assertions.assertTrue(pool.fill());
+        Assertions.assertEquals(2, pool.readyCount());
+    }
+
+    private static File newDir(String path) {
+        File dir = new File(path);
+        File[] files = dir.listFiles();
+        if (null != files) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.mkdirs();
+        return dir;
+    }
+}
@@ -1,18 +1,57 @@
 package com.yumi.lsm.wal;
 
+import com.yumi.lsm.WriteBatch;
+import com.yumi.lsm.memtable.SkipListMemTable;
+import com.yumi.lsm.util.LibC;
+import com.google.common.hash.Hashing;
 import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.yumi.lsm.wal.WalConstants.END_MARK;
+import static com.yumi.lsm.wal.WalConstants.WAL_MAGIC;
+import static com.yumi.lsm.wal.WalConstants.WAL_VERSION;
 
 
 public class WalWriterTest {
 
+    @BeforeEach
+    public void clean() {
+        //各个用例共用同一个文件，避免上一个用例的残留影响
+        new File("/tmp/test.wal").delete();
+    }
+
+    //文件头部: magic version
+    static void putHeader(ByteBuffer buffer) {
+        buffer.putInt(WAL_MAGIC);
+        buffer.putInt(WAL_VERSION);
+    }
+
+    //单条数据的记录: bodyLen crc count seq keyLen valLen key value
+    static byte[] record(byte[] key, byte[] val) {
+        return record(key, val, 0);
+    }
+
+    static byte[] record(byte[] key, byte[] val, long seq) {
+        ByteBuffer buffer = ByteBuffer.allocate(20 + 8 + key.length + val.length);
+        buffer.putInt(8 + key.length + val.length);
+        buffer.putInt(0);
+        buffer.putInt(1);
+        buffer.putLong(seq);
+        buffer.putInt(key.length);
+        buffer.putInt(val.length);
+        buffer.put(key);
+        buffer.put(val);
+        buffer.putInt(4, Hashing.crc32c().hashBytes(buffer.array(), 8, buffer.capacity() - 8).asInt());
+        return buffer.array();
+    }
+
     @Test
     public void testCreateFailOfFull() {
         String fileName = "/tmp/test.wal";
@@ -20,11 +59,9 @@ public class WalWriterTest {
         file.deleteOnExit();
         byte[] key = new byte[] {1};
         byte[] val = new byte[] {2};
-        ByteBuffer buffer = ByteBuffer.allocate(16);
-        buffer.putInt(1);
-        buffer.putInt(1);
-        buffer.put(key);
-        buffer.put(val);
+        ByteBuffer buffer = ByteBuffer.allocate(42);
+        putHeader(buffer);
+        buffer.put(record(key, val));
         buffer.putInt(END_MARK);
         try {
             Files.write(file.toPath(), buffer.array());
@@ -42,8 +79,8 @@ public class WalWriterTest {
         String fileName = "/tmp/test.wal";
         File file = new File(fileName);
         file.deleteOnExit();
-        int fileSize = 16;
-        // file -> 4 + 4 + 1 + 1 4 0 0
+        int fileSize = 42;
+        // file -> 8 20 + 4 + 4 + 1 + 1 4
         WalWriter walWriter = new WalWriter(fileName, fileSize);
         byte[] key = new byte[] {1};
         byte[] val = new byte[] {2};
@@ -59,11 +96,9 @@ public class WalWriterTest {
             file.delete();
             throw new RuntimeException(e);
         }
-        ByteBuffer buffer = ByteBuffer.allocate(16);
-        buffer.putInt(1);
-        buffer.putInt(1);
-        buffer.put(key);
-        buffer.put(val);
+        ByteBuffer buffer = ByteBuffer.allocate(42);
+        putHeader(buffer);
+        buffer.put(record(key, val));
         buffer.putInt(END_MARK);
         byte[] expectedBytes = buffer.array();
         Assertions.assertEquals(expectedBytes.length, bytes.length);
@@ -81,8 +116,8 @@ public class WalWriterTest {
         File file = new File(fileName);
         file.deleteOnExit();
 
-        int fileSize = 24;
-        // file -> 4 + 4 + 1 + 1 4 + 4 + 1 + 1 4
+        int fileSize = 72;
+        // file -> 8 20 + 4 + 4 + 1 + 1 20 + 4 + 4 + 1 + 1 4
         WalWriter walWriter = new WalWriter(fileName, fileSize);
         byte[] key = new byte[] {1};
         byte[] val = new byte[] {2};
@@ -102,15 +137,10 @@ public class WalWriterTest {
             file.delete();
             throw new RuntimeException(e);
         }
-        ByteBuffer buffer = ByteBuffer.allocate(24);
-        buffer.putInt(1);
-        buffer.putInt(1);
-        buffer.put(key);
-        buffer.put(val);
-        buffer.putInt(1);
-        buffer.putInt(1);
-        buffer.put(key);
-        buffer.put(val);
+        ByteBuffer buffer = ByteBuffer.allocate(72);
+        putHeader(buffer);
+        buffer.put(record(key, val));
+        buffer.put(record(key, val));
         buffer.putInt(END_MARK);
         byte[] expectedBytes = buffer.array();
         Assertions.assertEquals(expectedBytes.length, bytes.length);
@@ -121,4 +151,132 @@ public class WalWriterTest {
         Assertions.assertTrue(compareRes);
         walWriter.close();
     }
+
+    @Test
+    public void testRecordLargerThanFile() {
+        String fileName = "/tmp/test.wal";
+        File file = new File(fileName);
+        file.deleteOnExit();
+        byte[] key = new byte[] {1};
+        byte[] val = new byte[] {2, 3};
+        // 8 + 31 + 4 = 43，只差头部的空间，空文件也放不下
+        WalWriter walWriter = new WalWriter(fileName, 42);
+        Assertions.assertThrowsExactly(IllegalStateException.class, () -> {
+            walWriter.write(key, val);
+        });
+        walWriter.close();
+        file.delete();
+
+        WalWriter fitWriter = new WalWriter(fileName, 43);
+        Assertions.assertTrue(fitWriter.write(key, val));
+        Assertions.assertFalse(fitWriter.write(key, val));
+        fitWriter.close();
+    }
+
+    @Test
+    public void testAppendThenSync() {
+        String fileName = "/tmp/test.wal";
+        File file = new File(fileName);
+        file.deleteOnExit();
+
+        int fileSize = 72;
+        WalWriter walWriter = new WalWriter(fileName, fileSize);
+        byte[] key = new byte[] {1};
+        byte[] val = new byte[] {2};
+        //一组写入只刷一次盘
+        Assertions.assertTrue(walWriter.append(key, val));
+        Assertions.assertTrue(walWriter.append(key, val));
+        Assertions.assertFalse(walWriter.append(key, val));
+        walWriter.sync();
+        walWriter.close();
+
+        Assertions.assertThrowsExactly(IllegalStateException.class, () -> {
+            new WalWriter(fileName, fileSize);
+        });
+    }
+
+    @Test
+    public void testRefuseLegacyFile() throws IOException {
+        String fileName = "/tmp/test.wal";
+        File file = new File(fileName);
+        file.deleteOnExit();
+        //没有头部的老文件只能回放，不能继续写入
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        buffer.putInt(1);
+        buffer.putInt(1);
+        buffer.put(new byte[] {1, 2});
+        Files.write(file.toPath(), buffer.array());
+        Assertions.assertThrowsExactly(IllegalStateException.class, () -> {
+            new WalWriter(fileName, 64);
+        });
+
+        //版本不认识
+        buffer.clear();
+        buffer.putInt(WAL_MAGIC);
+        buffer.putInt(WAL_VERSION + 1);
+        Files.write(file.toPath(), buffer.array());
+        Assertions.assertThrowsExactly(IllegalStateException.class, () -> {
+            new WalWriter(fileName, 64);
+        });
+    }
+
+    @Test
+    public void testMsync() {
+        String fileName = "/tmp/test.wal";
+        File file = new File(fileName);
+        file.deleteOnExit();
+
+        WalWriter walWriter = new WalWriter(fileName, 4096);
+        byte[] key = new byte[] {1};
+        byte[] val = new byte[] {2};
+        Assertions.assertTrue(walWriter.append(key, val));
+        walWriter.msync(LibC.MS_ASYNC);
+        Assertions.assertTrue(walWriter.append(key, val));
+        walWriter.msync(LibC.MS_SYNC);
+        walWriter.close();
+    }
+
+    @Test
+    public void testConcurrentAppend() throws Exception {
+        String fileName = "/tmp/test.wal";
+        File file = new File(fileName);
+        file.deleteOnExit();
+
+        WalWriter walWriter = new WalWriter(fileName, 64 * 1024);
+        AtomicInteger success = new AtomicInteger();
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            byte tag = (byte) t;
+            threads[t] = new Thread(() -> {
+                while (true) {
+                    WriteBatch batch = new WriteBatch();
+                    batch.put(new byte[] {tag}, new byte[] {tag, tag});
+                    int end = walWriter.append(batch);
+                    if (end == WalWriter.FULL) {
+                        break;
+                    }
+                    walWriter.sync(end);
+                    success.incrementAndGet();
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        walWriter.finish();
+        walWriter.close();
+
+        WalReader walReader = new WalReader(fileName);
+        AtomicInteger restored = new AtomicInteger();
+        walReader.restoreMemTable(new SkipListMemTable() {
+            @Override
+            public void put(byte[] key, long seq, byte[] value) {
+                Assertions.assertArrayEquals(new byte[] {key[0], key[0]}, value);
+                restored.incrementAndGet();
+            }
+        });
+        walReader.close();
+        Assertions.assertEquals(success.get(), restored.get());
+    }
 }